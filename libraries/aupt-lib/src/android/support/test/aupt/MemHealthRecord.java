@@ -17,6 +17,9 @@
 package android.support.test.aupt;
 
 import android.app.Instrumentation;
+
+import com.android.helpers.MeminfoParser;
+
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.FileWriter;
@@ -27,8 +30,6 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 class MemHealthRecord {
     // Process State
@@ -88,19 +89,21 @@ class MemHealthRecord {
         List<MemHealthRecord> records = new ArrayList<>();
 
         for (String procName : procNames) {
-            String meminfo = getMeminfoOutput(instr, procName);
-            int nativeHeap = parseMeminfoLine(meminfo, "Native Heap\\s+\\d+\\s+(\\d+)");
-            int dalvikHeap = parseMeminfoLine(meminfo, "Dalvik Heap\\s+\\d+\\s+(\\d+)");
-            int pss = parseMeminfoLine(meminfo, "TOTAL\\s+(\\d+)");
-
-            int asJavaHeap = parseMeminfoLine(meminfo, "Java Heap:\\s+(\\d+)");
-            int asNativeHeap = parseMeminfoLine(meminfo, "Native Heap:\\s+(\\d+)");
-            int asCode = parseMeminfoLine(meminfo, "Code:\\s+(\\d+)");
-            int asStack = parseMeminfoLine(meminfo, "Stack:\\s+(\\d+)");
-            int asGraphics = parseMeminfoLine(meminfo, "Graphics:\\s+(\\d+)");
-            int asOther = parseMeminfoLine(meminfo, "Private Other:\\s+(\\d+)");
-            int asSystem = parseMeminfoLine(meminfo, "System:\\s+(\\d+)");
-            int asOverallPss = parseMeminfoLine(meminfo, "TOTAL:\\s+(\\d+)");
+            // Parse the rows and the app summary of the output in a single pass.
+            MeminfoParser.Record meminfo =
+                    MeminfoParser.parse(getMeminfoOutput(instr, procName));
+            long nativeHeap = meminfo.getColumn("Native Heap", 1);
+            long dalvikHeap = meminfo.getColumn("Dalvik Heap", 1);
+            long pss = meminfo.getColumn("TOTAL", 0);
+
+            long asJavaHeap = meminfo.getField("Java Heap");
+            long asNativeHeap = meminfo.getField("Native Heap");
+            long asCode = meminfo.getField("Code");
+            long asStack = meminfo.getField("Stack");
+            long asGraphics = meminfo.getField("Graphics");
+            long asOther = meminfo.getField("Private Other");
+            long asSystem = meminfo.getField("System");
+            long asOverallPss = meminfo.getField("TOTAL");
 
             if (nativeHeap < 0 || dalvikHeap < 0 || pss < 0) {
                 continue;
@@ -475,17 +478,6 @@ class MemHealthRecord {
         return (long) (sum / samples.size());
     }
 
-    private static int parseMeminfoLine(String meminfo, String pattern)
-    {
-        Pattern p = Pattern.compile(pattern);
-        Matcher m = p.matcher(meminfo);
-        if (m.find()) {
-            return Integer.parseInt(m.group(1));
-        } else {
-            return -1;
-        }
-    }
-
     public static String getMeminfoOutput(Instrumentation instr, String processName)
             throws IOException {
         return getProcessOutput(instr, "dumpsys meminfo " + processName);
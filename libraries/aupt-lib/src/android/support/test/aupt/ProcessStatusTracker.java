@@ -21,30 +21,21 @@ import android.app.ActivityManager.RunningAppProcessInfo;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import com.android.helpers.ProcessTable;
+import com.android.helpers.ShellCommandExecutor;
+
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import java.util.Set;
 
 public class ProcessStatusTracker implements IProcessStatusTracker {
     private static final String TAG = "ProcessStatusTracker";
 
-    // Example return line from "adb shell ps" for the pattern below
-    // USER     PID     PPID    VSIZE   RSS     WCHAN       PC          NAME
-    // root     1       0       2216    804     sys_epoll_  00000000 S  com.android.chrome
-    private final String PS_PATTERN =
-            "\\w+\\s+(\\d+)\\s+\\w+\\s+\\d+\\s+\\d+\\s+\\w+\\s+[0-9a-f]+\\s+\\w+\\s+(.+)";
-    private final Pattern PS_PATTERN_MATCH = Pattern.compile(PS_PATTERN);
-    private final int PS_PATTERN_PID_GROUP = 1;
-    private final int PS_PATTERN_PKG_GROUP = 2;
-
     private Map<String, Integer> mPidTracker;
     private Set<String> mPidExclusions;
 
@@ -183,44 +174,31 @@ public class ProcessStatusTracker implements IProcessStatusTracker {
     public List<RunningAppProcessInfo> getRunningAppProcesses() {
         List<RunningAppProcessInfo> results = new ArrayList<RunningAppProcessInfo>();
 
-        Set<String> procSet = mPidTracker.keySet();
-        // Enumerate status for all currently tracked processes
-        for (String proc : procSet) {
-            // Execute shell command and parse results
-            BufferedReader stream = executeShellCommand("ps");
-            try {
-                String line;
-                while ((line = stream.readLine()) != null) {
-                    Matcher matcher = PS_PATTERN_MATCH.matcher(line);
-                    // Find a line that matches the process name exactly
-                    if (matcher.matches() && matcher.group(PS_PATTERN_PKG_GROUP).equals(proc)) {
-                        int pid = Integer.valueOf(matcher.group(PS_PATTERN_PID_GROUP));
-                        results.add(new RunningAppProcessInfo(proc, pid, null));
-                    }
-                }
-            } catch (IOException exception) {
-                Log.e(TAG, "Error with buffered reader", exception);
-                return null;
-            } finally {
-                try {
-                    if (stream != null) {
-                        stream.close();
-                    }
-                } catch (IOException exception) {
-                    Log.e(TAG, "Error with closing the stream", exception);
-                }
+        // Look up all currently tracked processes with a single walk of /proc
+        Map<String, List<Integer>> pids = getProcessTable().getPids(mPidTracker.keySet());
+        for (Map.Entry<String, List<Integer>> entry : pids.entrySet()) {
+            for (int pid : entry.getValue()) {
+                results.add(new RunningAppProcessInfo(entry.getKey(), pid, null));
             }
         }
 
         return results;
     }
 
+    private ProcessTable getProcessTable() {
+        if (mProcessTable == null) {
+            mProcessTable = new ProcessTable(new ShellCommandExecutor(getUiAutomation()));
+        }
+        return mProcessTable;
+    }
+
     // TODO: Create subclass for shell commands used by this and GraphicsStatsMonitor
 
     /**
      * UiAutomation is included solely for the purpose of executing shell commands
      */
     private UiAutomation mUiAutomation;
+    private ProcessTable mProcessTable;
 
     /**
      * Executes a shell command through UiAutomation and puts the results in an
@@ -241,6 +219,7 @@ public class ProcessStatusTracker implements IProcessStatusTracker {
      */
     public void setUiAutomation (UiAutomation uiAutomation) {
         mUiAutomation = uiAutomation;
+        mProcessTable = null;
     }
 
     /**
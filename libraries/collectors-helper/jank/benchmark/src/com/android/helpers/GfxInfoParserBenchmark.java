@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.tradefed.testtype.DeviceJUnit4ClassRunner;
+import com.android.tradefed.testtype.DeviceJUnit4ClassRunner.TestMetrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Host-side benchmark comparing {@link GfxInfoParser} against the split-and-regex parsing that
+ * {@code JankCollectionHelper} used previously, over a synthetic {@code dumpsys gfxinfo --} dump.
+ * The timings of both parsers are reported as test metrics.
+ */
+@RunWith(DeviceJUnit4ClassRunner.class)
+public class GfxInfoParserBenchmark {
+    private static final int PACKAGE_COUNT = 64;
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int MEASURED_ITERATIONS = 200;
+
+    // The header and metric patterns previously used by JankCollectionHelper, kept verbatim.
+    private static final Pattern LEGACY_HEADER =
+            Pattern.compile("[\\s\\S]*Graphics info for pid (\\d+) \\[(.*)\\][\\s\\S]*");
+    private static final String[] LEGACY_IDS = {
+        "total_frames",
+        "janky_frames_count",
+        "janky_frames_percent",
+        "jank_percentile_50",
+        "jank_percentile_90",
+        "jank_percentile_95",
+        "jank_percentile_99",
+        "missed_vsync",
+        "high_input_latency",
+        "slow_ui_thread",
+        "slow_bmp_upload",
+        "slow_issue_draw_cmds",
+        "deadline_missed",
+    };
+    private static final Pattern[] LEGACY_PATTERNS = {
+        Pattern.compile(".*Total frames rendered: (\\d+).*", Pattern.DOTALL),
+        Pattern.compile(".*Janky frames: (\\d+) \\((.+)\\%\\).*", Pattern.DOTALL),
+        Pattern.compile(".*Janky frames: (\\d+) \\((.+)\\%\\).*", Pattern.DOTALL),
+        Pattern.compile(".*50th percentile: (\\d+)ms.*", Pattern.DOTALL),
+        Pattern.compile(".*90th percentile: (\\d+)ms.*", Pattern.DOTALL),
+        Pattern.compile(".*95th percentile: (\\d+)ms.*", Pattern.DOTALL),
+        Pattern.compile(".*99th percentile: (\\d+)ms.*", Pattern.DOTALL),
+        Pattern.compile(".*Number Missed Vsync: (\\d+).*", Pattern.DOTALL),
+        Pattern.compile(".*Number High input latency: (\\d+).*", Pattern.DOTALL),
+        Pattern.compile(".*Number Slow UI thread: (\\d+).*", Pattern.DOTALL),
+        Pattern.compile(".*Number Slow bitmap uploads: (\\d+).*", Pattern.DOTALL),
+        Pattern.compile(".*Number Slow issue draw commands: (\\d+).*", Pattern.DOTALL),
+        Pattern.compile(".*Number Frame deadline missed: (\\d+).*", Pattern.DOTALL),
+    };
+    private static final int[] LEGACY_GROUPS = {1, 1, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1};
+
+    @Rule public TestMetrics mMetrics = new TestMetrics();
+
+    /** Test that both parsers produce the same metrics. */
+    @Test
+    public void testResultsMatch() {
+        String dump = buildDump(PACKAGE_COUNT);
+        Map<String, Double> legacy = parseLegacy(dump);
+        assertEquals(PACKAGE_COUNT * LEGACY_IDS.length, legacy.size());
+        assertEquals(legacy, parseStreaming(dump));
+    }
+
+    /** Measure the average time each parser takes over the same dump. */
+    @Test
+    public void benchmarkParsers() {
+        String dump = buildDump(PACKAGE_COUNT);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            parseLegacy(dump);
+            parseStreaming(dump);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            parseLegacy(dump);
+        }
+        long legacyNs = (System.nanoTime() - start) / MEASURED_ITERATIONS;
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            parseStreaming(dump);
+        }
+        long streamingNs = (System.nanoTime() - start) / MEASURED_ITERATIONS;
+        mMetrics.addTestMetric("gfxinfo_parse_dump_chars", String.valueOf(dump.length()));
+        mMetrics.addTestMetric("gfxinfo_parse_legacy_us", String.valueOf(legacyNs / 1000));
+        mMetrics.addTestMetric("gfxinfo_parse_streaming_us", String.valueOf(streamingNs / 1000));
+    }
+
+    /** Parse {@code output} the way {@code JankCollectionHelper} did before GfxInfoParser. */
+    private static Map<String, Double> parseLegacy(String output) {
+        Map<String, Double> result = new HashMap<>();
+        String[] sections = output.split("\n\\*\\*");
+        for (int i = 1; i < sections.length; i++) {
+            Matcher header = LEGACY_HEADER.matcher(sections[i]);
+            if (!header.matches()) {
+                throw new RuntimeException("Failed to parse package from gfxinfo output.");
+            }
+            String packageName = header.group(2);
+            for (int j = 0; j < LEGACY_PATTERNS.length; j++) {
+                Matcher matcher = LEGACY_PATTERNS[j].matcher(sections[i]);
+                if (matcher.matches()) {
+                    result.put(
+                            key(packageName, LEGACY_IDS[j]),
+                            Double.valueOf(matcher.group(LEGACY_GROUPS[j])));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Parse {@code output} with {@link GfxInfoParser}. */
+    private static Map<String, Double> parseStreaming(String output) {
+        Map<String, Double> result = new HashMap<>();
+        GfxInfoParser.Stat[] stats = GfxInfoParser.Stat.values();
+        for (GfxInfoParser.PackageStats pkg : GfxInfoParser.parse(output)) {
+            for (int j = 0; j < stats.length; j++) {
+                if (pkg.hasValue(stats[j])) {
+                    result.put(key(pkg.getPackageName(), LEGACY_IDS[j]), pkg.getValue(stats[j]));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String key(String packageName, String metricId) {
+        return String.join("_", "gfxinfo", packageName, metricId);
+    }
+
+    /** Build a {@code dumpsys gfxinfo --} style dump with {@code packages} package sections. */
+    private static String buildDump(int packages) {
+        StringBuilder histogram = new StringBuilder("HISTOGRAM:");
+        for (int ms = 5; ms < 5000; ms += (ms < 32 ? 1 : 50)) {
+            histogram.append(' ').append(ms).append("ms=").append(ms % 7);
+        }
+        StringBuilder dump = new StringBuilder("Applications Graphics Acceleration Info:\n");
+        dump.append("Uptime: 12345678 Realtime: 12345678\n");
+        for (int i = 0; i < packages; i++) {
+            dump.append("\n** Graphics info for pid ")
+                    .append(1000 + i)
+                    .append(" [com.android.package")
+                    .append(i)
+                    .append("] **\n\n")
+                    .append("Stats since: 1234567890ns\n")
+                    .append("Total frames rendered: ").append(900 + i).append('\n')
+                    .append("Janky frames: ").append(i).append(" (").append(i % 100)
+                    .append(".25%)\n")
+                    .append("50th percentile: ").append(5 + i % 3).append("ms\n")
+                    .append("90th percentile: ").append(9 + i % 5).append("ms\n")
+                    .append("95th percentile: ").append(13 + i % 7).append("ms\n")
+                    .append("99th percentile: ").append(32 + i % 11).append("ms\n")
+                    .append("Number Missed Vsync: ").append(i % 2).append('\n')
+                    .append("Number High input latency: ").append(i % 3).append('\n')
+                    .append("Number Slow UI thread: ").append(i % 4).append('\n')
+                    .append("Number Slow bitmap uploads: ").append(i % 5).append('\n')
+                    .append("Number Slow issue draw commands: ").append(i % 6).append('\n')
+                    .append("Number Frame deadline missed: ").append(i % 7).append('\n')
+                    .append(histogram).append('\n')
+                    .append("50th gpu percentile: 1ms\n")
+                    .append("GPU ").append(histogram).append('\n')
+                    .append("\nPipeline=Skia (OpenGL)\n")
+                    .append("Layout Cache Info:\n  Usage: 0/1024 entries\n")
+                    .append("\nView hierarchy:\n\n  com.android.package").append(i)
+                    .append("/com.android.package.MainActivity/android.view.ViewRootImpl@1\n")
+                    .append("  12 views, 10.25 kB of render nodes\n\n")
+                    .append("Total ViewRootImpl: 1\nTotal attached Views: 12\n");
+        }
+        return dump.toString();
+    }
+}
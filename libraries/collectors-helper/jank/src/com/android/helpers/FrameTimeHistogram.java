@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.util.Arrays;
+
+/**
+ * A compact frame-time histogram backed by primitive arrays, mapping a bucket in milliseconds to a
+ * frame count.
+ *
+ * <p>Buckets are kept sorted by their millisecond value, so histograms with the same layout (as
+ * reported by consecutive dumps of the same process) merge in place without any allocation.
+ *
+ * <p>This class has no Android dependencies so that it can also be exercised from host-side
+ * benchmarks.
+ */
+public class FrameTimeHistogram {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] mBuckets;
+    private long[] mCounts;
+    private int mSize;
+    private long mTotalCount;
+
+    /** Constructs an empty histogram. */
+    public FrameTimeHistogram() {
+        this(INITIAL_CAPACITY);
+    }
+
+    private FrameTimeHistogram(int capacity) {
+        mBuckets = new int[capacity];
+        mCounts = new long[capacity];
+    }
+
+    /**
+     * Parses a run of whitespace-separated {@code Nms=M} tokens from {@code text} between {@code
+     * start} (inclusive) and {@code end} (exclusive) without allocating intermediate strings.
+     *
+     * <p>Example input: {@code 5ms=30 6ms=12 7ms=4}. Parsing stops at the first token that does not
+     * follow this format.
+     */
+    public static FrameTimeHistogram parse(CharSequence text, int start, int end) {
+        FrameTimeHistogram histogram = new FrameTimeHistogram();
+        int i = start;
+        while (true) {
+            while (i < end && Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            int bucketStart = i;
+            long bucket = 0;
+            while (i < end && isDigit(text.charAt(i))) {
+                bucket = bucket * 10 + (text.charAt(i++) - '0');
+            }
+            if (i == bucketStart
+                    || i + 3 > end
+                    || text.charAt(i) != 'm'
+                    || text.charAt(i + 1) != 's'
+                    || text.charAt(i + 2) != '=') {
+                break;
+            }
+            i += 3;
+            int countStart = i;
+            long count = 0;
+            while (i < end && isDigit(text.charAt(i))) {
+                count = count * 10 + (text.charAt(i++) - '0');
+            }
+            if (i == countStart) {
+                break;
+            }
+            histogram.add((int) bucket, count);
+        }
+        return histogram;
+    }
+
+    /** Parses a string of {@code Nms=M} tokens, see {@link #parse(CharSequence, int, int)}. */
+    public static FrameTimeHistogram parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    /** Adds {@code count} frames to the bucket at {@code bucketMs}, creating it if needed. */
+    public void add(int bucketMs, long count) {
+        // Buckets are usually added in ascending order, so check the end first.
+        int index;
+        if (mSize == 0 || mBuckets[mSize - 1] < bucketMs) {
+            index = -(mSize + 1);
+        } else {
+            index = indexOf(bucketMs);
+        }
+        if (index >= 0) {
+            mCounts[index] += count;
+        } else {
+            insert(-(index + 1), bucketMs, count);
+        }
+        mTotalCount += count;
+    }
+
+    /** Adds every bucket of {@code other} to this histogram. */
+    public void merge(FrameTimeHistogram other) {
+        if (hasSameBuckets(other)) {
+            for (int i = 0; i < mSize; i++) {
+                mCounts[i] += other.mCounts[i];
+            }
+            mTotalCount += other.mTotalCount;
+            return;
+        }
+        for (int i = 0; i < other.mSize; i++) {
+            add(other.mBuckets[i], other.mCounts[i]);
+        }
+    }
+
+    /**
+     * Returns a new histogram holding the frames added since {@code baseline}, an earlier snapshot
+     * of the same counters. Buckets never go below zero.
+     */
+    public FrameTimeHistogram minus(FrameTimeHistogram baseline) {
+        FrameTimeHistogram delta = copy();
+        boolean sameBuckets = hasSameBuckets(baseline);
+        for (int i = 0; i < baseline.mSize; i++) {
+            int index = sameBuckets ? i : delta.indexOf(baseline.mBuckets[i]);
+            if (index < 0) {
+                continue;
+            }
+            long removed = Math.min(delta.mCounts[index], baseline.mCounts[i]);
+            delta.mCounts[index] -= removed;
+            delta.mTotalCount -= removed;
+        }
+        return delta;
+    }
+
+    /** Returns a copy of this histogram that can be modified independently. */
+    public FrameTimeHistogram copy() {
+        FrameTimeHistogram copy = new FrameTimeHistogram(Math.max(mSize, 1));
+        System.arraycopy(mBuckets, 0, copy.mBuckets, 0, mSize);
+        System.arraycopy(mCounts, 0, copy.mCounts, 0, mSize);
+        copy.mSize = mSize;
+        copy.mTotalCount = mTotalCount;
+        return copy;
+    }
+
+    /** Returns the number of buckets, including buckets with no frames. */
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the millisecond value of the bucket at {@code index}. */
+    public int getBucketMs(int index) {
+        return mBuckets[index];
+    }
+
+    /** Returns the frame count of the bucket at {@code index}. */
+    public long getCount(int index) {
+        return mCounts[index];
+    }
+
+    /** Returns the total number of frames across all buckets. */
+    public long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Computes the mean of the histogram.
+     *
+     * @return 0 if the histogram is empty, the true mean otherwise.
+     */
+    public double mean() {
+        if (mTotalCount <= 0) {
+            return 0.0;
+        }
+        long numerator = 0;
+        for (int i = 0; i < mSize; i++) {
+            numerator += mBuckets[i] * mCounts[i];
+        }
+        return (double) numerator / mTotalCount;
+    }
+
+    /**
+     * Returns the bucket, in milliseconds, that the {@code percentile}th frame falls into, using
+     * the same rank as {@code gfxinfo}'s own percentiles. Any percentile between 0 and 100 is
+     * accepted, e.g. 99.9.
+     *
+     * @return 0 if the histogram is empty.
+     */
+    public int percentile(double percentile) {
+        if (mTotalCount <= 0) {
+            return 0;
+        }
+        long position = (long) (percentile * mTotalCount / 100);
+        position = Math.max(0, Math.min(position, mTotalCount - 1));
+        long seen = 0;
+        for (int i = 0; i < mSize; i++) {
+            seen += mCounts[i];
+            if (seen > position) {
+                return mBuckets[i];
+            }
+        }
+        return mBuckets[mSize - 1];
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof FrameTimeHistogram)) {
+            return false;
+        }
+        FrameTimeHistogram other = (FrameTimeHistogram) obj;
+        return hasSameBuckets(other)
+                && Arrays.equals(
+                        Arrays.copyOf(mCounts, mSize), Arrays.copyOf(other.mCounts, other.mSize));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = 0; i < mSize; i++) {
+            result = 31 * result + mBuckets[i];
+            result = 31 * result + Long.hashCode(mCounts[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(mBuckets[i]).append("ms=").append(mCounts[i]);
+        }
+        return builder.toString();
+    }
+
+    private boolean hasSameBuckets(FrameTimeHistogram other) {
+        if (mSize != other.mSize) {
+            return false;
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (mBuckets[i] != other.mBuckets[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(int bucketMs) {
+        return Arrays.binarySearch(mBuckets, 0, mSize, bucketMs);
+    }
+
+    private void insert(int index, int bucketMs, long count) {
+        if (mSize == mBuckets.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, mSize * 2);
+            mBuckets = Arrays.copyOf(mBuckets, capacity);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+        }
+        System.arraycopy(mBuckets, index, mBuckets, index + 1, mSize - index);
+        System.arraycopy(mCounts, index, mCounts, index + 1, mSize - index);
+        mBuckets[index] = bucketMs;
+        mCounts[index] = count;
+        mSize++;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
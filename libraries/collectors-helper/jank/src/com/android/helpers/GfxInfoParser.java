@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A single-pass, line-oriented parser for the output of {@code dumpsys gfxinfo}.
+ *
+ * <p>The output is walked once with a line cursor. Every line is dispatched on its prefix and the
+ * numeric value is read in place, so no regular expressions or intermediate split arrays are
+ * needed regardless of how many packages are present in the dump.
+ *
+ * <p>This class has no Android dependencies so that it can also be exercised from host-side
+ * benchmarks.
+ */
+public class GfxInfoParser {
+    // Example: "** Graphics info for pid 853 [com.google.android.leanbacklauncher] **"
+    static final String HEADER_PREFIX = "** Graphics info for pid ";
+    // Example: "HISTOGRAM: 5ms=30 6ms=12 7ms=4"
+    static final String HISTOGRAM_PREFIX = "HISTOGRAM:";
+    // Example: "GPU HISTOGRAM: 1ms=30 2ms=12 3ms=4"
+    static final String GPU_HISTOGRAM_PREFIX = "GPU HISTOGRAM:";
+
+    /** The value formats that appear after a stat's line prefix. */
+    private enum Format {
+        // Example: "20391" or "9ms"; the leading integer is used.
+        INTEGER,
+        // Example: "785 (3.85%)"; the number inside the parentheses is used.
+        PERCENT,
+    }
+
+    /** The per-package statistics reported by {@code gfxinfo}. */
+    public enum Stat {
+        // Example: "Total frames rendered: 20391"
+        TOTAL_FRAMES("Total frames rendered: ", Format.INTEGER),
+        // Example: "Janky frames: 785 (3.85%)"
+        JANKY_FRAMES_COUNT("Janky frames: ", Format.INTEGER),
+        // Example: "Janky frames: 785 (3.85%)"
+        JANKY_FRAMES_PRCNT("Janky frames: ", Format.PERCENT),
+        // Example: "50th percentile: 9ms"
+        FRAME_TIME_50TH("50th percentile: ", Format.INTEGER),
+        // Example: "90th percentile: 9ms"
+        FRAME_TIME_90TH("90th percentile: ", Format.INTEGER),
+        // Example: "95th percentile: 9ms"
+        FRAME_TIME_95TH("95th percentile: ", Format.INTEGER),
+        // Example: "99th percentile: 9ms"
+        FRAME_TIME_99TH("99th percentile: ", Format.INTEGER),
+        // Example: "Number Missed Vsync: 0"
+        NUM_MISSED_VSYNC("Number Missed Vsync: ", Format.INTEGER),
+        // Example: "Number High input latency: 0"
+        NUM_HIGH_INPUT_LATENCY("Number High input latency: ", Format.INTEGER),
+        // Example: "Number Slow UI thread: 0"
+        NUM_SLOW_UI_THREAD("Number Slow UI thread: ", Format.INTEGER),
+        // Example: "Number Slow bitmap uploads: 0"
+        NUM_SLOW_BITMAP_UPLOADS("Number Slow bitmap uploads: ", Format.INTEGER),
+        // Example: "Number Slow issue draw commands: 0"
+        NUM_SLOW_DRAW("Number Slow issue draw commands: ", Format.INTEGER),
+        // Example: "Number Frame deadline missed: 0"
+        NUM_FRAME_DEADLINE_MISSED("Number Frame deadline missed: ", Format.INTEGER);
+
+        private final String mPrefix;
+        private final Format mFormat;
+
+        Stat(String prefix, Format format) {
+            mPrefix = prefix;
+            mFormat = format;
+        }
+    }
+
+    private static final Stat[] STATS = Stat.values();
+
+    /** The statistics parsed from a single package section of the {@code gfxinfo} output. */
+    public static class PackageStats {
+        private final String mPackageName;
+        private final int mPid;
+        private final double[] mValues = new double[STATS.length];
+        private FrameTimeHistogram mFrameHistogram;
+        private FrameTimeHistogram mGpuHistogram;
+
+        PackageStats(String packageName, int pid) {
+            mPackageName = packageName;
+            mPid = pid;
+            Arrays.fill(mValues, Double.NaN);
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        public int getPid() {
+            return mPid;
+        }
+
+        /** Returns true if {@code stat} was present in this package's section. */
+        public boolean hasValue(Stat stat) {
+            return !Double.isNaN(mValues[stat.ordinal()]);
+        }
+
+        /** Returns the value of {@code stat}, or {@code NaN} if it was not present. */
+        public double getValue(Stat stat) {
+            return mValues[stat.ordinal()];
+        }
+
+        /** Returns the {@code HISTOGRAM:} frame times, or null if they were not present. */
+        public FrameTimeHistogram getFrameHistogram() {
+            return mFrameHistogram;
+        }
+
+        /** Returns the {@code GPU HISTOGRAM:} frame times, or null if they were not present. */
+        public FrameTimeHistogram getGpuHistogram() {
+            return mGpuHistogram;
+        }
+    }
+
+    private GfxInfoParser() {}
+
+    /**
+     * Parses every package section in {@code output}, in the order they appear.
+     *
+     * <p>Lines before the first package header and lines with unknown prefixes are ignored. If a
+     * stat or histogram appears more than once in a section, the last occurrence is kept.
+     */
+    public static List<PackageStats> parse(String output) {
+        List<PackageStats> result = new ArrayList<>();
+        PackageStats current = null;
+        int length = output.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = output.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+            int start = skipSpaces(output, lineStart, lineEnd);
+            if (output.startsWith(HEADER_PREFIX, start)) {
+                current = parseHeader(output, start, lineEnd);
+                if (current != null) {
+                    result.add(current);
+                }
+            } else if (current != null) {
+                parseSectionLine(output, start, lineEnd, current);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the last value of {@code stat} found anywhere in {@code lines}, or {@code null} if
+     * it is not present. Package headers are not required.
+     */
+    public static Double parseValue(String lines, Stat stat) {
+        double[] values = new double[STATS.length];
+        Arrays.fill(values, Double.NaN);
+        int length = lines.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lines.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+            parseStatLine(lines, skipSpaces(lines, lineStart, lineEnd), lineEnd, values);
+            lineStart = lineEnd + 1;
+        }
+        double value = values[stat.ordinal()];
+        return Double.isNaN(value) ? null : value;
+    }
+
+    /**
+     * Returns true if {@code output} contains a package header for {@code pkg}, or any package
+     * header if {@code pkg} is empty. Only header lines are inspected.
+     */
+    public static boolean hasHeader(String output, String pkg) {
+        int index = output.indexOf(HEADER_PREFIX);
+        while (index >= 0) {
+            if (pkg.isEmpty()) {
+                return true;
+            }
+            int lineEnd = output.indexOf('\n', index);
+            if (lineEnd < 0) {
+                lineEnd = output.length();
+            }
+            int open = output.indexOf('[', index);
+            int close = output.lastIndexOf(']', lineEnd - 1);
+            if (open >= 0
+                    && open < close
+                    && close - open - 1 == pkg.length()
+                    && output.startsWith(pkg, open + 1)) {
+                return true;
+            }
+            index = output.indexOf(HEADER_PREFIX, lineEnd);
+        }
+        return false;
+    }
+
+    /**
+     * Parses a header line such as {@code ** Graphics info for pid 853 [com.package] **}, or
+     * returns null if the package name cannot be found.
+     */
+    private static PackageStats parseHeader(String output, int start, int end) {
+        int pidStart = start + HEADER_PREFIX.length();
+        int pidEnd = skipDigits(output, pidStart, end);
+        int open = output.indexOf('[', pidEnd);
+        int close = output.lastIndexOf(']', end - 1);
+        if (pidEnd == pidStart || open < 0 || open >= end || close <= open) {
+            return null;
+        }
+        return new PackageStats(
+                output.substring(open + 1, close), (int) parseLong(output, pidStart, pidEnd));
+    }
+
+    /** Stores the histogram or stats found on a line of a package section in {@code stats}. */
+    private static void parseSectionLine(String output, int start, int end, PackageStats stats) {
+        if (output.startsWith(HISTOGRAM_PREFIX, start)) {
+            stats.mFrameHistogram =
+                    FrameTimeHistogram.parse(output, start + HISTOGRAM_PREFIX.length(), end);
+        } else if (output.startsWith(GPU_HISTOGRAM_PREFIX, start)) {
+            stats.mGpuHistogram =
+                    FrameTimeHistogram.parse(output, start + GPU_HISTOGRAM_PREFIX.length(), end);
+        } else {
+            parseStatLine(output, start, end, stats.mValues);
+        }
+    }
+
+    /** Stores the value of every stat whose prefix matches the line in {@code values}. */
+    private static void parseStatLine(String output, int start, int end, double[] values) {
+        for (Stat stat : STATS) {
+            if (!output.startsWith(stat.mPrefix, start)) {
+                continue;
+            }
+            int valueStart = start + stat.mPrefix.length();
+            double value = Double.NaN;
+            switch (stat.mFormat) {
+                case INTEGER:
+                    int digitsEnd = skipDigits(output, valueStart, end);
+                    if (digitsEnd > valueStart) {
+                        value = parseLong(output, valueStart, digitsEnd);
+                    }
+                    break;
+                case PERCENT:
+                    int open = output.indexOf('(', valueStart);
+                    int percent = output.lastIndexOf('%', end - 1);
+                    if (open >= 0 && open < percent) {
+                        try {
+                            value = Double.parseDouble(output.substring(open + 1, percent));
+                        } catch (NumberFormatException e) {
+                            // Leave the value unset.
+                        }
+                    }
+                    break;
+            }
+            if (!Double.isNaN(value)) {
+                values[stat.ordinal()] = value;
+            }
+        }
+    }
+
+    private static int skipSpaces(String output, int start, int end) {
+        while (start < end && Character.isWhitespace(output.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int skipDigits(String output, int start, int end) {
+        while (start < end && output.charAt(start) >= '0' && output.charAt(start) <= '9') {
+            start++;
+        }
+        return start;
+    }
+
+    private static long parseLong(String output, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (output.charAt(i) - '0');
+        }
+        return value;
+    }
+}
@@ -18,6 +18,7 @@ package com.android.helpers;
 
 import static com.android.helpers.MetricUtility.constructKey;
 
+import android.os.SystemClock;
 import android.support.test.uiautomator.UiDevice;
 import android.util.Log;
 import androidx.annotation.VisibleForTesting;
@@ -26,13 +27,13 @@ import androidx.test.InstrumentationRegistry;
 import com.google.common.base.Verify;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /** An {@link ICollectorHelper} for collecting jank metrics for all or a list of processes. */
 public class JankCollectionHelper implements ICollectorHelper<Double> {
@@ -44,97 +45,53 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
     // Shell dump commands to get and reset the tracked gfxinfo metrics.
     @VisibleForTesting static final String GFXINFO_COMMAND_GET = "dumpsys gfxinfo %s";
     @VisibleForTesting static final String GFXINFO_COMMAND_RESET = GFXINFO_COMMAND_GET + " reset";
-    // Pattern matchers and enumerators to verify and pull gfxinfo metrics.
-    // Example: "** Graphics info for pid 853 [com.google.android.leanbacklauncher] **"
-    private static final String GFXINFO_OUTPUT_HEADER = "Graphics info for pid (\\d+) \\[(%s)\\]";
-    // Note: use the [\\s\\S]* multi-line matcher to support String#matches(). Instead of splitting
-    // the larger sections into more granular lines, we can match across all lines for simplicity.
-    private static final String MULTILINE_MATCHER = "[\\s\\S]*%s[\\s\\S]*";
+    // Metric id parts for percentiles computed from the aggregated frame time histograms.
+    @VisibleForTesting static final String AGGREGATE_METRIC_ID = "aggregate";
+    @VisibleForTesting static final String AGGREGATE_TOTAL_FRAMES_ID = "total_frames";
+    @VisibleForTesting static final String AGGREGATE_PERCENTILE_ID = "jank_percentile_%s";
+    @VisibleForTesting static final String AGGREGATE_GPU_PERCENTILE_ID = "gpu_jank_percentile_%s";
+    @VisibleForTesting static final String AGGREGATE_HISTOGRAM_ID = "frame_histogram";
+    @VisibleForTesting static final String AGGREGATE_GPU_HISTOGRAM_ID = "gpu_frame_histogram";
+    // Metric id parts for the time taken by each reset and get path, e.g.
+    // "gfxinfo_reset_batched_latency_ms".
+    @VisibleForTesting static final String RESET_OPERATION_ID = "reset";
+    @VisibleForTesting static final String GET_OPERATION_ID = "get";
+    @VisibleForTesting static final String ALL_PATH_ID = "all";
+    @VisibleForTesting static final String BATCHED_PATH_ID = "batched";
+    @VisibleForTesting static final String PER_PACKAGE_PATH_ID = "per_package";
+    @VisibleForTesting static final String LATENCY_METRIC_ID = "latency_ms";
 
+    // Enumerators to pull gfxinfo metrics. Line prefixes and examples live in GfxInfoParser.Stat.
     public enum GfxInfoMetric {
-        // Example: "Total frames rendered: 20391"
-        TOTAL_FRAMES(
-                Pattern.compile(".*Total frames rendered: (\\d+).*", Pattern.DOTALL),
-                1,
-                "total_frames"),
-        // Example: "Janky frames: 785 (3.85%)"
-        JANKY_FRAMES_COUNT(
-                Pattern.compile(".*Janky frames: (\\d+) \\((.+)\\%\\).*", Pattern.DOTALL),
-                1,
-                "janky_frames_count"),
-        // Example: "Janky frames: 785 (3.85%)"
-        JANKY_FRAMES_PRCNT(
-                Pattern.compile(".*Janky frames: (\\d+) \\((.+)\\%\\).*", Pattern.DOTALL),
-                2,
-                "janky_frames_percent"),
-        // Example: "50th percentile: 9ms"
-        FRAME_TIME_50TH(
-                Pattern.compile(".*50th percentile: (\\d+)ms.*", Pattern.DOTALL),
-                1,
-                "jank_percentile_50"),
-        // Example: "90th percentile: 9ms"
-        FRAME_TIME_90TH(
-                Pattern.compile(".*90th percentile: (\\d+)ms.*", Pattern.DOTALL),
-                1,
-                "jank_percentile_90"),
-        // Example: "95th percentile: 9ms"
-        FRAME_TIME_95TH(
-                Pattern.compile(".*95th percentile: (\\d+)ms.*", Pattern.DOTALL),
-                1,
-                "jank_percentile_95"),
-        // Example: "99th percentile: 9ms"
-        FRAME_TIME_99TH(
-                Pattern.compile(".*99th percentile: (\\d+)ms.*", Pattern.DOTALL),
-                1,
-                "jank_percentile_99"),
-        // Example: "Number Missed Vsync: 0"
-        NUM_MISSED_VSYNC(
-                Pattern.compile(".*Number Missed Vsync: (\\d+).*", Pattern.DOTALL),
-                1,
-                "missed_vsync"),
-        // Example: "Number High input latency: 0"
-        NUM_HIGH_INPUT_LATENCY(
-                Pattern.compile(".*Number High input latency: (\\d+).*", Pattern.DOTALL),
-                1,
-                "high_input_latency"),
-        // Example: "Number Slow UI thread: 0"
-        NUM_SLOW_UI_THREAD(
-                Pattern.compile(".*Number Slow UI thread: (\\d+).*", Pattern.DOTALL),
-                1,
-                "slow_ui_thread"),
-        // Example: "Number Slow bitmap uploads: 0"
-        NUM_SLOW_BITMAP_UPLOADS(
-                Pattern.compile(".*Number Slow bitmap uploads: (\\d+).*", Pattern.DOTALL),
-                1,
-                "slow_bmp_upload"),
-        // Example: "Number Slow issue draw commands: 0"
-        NUM_SLOW_DRAW(
-                Pattern.compile(".*Number Slow issue draw commands: (\\d+).*", Pattern.DOTALL),
-                1,
-                "slow_issue_draw_cmds"),
-        // Example: "Number Frame deadline missed: 0"
+        TOTAL_FRAMES(GfxInfoParser.Stat.TOTAL_FRAMES, "total_frames"),
+        JANKY_FRAMES_COUNT(GfxInfoParser.Stat.JANKY_FRAMES_COUNT, "janky_frames_count"),
+        JANKY_FRAMES_PRCNT(GfxInfoParser.Stat.JANKY_FRAMES_PRCNT, "janky_frames_percent"),
+        FRAME_TIME_50TH(GfxInfoParser.Stat.FRAME_TIME_50TH, "jank_percentile_50"),
+        FRAME_TIME_90TH(GfxInfoParser.Stat.FRAME_TIME_90TH, "jank_percentile_90"),
+        FRAME_TIME_95TH(GfxInfoParser.Stat.FRAME_TIME_95TH, "jank_percentile_95"),
+        FRAME_TIME_99TH(GfxInfoParser.Stat.FRAME_TIME_99TH, "jank_percentile_99"),
+        NUM_MISSED_VSYNC(GfxInfoParser.Stat.NUM_MISSED_VSYNC, "missed_vsync"),
+        NUM_HIGH_INPUT_LATENCY(GfxInfoParser.Stat.NUM_HIGH_INPUT_LATENCY, "high_input_latency"),
+        NUM_SLOW_UI_THREAD(GfxInfoParser.Stat.NUM_SLOW_UI_THREAD, "slow_ui_thread"),
+        NUM_SLOW_BITMAP_UPLOADS(GfxInfoParser.Stat.NUM_SLOW_BITMAP_UPLOADS, "slow_bmp_upload"),
+        NUM_SLOW_DRAW(GfxInfoParser.Stat.NUM_SLOW_DRAW, "slow_issue_draw_cmds"),
         NUM_FRAME_DEADLINE_MISSED(
-                Pattern.compile(".*Number Frame deadline missed: (\\d+).*", Pattern.DOTALL),
-                1,
-                "deadline_missed");
+                GfxInfoParser.Stat.NUM_FRAME_DEADLINE_MISSED, "deadline_missed");
 
-        private Pattern mPattern;
-        private int mGroupIndex;
+        private GfxInfoParser.Stat mStat;
         private String mMetricId;
 
-        GfxInfoMetric(Pattern pattern, int groupIndex, String metricId) {
-            mPattern = pattern;
-            mGroupIndex = groupIndex;
+        GfxInfoMetric(GfxInfoParser.Stat stat, String metricId) {
+            mStat = stat;
             mMetricId = metricId;
         }
 
         public Double parse(String lines) {
-            Matcher matcher = mPattern.matcher(lines);
-            if (matcher.matches()) {
-                return Double.valueOf(matcher.group(mGroupIndex));
-            } else {
-                return null;
-            }
+            return GfxInfoParser.parseValue(lines, mStat);
+        }
+
+        public GfxInfoParser.Stat getStat() {
+            return mStat;
         }
 
         public String getMetricId() {
@@ -143,35 +100,30 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
     }
 
     private Set<String> mTrackedPackages = new HashSet<>();
+    // Frame time histograms merged across every collection, keyed by package name.
+    private Map<String, FrameTimeHistogram> mAggregateFrameHistograms = new HashMap<>();
+    private Map<String, FrameTimeHistogram> mAggregateGpuHistograms = new HashMap<>();
+    // Time taken by the reset and get commands of the current collection, keyed by metric.
+    private Map<String, Double> mLatencyMetrics = new HashMap<>();
+    private boolean mBatched = false;
+    private boolean mBatchedReset = false;
+    private boolean mBatchFallback = true;
+    private boolean mReportLatency = false;
     private UiDevice mDevice;
+    private ShellCommandExecutor mExecutor;
 
     /** Clear existing jank metrics, unless explicitly configured. */
     @Override
     public boolean startCollecting() {
+        mLatencyMetrics.clear();
         if (mTrackedPackages.isEmpty()) {
+            long start = SystemClock.uptimeMillis();
             clearGfxInfo();
-        } else {
-            int exceptionCount = 0;
-            Exception lastException = null;
-            for (String pkg : mTrackedPackages) {
-                try {
-                    clearGfxInfo(pkg);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "Encountered exception resetting gfxinfo.", e);
-                    lastException = e;
-                    exceptionCount++;
-                }
-            }
-            // Throw exceptions after to not quit on a single failure.
-            if (exceptionCount > 1) {
-                throw new RuntimeException(
-                        "Multiple exceptions were encountered resetting gfxinfo. Reporting the last"
-                                + " one only; others are visible in logs.",
-                        lastException);
-            } else if (exceptionCount == 1) {
-                throw new RuntimeException(
-                        "Encountered exception resetting gfxinfo.", lastException);
-            }
+            recordLatency(RESET_OPERATION_ID, ALL_PATH_ID, start);
+        } else if (!mBatched || !mBatchedReset || !clearTrackedGfxInfoBatched()) {
+            long start = SystemClock.uptimeMillis();
+            clearTrackedGfxInfoPerPackage();
+            recordLatency(RESET_OPERATION_ID, PER_PACKAGE_PATH_ID, start);
         }
         // No exceptions denotes success.
         return true;
@@ -182,30 +134,22 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
     public Map<String, Double> getMetrics() {
         Map<String, Double> result = new HashMap<>();
         if (mTrackedPackages.isEmpty()) {
+            long start = SystemClock.uptimeMillis();
             result.putAll(getGfxInfoMetrics());
+            recordLatency(GET_OPERATION_ID, ALL_PATH_ID, start);
         } else {
-            int exceptionCount = 0;
-            Exception lastException = null;
-            for (String pkg : mTrackedPackages) {
-                try {
-                    result.putAll(getGfxInfoMetrics(pkg));
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "Encountered exception getting gfxinfo.", e);
-                    lastException = e;
-                    exceptionCount++;
-                }
-            }
-            // Throw exceptions after to ensure all failures are reported. The metrics will still
-            // not be collected at this point, but it will possibly make the issue cause clearer.
-            if (exceptionCount > 1) {
-                throw new RuntimeException(
-                        "Multiple exceptions were encountered getting gfxinfo. Reporting the last"
-                                + " one only; others are visible in logs.",
-                        lastException);
-            } else if (exceptionCount == 1) {
-                throw new RuntimeException("Encountered exception getting gfxinfo.", lastException);
+            Map<String, Double> batched = mBatched ? getTrackedGfxInfoMetricsBatched() : null;
+            if (batched != null) {
+                result.putAll(batched);
+            } else {
+                long start = SystemClock.uptimeMillis();
+                result.putAll(getTrackedGfxInfoMetricsPerPackage());
+                recordLatency(GET_OPERATION_ID, PER_PACKAGE_PATH_ID, start);
             }
         }
+        if (mReportLatency) {
+            result.putAll(mLatencyMetrics);
+        }
         return result;
     }
 
@@ -220,6 +164,234 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
         Collections.addAll(mTrackedPackages, packages);
     }
 
+    /**
+     * Set whether tracked packages are collected with a single {@code dumpsys gfxinfo --}
+     * command, filtered by package name, instead of one command per package. They are still reset
+     * one by one, unless {@link #setBatchedReset} is enabled as well.
+     */
+    public void setBatchedCollection(boolean batched) {
+        mBatched = batched;
+    }
+
+    /**
+     * Set whether batched collections also reset the tracked packages with a single {@code
+     * dumpsys gfxinfo -- reset} command. That command resets the gfxinfo of every package, not
+     * only the tracked ones, wiping the frames other collectors or tests may rely on. Disabled by
+     * default.
+     */
+    public void setBatchedReset(boolean batchedReset) {
+        mBatchedReset = batchedReset;
+    }
+
+    /**
+     * Set whether a failed batched command, including one missing a tracked package, is retried
+     * with per-package commands. Enabled by default; otherwise the failure is thrown.
+     */
+    public void setBatchFallback(boolean fallback) {
+        mBatchFallback = fallback;
+    }
+
+    /** Set whether the time taken by the reset and get commands is reported with the metrics. */
+    public void setReportLatency(boolean reportLatency) {
+        mReportLatency = reportLatency;
+    }
+
+    /**
+     * Returns the {@code HISTOGRAM:} frame times merged across every {@link #getMetrics()} call
+     * since the last {@link #clearAggregateHistograms()}, keyed by package name.
+     */
+    public Map<String, FrameTimeHistogram> getAggregateFrameHistograms() {
+        return Collections.unmodifiableMap(mAggregateFrameHistograms);
+    }
+
+    /**
+     * Returns the {@code GPU HISTOGRAM:} frame times merged across every {@link #getMetrics()}
+     * call since the last {@link #clearAggregateHistograms()}, keyed by package name.
+     */
+    public Map<String, FrameTimeHistogram> getAggregateGpuHistograms() {
+        return Collections.unmodifiableMap(mAggregateGpuHistograms);
+    }
+
+    /**
+     * Returns the frame and GPU time histograms merged across every {@link #getMetrics()} call
+     * since the last {@link #clearAggregateHistograms()}, keyed by their metric key.
+     */
+    public Map<String, FrameTimeHistogram> getAggregateHistogramMetrics() {
+        Map<String, FrameTimeHistogram> result = new HashMap<>();
+        for (Map.Entry<String, FrameTimeHistogram> entry : mAggregateFrameHistograms.entrySet()) {
+            result.put(
+                    buildAggregateKey(entry.getKey(), AGGREGATE_HISTOGRAM_ID), entry.getValue());
+        }
+        for (Map.Entry<String, FrameTimeHistogram> entry : mAggregateGpuHistograms.entrySet()) {
+            result.put(
+                    buildAggregateKey(entry.getKey(), AGGREGATE_GPU_HISTOGRAM_ID),
+                    entry.getValue());
+        }
+        return result;
+    }
+
+    /** Discard the aggregated frame time histograms. */
+    public void clearAggregateHistograms() {
+        mAggregateFrameHistograms.clear();
+        mAggregateGpuHistograms.clear();
+    }
+
+    /**
+     * Return a {@code Map<String, Double>} of the total frame count and the requested {@code
+     * percentiles} (e.g. 50, 99, 99.9) of the aggregated frame time histograms for every package.
+     */
+    public Map<String, Double> getAggregateMetrics(double... percentiles) {
+        Map<String, Double> result = new HashMap<>();
+        for (Map.Entry<String, FrameTimeHistogram> entry : mAggregateFrameHistograms.entrySet()) {
+            result.put(
+                    buildAggregateKey(entry.getKey(), AGGREGATE_TOTAL_FRAMES_ID),
+                    (double) entry.getValue().getTotalCount());
+            addPercentiles(
+                    entry.getKey(), AGGREGATE_PERCENTILE_ID, entry.getValue(), percentiles, result);
+        }
+        for (Map.Entry<String, FrameTimeHistogram> entry : mAggregateGpuHistograms.entrySet()) {
+            addPercentiles(
+                    entry.getKey(),
+                    AGGREGATE_GPU_PERCENTILE_ID,
+                    entry.getValue(),
+                    percentiles,
+                    result);
+        }
+        return result;
+    }
+
+    /** Clear the {@code gfxinfo} for every tracked package, one concurrent command each. */
+    private void clearTrackedGfxInfoPerPackage() {
+        Map<String, Exception> failures = new HashMap<>();
+        getExecutor()
+                .executeAll(
+                        mTrackedPackages,
+                        pkg -> {
+                            clearGfxInfo(pkg);
+                            return null;
+                        },
+                        failures);
+        // Throw exceptions after to not quit on a single failure.
+        if (failures.size() > 1) {
+            throw new RuntimeException(
+                    "Multiple exceptions were encountered resetting gfxinfo. Reporting the last"
+                            + " one only; others are visible in logs.",
+                    getLastFailure(failures));
+        } else if (failures.size() == 1) {
+            throw new RuntimeException(
+                    "Encountered exception resetting gfxinfo.", getLastFailure(failures));
+        }
+    }
+
+    /** Return a {@code Map<String, Double>} of metrics for every tracked package, concurrently. */
+    private Map<String, Double> getTrackedGfxInfoMetricsPerPackage() {
+        Map<String, Exception> failures = new HashMap<>();
+        Map<String, Map<String, Double>> metrics =
+                getExecutor().executeAll(mTrackedPackages, this::getGfxInfoMetrics, failures);
+        // Throw exceptions after to ensure all failures are reported. The metrics will still
+        // not be collected at this point, but it will possibly make the issue cause clearer.
+        if (failures.size() > 1) {
+            throw new RuntimeException(
+                    "Multiple exceptions were encountered getting gfxinfo. Reporting the last"
+                            + " one only; others are visible in logs.",
+                    getLastFailure(failures));
+        } else if (failures.size() == 1) {
+            throw new RuntimeException(
+                    "Encountered exception getting gfxinfo.", getLastFailure(failures));
+        }
+        Map<String, Double> result = new HashMap<>();
+        for (Map<String, Double> packageMetrics : metrics.values()) {
+            result.putAll(packageMetrics);
+        }
+        return result;
+    }
+
+    private Exception getLastFailure(Map<String, Exception> failures) {
+        Exception lastException = null;
+        for (Exception e : failures.values()) {
+            lastException = e;
+        }
+        return lastException;
+    }
+
+    /**
+     * Clear the {@code gfxinfo} for all packages, tracked or not, with a single command and verify
+     * that every tracked package was included.
+     *
+     * @return false if the command failed and per-package commands should be used instead.
+     */
+    private boolean clearTrackedGfxInfoBatched() {
+        long start = SystemClock.uptimeMillis();
+        try {
+            String command = String.format(GFXINFO_COMMAND_RESET, "--");
+            filterTrackedPackages(getExecutor().execute(command));
+            Log.v(LOG_TAG, "Cleared gfxinfo for all tracked packages.");
+            return true;
+        } catch (IOException | RuntimeException e) {
+            if (!mBatchFallback) {
+                throw new RuntimeException("Failed to clear gfxinfo.", e);
+            }
+            Log.w(LOG_TAG, "Batched gfxinfo reset failed; falling back to per-package.", e);
+            return false;
+        } finally {
+            recordLatency(RESET_OPERATION_ID, BATCHED_PATH_ID, start);
+        }
+    }
+
+    /**
+     * Return a {@code Map<String, Double>} of {@code gfxinfo} metrics for every tracked package
+     * from a single dump of all packages.
+     *
+     * @return null if the command failed and per-package commands should be used instead.
+     */
+    private Map<String, Double> getTrackedGfxInfoMetricsBatched() {
+        long start = SystemClock.uptimeMillis();
+        try {
+            String command = String.format(GFXINFO_COMMAND_GET, "--");
+            List<GfxInfoParser.PackageStats> tracked =
+                    filterTrackedPackages(getExecutor().execute(command));
+            // Only aggregate once every package is known to be present, so that a fallback does
+            // not count the same frames twice.
+            Map<String, Double> result = new HashMap<>();
+            for (GfxInfoParser.PackageStats stats : tracked) {
+                collectPackageStats(stats, result);
+            }
+            return result;
+        } catch (IOException | RuntimeException e) {
+            if (!mBatchFallback) {
+                throw new RuntimeException("Failed to get gfxinfo.", e);
+            }
+            Log.w(LOG_TAG, "Batched gfxinfo get failed; falling back to per-package.", e);
+            return null;
+        } finally {
+            recordLatency(GET_OPERATION_ID, BATCHED_PATH_ID, start);
+        }
+    }
+
+    /**
+     * Parse a multi-package {@code output} and return the sections of the tracked packages, or
+     * throw if any tracked package is missing.
+     */
+    private List<GfxInfoParser.PackageStats> filterTrackedPackages(String output) {
+        List<GfxInfoParser.PackageStats> tracked = new ArrayList<>();
+        Set<String> missing = new HashSet<>(mTrackedPackages);
+        for (GfxInfoParser.PackageStats stats : GfxInfoParser.parse(output)) {
+            if (mTrackedPackages.contains(stats.getPackageName())) {
+                tracked.add(stats);
+                missing.remove(stats.getPackageName());
+            }
+        }
+        Verify.verify(missing.isEmpty(), "Missing package headers for %s.", missing);
+        return tracked;
+    }
+
+    /** Record the time elapsed since {@code start} for the {@code operation} and {@code path}. */
+    private void recordLatency(String operation, String path, long start) {
+        mLatencyMetrics.put(
+                constructKey(GFXINFO_METRICS_PREFIX, operation, path, LATENCY_METRIC_ID),
+                (double) (SystemClock.uptimeMillis() - start));
+    }
+
     /** Clear the {@code gfxinfo} for all packages. */
     @VisibleForTesting
     void clearGfxInfo() {
@@ -233,15 +405,15 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
         try {
             if (pkg.isEmpty()) {
                 String command = String.format(GFXINFO_COMMAND_RESET, "--");
-                String output = getDevice().executeShellCommand(command);
+                String output = getExecutor().execute(command);
                 // Success if any header (set by passing an empty-string) exists in the output.
-                verifyMatches(output, getHeaderMatcher(""), "No package headers in output.");
+                verifyHasHeader(output, "", "No package headers in output.");
                 Log.v(LOG_TAG, "Cleared all gfxinfo.");
             } else {
                 String command = String.format(GFXINFO_COMMAND_RESET, pkg);
-                String output = getDevice().executeShellCommand(command);
+                String output = getExecutor().execute(command);
                 // Success if the specified package header exists in the output.
-                verifyMatches(output, getHeaderMatcher(pkg), "No package header in output.");
+                verifyHasHeader(output, pkg, "No package header in output.");
                 Log.v(LOG_TAG, String.format("Cleared %s gfxinfo.", pkg));
             }
         } catch (IOException e) {
@@ -260,15 +432,13 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
     Map<String, Double> getGfxInfoMetrics(String pkg) {
         try {
             String command = String.format(GFXINFO_COMMAND_GET, pkg);
-            String output = getDevice().executeShellCommand(command);
-            verifyMatches(output, getHeaderMatcher(pkg), "Missing package header.");
-            // Split each new section starting with two asterisks '**', and then query and append
-            // all metrics. This method supports both single-package and multi-package outputs.
-            String[] pkgMetricSections = output.split("\n\\*\\*");
+            String output = getExecutor().execute(command);
+            verifyHasHeader(output, pkg, "Missing package header.");
+            // Walk the output once, starting a new package at each '**' header line. This method
+            // supports both single-package and multi-package outputs.
             Map<String, Double> result = new HashMap<>();
-            // Skip the 1st section, which contains only header information.
-            for (int i = 1; i < pkgMetricSections.length; i++) {
-                result.putAll(parseGfxInfoMetrics(pkgMetricSections[i]));
+            for (GfxInfoParser.PackageStats stats : GfxInfoParser.parse(output)) {
+                collectPackageStats(stats, result);
             }
             return result;
         } catch (IOException e) {
@@ -276,45 +446,91 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
         }
     }
 
-    /** Parse the {@code output} of {@code gfxinfo} to a {@code Map<String, Double>} of metrics. */
-    private Map<String, Double> parseGfxInfoMetrics(String output) {
-        Matcher header = Pattern.compile(getHeaderMatcher("")).matcher(output);
-        if (!header.matches()) {
-            throw new RuntimeException("Failed to parse package from gfxinfo output.");
-        }
-        // Package name is the only required field.
-        String packageName = header.group(2);
+    /** Add the metrics of {@code stats} to {@code result} and aggregate its histograms. */
+    private void collectPackageStats(
+            GfxInfoParser.PackageStats stats, Map<String, Double> result) {
+        result.putAll(parseGfxInfoMetrics(stats));
+        aggregateHistogram(
+                mAggregateFrameHistograms, stats.getPackageName(), stats.getFrameHistogram());
+        aggregateHistogram(
+                mAggregateGpuHistograms, stats.getPackageName(), stats.getGpuHistogram());
+    }
+
+    /** Convert the parsed {@code gfxinfo} {@code stats} to a {@code Map<String, Double>}. */
+    private Map<String, Double> parseGfxInfoMetrics(GfxInfoParser.PackageStats stats) {
+        String packageName = stats.getPackageName();
         Log.v(LOG_TAG, String.format("Collecting metrics for: %s", packageName));
-        // Parse each metric from the results via a common pattern.
         Map<String, Double> results = new HashMap<String, Double>();
         for (GfxInfoMetric metric : GfxInfoMetric.values()) {
             String metricKey =
                     constructKey(GFXINFO_METRICS_PREFIX, packageName, metric.getMetricId());
             // Find the metric or log that it's missing.
-            Double value = metric.parse(output);
-            if (value == null) {
-                Log.d(LOG_TAG, String.format("Did not find %s from %s", metricKey, packageName));
+            if (stats.hasValue(metric.getStat())) {
+                results.put(metricKey, stats.getValue(metric.getStat()));
             } else {
-                results.put(metricKey, value);
+                Log.d(LOG_TAG, String.format("Did not find %s from %s", metricKey, packageName));
             }
         }
         return results;
     }
 
     /**
-     * Returns a matcher {@code String} for {@code pkg}'s {@code gfxinfo} headers.
+     * Merge {@code histogram}, if present, into the {@code pkg} entry of {@code aggregates}.
+     * Synchronized as packages are collected concurrently.
+     */
+    private synchronized void aggregateHistogram(
+            Map<String, FrameTimeHistogram> aggregates, String pkg, FrameTimeHistogram histogram) {
+        if (histogram == null) {
+            return;
+        }
+        FrameTimeHistogram aggregate = aggregates.get(pkg);
+        if (aggregate == null) {
+            aggregates.put(pkg, histogram.copy());
+        } else {
+            aggregate.merge(histogram);
+        }
+    }
+
+    /** Add the {@code percentiles} of {@code histogram} to {@code result} for {@code pkg}. */
+    private void addPercentiles(
+            String pkg,
+            String idFormat,
+            FrameTimeHistogram histogram,
+            double[] percentiles,
+            Map<String, Double> result) {
+        for (double percentile : percentiles) {
+            // Print whole percentiles without a decimal point, e.g. "99" but "99.9".
+            String label =
+                    percentile == Math.rint(percentile)
+                            ? Long.toString((long) percentile)
+                            : Double.toString(percentile);
+            result.put(
+                    buildAggregateKey(pkg, String.format(idFormat, label)),
+                    (double) histogram.percentile(percentile));
+        }
+    }
+
+    private String buildAggregateKey(String pkg, String metricId) {
+        return constructKey(GFXINFO_METRICS_PREFIX, pkg, AGGREGATE_METRIC_ID, metricId);
+    }
+
+    /**
+     * Verify the {@code output} contains a {@code gfxinfo} header for {@code pkg}, or throw if
+     * not.
      *
-     * <p>Note: {@code pkg} may be empty.
+     * <p>Note: {@code pkg} may be empty, in which case any header is accepted.
      */
-    private String getHeaderMatcher(String pkg) {
-        return String.format(
-                MULTILINE_MATCHER,
-                String.format(GFXINFO_OUTPUT_HEADER, (pkg.isEmpty() ? ".*" : pkg)));
+    private void verifyHasHeader(String output, String pkg, String message) {
+        Verify.verify(GfxInfoParser.hasHeader(output, pkg), message);
     }
 
-    /** Verify the {@code output} matches {@code match}, or throw if not. */
-    private void verifyMatches(String output, String match, String message, Object... args) {
-        Verify.verify(output.matches(match), message, args);
+    /** Returns the executor running shell commands on the {@link UiDevice} under test. */
+    private ShellCommandExecutor getExecutor() {
+        if (mExecutor == null) {
+            mExecutor =
+                    new ShellCommandExecutor(command -> getDevice().executeShellCommand(command));
+        }
+        return mExecutor;
     }
 
     /** Returns the {@link UiDevice} under test. */
@@ -22,10 +22,8 @@ import android.util.Log;
 import androidx.annotation.VisibleForTesting;
 import androidx.test.InstrumentationRegistry;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
 /**
  * An {@link ICollectorHelper} for collecting SurfaceFlinger time stats.
@@ -37,13 +35,21 @@ public class SfStatsCollectionHelper implements ICollectorHelper<Double> {
 
     private static final String LOG_TAG = SfStatsCollectionHelper.class.getSimpleName();
 
-    private static final Pattern KEY_VALUE_PATTERN =
-            Pattern.compile("^(\\w+)\\s+=\\s+(\\d+\\.?\\d*|.*).*");
-    private static final Pattern HISTOGRAM_PATTERN =
-            Pattern.compile("([^\\n]+)\\n((\\d+ms=\\d+\\s+)+)");
+    private static final String KEY_VALUE_SEPARATOR = " = ";
+    private static final String HISTOGRAM_SUFFIX = " histogram is as below:";
+    private static final String LAYER_NAME_KEY = "layerName";
 
-    private static final String FRAME_DURATION_KEY = "frameDuration histogram is as below:";
-    private static final String RENDER_ENGINE_KEY = "renderEngineTiming histogram is as below:";
+    private static final String FRAME_DURATION_KEY = "frameDuration";
+    private static final String RENDER_ENGINE_KEY = "renderEngineTiming";
+    private static final String PRESENT_TO_PRESENT_KEY = "present2present";
+    private static final String POST_TO_PRESENT_KEY = "post2present";
+    private static final String TOTAL_FRAMES_KEY = "totalFrames";
+    private static final String STATS_START_KEY = "statsStart";
+    private static final String STATS_END_KEY = "statsEnd";
+    private static final String AVERAGE_FPS_KEY = "averageFPS";
+
+    // Percentiles reported for each layer's frame time histograms.
+    private static final int[] LAYER_PERCENTILES = {50, 90, 99};
 
     @VisibleForTesting static final String SFSTATS_METRICS_PREFIX = "SFSTATS";
 
@@ -59,64 +65,79 @@ public class SfStatsCollectionHelper implements ICollectorHelper<Double> {
 
     private UiDevice mDevice;
 
+    // Continuous mode keeps time stats enabled across tests and reports per-test deltas.
+    private boolean mContinuous;
+    private boolean mTimeStatsEnabled;
+    // The snapshot that the current continuous collection is reported relative to.
+    private TimeStats mBaseline;
+
+    /**
+     * Keep time stats enabled for the whole run instead of clearing them for every test.
+     *
+     * <p>Time stats are enabled and cleared once, on the first {@link #startCollecting()}. Every
+     * following {@link #startCollecting()} takes a baseline dump, and {@link #getMetrics()}
+     * reports the difference from it, so SurfaceFlinger is not reset between tests and the frames
+     * drawn between two collections are left out of both. Call {@link
+     * #stopContinuousCollection()} at the end of the run to disable time stats again.
+     */
+    public void setContinuousCollection(boolean continuous) {
+        mContinuous = continuous;
+    }
+
     @Override
     public boolean startCollecting() {
+        if (mContinuous && mTimeStatsEnabled) {
+            mBaseline = parseTimeStats(dumpTimeStats());
+            return true;
+        }
         try {
             getDevice().executeShellCommand(SFSTATS_COMMAND_ENABLE_AND_CLEAR);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Encountered exception enabling dumpsys SurfaceFlinger.", e);
             throw new RuntimeException(e);
         }
+        if (mContinuous) {
+            mTimeStatsEnabled = true;
+            // Stats were just cleared, so the first collection is relative to nothing.
+            mBaseline = new TimeStats();
+        }
         return true;
     }
 
     @Override
     public Map<String, Double> getMetrics() {
         Map<String, Double> results = new HashMap<>();
-        String output;
-        try {
-            output = getDevice().executeShellCommand(SFSTATS_COMMAND_DUMP);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Encountered exception calling dumpsys SurfaceFlinger.", e);
-            throw new RuntimeException(e);
+        TimeStats stats = parseTimeStats(dumpTimeStats());
+        if (mContinuous && mBaseline != null) {
+            stats = stats.minus(mBaseline);
         }
-        String[] blocks = output.split("\n\n");
 
-        HashMap<String, String> globalPairs = getStatPairs(blocks[0]);
-        Map<String, Histogram> histogramPairs = getHistogramPairs(blocks[0]);
-
-        for (String key : globalPairs.keySet()) {
-            String metricKey = constructKey(SFSTATS_METRICS_PREFIX, "GLOBAL", key.toUpperCase());
-            results.put(metricKey, Double.valueOf(globalPairs.get(key)));
+        for (Map.Entry<String, Double> entry : stats.global.values.entrySet()) {
+            String metricKey =
+                    constructKey(SFSTATS_METRICS_PREFIX, "GLOBAL", entry.getKey().toUpperCase());
+            results.put(metricKey, entry.getValue());
         }
 
-        if (histogramPairs.containsKey(FRAME_DURATION_KEY)) {
+        FrameTimeHistogram frameDuration = stats.global.histograms.get(FRAME_DURATION_KEY);
+        if (frameDuration != null) {
             results.put(
                     constructKey(SFSTATS_METRICS_PREFIX, "GLOBAL", "FRAME_CPU_DURATION_AVG"),
-                    histogramPairs.get(FRAME_DURATION_KEY).mean());
+                    frameDuration.mean());
         }
 
-        if (histogramPairs.containsKey(RENDER_ENGINE_KEY)) {
+        FrameTimeHistogram renderEngine = stats.global.histograms.get(RENDER_ENGINE_KEY);
+        if (renderEngine != null) {
             results.put(
                     constructKey(SFSTATS_METRICS_PREFIX, "GLOBAL", "RENDER_ENGINE_DURATION_AVG"),
-                    histogramPairs.get(RENDER_ENGINE_KEY).mean());
+                    renderEngine.mean());
         }
 
-        for (int i = 1; i < blocks.length; i++) {
-            HashMap<String, String> layerPairs = getStatPairs(blocks[i]);
-            String layerName = layerPairs.get("layerName");
-            String totalFrames = layerPairs.get("totalFrames");
-            String droppedFrames = layerPairs.get("droppedFrames");
-            String averageFPS = layerPairs.get("averageFPS");
-            results.put(
-                    constructKey(SFSTATS_METRICS_PREFIX, layerName, "TOTAL_FRAMES"),
-                    Double.valueOf(totalFrames));
-            results.put(
-                    constructKey(SFSTATS_METRICS_PREFIX, layerName, "DROPPED_FRAMES"),
-                    Double.valueOf(droppedFrames));
-            results.put(
-                    constructKey(SFSTATS_METRICS_PREFIX, layerName, "AVERAGE_FPS"),
-                    Double.valueOf(averageFPS));
+        for (Block layer : stats.layers.values()) {
+            putLayerValue(results, layer, "totalFrames", "TOTAL_FRAMES");
+            putLayerValue(results, layer, "droppedFrames", "DROPPED_FRAMES");
+            putLayerValue(results, layer, "averageFPS", "AVERAGE_FPS");
+            putLayerHistogram(results, layer, PRESENT_TO_PRESENT_KEY, "PRESENT_TO_PRESENT");
+            putLayerHistogram(results, layer, POST_TO_PRESENT_KEY, "POST_TO_PRESENT");
         }
 
         return results;
@@ -124,6 +145,24 @@ public class SfStatsCollectionHelper implements ICollectorHelper<Double> {
 
     @Override
     public boolean stopCollecting() {
+        if (mContinuous) {
+            // Time stats stay enabled until stopContinuousCollection().
+            return true;
+        }
+        return disableTimeStats();
+    }
+
+    /** Disable and clear time stats if they were left enabled by continuous collection. */
+    public boolean stopContinuousCollection() {
+        if (!mTimeStatsEnabled) {
+            return true;
+        }
+        mTimeStatsEnabled = false;
+        mBaseline = null;
+        return disableTimeStats();
+    }
+
+    private boolean disableTimeStats() {
         try {
             getDevice().executeShellCommand(SFSTATS_COMMAND_DISABLE_AND_CLEAR);
         } catch (Exception e) {
@@ -133,6 +172,15 @@ public class SfStatsCollectionHelper implements ICollectorHelper<Double> {
         return true;
     }
 
+    private String dumpTimeStats() {
+        try {
+            return getDevice().executeShellCommand(SFSTATS_COMMAND_DUMP);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Encountered exception calling dumpsys SurfaceFlinger.", e);
+            throw new RuntimeException(e);
+        }
+    }
+
     /** Returns the {@link UiDevice} under test. */
     @VisibleForTesting
     protected UiDevice getDevice() {
@@ -142,110 +190,202 @@ public class SfStatsCollectionHelper implements ICollectorHelper<Double> {
         return mDevice;
     }
 
+    /** Adds the {@code key} value of {@code layer}, if present, as {@code metricId}. */
+    private void putLayerValue(
+            Map<String, Double> results, Block layer, String key, String metricId) {
+        Double value = layer.values.get(key);
+        if (value != null) {
+            results.put(constructKey(SFSTATS_METRICS_PREFIX, layer.name, metricId), value);
+        }
+    }
+
     /**
-     * Returns a map of key-value pairs for every line of timestats for each layer handled by
-     * SurfaceFlinger as well as some global SurfaceFlinger stats. An output line like {@code
-     * totalFrames = 42} would get parsed and be accessable as {@code pairs.get("totalFrames") =>
-     * "42"}
+     * Adds the mean and {@link #LAYER_PERCENTILES} of the {@code key} histogram of {@code layer},
+     * if present, as {@code metricId} metrics.
      */
-    private HashMap<String, String> getStatPairs(String block) {
-        HashMap<String, String> pairs = new HashMap<>();
-        String[] lines = block.split("\n");
-        for (int j = 0; j < lines.length; j++) {
-            Matcher keyValueMatcher = KEY_VALUE_PATTERN.matcher(lines[j].trim());
-            if (keyValueMatcher.matches()) {
-                pairs.put(keyValueMatcher.group(1), keyValueMatcher.group(2));
-            }
+    private void putLayerHistogram(
+            Map<String, Double> results, Block layer, String key, String metricId) {
+        FrameTimeHistogram histogram = layer.histograms.get(key);
+        if (histogram == null) {
+            return;
+        }
+        results.put(
+                constructKey(SFSTATS_METRICS_PREFIX, layer.name, metricId + "_AVG"),
+                histogram.mean());
+        for (int percentile : LAYER_PERCENTILES) {
+            results.put(
+                    constructKey(SFSTATS_METRICS_PREFIX, layer.name, metricId + "_P" + percentile),
+                    (double) histogram.percentile(percentile));
         }
-        return pairs;
     }
 
     /**
-     * Returns a map of {@link Histogram} instances emitted by SurfaceFlinger stats.
-     *
-     * <p>Input must be of the format defined by the {@link HISTOGRAM_PATTERN} regex. Example input
-     * may include:
+     * Parses the output of {@code dumpsys SurfaceFlinger --timestats -dump} in a single pass.
      *
-     * <pre>{@code
-     * Sample key:
-     * 0ms=0 1ms=1 2ms=4 3ms=9 4ms=16
-     * }</pre>
-     *
-     * <p>The corresponding output would include "Sample key:" as the key for a {@link Histogram}
-     * instance constructed from the string {@code 0ms=0 1ms=1 2ms=4 3ms=9 4ms=16}.
+     * <p>The first block, up to the first empty line, holds the global stats and every following
+     * block holds the stats of one layer. Within a block, an output line like {@code totalFrames =
+     * 42} is stored as {@code values.get("totalFrames") => 42.0}, and a line like {@code
+     * present2present histogram is as below:} stores the {@code 0ms=0 1ms=1 2ms=4} line that
+     * follows it as {@code histograms.get("present2present")}. Values that are not numeric are
+     * ignored, except for the layer name.
      */
-    private Map<String, Histogram> getHistogramPairs(String block) {
-        Map<String, Histogram> pairs = new HashMap<>();
-        Matcher histogramMatcher = HISTOGRAM_PATTERN.matcher(block);
-        while (histogramMatcher.find()) {
-            String key = histogramMatcher.group(1);
-            String histogramString = histogramMatcher.group(2);
-            Histogram histogram = new Histogram();
-            Stream.of(histogramString.split("\\s+"))
-                    .forEach(
-                            bucket ->
-                                    histogram.put(
-                                            Integer.valueOf(
-                                                    bucket.substring(0, bucket.indexOf("ms"))),
-                                            Long.valueOf(
-                                                    bucket.substring(bucket.indexOf("=") + 1))));
-            pairs.put(key, histogram);
-        }
-        return pairs;
+    @VisibleForTesting
+    static TimeStats parseTimeStats(String output) {
+        TimeStats stats = new TimeStats();
+        Block block = stats.global;
+        String histogramKey = null;
+        int length = output.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = output.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+            int start = lineStart;
+            int end = lineEnd;
+            while (start < end && Character.isWhitespace(output.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(output.charAt(end - 1))) {
+                end--;
+            }
+            if (histogramKey != null) {
+                block.histograms.put(histogramKey, FrameTimeHistogram.parse(output, start, end));
+                histogramKey = null;
+            } else if (start == end) {
+                // An empty line ends the current block.
+                stats.addLayer(block);
+                block = new Block();
+            } else if (output.startsWith(HISTOGRAM_SUFFIX, end - HISTOGRAM_SUFFIX.length())) {
+                histogramKey = output.substring(start, end - HISTOGRAM_SUFFIX.length());
+            } else {
+                parseKeyValue(output, start, end, block);
+            }
+            lineStart = lineEnd + 1;
+        }
+        stats.addLayer(block);
+        return stats;
     }
 
-    /** Representation for a statistical histogram */
-    private static final class Histogram {
-        private final Map<Integer, Long> internalMap;
+    /** Parses a trimmed {@code key = value} line into {@code block}, if it is one. */
+    private static void parseKeyValue(String output, int start, int end, Block block) {
+        int separator = output.indexOf(KEY_VALUE_SEPARATOR, start);
+        if (separator <= start || separator >= end) {
+            return;
+        }
+        for (int i = start; i < separator; i++) {
+            char c = output.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_') {
+                return;
+            }
+        }
+        String key = output.substring(start, separator);
+        int valueStart = separator + KEY_VALUE_SEPARATOR.length();
+        if (LAYER_NAME_KEY.equals(key)) {
+            block.name = output.substring(valueStart, end);
+            return;
+        }
+        // Use the leading number only, e.g. "2485421" for "displayOnTime = 2485421 ms".
+        int valueEnd = valueStart;
+        if (valueEnd < end && output.charAt(valueEnd) == '-') {
+            valueEnd++;
+        }
+        while (valueEnd < end && isNumberChar(output.charAt(valueEnd))) {
+            valueEnd++;
+        }
+        if (valueEnd == valueStart) {
+            return;
+        }
+        try {
+            block.values.put(key, Double.valueOf(output.substring(valueStart, valueEnd)));
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, String.format("Ignoring non-numeric value for %s.", key));
+        }
+    }
+
+    private static boolean isNumberChar(char c) {
+        return (c >= '0' && c <= '9') || c == '.';
+    }
 
-        /** Constructs a histogram instance. */
-        Histogram() {
-            internalMap = new HashMap<>();
+    /** The parsed global and per-layer blocks of a single time stats dump. */
+    @VisibleForTesting
+    static final class TimeStats {
+        final Block global = new Block();
+        // Layers keyed by layer name, in dump order.
+        final Map<String, Block> layers = new LinkedHashMap<>();
+
+        /** Adds {@code block} as a layer if it is a named layer block. */
+        void addLayer(Block block) {
+            if (block != global && block.name != null) {
+                layers.put(block.name, block);
+            }
         }
 
         /**
-         * Puts a (key, value) pair in the histogram.
-         *
-         * <p>The key would represent the particular bucket that the value is inserted into.
+         * Returns the stats accumulated since {@code baseline} was dumped. Layers that rendered no
+         * frames since then are left out.
          */
-        Histogram put(Integer key, Long value) {
-            internalMap.put(key, value);
-            return this;
+        TimeStats minus(TimeStats baseline) {
+            TimeStats delta = new TimeStats();
+            global.subtractInto(baseline.global, delta.global);
+            Double baselineEnd = baseline.global.values.get(STATS_END_KEY);
+            if (baselineEnd != null) {
+                delta.global.values.put(STATS_START_KEY, baselineEnd);
+            }
+            for (Block layer : layers.values()) {
+                Block previous = baseline.layers.get(layer.name);
+                Block layerDelta = new Block();
+                layerDelta.name = layer.name;
+                layer.subtractInto(previous == null ? new Block() : previous, layerDelta);
+                Double frames = layerDelta.values.get(TOTAL_FRAMES_KEY);
+                if (frames != null && frames <= 0) {
+                    continue;
+                }
+                FrameTimeHistogram presentToPresent =
+                        layerDelta.histograms.get(PRESENT_TO_PRESENT_KEY);
+                if (presentToPresent != null && layerDelta.values.containsKey(AVERAGE_FPS_KEY)) {
+                    // SurfaceFlinger derives the average FPS from the present2present mean.
+                    double mean = presentToPresent.mean();
+                    layerDelta.values.put(AVERAGE_FPS_KEY, mean < 1.0 ? 0.0 : 1000.0 / mean);
+                }
+                delta.addLayer(layerDelta);
+            }
+            return delta;
         }
+    }
+
+    /** The numeric values and histograms of one block of the time stats dump. */
+    @VisibleForTesting
+    static final class Block {
+        String name;
+        final Map<String, Double> values = new HashMap<>();
+        final Map<String, FrameTimeHistogram> histograms = new HashMap<>();
 
         /**
-         * Computes the mean of the histogram
-         *
-         * @return 0 if the histogram is empty, the true mean otherwise.
+         * Stores this block minus {@code baseline} in {@code delta}. Counters and histogram
+         * buckets are subtracted, while timestamps and averages keep their current value. A
+         * counter lower than its baseline means SurfaceFlinger cleared its stats in between, and
+         * is clamped to zero.
          */
-        double mean() {
-            long count = internalMap.values().stream().mapToLong(v -> v).sum();
-            if (count <= 0) {
-                return 0.0;
+        void subtractInto(Block baseline, Block delta) {
+            for (Map.Entry<String, Double> entry : values.entrySet()) {
+                String key = entry.getKey();
+                Double previous = baseline.values.get(key);
+                if (previous == null
+                        || key.equals(STATS_START_KEY)
+                        || key.equals(STATS_END_KEY)
+                        || key.equals(AVERAGE_FPS_KEY)) {
+                    delta.values.put(key, entry.getValue());
+                } else {
+                    delta.values.put(key, Math.max(0.0, entry.getValue() - previous));
+                }
             }
-            long numerator =
-                    internalMap
-                            .entrySet()
-                            .stream()
-                            .mapToLong(entry -> entry.getKey() * entry.getValue())
-                            .sum();
-            return (double) numerator / count;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof Histogram)) {
-                return false;
+            for (Map.Entry<String, FrameTimeHistogram> entry : histograms.entrySet()) {
+                FrameTimeHistogram previous = baseline.histograms.get(entry.getKey());
+                delta.histograms.put(
+                        entry.getKey(),
+                        previous == null ? entry.getValue() : entry.getValue().minus(previous));
             }
-
-            Histogram other = (Histogram) obj;
-
-            return internalMap.equals(other.internalMap);
-        }
-
-        @Override
-        public int hashCode() {
-            return internalMap.hashCode();
         }
     }
 }
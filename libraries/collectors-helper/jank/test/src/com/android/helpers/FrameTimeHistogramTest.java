@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Android Unit tests for {@link FrameTimeHistogram}. */
+@RunWith(AndroidJUnit4.class)
+public class FrameTimeHistogramTest {
+
+    /** Test that buckets are parsed in place and stop at the first malformed token. */
+    @Test
+    public void testParse() {
+        String line = "HISTOGRAM: 5ms=2 6ms=0 7ms=8 Pipeline=Skia";
+        FrameTimeHistogram histogram = FrameTimeHistogram.parse(line, 10, line.length());
+        assertThat(histogram.size()).isEqualTo(3);
+        assertThat(histogram.getBucketMs(2)).isEqualTo(7);
+        assertThat(histogram.getCount(2)).isEqualTo(8);
+        assertThat(histogram.getTotalCount()).isEqualTo(10);
+        assertThat(histogram.toString()).isEqualTo("5ms=2 6ms=0 7ms=8");
+    }
+
+    /** Test percentiles, including fractional ones. */
+    @Test
+    public void testPercentile() {
+        FrameTimeHistogram histogram = FrameTimeHistogram.parse("5ms=900 16ms=90 32ms=9 700ms=1");
+        assertThat(histogram.percentile(50)).isEqualTo(5);
+        assertThat(histogram.percentile(90)).isEqualTo(16);
+        assertThat(histogram.percentile(99)).isEqualTo(32);
+        assertThat(histogram.percentile(99.9)).isEqualTo(700);
+        assertThat(histogram.percentile(100)).isEqualTo(700);
+        assertThat(new FrameTimeHistogram().percentile(99)).isEqualTo(0);
+    }
+
+    /** Test merging histograms with the same and with different buckets. */
+    @Test
+    public void testMerge() {
+        FrameTimeHistogram histogram = FrameTimeHistogram.parse("5ms=1 6ms=2");
+        histogram.merge(FrameTimeHistogram.parse("5ms=3 6ms=4"));
+        assertThat(histogram).isEqualTo(FrameTimeHistogram.parse("5ms=4 6ms=6"));
+
+        histogram.merge(FrameTimeHistogram.parse("1ms=1 6ms=1 150ms=1"));
+        assertThat(histogram).isEqualTo(FrameTimeHistogram.parse("1ms=1 5ms=4 6ms=7 150ms=1"));
+        assertThat(histogram.getTotalCount()).isEqualTo(13);
+    }
+
+    /** Test the difference between two snapshots of the same counters. */
+    @Test
+    public void testMinus() {
+        FrameTimeHistogram baseline = FrameTimeHistogram.parse("5ms=1 6ms=2");
+        FrameTimeHistogram current = FrameTimeHistogram.parse("5ms=3 6ms=2 7ms=4");
+        assertThat(current.minus(baseline))
+                .isEqualTo(FrameTimeHistogram.parse("5ms=2 6ms=0 7ms=4"));
+        assertThat(current.minus(current).getTotalCount()).isEqualTo(0);
+        // The snapshots themselves are not modified.
+        assertThat(current.getTotalCount()).isEqualTo(9);
+    }
+
+    /** Test the mean of the histogram. */
+    @Test
+    public void testMean() {
+        assertThat(FrameTimeHistogram.parse("5ms=50 6ms=50").mean()).isEqualTo(5.5);
+        assertThat(new FrameTimeHistogram().mean()).isEqualTo(0.0);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Android Unit tests for {@link GfxInfoParser}. */
+@RunWith(AndroidJUnit4.class)
+public class GfxInfoParserTest {
+    private static final String GFXINFO_OUTPUT =
+            "Applications Graphics Acceleration Info:"
+                    + "\nUptime: 100 Realtime: 100"
+                    + "\nTotal frames rendered: 1"
+                    + "\n"
+                    + "\n** Graphics info for pid 853 [com.android.pkg1] **"
+                    + "\n"
+                    + "\nTotal frames rendered: 900"
+                    + "\nJanky frames: 300 (33.33%)"
+                    + "\nJanky frames (legacy): 1 (0.11%)"
+                    + "\n50th percentile: 150ms"
+                    + "\n50th gpu percentile: 1ms"
+                    + "\nNumber Missed Vsync: 1"
+                    + "\n"
+                    + "\n** Graphics info for pid 854 [com.android.pkg2] **"
+                    + "\n"
+                    + "\nTotal frames rendered: 10"
+                    + "\nTotal frames rendered: 20";
+
+    /** Test that every package section is parsed with its own values. */
+    @Test
+    public void testParse_multiplePackages() {
+        List<GfxInfoParser.PackageStats> stats = GfxInfoParser.parse(GFXINFO_OUTPUT);
+        assertThat(stats).hasSize(2);
+
+        GfxInfoParser.PackageStats pkg1 = stats.get(0);
+        assertThat(pkg1.getPackageName()).isEqualTo("com.android.pkg1");
+        assertThat(pkg1.getPid()).isEqualTo(853);
+        assertThat(pkg1.getValue(GfxInfoParser.Stat.TOTAL_FRAMES)).isEqualTo(900.0);
+        assertThat(pkg1.getValue(GfxInfoParser.Stat.JANKY_FRAMES_COUNT)).isEqualTo(300.0);
+        assertThat(pkg1.getValue(GfxInfoParser.Stat.JANKY_FRAMES_PRCNT)).isEqualTo(33.33);
+        assertThat(pkg1.getValue(GfxInfoParser.Stat.FRAME_TIME_50TH)).isEqualTo(150.0);
+        assertThat(pkg1.getValue(GfxInfoParser.Stat.NUM_MISSED_VSYNC)).isEqualTo(1.0);
+        assertThat(pkg1.hasValue(GfxInfoParser.Stat.FRAME_TIME_90TH)).isFalse();
+
+        GfxInfoParser.PackageStats pkg2 = stats.get(1);
+        assertThat(pkg2.getPackageName()).isEqualTo("com.android.pkg2");
+        // The last occurrence in a section wins.
+        assertThat(pkg2.getValue(GfxInfoParser.Stat.TOTAL_FRAMES)).isEqualTo(20.0);
+        assertThat(pkg2.hasValue(GfxInfoParser.Stat.JANKY_FRAMES_COUNT)).isFalse();
+    }
+
+    /** Test that header lookups match package names exactly. */
+    @Test
+    public void testHasHeader() {
+        assertThat(GfxInfoParser.hasHeader(GFXINFO_OUTPUT, "")).isTrue();
+        assertThat(GfxInfoParser.hasHeader(GFXINFO_OUTPUT, "com.android.pkg2")).isTrue();
+        assertThat(GfxInfoParser.hasHeader(GFXINFO_OUTPUT, "com.android.pkg")).isFalse();
+        assertThat(GfxInfoParser.hasHeader("Total frames rendered: 1", "")).isFalse();
+    }
+
+    /** Test that single values can be parsed without any package header. */
+    @Test
+    public void testParseValue() {
+        String line = "Janky frames: 3 (1.5%)";
+        assertThat(GfxInfoParser.parseValue(line, GfxInfoParser.Stat.JANKY_FRAMES_PRCNT))
+                .isEqualTo(1.5);
+        assertThat(GfxInfoParser.parseValue(line, GfxInfoParser.Stat.TOTAL_FRAMES)).isNull();
+    }
+}
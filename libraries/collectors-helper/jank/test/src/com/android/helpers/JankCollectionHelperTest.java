@@ -34,7 +34,11 @@ import static com.android.helpers.JankCollectionHelper.GfxInfoMetric.NUM_FRAME_D
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.support.test.uiautomator.UiDevice;
@@ -302,14 +306,11 @@ public class JankCollectionHelperTest {
             mHelper.startCollecting();
             fail("Should have thrown an exception resetting pkg1.");
         } catch (Exception e) {
-            // assert that all of the packages were reset and pass.
-            InOrder inOrder = inOrder(mUiDevice);
-            inOrder.verify(mUiDevice)
-                    .executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "pkg1"));
-            inOrder.verify(mUiDevice)
-                    .executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "pkg2"));
-            inOrder.verify(mUiDevice)
-                    .executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "pkg3"));
+            // assert that all of the packages were reset and pass. Packages are reset
+            // concurrently, so the order is not checked.
+            verify(mUiDevice).executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "pkg1"));
+            verify(mUiDevice).executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "pkg2"));
+            verify(mUiDevice).executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "pkg3"));
         }
     }
 
@@ -331,23 +332,178 @@ public class JankCollectionHelperTest {
             mHelper.getMetrics();
             fail("Should have thrown an exception getting pkg1.");
         } catch (Exception e) {
-            // assert that all of the packages were reset and gotten and pass.
-            InOrder inOrder = inOrder(mUiDevice);
-            inOrder.verify(mUiDevice)
-                    .executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "pkg1"));
-            inOrder.verify(mUiDevice)
-                    .executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "pkg2"));
-            inOrder.verify(mUiDevice)
-                    .executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "pkg3"));
-            inOrder.verify(mUiDevice)
-                    .executeShellCommand(String.format(GFXINFO_COMMAND_GET, "pkg1"));
-            inOrder.verify(mUiDevice)
-                    .executeShellCommand(String.format(GFXINFO_COMMAND_GET, "pkg2"));
-            inOrder.verify(mUiDevice)
-                    .executeShellCommand(String.format(GFXINFO_COMMAND_GET, "pkg3"));
+            // assert that all of the packages were reset before any was gotten and pass.
+            // Packages are collected concurrently, so the order among them is not checked.
+            for (String pkg : new String[] {"pkg1", "pkg2", "pkg3"}) {
+                InOrder inOrder = inOrder(mUiDevice);
+                inOrder.verify(mUiDevice)
+                        .executeShellCommand(String.format(GFXINFO_COMMAND_RESET, pkg));
+                inOrder.verify(mUiDevice)
+                        .executeShellCommand(String.format(GFXINFO_COMMAND_GET, pkg));
+            }
         }
     }
 
+    /** Test that frame time histograms are merged across collections for aggregate percentiles. */
+    @Test
+    public void testCollect_aggregateHistograms() throws Exception {
+        mockResetCommand("pkg1", String.format(GFXINFO_RESET_FORMAT, "pkg1"));
+        mockGetCommand(
+                "pkg1",
+                String.format(GFXINFO_GET_FORMAT, "pkg1")
+                        + "\nHISTOGRAM: 5ms=900 16ms=90 32ms=10 700ms=0"
+                        + "\nGPU HISTOGRAM: 1ms=999 2ms=1");
+
+        mHelper.addTrackedPackages("pkg1");
+        for (int i = 0; i < 2; i++) {
+            mHelper.startCollecting();
+            mHelper.getMetrics();
+            mHelper.stopCollecting();
+        }
+        assertThat(mHelper.getAggregateFrameHistograms().get("pkg1").getTotalCount())
+                .isEqualTo(2000);
+        Map<String, Double> metrics = mHelper.getAggregateMetrics(50, 99.9);
+        assertThat(metrics)
+                .containsExactly(
+                        buildAggregateKey("pkg1", "total_frames"), 2000.0,
+                        buildAggregateKey("pkg1", "jank_percentile_50"), 5.0,
+                        buildAggregateKey("pkg1", "jank_percentile_99.9"), 32.0,
+                        buildAggregateKey("pkg1", "gpu_jank_percentile_50"), 1.0,
+                        buildAggregateKey("pkg1", "gpu_jank_percentile_99.9"), 2.0);
+        Map<String, FrameTimeHistogram> histograms = mHelper.getAggregateHistogramMetrics();
+        assertThat(histograms.keySet())
+                .containsExactly(
+                        buildAggregateKey("pkg1", "frame_histogram"),
+                        buildAggregateKey("pkg1", "gpu_frame_histogram"));
+        assertThat(histograms.get(buildAggregateKey("pkg1", "gpu_frame_histogram")))
+                .isEqualTo(FrameTimeHistogram.parse("1ms=1998 2ms=2"));
+
+        mHelper.clearAggregateHistograms();
+        assertThat(mHelper.getAggregateMetrics(50)).isEmpty();
+        assertThat(mHelper.getAggregateHistogramMetrics()).isEmpty();
+    }
+
+    /** Test that batched collection uses one command for all tracked packages. */
+    @Test
+    public void testCollect_batched() throws Exception {
+        mockResetCommand(
+                "",
+                String.join(
+                        "\n",
+                        String.format(GFXINFO_RESET_FORMAT, "pkg1"),
+                        String.format(GFXINFO_RESET_FORMAT, "pkg2"),
+                        String.format(GFXINFO_RESET_FORMAT, "pkg3")));
+        mockBatchedGetCommand(
+                String.join(
+                        "\n",
+                        String.format(GFXINFO_GET_FORMAT, "pkg1"),
+                        String.format(GFXINFO_GET_FORMAT, "pkg2"),
+                        String.format(GFXINFO_GET_FORMAT, "pkg3")));
+
+        mHelper.addTrackedPackages("pkg1", "pkg2");
+        mHelper.setBatchedCollection(true);
+        mHelper.setBatchedReset(true);
+        mHelper.setReportLatency(true);
+        mHelper.startCollecting();
+        Map<String, Double> metrics = mHelper.getMetrics();
+        assertThat(metrics).containsKey(buildMetricKey("pkg1", TOTAL_FRAMES.getMetricId()));
+        assertThat(metrics).containsKey(buildMetricKey("pkg2", TOTAL_FRAMES.getMetricId()));
+        for (String key : metrics.keySet()) {
+            assertWithMessage("The unwatched package should not be included in metrics.")
+                    .that(key)
+                    .doesNotContain("pkg3");
+        }
+        assertThat(metrics)
+                .containsKey(
+                        buildLatencyKey(
+                                JankCollectionHelper.RESET_OPERATION_ID,
+                                JankCollectionHelper.BATCHED_PATH_ID));
+        assertThat(metrics)
+                .containsKey(
+                        buildLatencyKey(
+                                JankCollectionHelper.GET_OPERATION_ID,
+                                JankCollectionHelper.BATCHED_PATH_ID));
+        // No per-package commands should have been issued.
+        verify(mUiDevice, times(2)).executeShellCommand(anyString());
+        mHelper.stopCollecting();
+    }
+
+    /** Test that batched collection only resets the tracked packages unless told otherwise. */
+    @Test
+    public void testCollect_batchedResetsTrackedOnly() throws Exception {
+        mockResetCommand("pkg1", String.format(GFXINFO_RESET_FORMAT, "pkg1"));
+        mockResetCommand("pkg2", String.format(GFXINFO_RESET_FORMAT, "pkg2"));
+        mockBatchedGetCommand(
+                String.join(
+                        "\n",
+                        String.format(GFXINFO_GET_FORMAT, "pkg1"),
+                        String.format(GFXINFO_GET_FORMAT, "pkg2")));
+
+        mHelper.addTrackedPackages("pkg1", "pkg2");
+        mHelper.setBatchedCollection(true);
+        mHelper.startCollecting();
+        Map<String, Double> metrics = mHelper.getMetrics();
+        assertThat(metrics).containsKey(buildMetricKey("pkg1", TOTAL_FRAMES.getMetricId()));
+        assertThat(metrics).containsKey(buildMetricKey("pkg2", TOTAL_FRAMES.getMetricId()));
+        verify(mUiDevice, never()).executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "--"));
+        verify(mUiDevice).executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "pkg1"));
+        verify(mUiDevice).executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "pkg2"));
+        mHelper.stopCollecting();
+    }
+
+    /** Test that batched collection falls back to per-package commands on a missing package. */
+    @Test
+    public void testCollect_batchedFallback() throws Exception {
+        String pkg1Output = String.format(GFXINFO_GET_FORMAT, "pkg1") + "\nHISTOGRAM: 5ms=2 6ms=1";
+        mockResetCommand("", String.format(GFXINFO_RESET_FORMAT, "pkg1"));
+        mockBatchedGetCommand(pkg1Output);
+        mockResetCommand("pkg1", String.format(GFXINFO_RESET_FORMAT, "pkg1"));
+        mockGetCommand("pkg1", pkg1Output);
+        mockResetCommand("pkg2", String.format(GFXINFO_RESET_FORMAT, "pkg2"));
+        mockGetCommand("pkg2", String.format(GFXINFO_GET_FORMAT, "pkg2"));
+
+        mHelper.addTrackedPackages("pkg1", "pkg2");
+        mHelper.setBatchedCollection(true);
+        mHelper.setReportLatency(true);
+        mHelper.startCollecting();
+        Map<String, Double> metrics = mHelper.getMetrics();
+        assertThat(metrics).containsKey(buildMetricKey("pkg1", TOTAL_FRAMES.getMetricId()));
+        assertThat(metrics).containsKey(buildMetricKey("pkg2", TOTAL_FRAMES.getMetricId()));
+        // Frames must not be aggregated twice for the package present in the batched dump.
+        assertThat(mHelper.getAggregateFrameHistograms().get("pkg1").getTotalCount()).isEqualTo(3);
+        assertThat(metrics)
+                .containsKey(
+                        buildLatencyKey(
+                                JankCollectionHelper.GET_OPERATION_ID,
+                                JankCollectionHelper.BATCHED_PATH_ID));
+        assertThat(metrics)
+                .containsKey(
+                        buildLatencyKey(
+                                JankCollectionHelper.GET_OPERATION_ID,
+                                JankCollectionHelper.PER_PACKAGE_PATH_ID));
+        verify(mUiDevice).executeShellCommand(String.format(GFXINFO_COMMAND_GET, "pkg2"));
+        mHelper.stopCollecting();
+    }
+
+    /** Test that batched collection throws on a missing package without fallback. */
+    @Test
+    public void testFailures_batchedNoFallback() throws Exception {
+        mockResetCommand("", String.format(GFXINFO_RESET_FORMAT, "pkg1"));
+
+        mHelper.addTrackedPackages("pkg1", "pkg2");
+        mHelper.setBatchedCollection(true);
+        mHelper.setBatchedReset(true);
+        mHelper.setBatchFallback(false);
+        try {
+            mHelper.startCollecting();
+            fail("Should have thrown an exception.");
+        } catch (RuntimeException e) {
+            // pass
+        }
+        verify(mUiDevice, never())
+                .executeShellCommand(String.format(GFXINFO_COMMAND_RESET, "pkg2"));
+    }
+
     /** Test that it fails if the {@code gfxinfo} metrics cannot be cleared. */
     @Test
     public void testFailures_cannotClear() throws Exception {
@@ -408,6 +564,22 @@ public class JankCollectionHelperTest {
         return constructKey(JankCollectionHelper.GFXINFO_METRICS_PREFIX, pkg, id);
     }
 
+    private String buildAggregateKey(String pkg, String id) {
+        return constructKey(
+                JankCollectionHelper.GFXINFO_METRICS_PREFIX,
+                pkg,
+                JankCollectionHelper.AGGREGATE_METRIC_ID,
+                id);
+    }
+
+    private String buildLatencyKey(String operation, String path) {
+        return constructKey(
+                JankCollectionHelper.GFXINFO_METRICS_PREFIX,
+                operation,
+                path,
+                JankCollectionHelper.LATENCY_METRIC_ID);
+    }
+
     private void mockResetCommand(String pkg, String output) throws IOException {
         String cmd = String.format(GFXINFO_COMMAND_RESET, pkg.isEmpty() ? "--" : pkg);
         when(mUiDevice.executeShellCommand(cmd)).thenReturn(output);
@@ -417,4 +589,9 @@ public class JankCollectionHelperTest {
         String cmd = String.format(GFXINFO_COMMAND_GET, pkg);
         when(mUiDevice.executeShellCommand(cmd)).thenReturn(output);
     }
+
+    private void mockBatchedGetCommand(String output) throws IOException {
+        String cmd = String.format(GFXINFO_COMMAND_GET, "--");
+        when(mUiDevice.executeShellCommand(cmd)).thenReturn(output);
+    }
 }
@@ -21,6 +21,9 @@ import static com.android.helpers.SfStatsCollectionHelper.SFSTATS_COMMAND_DUMP;
 import static com.android.helpers.SfStatsCollectionHelper.SFSTATS_COMMAND_ENABLE_AND_CLEAR;
 import static com.android.helpers.SfStatsCollectionHelper.SFSTATS_METRICS_PREFIX;
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.support.test.uiautomator.UiDevice;
@@ -254,6 +257,119 @@ public class SfStatsCollectionHelperTest {
         mHelper.stopCollecting();
     }
 
+    /** Test that per-layer frame time percentiles are reported. */
+    @Test
+    public void testCollect_layerPercentiles() throws Exception {
+        String layer = "com.google.android.nexuslauncher.NexusLauncherActivity#0";
+        String dump =
+                SFSTATS_DUMP.replace(
+                        "present2present histogram is as below:\n"
+                                + "0ms=0 1ms=0 2ms=0 3ms=0 4ms=0 5ms=0 6ms=0 7ms=0 8ms=264 9ms=0",
+                        "present2present histogram is as below:\n"
+                                + "4ms=0 8ms=150 16ms=100 33ms=10 100ms=4");
+        when(mUiDevice.executeShellCommand(SFSTATS_COMMAND_DUMP)).thenReturn(dump);
+        mockEnableAndClearCommand();
+        mockDisableAndClearCommand();
+        mHelper.startCollecting();
+        Map<String, Double> metrics = mHelper.getMetrics();
+        String presentToPresent = constructKey(SFSTATS_METRICS_PREFIX, layer, "PRESENT_TO_PRESENT");
+        String postToPresent = constructKey(SFSTATS_METRICS_PREFIX, layer, "POST_TO_PRESENT");
+        assertThat(metrics.get(presentToPresent + "_P50")).isEqualTo(8.0);
+        assertThat(metrics.get(presentToPresent + "_P90")).isEqualTo(16.0);
+        assertThat(metrics.get(presentToPresent + "_P99")).isEqualTo(100.0);
+        assertThat(metrics.get(postToPresent + "_P99")).isEqualTo(8.0);
+        assertThat(metrics.get(postToPresent + "_AVG")).isEqualTo(8.0);
+        mHelper.stopCollecting();
+    }
+
+    /** Test that continuous collection enables once and reports deltas between dumps. */
+    @Test
+    public void testCollect_continuous() throws Exception {
+        String layer = "com.google.android.nexuslauncher.NexusLauncherActivity#0";
+        String secondDump =
+                SFSTATS_DUMP
+                        .replace("statsEnd = 1566338516", "statsEnd = 1566339000")
+                        .replace("totalFrames = 5791", "totalFrames = 5891")
+                        .replace("totalFrames = 264", "totalFrames = 364")
+                        .replace("droppedFrames = 7", "droppedFrames = 9")
+                        .replace(
+                                "present2present histogram is as below:\n"
+                                        + "0ms=0 1ms=0 2ms=0 3ms=0 4ms=0 5ms=0 6ms=0 7ms=0 8ms=264"
+                                        + " 9ms=0",
+                                "present2present histogram is as below:\n"
+                                        + "0ms=0 1ms=0 2ms=0 3ms=0 4ms=0 5ms=0 6ms=0 7ms=0 8ms=264"
+                                        + " 9ms=0 10ms=100");
+        // Frames are drawn between the two tests, after the first dump of the first test.
+        String firstDump = SFSTATS_DUMP.replace("totalFrames = 5791", "totalFrames = 5700");
+        when(mUiDevice.executeShellCommand(SFSTATS_COMMAND_DUMP))
+                .thenReturn(firstDump)
+                .thenReturn(SFSTATS_DUMP)
+                .thenReturn(secondDump);
+        mockEnableAndClearCommand();
+        mockDisableAndClearCommand();
+        mHelper.setContinuousCollection(true);
+
+        mHelper.startCollecting();
+        mHelper.getMetrics();
+        mHelper.stopCollecting();
+        mHelper.startCollecting();
+        Map<String, Double> metrics = mHelper.getMetrics();
+        mHelper.stopCollecting();
+
+        assertThat(metrics.get(constructKey(SFSTATS_METRICS_PREFIX, "GLOBAL", "TOTALFRAMES")))
+                .isEqualTo(100.0);
+        assertThat(metrics.get(constructKey(SFSTATS_METRICS_PREFIX, "GLOBAL", "STATSSTART")))
+                .isEqualTo(1566338516.0);
+        assertThat(metrics.get(constructKey(SFSTATS_METRICS_PREFIX, layer, "TOTAL_FRAMES")))
+                .isEqualTo(100.0);
+        assertThat(metrics.get(constructKey(SFSTATS_METRICS_PREFIX, layer, "DROPPED_FRAMES")))
+                .isEqualTo(2.0);
+        assertThat(metrics.get(constructKey(SFSTATS_METRICS_PREFIX, layer, "AVERAGE_FPS")))
+                .isEqualTo(100.0);
+        String presentToPresent = constructKey(SFSTATS_METRICS_PREFIX, layer, "PRESENT_TO_PRESENT");
+        assertThat(metrics.get(presentToPresent + "_AVG")).isEqualTo(10.0);
+        // Layers that did not render during the second collection are not reported.
+        for (String key : metrics.keySet()) {
+            assertThat(key).doesNotContain("DoodleWallpaperV1");
+        }
+        // Time stats are only enabled once and stay enabled until explicitly stopped.
+        verify(mUiDevice, times(1)).executeShellCommand(SFSTATS_COMMAND_ENABLE_AND_CLEAR);
+        verify(mUiDevice, times(3)).executeShellCommand(SFSTATS_COMMAND_DUMP);
+        verify(mUiDevice, never()).executeShellCommand(SFSTATS_COMMAND_DISABLE_AND_CLEAR);
+        mHelper.stopContinuousCollection();
+        verify(mUiDevice, times(1)).executeShellCommand(SFSTATS_COMMAND_DISABLE_AND_CLEAR);
+    }
+
+    /** Test that counters going backwards after SurfaceFlinger cleared its stats are clamped. */
+    @Test
+    public void testCollect_continuousStatsCleared() throws Exception {
+        String layer = "com.google.android.nexuslauncher.NexusLauncherActivity#0";
+        String clearedDump =
+                SFSTATS_DUMP
+                        .replace("totalFrames = 5791", "totalFrames = 20")
+                        .replace("missedFrames = 82", "missedFrames = 1");
+        when(mUiDevice.executeShellCommand(SFSTATS_COMMAND_DUMP))
+                .thenReturn(SFSTATS_DUMP)
+                .thenReturn(SFSTATS_DUMP)
+                .thenReturn(clearedDump);
+        mockEnableAndClearCommand();
+        mHelper.setContinuousCollection(true);
+
+        mHelper.startCollecting();
+        mHelper.getMetrics();
+        mHelper.startCollecting();
+        Map<String, Double> metrics = mHelper.getMetrics();
+
+        assertThat(metrics.get(constructKey(SFSTATS_METRICS_PREFIX, "GLOBAL", "TOTALFRAMES")))
+                .isEqualTo(0.0);
+        assertThat(metrics.get(constructKey(SFSTATS_METRICS_PREFIX, "GLOBAL", "MISSEDFRAMES")))
+                .isEqualTo(0.0);
+        // The layer rendered no frames since the baseline.
+        for (String key : metrics.keySet()) {
+            assertThat(key).doesNotContain(layer);
+        }
+    }
+
     private void mockEnableAndClearCommand() throws IOException {
         when(mUiDevice.executeShellCommand(SFSTATS_COMMAND_ENABLE_AND_CLEAR)).thenReturn("");
     }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.tradefed.testtype.DeviceJUnit4ClassRunner;
+import com.android.tradefed.testtype.DeviceJUnit4ClassRunner.TestMetrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Host-side benchmark comparing {@link MeminfoParser} against the split and regex parsing that
+ * {@code DumpsysMeminfoHelper}, {@code FreeMemHelper} and aupt's {@code MemHealthRecord} used
+ * previously, each extracting its own values from the same {@code dumpsys meminfo -a} dumps.
+ * The timings of both parsers are reported as test metrics.
+ */
+@RunWith(DeviceJUnit4ClassRunner.class)
+public class MeminfoParserBenchmark {
+    private static final int PROCESS_COUNT = 32;
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int MEASURED_ITERATIONS = 200;
+
+    @Rule public TestMetrics mMetrics = new TestMetrics();
+
+    // The metric columns previously used by DumpsysMeminfoHelper.
+    private static final String[] HEAP_METRICS = {
+        "pss_total", "shared_dirty", "private_dirty", "heap_size", "heap_alloc"
+    };
+    private static final int[] HEAP_POSITIONS = {0, 2, 3, 7, 8};
+
+    // The app summary patterns previously used by MemHealthRecord, kept verbatim.
+    private static final String[] SUMMARY_PATTERNS = {
+        "Java Heap:\\s+(\\d+)",
+        "Native Heap:\\s+(\\d+)",
+        "Code:\\s+(\\d+)",
+        "Stack:\\s+(\\d+)",
+        "Graphics:\\s+(\\d+)",
+        "Private Other:\\s+(\\d+)",
+        "System:\\s+(\\d+)",
+        "TOTAL:\\s+(\\d+)",
+    };
+    private static final String[] SUMMARY_FIELDS = {
+        "Java Heap", "Native Heap", "Code", "Stack", "Graphics", "Private Other", "System", "TOTAL"
+    };
+
+    /** Test that both parsers produce the same values. */
+    @Test
+    public void testResultsMatch() {
+        String[] dumps = buildDumps(PROCESS_COUNT);
+        Map<String, Long> legacy = parseLegacy(dumps);
+        assertEquals(PROCESS_COUNT * 23, legacy.size());
+        assertEquals(legacy, parseSinglePass(dumps));
+    }
+
+    /** Measure the average time each parser takes over the same dumps. */
+    @Test
+    public void benchmarkParsers() {
+        String[] dumps = buildDumps(PROCESS_COUNT);
+        int chars = 0;
+        for (String dump : dumps) {
+            chars += dump.length();
+        }
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            parseLegacy(dumps);
+            parseSinglePass(dumps);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            parseLegacy(dumps);
+        }
+        long legacyNs = (System.nanoTime() - start) / MEASURED_ITERATIONS;
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            parseSinglePass(dumps);
+        }
+        long singlePassNs = (System.nanoTime() - start) / MEASURED_ITERATIONS;
+        mMetrics.addTestMetric("meminfo_parse_dump_chars", String.valueOf(chars));
+        mMetrics.addTestMetric("meminfo_parse_legacy_us", String.valueOf(legacyNs / 1000));
+        mMetrics.addTestMetric("meminfo_parse_single_pass_us", String.valueOf(singlePassNs / 1000));
+    }
+
+    /** Parse {@code dumps} the way each of the three consumers did before MeminfoParser. */
+    private static Map<String, Long> parseLegacy(String[] dumps) {
+        Map<String, Long> result = new HashMap<>();
+        for (int p = 0; p < dumps.length; p++) {
+            String dump = dumps[p];
+            // DumpsysMeminfoHelper: split into lines, then each line into tokens.
+            for (String line : dump.split("\\n")) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length < 2) {
+                    continue;
+                }
+                String firstTwoTokens = String.join(" ", tokens[0], tokens[1]);
+                if (firstTwoTokens.equals("Native Heap") || firstTwoTokens.equals("Dalvik Heap")) {
+                    if (tokens.length < 11) {
+                        continue;
+                    }
+                    for (int i = 0; i < HEAP_METRICS.length; i++) {
+                        result.put(
+                                key(p, firstTwoTokens, HEAP_METRICS[i]),
+                                Long.parseLong(tokens[2 + HEAP_POSITIONS[i]]));
+                    }
+                } else if (tokens[0].equals("TOTAL")) {
+                    result.put(key(p, "TOTAL", "pss_total"), Long.parseLong(tokens[1]));
+                }
+            }
+
+            // FreeMemHelper: a pattern compiled for each process to find the TOTAL row.
+            Matcher total = Pattern.compile("^\\s+TOTAL\\s+.*", Pattern.MULTILINE).matcher(dump);
+            if (total.find()) {
+                String[] details = total.group(0).split("\\n")[0].trim().split("\\s+");
+                result.put(key(p, "TOTAL", "private"),
+                        Long.parseLong(details[2]) + Long.parseLong(details[3]));
+            }
+
+            // MemHealthRecord: one regex scan of the whole dump per value.
+            result.put(key(p, "Native Heap", "column1"),
+                    find(dump, "Native Heap\\s+\\d+\\s+(\\d+)"));
+            result.put(key(p, "Dalvik Heap", "column1"),
+                    find(dump, "Dalvik Heap\\s+\\d+\\s+(\\d+)"));
+            result.put(key(p, "TOTAL", "column0"), find(dump, "TOTAL\\s+(\\d+)"));
+            for (int i = 0; i < SUMMARY_PATTERNS.length; i++) {
+                result.put(key(p, "summary", SUMMARY_FIELDS[i]), find(dump, SUMMARY_PATTERNS[i]));
+            }
+        }
+        return result;
+    }
+
+    /** Parse {@code dumps} once each with {@link MeminfoParser}, extracting the same values. */
+    private static Map<String, Long> parseSinglePass(String[] dumps) {
+        Map<String, Long> result = new HashMap<>();
+        for (int p = 0; p < dumps.length; p++) {
+            MeminfoParser.Record record = MeminfoParser.parse(dumps[p]);
+            for (String heap : new String[] {"Native Heap", "Dalvik Heap"}) {
+                long[] row = record.getRow(heap);
+                for (int i = 0; i < HEAP_METRICS.length; i++) {
+                    result.put(key(p, heap, HEAP_METRICS[i]), row[HEAP_POSITIONS[i]]);
+                }
+                result.put(key(p, heap, "column1"), row[1]);
+            }
+            long[] total = record.getRow("TOTAL");
+            result.put(key(p, "TOTAL", "pss_total"), total[0]);
+            result.put(key(p, "TOTAL", "private"), total[1] + total[2]);
+            result.put(key(p, "TOTAL", "column0"), total[0]);
+            for (String field : SUMMARY_FIELDS) {
+                result.put(key(p, "summary", field), record.getField(field));
+            }
+        }
+        return result;
+    }
+
+    private static long find(String dump, String pattern) {
+        Matcher matcher = Pattern.compile(pattern).matcher(dump);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    private static String key(int process, String row, String metric) {
+        return String.join("_", String.valueOf(process), row, metric);
+    }
+
+    /** Build {@code processes} dumps in the {@code dumpsys meminfo -a <pid>} format. */
+    private static String[] buildDumps(int processes) {
+        String[] rows = {
+            "Native Heap", "Dalvik Heap", "Dalvik Other", "Stack", "Ashmem", "Gfx dev",
+            "Other dev", ".so mmap", ".jar mmap", ".apk mmap", ".ttf mmap", ".dex mmap",
+            ".oat mmap", ".art mmap", "Other mmap", "EGL mtrack", "GL mtrack", "Unknown"
+        };
+        String[] details = {
+            ".Heap", ".LOS", ".Zygote", ".NonMoving", ".LinearAlloc", ".GC", ".IndirectRef",
+            ".Boot vdex", ".App dex", ".App vdex", ".App art", ".Boot art"
+        };
+        String[] dumps = new String[processes];
+        for (int p = 0; p < processes; p++) {
+            StringBuilder dump = new StringBuilder("Applications Memory Usage (in Kilobytes):\n");
+            dump.append("Uptime: 2649336 Realtime: 3041976\n\n")
+                    .append("** MEMINFO in pid ").append(1000 + p)
+                    .append(" [com.android.package").append(p).append("] **\n")
+                    .append("                   Pss      Pss   Shared  Private   Shared  Private")
+                    .append("  SwapPss     Heap     Heap     Heap\n")
+                    .append("                 Total    Clean    Dirty    Dirty    Clean    Clean")
+                    .append("    Dirty     Size    Alloc     Free\n")
+                    .append("                ------   ------   ------   ------   ------   ------")
+                    .append("   ------   ------   ------   ------\n");
+            for (int r = 0; r < rows.length; r++) {
+                appendRow(dump, rows[r], r < 2 ? 10 : 7, p * 31 + r * 7);
+            }
+            appendRow(dump, "TOTAL", 10, p * 31 + 1000);
+            dump.append("\n Dalvik Details\n");
+            for (int d = 0; d < details.length; d++) {
+                appendRow(dump, details[d], 7, p * 17 + d);
+            }
+            dump.append("\n App Summary\n")
+                    .append("                       Pss(KB)\n")
+                    .append("                        ------\n");
+            for (int f = 0; f < SUMMARY_FIELDS.length - 1; f++) {
+                dump.append(String.format("%20s:%9d\n", SUMMARY_FIELDS[f], p * 13 + f * 101));
+            }
+            dump.append(String.format("\n%20s:%9d      TOTAL SWAP PSS:%9d\n",
+                    "TOTAL", p * 31 + 1000, p + 5))
+                    .append("\n Objects\n")
+                    .append("               Views:      120         ViewRootImpl:        1\n")
+                    .append("         AppContexts:        6           Activities:        1\n")
+                    .append("              Assets:       12        AssetManagers:        0\n")
+                    .append("\n SQL\n         MEMORY_USED:        0\n");
+            dumps[p] = dump.toString();
+        }
+        return dumps;
+    }
+
+    private static void appendRow(StringBuilder dump, String label, int columns, int seed) {
+        dump.append(String.format("%13s", label));
+        for (int c = 0; c < columns; c++) {
+            dump.append(String.format("%9d", (seed * (c + 3) + c * 977) % 100000));
+        }
+        dump.append('\n');
+    }
+}
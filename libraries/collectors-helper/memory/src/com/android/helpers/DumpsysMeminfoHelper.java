@@ -22,7 +22,9 @@ import android.util.Log;
 import androidx.test.InstrumentationRegistry;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -35,11 +37,7 @@ public class DumpsysMeminfoHelper implements ICollectorHelper<Long> {
 
     private static final String TAG = DumpsysMeminfoHelper.class.getSimpleName();
 
-    private static final String SEPARATOR = "\\s+";
-    private static final String LINE_SEPARATOR = "\\n";
-
     private static final String DUMPSYS_MEMINFO_CMD = "dumpsys meminfo -a %s";
-    private static final String PIDOF_CMD = "pidof %s";
 
     private static final String METRIC_SOURCE = "dumpsys";
     private static final String METRIC_UNIT = "kb";
@@ -81,6 +79,8 @@ public class DumpsysMeminfoHelper implements ICollectorHelper<Long> {
 
     private String[] mProcessNames = {};
     private UiDevice mUiDevice;
+    private ShellCommandExecutor mExecutor;
+    private ProcessTable mProcessTable;
 
     public void setUp(String... processNames) {
         if (processNames == null) {
@@ -92,15 +92,23 @@ public class DumpsysMeminfoHelper implements ICollectorHelper<Long> {
     @Override
     public boolean startCollecting() {
         mUiDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        mExecutor = new ShellCommandExecutor(mUiDevice::executeShellCommand);
+        mProcessTable = ProcessTable.getInstance(mExecutor);
         return true;
     }
 
     @Override
     public Map<String, Long> getMetrics() {
         Map<String, Long> metrics = new HashMap<>();
-        for (String processName : mProcessNames) {
-            String rawOutput = getRawDumpsysMeminfo(processName);
-            metrics.putAll(parseMetrics(processName, rawOutput));
+        // Resolve all pids at once, dump all processes concurrently, then parse the outputs in
+        // order.
+        Map<String, List<Integer>> pids = mProcessTable.getPids(Arrays.asList(mProcessNames));
+        Map<String, String> rawOutputs =
+                mExecutor.executeAll(
+                        Arrays.asList(mProcessNames),
+                        processName -> getRawDumpsysMeminfo(processName, pids.get(processName)));
+        for (Map.Entry<String, String> rawOutput : rawOutputs.entrySet()) {
+            metrics.putAll(parseMetrics(rawOutput.getKey(), rawOutput.getValue()));
         }
         return metrics;
     }
@@ -110,16 +118,13 @@ public class DumpsysMeminfoHelper implements ICollectorHelper<Long> {
         return true;
     }
 
-    private String getRawDumpsysMeminfo(String processName) {
-        if (isEmpty(processName)) {
+    private String getRawDumpsysMeminfo(String processName, List<Integer> pids) {
+        if (isEmpty(processName) || pids == null || pids.isEmpty()) {
             return "";
         }
         try {
-            String pidStr = mUiDevice.executeShellCommand(String.format(PIDOF_CMD, processName));
-            if (isEmpty(pidStr)) {
-                return "";
-            }
-            return mUiDevice.executeShellCommand(String.format(DUMPSYS_MEMINFO_CMD, pidStr));
+            String pidStr = pids.stream().map(String::valueOf).collect(Collectors.joining(" "));
+            return mExecutor.execute(String.format(DUMPSYS_MEMINFO_CMD, pidStr));
         } catch (IOException e) {
             Log.e(TAG, String.format("Failed to execute command. %s", e));
             return "";
@@ -127,43 +132,35 @@ public class DumpsysMeminfoHelper implements ICollectorHelper<Long> {
     }
 
     private Map<String, Long> parseMetrics(String processName, String rawOutput) {
-        String[] lines = rawOutput.split(LINE_SEPARATOR);
+        MeminfoParser.Record record = MeminfoParser.parse(rawOutput);
         Map<String, Long> metrics = new HashMap<>();
-        for (String line : lines) {
-            String[] tokens = line.trim().split(SEPARATOR);
-            if (tokens.length < 2) {
+        for (String prefix : new String[] {NATIVE_HEAP_PREFIX, DALVIK_HEAP_PREFIX}) {
+            long[] row = record.getRow(prefix);
+            if (row == null || row.length < 9) {
                 continue;
             }
-            String firstToken = tokens[0];
-            String firstTwoTokens = String.join(" ", tokens[0], tokens[1]);
-            if (firstTwoTokens.equals(NATIVE_HEAP_PREFIX)
-                    || firstTwoTokens.equals(DALVIK_HEAP_PREFIX)) {
-                if (tokens.length < 11) {
-                    continue;
-                }
-                int offset = 2;
-                for (Map.Entry<String, Integer> metric : METRIC_POSITIONS.entrySet()) {
-                    metrics.put(
-                            MetricUtility.constructKey(
-                                    METRIC_SOURCE,
-                                    CATEGORIES.get(firstTwoTokens),
-                                    metric.getKey(),
-                                    METRIC_UNIT,
-                                    processName),
-                            Long.parseLong(tokens[offset + metric.getValue()]));
-                }
-            } else if (firstToken.equals(TOTAL_PREFIX)) {
-                int offset = 1;
+            for (Map.Entry<String, Integer> metric : METRIC_POSITIONS.entrySet()) {
                 metrics.put(
                         MetricUtility.constructKey(
                                 METRIC_SOURCE,
-                                CATEGORIES.get(firstToken),
-                                PSS_TOTAL,
+                                CATEGORIES.get(prefix),
+                                metric.getKey(),
                                 METRIC_UNIT,
                                 processName),
-                        Long.parseLong(tokens[offset + METRIC_POSITIONS.get(PSS_TOTAL)]));
+                        row[metric.getValue()]);
             }
         }
+        long totalPss = record.getColumn(TOTAL_PREFIX, METRIC_POSITIONS.get(PSS_TOTAL));
+        if (totalPss >= 0) {
+            metrics.put(
+                    MetricUtility.constructKey(
+                            METRIC_SOURCE,
+                            CATEGORIES.get(TOTAL_PREFIX),
+                            PSS_TOTAL,
+                            METRIC_UNIT,
+                            processName),
+                    totalPss);
+        }
         return metrics;
     }
 
@@ -21,6 +21,8 @@ import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 
+import com.android.helpers.ProcMemoryReader.ProcMemoryInfo;
+
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -28,6 +30,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -45,16 +48,17 @@ import java.util.regex.Pattern;
  */
 public class FreeMemHelper implements ICollectorHelper<Long> {
     private static final String TAG = FreeMemHelper.class.getSimpleName();
-    private static final String SEPARATOR = "\\s+";
     private static final String DUMPSYS_MEMIFNO = "dumpsys meminfo";
     private static final String PROC_MEMINFO = "cat /proc/meminfo";
-    private static final String LINE_SEPARATOR = "\\n";
-    private static final String MEM_AVAILABLE_PATTERN = "^MemAvailable.*";
-    private static final String MEM_FREE_PATTERN = "^MemFree.*";
+    private static final String MEM_AVAILABLE = "MemAvailable";
+    private static final String MEM_FREE = "MemFree";
     private static final Pattern CACHE_PROC_START_PATTERN = Pattern.compile(".*: Cached$");
     private static final Pattern PID_PATTERN = Pattern.compile("^.*pid(?<processid> [0-9]*).*$");
     private static final String DUMPSYS_PROCESS = "dumpsys meminfo %s";
-    private static final String MEM_TOTAL = "^\\s+TOTAL\\s+.*";
+    private static final String MEM_TOTAL = "TOTAL";
+    // Columns of the private dirty and private clean memory in the TOTAL row.
+    private static final int PRIVATE_DIRTY_COLUMN = 1;
+    private static final int PRIVATE_CLEAN_COLUMN = 2;
     private static final String PROCESS_ID = "processid";
     public static final String MEM_AVAILABLE_CACHE_PROC_DIRTY = "MemAvailable_CacheProcDirty_bytes";
     public static final String PROC_MEMINFO_MEM_AVAILABLE= "proc_meminfo_memavailable_bytes";
@@ -62,13 +66,28 @@ public class FreeMemHelper implements ICollectorHelper<Long> {
     public static final String DUMPSYS_CACHED_PROC_MEMORY= "dumpsys_cached_procs_memory_bytes";
 
     private UiDevice mUiDevice;
+    private ShellCommandExecutor mExecutor;
+    private ProcMemoryReader mProcReader;
+    private boolean mReadProc = false;
 
     @Override
     public boolean startCollecting() {
         mUiDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        mExecutor = new ShellCommandExecutor(mUiDevice::executeShellCommand);
+        mProcReader =
+                new ProcMemoryReader(
+                        new ShellCommandExecutor(InstrumentationRegistry.getInstrumentation()));
         return true;
     }
 
+    /**
+     * Reads the private memory of the cached processes from /proc/<pid>/smaps_rollup with a few
+     * batched commands, instead of running "dumpsys meminfo" for each of them.
+     */
+    public void setReadProc(boolean readProc) {
+        mReadProc = readProc;
+    }
+
     @Override
     public boolean stopCollecting() {
         return true;
@@ -85,67 +104,53 @@ public class FreeMemHelper implements ICollectorHelper<Long> {
             return null;
         }
 
-        Pattern memAvailablePattern = Pattern.compile(MEM_AVAILABLE_PATTERN, Pattern.MULTILINE);
-        Pattern memFreePattern = Pattern.compile(MEM_FREE_PATTERN, Pattern.MULTILINE);
-        Matcher memAvailableMatcher = memAvailablePattern.matcher(memInfo);
-        Matcher memFreeMatcher = memFreePattern.matcher(memInfo);
-
-        String[] memAvailable = null;
-        String[] memFree = null;
-        if (memAvailableMatcher.find() && memFreeMatcher.find()) {
-            memAvailable = memAvailableMatcher.group(0).split(SEPARATOR);
-            memFree = memFreeMatcher.group(0).split(SEPARATOR);
-        }
-
-        if (memAvailable == null || memFree == null) {
+        MeminfoParser.Record procMeminfo = MeminfoParser.parse(memInfo);
+        long memAvailableProc = procMeminfo.getField(MEM_AVAILABLE);
+        long memFreeProc = procMeminfo.getField(MEM_FREE);
+        if (memAvailableProc < 0 || memFreeProc < 0) {
             Log.e(TAG, "MemAvailable or MemFree is null.");
             return null;
         }
         Map<String, Long> results = new HashMap<>();
-        long memAvailableProc = Long.parseLong(memAvailable[1]);
         results.put(PROC_MEMINFO_MEM_AVAILABLE, (memAvailableProc * 1024));
-
-        long memFreeProc = Long.parseLong(memFree[1]);
         results.put(PROC_MEMINFO_MEM_FREE, (memFreeProc * 1024));
 
         long cacheProcDirty = memAvailableProc;
-        byte[] dumpsysMemInfoBytes = MetricUtility.executeCommandBlocking(DUMPSYS_MEMIFNO,
-                InstrumentationRegistry.getInstrumentation());
-        List<String> cachedProcList = getCachedProcesses(dumpsysMemInfoBytes);
-        Long cachedProcMemory = 0L;
-
+        // Stream the dumpsys output, which stops being read after the cached process section.
+        List<String> cachedProcList = new ArrayList<>();
+        MetricUtility.executeCommandStreaming(DUMPSYS_MEMIFNO,
+                InstrumentationRegistry.getInstrumentation(),
+                output -> cachedProcList.addAll(getCachedProcesses(output)));
+        // Resolve the pids of the cached processes from their dumpsys lines.
+        Map<Integer, String> cachedPids = new LinkedHashMap<>();
         for (String process : cachedProcList) {
-            Log.i(TAG, "Cached Process" + process);
             Matcher match;
-            if ((match = matches(PID_PATTERN, process)) != null) {
-                String processId = match.group(PROCESS_ID);
-                String processDumpSysMemInfo = String.format(DUMPSYS_PROCESS, processId);
-                String processInfoStr;
-                Log.i(TAG, "Process Id of the cached process" + processId);
-                try {
-                    processInfoStr = mUiDevice.executeShellCommand(processDumpSysMemInfo);
-                } catch (IOException ioe) {
-                    Log.e(TAG, "Failed to get " + processDumpSysMemInfo + ".", ioe);
-                    return null;
-                }
+            if ((match = matches(PID_PATTERN, process)) == null) {
+                continue;
+            }
+            String processId = match.group(PROCESS_ID).trim();
+            Log.i(TAG, "Process Id of the cached process" + processId);
+            try {
+                cachedPids.put(Integer.parseInt(processId), process);
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Unexpected pid of the cached process " + process, e);
+            }
+        }
 
-                Pattern memTotalPattern = Pattern.compile(MEM_TOTAL, Pattern.MULTILINE);
-                Matcher memTotalMatcher = memTotalPattern.matcher(processInfoStr);
+        Map<Integer, long[]> privateMemory =
+                mReadProc ? readPrivateMemoryFromProc(cachedPids) : readPrivateMemory(cachedPids);
+        if (privateMemory == null) {
+            return null;
+        }
 
-                String[] processInfo = null;
-                if (memTotalMatcher.find()) {
-                    processInfo = memTotalMatcher.group(0).split(LINE_SEPARATOR);
-                }
-                if (processInfo != null && processInfo.length > 0) {
-                    String[] procDetails = processInfo[0].trim().split(SEPARATOR);
-                    int privateDirty = Integer.parseInt(procDetails[2].trim());
-                    int privateClean = Integer.parseInt(procDetails[3].trim());
-                    cachedProcMemory = cachedProcMemory + privateDirty + privateClean;
-                    cacheProcDirty = cacheProcDirty + privateDirty + privateClean;
-                    Log.i(TAG, "Cached process: " + process + " Private Dirty: "
-                            + (privateDirty * 1024) + " Private Clean: " + (privateClean * 1024));
-                }
-            }
+        long cachedProcMemory = 0L;
+        for (Map.Entry<Integer, long[]> entry : privateMemory.entrySet()) {
+            long privateDirty = entry.getValue()[0];
+            long privateClean = entry.getValue()[1];
+            cachedProcMemory = cachedProcMemory + privateDirty + privateClean;
+            cacheProcDirty = cacheProcDirty + privateDirty + privateClean;
+            Log.i(TAG, "Cached process: " + cachedPids.get(entry.getKey()) + " Private Dirty: "
+                    + (privateDirty * 1024) + " Private Clean: " + (privateClean * 1024));
         }
 
         // Sum of all the cached process memory.
@@ -156,6 +161,57 @@ public class FreeMemHelper implements ICollectorHelper<Long> {
         return results;
     }
 
+    /**
+     * Runs "dumpsys meminfo" for all the cached processes concurrently and reads their private
+     * memory from the TOTAL row.
+     *
+     * @return the private dirty and private clean memory in KB of each process, or null if any
+     *     of the commands failed.
+     */
+    private Map<Integer, long[]> readPrivateMemory(Map<Integer, String> cachedPids) {
+        Map<Integer, Exception> failures = new HashMap<>();
+        Map<Integer, String> processInfoStrs =
+                mExecutor.executeAll(
+                        cachedPids.keySet(),
+                        pid -> mExecutor.execute(String.format(DUMPSYS_PROCESS, pid)),
+                        failures);
+        if (!failures.isEmpty()) {
+            Log.e(TAG, "Failed to get dumpsys meminfo of cached processes " + failures.keySet());
+            return null;
+        }
+
+        Map<Integer, long[]> privateMemory = new LinkedHashMap<>();
+        for (Map.Entry<Integer, String> entry : processInfoStrs.entrySet()) {
+            MeminfoParser.Record processInfo = MeminfoParser.parse(entry.getValue());
+            long privateDirty = processInfo.getColumn(MEM_TOTAL, PRIVATE_DIRTY_COLUMN);
+            long privateClean = processInfo.getColumn(MEM_TOTAL, PRIVATE_CLEAN_COLUMN);
+            if (privateDirty >= 0 && privateClean >= 0) {
+                privateMemory.put(entry.getKey(), new long[] {privateDirty, privateClean});
+            }
+        }
+        return privateMemory;
+    }
+
+    /**
+     * Reads the private memory of all the cached processes from /proc/<pid>/smaps_rollup. The
+     * processes that exited or could not be read are left out.
+     *
+     * @return the private dirty and private clean memory in KB of each process.
+     */
+    private Map<Integer, long[]> readPrivateMemoryFromProc(Map<Integer, String> cachedPids) {
+        Map<Integer, long[]> privateMemory = new LinkedHashMap<>();
+        for (ProcMemoryInfo info : mProcReader.read(cachedPids.keySet()).values()) {
+            if (!info.hasSmaps()) {
+                Log.e(TAG, "Failed to read /proc for " + cachedPids.get(info.getPid()));
+                continue;
+            }
+            privateMemory.put(
+                    info.getPid(),
+                    new long[] {info.getPrivateDirtyKb(), info.getPrivateCleanKb()});
+        }
+        return privateMemory;
+    }
+
     /**
      * Checks whether {@code line} matches the given {@link Pattern}.
      *
@@ -174,8 +230,18 @@ public class FreeMemHelper implements ICollectorHelper<Long> {
      * @return list of cached processes.
      */
     List<String> getCachedProcesses(byte[] dumpsysMemInfoBytes) {
+        return getCachedProcesses(new ByteArrayInputStream(dumpsysMemInfoBytes));
+    }
+
+    /**
+     * Get cached process information from a stream of the dumpsys meminfo output. Reading stops
+     * at the end of the cached process section.
+     *
+     * @param inputStream dumpsys meminfo output
+     * @return list of cached processes.
+     */
+    List<String> getCachedProcesses(InputStream inputStream) {
         List<String> cachedProcessList = new ArrayList<String>();
-        InputStream inputStream = new ByteArrayInputStream(dumpsysMemInfoBytes);
         boolean isCacheProcSection = false;
         try (BufferedReader bfReader = new BufferedReader(new InputStreamReader(inputStream))) {
             String currLine = null;
@@ -22,10 +22,26 @@ import android.util.Log;
 import androidx.annotation.VisibleForTesting;
 import androidx.test.InstrumentationRegistry;
 
+import com.android.helpers.ProcessTable.ProcessInfo;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 /**
  * GarbageCollectionHelper is a helper for triggerring garbage collection for a list of processes.
  * It should be used before memory metric collectors to reduce noise.
+ *
+ * <p>By default it waits a fixed time after signalling the processes. With {@link
+ * #setWaitForCompletion}, it instead waits until ART logged the completion of the GC triggered by
+ * the signal in every process, or a timeout. Only processes running ART, i.e. forked from a
+ * zygote, are signalled then, as the others would never log a GC.
  */
 public class GarbageCollectionHelper {
     private static final String TAG = GarbageCollectionHelper.class.getSimpleName();
@@ -35,9 +51,29 @@ public class GarbageCollectionHelper {
     // somewhat arbitrary but should be a reasonable wait time to reduce noise from the GC
     // finishing up.
     private static final int DEFAULT_POST_GC_WAIT_TIME_MS = 3000;
+    // Default time in ms to wait for all the GCs to complete when waiting for completion.
+    private static final int DEFAULT_GC_COMPLETION_TIMEOUT_MS = 10000;
+    // Time in ms between two checks of the log for completed GCs.
+    private static final int GC_COMPLETION_POLL_INTERVAL_MS = 100;
+    // Command to dump the main log since an epoch time, e.g.
+    // "1600000000.123  1234  1250 I zygote64: SIGUSR1 forcing GC (no HPROF) and profile save".
+    // The log lines are filtered by the helper, as they need two patterns.
+    private static final String GC_LOG_CMD = "logcat -d -b main -v epoch -T %s";
+    // Start of the message ART logs when the signal is received, just before collecting.
+    private static final String GC_SIGNAL_MESSAGE = "SIGUSR1 forcing GC";
+    // Start and part of the message ART logs when an explicit GC completes, e.g.
+    // "Explicit concurrent copying GC freed 100(10KB) AllocSpace objects, ...".
+    private static final String GC_COMPLETION_PREFIX = "Explicit ";
+    private static final String GC_COMPLETION_MESSAGE = " GC freed ";
+    // Processes forked from a zygote run ART, e.g. from "zygote64", "webview_zygote" or the app
+    // zygote "com.android.chrome_zygote".
+    private static final String ZYGOTE_NAME = "zygote";
 
     private String[] mProcessNames;
     private UiDevice mUiDevice;
+    private ShellCommandExecutor mExecutor;
+    private ProcessTable mProcessTable;
+    private boolean mWaitForCompletion = false;
 
     /**
      * Set up the helper before using it.
@@ -47,6 +83,8 @@ public class GarbageCollectionHelper {
     public void setUp(String... procs) {
         mProcessNames = procs;
         mUiDevice = initUiDevice();
+        mExecutor = new ShellCommandExecutor(mUiDevice::executeShellCommand);
+        mProcessTable = initProcessTable();
     }
 
     @VisibleForTesting
@@ -54,19 +92,37 @@ public class GarbageCollectionHelper {
         return UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
     }
 
+    @VisibleForTesting
+    protected ProcessTable initProcessTable() {
+        return ProcessTable.getInstance(mExecutor);
+    }
+
     /**
      * Trigger garbage collection for all processes specified in {@link #setUp} and wait for memory
      * to stabilize.
      */
     public void garbageCollect() {
-        garbageCollect(DEFAULT_POST_GC_WAIT_TIME_MS);
+        garbageCollect(
+                mWaitForCompletion
+                        ? DEFAULT_GC_COMPLETION_TIMEOUT_MS
+                        : DEFAULT_POST_GC_WAIT_TIME_MS);
+    }
+
+    /**
+     * Waits until the GC of every process completed instead of a fixed time, so that the wait is
+     * only as long as the slowest GC. The wait time of {@link #garbageCollect(long)} is then the
+     * timeout for all the GCs to complete.
+     */
+    public void setWaitForCompletion(boolean waitForCompletion) {
+        mWaitForCompletion = waitForCompletion;
     }
 
     /**
      * Trigger garbage collection for all processes and wait for a caller-specified amount of time
      * after the GC in order for memory to stabilize.
      *
-     * @param waitTime time to wait in ms for memory to stabilize
+     * @param waitTime time to wait in ms for memory to stabilize, or at most for the GCs to
+     *     complete if waiting for completion
      */
     public void garbageCollect(long waitTime) {
         if (mProcessNames == null || mUiDevice == null) {
@@ -74,17 +130,47 @@ public class GarbageCollectionHelper {
             return;
         }
 
-        // Garbage collect each application in sequence.
-        for (String procName : mProcessNames) {
-            try {
-                String pidofOutput = mUiDevice.executeShellCommand(
-                        String.format("pidof %s", procName));
-                if (!pidofOutput.isEmpty()) {
-                    mUiDevice.executeShellCommand(String.format(GC_CMD, pidofOutput));
+        // Garbage collect all running applications concurrently.
+        Map<String, List<Integer>> pids = new LinkedHashMap<>();
+        for (Map.Entry<String, List<ProcessInfo>> entry :
+                mProcessTable.getProcesses(Arrays.asList(mProcessNames)).entrySet()) {
+            List<Integer> procPids = new ArrayList<>();
+            for (ProcessInfo info : entry.getValue()) {
+                if (!mWaitForCompletion || isArtProcess(info)) {
+                    procPids.add(info.getPid());
+                } else {
+                    Log.w(TAG, String.format("Not waiting for %s (pid %d), which does not run ART.",
+                            info.getName(), info.getPid()));
                 }
-            } catch (IOException e) {
-                Log.e(TAG,"Unable to execute shell command to GC", e);
             }
+            if (!procPids.isEmpty()) {
+                pids.put(entry.getKey(), procPids);
+            }
+        }
+        long startTime = System.currentTimeMillis();
+        long startUptime = SystemClock.uptimeMillis();
+        mExecutor.executeAll(
+                pids.values(),
+                procPids -> {
+                    try {
+                        String pidStr =
+                                procPids.stream()
+                                        .map(String::valueOf)
+                                        .collect(Collectors.joining(" "));
+                        mExecutor.execute(String.format(GC_CMD, pidStr));
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to execute shell command to GC", e);
+                    }
+                    return null;
+                });
+
+        if (mWaitForCompletion) {
+            Set<Integer> pending = new HashSet<>();
+            for (List<Integer> procPids : pids.values()) {
+                pending.addAll(procPids);
+            }
+            waitForCompletion(pending, startTime, startUptime, waitTime);
+            return;
         }
 
         // TODO(b/120913945) Look into other ways of determining GC is done
@@ -94,4 +180,89 @@ public class GarbageCollectionHelper {
         // a test's memory metrics are noisy, try a longer sleep time).
         SystemClock.sleep(waitTime);
     }
+
+    /** Returns whether {@code info} is a zygote or was forked from one, and so runs ART. */
+    private boolean isArtProcess(ProcessInfo info) {
+        if (info.getName() != null && info.getName().contains(ZYGOTE_NAME)) {
+            return true;
+        }
+        ProcessInfo parent = mProcessTable.getProcess(info.getParentPid());
+        return parent != null && parent.getName() != null
+                && parent.getName().contains(ZYGOTE_NAME);
+    }
+
+    /**
+     * Polls the log until the GC triggered by the signal in each of the {@code pids} completed,
+     * or until {@code timeout} ms passed.
+     *
+     * <p>A GC is only complete once an explicit GC is logged after the signal was, so that GCs
+     * requested by the app itself are ignored. The pids that did not log the signal within the
+     * fixed wait of {@link #DEFAULT_POST_GC_WAIT_TIME_MS}, e.g. because the log is not readable,
+     * are no longer waited for, so that the wait is never longer than it used to be for them.
+     *
+     * @param startTime the wall clock time in ms before the processes were signalled
+     * @param startUptime the uptime in ms before the processes were signalled
+     */
+    private void waitForCompletion(
+            Set<Integer> pids, long startTime, long startUptime, long timeout) {
+        String command =
+                String.format(
+                        GC_LOG_CMD, String.format("%d.%03d", startTime / 1000, startTime % 1000));
+        long deadline = startUptime + timeout;
+        long signalDeadline = startUptime + Math.min(DEFAULT_POST_GC_WAIT_TIME_MS, timeout);
+        while (!pids.isEmpty()) {
+            Set<Integer> signalled = new HashSet<>();
+            try {
+                mExecutor.execute(
+                        command,
+                        line -> {
+                            int messageStart = line.indexOf(": ");
+                            String[] tokens = line.trim().split("\\s+", 3);
+                            if (messageStart < 0 || tokens.length < 3) {
+                                return;
+                            }
+                            int pid;
+                            try {
+                                pid = Integer.parseInt(tokens[1]);
+                            } catch (NumberFormatException e) {
+                                // Not a log line, e.g. a buffer header.
+                                return;
+                            }
+                            String message = line.substring(messageStart + 2);
+                            if (message.startsWith(GC_SIGNAL_MESSAGE)) {
+                                signalled.add(pid);
+                            } else if (signalled.contains(pid)
+                                    && message.startsWith(GC_COMPLETION_PREFIX)
+                                    && message.contains(GC_COMPLETION_MESSAGE)) {
+                                pids.remove(pid);
+                            }
+                        });
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read the log to wait for GC completion", e);
+                SystemClock.sleep(Math.max(0, signalDeadline - SystemClock.uptimeMillis()));
+                return;
+            }
+            if (pids.isEmpty()) {
+                break;
+            }
+            long now = SystemClock.uptimeMillis();
+            if (now >= signalDeadline && !signalled.containsAll(pids)) {
+                Set<Integer> unsignalled = new HashSet<>(pids);
+                unsignalled.removeAll(signalled);
+                Log.w(TAG, "No GC logged for pids " + unsignalled + ", not waiting for them");
+                pids.removeAll(unsignalled);
+                if (pids.isEmpty()) {
+                    return;
+                }
+            }
+            long remaining = deadline - now;
+            if (remaining <= 0) {
+                Log.w(TAG, "Timed out waiting for GC completion of pids " + pids);
+                return;
+            }
+            SystemClock.sleep(Math.min(GC_COMPLETION_POLL_INTERVAL_MS, remaining));
+        }
+        Log.i(TAG, String.format(
+                "GC completed in %d ms", System.currentTimeMillis() - startTime));
+    }
 }
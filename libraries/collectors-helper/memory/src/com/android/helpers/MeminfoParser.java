@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MeminfoParser parses the output of "dumpsys meminfo" for a process, as well as /proc/meminfo,
+ * in a single pass without regular expressions.
+ *
+ * <p>Every line is split into labels and numbers as it is scanned:
+ *
+ * <ul>
+ *   <li>A label followed by numeric columns is a row of the memory table, e.g. "Native Heap" in
+ *       "  Native Heap    16840    16804        0 ...".
+ *   <li>A label ending with a colon is a field, e.g. "Java Heap" in "  Java Heap:    12028" or
+ *       "MemAvailable" in "MemAvailable:    1234 kB". A line may hold several fields.
+ * </ul>
+ *
+ * If a label appears more than once, e.g. when the output holds several processes, the first
+ * one is kept.
+ *
+ * <p>This class has no Android dependencies so that it can be shared with host-side tools.
+ *
+ * Example Usage:
+ * MeminfoParser.Record record = MeminfoParser.parse(output);
+ * long nativePss = record.getColumn("Native Heap", 0);
+ * long javaHeap = record.getField("Java Heap");
+ */
+public final class MeminfoParser {
+    // Most rows have no more than this many columns; longer ones grow the buffer.
+    private static final int INITIAL_COLUMNS = 16;
+
+    /** The rows and fields of a meminfo output. */
+    public static final class Record {
+        private final Map<String, long[]> mRows = new HashMap<>();
+        private final Map<String, Long> mFields = new HashMap<>();
+
+        /** Returns the numeric columns of the row with {@code label}, or null if there is none. */
+        public long[] getRow(String label) {
+            return mRows.get(label);
+        }
+
+        /**
+         * Returns the numeric column at {@code index} of the row with {@code label}, or -1 if
+         * the row is missing or too short.
+         */
+        public long getColumn(String label, int index) {
+            long[] row = mRows.get(label);
+            return row != null && index < row.length ? row[index] : -1;
+        }
+
+        /** Returns the value of the field with {@code label}, without its colon, or -1. */
+        public long getField(String label) {
+            Long value = mFields.get(label);
+            return value != null ? value : -1;
+        }
+    }
+
+    private MeminfoParser() {}
+
+    /** Parses {@code output} line by line. */
+    public static Record parse(String output) {
+        Record record = new Record();
+        long[] columns = new long[INITIAL_COLUMNS];
+        int length = output.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = output.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+            columns = parseLine(output, lineStart, lineEnd, record, columns);
+            lineStart = lineEnd + 1;
+        }
+        return record;
+    }
+
+    /**
+     * Parses the line between {@code start} and {@code end} into {@code record}.
+     *
+     * @param columns buffer for the columns of a row
+     * @return the buffer, which may have been grown
+     */
+    private static long[] parseLine(
+            String line, int start, int end, Record record, long[] columns) {
+        // Span of the label being read, and the number of columns read after it.
+        int labelStart = -1;
+        int labelEnd = -1;
+        int count = 0;
+        int i = start;
+        while (true) {
+            while (i < end && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            int tokenStart = i;
+            while (i < end && !Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            int tokenEnd = i;
+            boolean numeric = tokenEnd > tokenStart && isNumber(line, tokenStart, tokenEnd);
+            if (numeric && labelStart >= 0) {
+                long value = parseNumber(line, tokenStart, tokenEnd);
+                if (line.charAt(labelEnd - 1) == ':') {
+                    // A field holds a single number, which ends its label.
+                    record.mFields.putIfAbsent(line.substring(labelStart, labelEnd - 1), value);
+                    labelStart = -1;
+                    continue;
+                }
+                if (count == columns.length) {
+                    long[] grown = new long[columns.length * 2];
+                    System.arraycopy(columns, 0, grown, 0, count);
+                    columns = grown;
+                }
+                columns[count++] = value;
+                continue;
+            }
+            // The end of a row, either at the end of the line or before another label.
+            if (count > 0) {
+                long[] row = new long[count];
+                System.arraycopy(columns, 0, row, 0, count);
+                record.mRows.putIfAbsent(line.substring(labelStart, labelEnd), row);
+                labelStart = -1;
+                count = 0;
+            }
+            if (tokenEnd == tokenStart) {
+                return columns;
+            }
+            if (!numeric) {
+                if (labelStart < 0) {
+                    labelStart = tokenStart;
+                }
+                labelEnd = tokenEnd;
+            }
+        }
+    }
+
+    private static boolean isNumber(String line, int start, int end) {
+        // Longer numbers than this would overflow, and are not memory sizes anyway.
+        if (end - start > 18) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseNumber(String line, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (line.charAt(i) - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ProcMemoryReader reads the memory use of processes straight from /proc/<pid>/smaps_rollup and
+ * /proc/<pid>/status instead of running showmap for each of them.
+ *
+ * <p>The files of many processes are read by a single shell command and parsed line by line as
+ * the output is streamed, so a snapshot of every process in the system takes a handful of
+ * commands. The files of each process follow a marker line with its pid, so that a process
+ * exiting while the command runs is left out rather than mixed up with the next one. Kernels
+ * without smaps_rollup fall back to summing /proc/<pid>/smaps.
+ *
+ * Example Usage:
+ * ProcMemoryReader reader = new ProcMemoryReader(new ShellCommandExecutor(instrumentation));
+ * Map<Integer, ProcMemoryReader.ProcMemoryInfo> processes = reader.readAll();
+ */
+public class ProcMemoryReader {
+    private static final String TAG = ProcMemoryReader.class.getSimpleName();
+
+    // Command to list the entries of /proc, one per line.
+    private static final String LIST_PROC_CMD = "ls -1 /proc";
+    // Reads the files of a process. cmdline is NUL separated without a trailing newline, so one
+    // is added to keep it on its own line.
+    private static final String PROCESS_CMD =
+            "cat /proc/%1$d/cmdline; echo; cat /proc/%1$d/status /proc/%1$d/%2$s; ";
+    private static final String SMAPS_ROLLUP_FILE = "smaps_rollup";
+    private static final String SMAPS_FILE = "smaps";
+    // Value of the fields only available from smaps, for the processes without it.
+    public static final long MISSING = -1;
+
+    private static final String PID_FIELD = "Pid:";
+    private static final String VM_SIZE_FIELD = "VmSize:";
+    private static final String VM_RSS_FIELD = "VmRSS:";
+    private static final String VM_SWAP_FIELD = "VmSwap:";
+    // Fields of smaps_rollup, repeated for every mapping in smaps.
+    private static final String RSS_FIELD = "Rss:";
+    private static final String PSS_FIELD = "Pss:";
+    private static final String SWAP_FIELD = "Swap:";
+    private static final String SWAP_PSS_FIELD = "SwapPss:";
+    private static final String PRIVATE_CLEAN_FIELD = "Private_Clean:";
+    private static final String PRIVATE_DIRTY_FIELD = "Private_Dirty:";
+
+    /** The memory use of a single process, in kB. */
+    public static final class ProcMemoryInfo {
+        private int mPid = -1;
+        private String mName;
+        private long mVssKb;
+        private long mRssKb;
+        private long mPssKb;
+        private long mSwapKb;
+        private long mSwapPssKb;
+        private long mPrivateCleanKb;
+        private long mPrivateDirtyKb;
+        private long mStatusRssKb;
+        private long mStatusSwapKb;
+        private boolean mHasSmaps;
+
+        public int getPid() {
+            return mPid;
+        }
+
+        /**
+         * Returns the process name as reported by ps and pidof, or null for kernel threads or when
+         * the cmdline of the process could not be read.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        public long getVssKb() {
+            return mVssKb;
+        }
+
+        /** Returns the RSS from smaps, or from status if smaps could not be read. */
+        public long getRssKb() {
+            return mHasSmaps ? mRssKb : mStatusRssKb;
+        }
+
+        /** Returns the PSS, or {@link #MISSING} if smaps could not be read. */
+        public long getPssKb() {
+            return mHasSmaps ? mPssKb : MISSING;
+        }
+
+        public long getSwapKb() {
+            return mHasSmaps ? mSwapKb : mStatusSwapKb;
+        }
+
+        /** Returns the swap PSS, or {@link #MISSING} if smaps could not be read. */
+        public long getSwapPssKb() {
+            return mHasSmaps ? mSwapPssKb : MISSING;
+        }
+
+        /** Returns the private clean memory, or {@link #MISSING} if smaps could not be read. */
+        public long getPrivateCleanKb() {
+            return mHasSmaps ? mPrivateCleanKb : MISSING;
+        }
+
+        /** Returns the private dirty memory, or {@link #MISSING} if smaps could not be read. */
+        public long getPrivateDirtyKb() {
+            return mHasSmaps ? mPrivateDirtyKb : MISSING;
+        }
+
+        /** Returns whether smaps_rollup or smaps could be read for this process. */
+        public boolean hasSmaps() {
+            return mHasSmaps;
+        }
+
+        @Override
+        public String toString() {
+            if (!mHasSmaps) {
+                return String.format(
+                        "VSS: %d kB\nRSS: %d kB\nPSS: missing\nSwap: %d kB\nSwapPSS: missing",
+                        getVssKb(), getRssKb(), getSwapKb());
+            }
+            return String.format(
+                    "VSS: %d kB\nRSS: %d kB\nPSS: %d kB\nSwap: %d kB\nSwapPSS: %d kB",
+                    getVssKb(), getRssKb(), getPssKb(), getSwapKb(), getSwapPssKb());
+        }
+    }
+
+    private final ShellCommandExecutor mExecutor;
+
+    /**
+     * @param executor runs the commands reading /proc. Executors created from an {@code
+     *     Instrumentation} let the output be parsed while it is being read.
+     */
+    public ProcMemoryReader(ShellCommandExecutor executor) {
+        mExecutor = executor;
+    }
+
+    /** Returns the pid of every process currently in /proc, in ascending order. */
+    public List<Integer> listPids() throws IOException {
+        List<Integer> pids = new ArrayList<>();
+        mExecutor.execute(
+                LIST_PROC_CMD,
+                line -> {
+                    int pid = (int) parseNumber(line, 0, -1);
+                    if (pid > 0) {
+                        pids.add(pid);
+                    }
+                });
+        pids.sort(null);
+        return pids;
+    }
+
+    /**
+     * Walks /proc once and reads the memory use of every user space process. Kernel threads are
+     * left out, as they are by "ps -A" filtering.
+     *
+     * @return the memory use of each process, keyed and ordered by pid.
+     */
+    public Map<Integer, ProcMemoryInfo> readAll() throws IOException {
+        Map<Integer, ProcMemoryInfo> processes = read(listPids());
+        processes.values().removeIf(info -> info.getName() == null);
+        return processes;
+    }
+
+    /**
+     * Reads the memory use of {@code pids}. Processes that exited before they could be read are
+     * left out.
+     *
+     * @return the memory use of each process, keyed and ordered by pid.
+     */
+    public Map<Integer, ProcMemoryInfo> read(Collection<Integer> pids) {
+        Map<Integer, ProcMemoryInfo> processes = readBatches(pids, SMAPS_ROLLUP_FILE);
+
+        // Fall back to the full smaps for the processes whose smaps_rollup could not be read.
+        // Kernel threads have no address space, and so nothing to read.
+        List<Integer> missing = new ArrayList<>();
+        for (ProcMemoryInfo info : processes.values()) {
+            if (!info.mHasSmaps && info.mVssKb > 0) {
+                missing.add(info.mPid);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Log.i(TAG, String.format("Reading smaps for %d processes.", missing.size()));
+            for (ProcMemoryInfo info : readBatches(missing, SMAPS_FILE).values()) {
+                if (info.mHasSmaps && processes.containsKey(info.mPid)) {
+                    processes.put(info.mPid, info);
+                }
+            }
+        }
+        return processes;
+    }
+
+    /**
+     * Reads cmdline, status and {@code smapsFile} for every pid, running one command per {@link
+     * ProcSectionReader#PIDS_PER_COMMAND} processes concurrently.
+     */
+    private Map<Integer, ProcMemoryInfo> readBatches(Collection<Integer> pids, String smapsFile) {
+        return ProcSectionReader.read(
+                mExecutor,
+                pids,
+                pid -> String.format(PROCESS_CMD, pid, smapsFile),
+                pid -> new Parser(pid));
+    }
+
+    /** Parses the files of a process, i.e. the cmdline line, then the status and smaps files. */
+    private static final class Parser implements ProcSectionReader.Section<ProcMemoryInfo> {
+        private final ProcMemoryInfo mInfo = new ProcMemoryInfo();
+        private final int mSectionPid;
+        private boolean mExpectCmdline = true;
+
+        Parser(int pid) {
+            mSectionPid = pid;
+        }
+
+        @Override
+        public void onLine(String line) {
+            if (mExpectCmdline) {
+                mInfo.mName = parseCmdlineName(line);
+                mExpectCmdline = false;
+            } else if (line.startsWith(PID_FIELD)) {
+                mInfo.mPid = (int) parseNumber(line, PID_FIELD.length(), -1);
+            } else if (line.startsWith(VM_SIZE_FIELD)) {
+                mInfo.mVssKb = parseNumber(line, VM_SIZE_FIELD.length(), 0);
+            } else if (line.startsWith(VM_RSS_FIELD)) {
+                mInfo.mStatusRssKb = parseNumber(line, VM_RSS_FIELD.length(), 0);
+            } else if (line.startsWith(VM_SWAP_FIELD)) {
+                mInfo.mStatusSwapKb = parseNumber(line, VM_SWAP_FIELD.length(), 0);
+            } else if (line.startsWith(RSS_FIELD)) {
+                // smaps repeats the fields for each mapping, smaps_rollup has them once.
+                mInfo.mRssKb += parseNumber(line, RSS_FIELD.length(), 0);
+                mInfo.mHasSmaps = true;
+            } else if (line.startsWith(PSS_FIELD)) {
+                mInfo.mPssKb += parseNumber(line, PSS_FIELD.length(), 0);
+            } else if (line.startsWith(SWAP_FIELD)) {
+                mInfo.mSwapKb += parseNumber(line, SWAP_FIELD.length(), 0);
+            } else if (line.startsWith(SWAP_PSS_FIELD)) {
+                mInfo.mSwapPssKb += parseNumber(line, SWAP_PSS_FIELD.length(), 0);
+            } else if (line.startsWith(PRIVATE_CLEAN_FIELD)) {
+                mInfo.mPrivateCleanKb += parseNumber(line, PRIVATE_CLEAN_FIELD.length(), 0);
+            } else if (line.startsWith(PRIVATE_DIRTY_FIELD)) {
+                mInfo.mPrivateDirtyKb += parseNumber(line, PRIVATE_DIRTY_FIELD.length(), 0);
+            }
+        }
+
+        /** Keeps the process if its status could be read. */
+        @Override
+        public ProcMemoryInfo finish() {
+            return mInfo.mPid == mSectionPid ? mInfo : null;
+        }
+    }
+
+    /**
+     * Extracts the process name from the cmdline, the same way as ps and pidof: the base name of
+     * the first argument.
+     *
+     * @return the name, or null if the cmdline is empty as for kernel threads.
+     */
+    private static String parseCmdlineName(String line) {
+        int argEnd = line.indexOf('\0');
+        if (argEnd < 0) {
+            argEnd = line.length();
+        }
+        int start = line.lastIndexOf('/', argEnd - 1) + 1;
+        return start < argEnd ? line.substring(start, argEnd) : null;
+    }
+
+    /**
+     * Parses the first number found in {@code line} from {@code start} without allocating, e.g.
+     * "4096" in "Rss:    4096 kB".
+     *
+     * @return the number, or {@code defaultValue} if {@code line} has none.
+     */
+    private static long parseNumber(String line, int start, long defaultValue) {
+        int i = start;
+        int length = line.length();
+        while (i < length && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) {
+            i++;
+        }
+        if (i == length || line.charAt(i) < '0' || line.charAt(i) > '9') {
+            return defaultValue;
+        }
+        long value = 0;
+        while (i < length && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+            value = value * 10 + (line.charAt(i++) - '0');
+        }
+        return value;
+    }
+}
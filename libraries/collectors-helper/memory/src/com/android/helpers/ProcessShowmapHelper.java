@@ -18,7 +18,6 @@ package com.android.helpers;
 
 import static com.android.helpers.MetricUtility.constructKey;
 
-import android.icu.text.NumberFormat;
 import android.support.test.uiautomator.UiDevice;
 import android.util.Log;
 
@@ -26,10 +25,14 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.test.InstrumentationRegistry;
 
+import com.android.helpers.ProcMemoryReader.ProcMemoryInfo;
+
 import java.io.IOException;
-import java.text.ParseException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.InputMismatchException;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
@@ -50,8 +53,6 @@ public class ProcessShowmapHelper implements ICollectorHelper<Long> {
     private static final String TAG = ProcessShowmapHelper.class.getSimpleName();
     // Command to get the showmap for a process
     private static final String SHOWMAP_CMD = "showmap %d";
-    // Command to get the process id from the process name
-    private static final String PIDOF_CMD = "pidof %s";
     private static final String PSS = "pss";
     private static final String RSS = "rss";
     private static final String VSS = "vss";
@@ -61,6 +62,10 @@ public class ProcessShowmapHelper implements ICollectorHelper<Long> {
     private ShowmapMetrics[] mTestStartMetrics;
     private ShowmapMetrics[] mTestEndMetrics;
     private UiDevice mUiDevice;
+    private ShellCommandExecutor mExecutor;
+    private ProcMemoryReader mProcReader;
+    private ProcessTable mProcessTable;
+    private boolean mReadProc = false;
 
     private static final class ShowmapMetrics {
         long pss;
@@ -76,6 +81,19 @@ public class ProcessShowmapHelper implements ICollectorHelper<Long> {
     public void setUp(String... processNames) {
         mProcessNames = processNames;
         mUiDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        mExecutor = new ShellCommandExecutor(mUiDevice::executeShellCommand);
+        mProcessTable = ProcessTable.getInstance(mExecutor);
+        mProcReader =
+                new ProcMemoryReader(
+                        new ShellCommandExecutor(InstrumentationRegistry.getInstrumentation()));
+    }
+
+    /**
+     * Reads the memory of the processes straight from /proc/<pid>/smaps_rollup and status with a
+     * single command, instead of running showmap for each of them.
+     */
+    public void setReadProc(boolean readProc) {
+        mReadProc = readProc;
     }
 
     @Override
@@ -140,35 +158,68 @@ public class ProcessShowmapHelper implements ICollectorHelper<Long> {
             Log.e(TAG, "Process names or UI device is null. Make sure you've called setup.");
             return null;
         }
-        ShowmapMetrics[] metrics = new ShowmapMetrics[processNames.length];
+        // Resolve the pids of all processes at once. Note that only the first pid of each
+        // process will be used.
+        Map<String, List<Integer>> allPids = mProcessTable.getPids(Arrays.asList(processNames));
+        Map<Integer, Integer> pids = new LinkedHashMap<>();
         for (int i = 0; i < processNames.length; i++) {
-            metrics[i] = sampleMemory(processNames[i]);
+            List<Integer> processPids = allPids.get(processNames[i]);
+            if (processPids == null || processPids.isEmpty()) {
+                Log.e(TAG, String.format("Unable to get pid of %s ", processNames[i]));
+                continue;
+            }
+            pids.put(i, processPids.get(0));
+        }
+        // Sample all processes concurrently, keyed by index in case a name is repeated.
+        Map<Integer, ShowmapMetrics> samples =
+                mReadProc
+                        ? sampleMemoryFromProc(pids, processNames)
+                        : mExecutor.executeAll(
+                                pids.keySet(), i -> sampleMemory(processNames[i], pids.get(i)));
+        ShowmapMetrics[] metrics = new ShowmapMetrics[processNames.length];
+        for (Map.Entry<Integer, ShowmapMetrics> sample : samples.entrySet()) {
+            metrics[sample.getKey()] = sample.getValue();
         }
         return metrics;
     }
 
+    /**
+     * Samples the memory of the processes with the {@code pids} of each index of {@code
+     * processNames} by reading /proc for all of them at once.
+     *
+     * @return metrics object with pss, rss, and vss for each index that could be sampled
+     */
+    private Map<Integer, ShowmapMetrics> sampleMemoryFromProc(
+            Map<Integer, Integer> pids, String... processNames) {
+        Map<Integer, ProcMemoryInfo> infos = mProcReader.read(pids.values());
+        Map<Integer, ShowmapMetrics> samples = new HashMap<>();
+        for (Map.Entry<Integer, Integer> pid : pids.entrySet()) {
+            ProcMemoryInfo info = infos.get(pid.getValue());
+            if (info == null || !info.hasSmaps()) {
+                Log.e(TAG, String.format(
+                        "Failed to read /proc for %s ", processNames[pid.getKey()]));
+                continue;
+            }
+            ShowmapMetrics metrics = new ShowmapMetrics();
+            metrics.pss = info.getPssKb();
+            metrics.rss = info.getRssKb();
+            metrics.vss = info.getVssKb();
+            samples.put(pid.getKey(), metrics);
+        }
+        return samples;
+    }
+
     /**
      * Samples the current memory use of the process using showmap. Gets PSS, RSS, and VSS.
      *
      * @return metrics object with pss, rss, and vss
      */
-    private @Nullable ShowmapMetrics sampleMemory(@NonNull String processName) {
-        // Get pid
-        int pid;
-        try {
-            // Note that only the first pid returned by "pidof" will be used.
-            String pidofOutput = mUiDevice.executeShellCommand(
-                String.format(PIDOF_CMD, processName));
-            pid = NumberFormat.getInstance().parse(pidofOutput).intValue();
-        } catch (IOException | ParseException e) {
-            Log.e(TAG, String.format("Unable to get pid of %s ", processName), e);
-            return null;
-        }
+    private @Nullable ShowmapMetrics sampleMemory(@NonNull String processName, int pid) {
 
         // Read showmap for process
         String showmapOutput;
         try {
-            showmapOutput = mUiDevice.executeShellCommand(String.format(SHOWMAP_CMD, pid));
+            showmapOutput = mExecutor.execute(String.format(SHOWMAP_CMD, pid));
         } catch (IOException e) {
             Log.e(TAG, String.format("Failed to get showmap output for %s ", processName) , e);
             return null;
@@ -18,21 +18,36 @@ package com.android.helpers;
 
 import static com.android.helpers.MetricUtility.constructKey;
 
+import android.os.SystemClock;
 import android.support.test.uiautomator.UiDevice;
 import android.util.Log;
 import androidx.test.InstrumentationRegistry;
+import com.android.helpers.ProcMemoryReader.ProcMemoryInfo;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.InputMismatchException;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Helper to collect rss snapshot for a list of processes.
@@ -41,30 +56,209 @@ public class RssSnapshotHelper implements ICollectorHelper<String> {
   private static final String TAG = RssSnapshotHelper.class.getSimpleName();
 
   private static final String DROP_CACHES_CMD = "echo %d > /proc/sys/vm/drop_caches";
-  private static final String PIDOF_CMD = "pidof %s";
-  public static final String ALL_PROCESSES_CMD = "ps -A";
   private static final String SHOWMAP_CMD = "showmap -v %d";
+  // Number of pids whose showmap is captured at once, and held on the disk until appended.
+  private static final int SHOWMAP_BATCH_SIZE = ShellCommandExecutor.POOL_SIZE;
 
   public static final String RSS_METRIC_PREFIX = "showmap_rss_bytes";
   public static final String OUTPUT_FILE_PATH_KEY = "showmap_output_file";
   public static final String RSS_PROCESS_COUNT = "rss_process_count";
+  public static final String OUTPUT_INDEX_FILE_PATH_KEY = "showmap_output_index_file";
+  public static final String SNAPSHOT_DURATION_KEY = "rss_snapshot_duration_ms";
+  public static final String SNAPSHOT_BYTES_KEY = "rss_snapshot_bytes_written";
+
+  private static final String COMPRESSED_FILE_SUFFIX = ".gz";
+  private static final String INDEX_FILE_SUFFIX = ".idx";
+  private static final String INDEX_HEADER = "# pid process offset length uncompressed_length\n";
 
   private String[] mProcessNames = null;
   private String mTestOutputDir = null;
   private String mTestOutputFile = null;
+  private String mTestOutputIndexFile = null;
 
   private int mDropCacheOption;
   private boolean mCollectForAllProcesses = false;
+  private boolean mReadProc = false;
+  private boolean mCompressOutput = false;
   private UiDevice mUiDevice;
+  private ShellCommandExecutor mExecutor;
+  private ProcMemoryReader mProcReader;
+  private ProcessTable mProcessTable;
 
   // Map to maintain per-process rss.
   private Map<String, String> mRssMap = new HashMap<>();
 
+  /**
+   * Appends the output of each pid to the output file, optionally as a separate gzip member, and
+   * records the offset and length of each entry in the index file. Concatenated members still
+   * form a valid gzip file, and the index lets a single pid be extracted without decompressing
+   * the others.
+   */
+  private final class SnapshotWriter implements Closeable {
+    private final OutputStream mFile;
+    private final CountingOutputStream mOut;
+    private final Writer mIndex;
+
+    SnapshotWriter() throws IOException {
+      File indexFile = new File(mTestOutputIndexFile);
+      boolean newIndex = !indexFile.exists();
+      mFile =
+          new BufferedOutputStream(
+              new FileOutputStream(mTestOutputFile, true), MetricUtility.STREAM_BUFFER_SIZE);
+      mOut = new CountingOutputStream(mFile);
+      mIndex = new FileWriter(indexFile, true);
+      if (newIndex) {
+        mIndex.write(INDEX_HEADER);
+      }
+    }
+
+    /** Encodes {@code content} as the entry of {@code pid}, and appends it. */
+    void writeEntry(String processName, long pid, byte[] content) throws IOException {
+      long offset = mOut.mCount;
+      try (EntryEncoder encoder = new EntryEncoder(mOut, processName, pid)) {
+        encoder.write(content);
+        encoder.close();
+        index(processName, pid, offset, encoder.mUncompressedLength);
+      }
+    }
+
+    /** Appends the entry of {@code pid} already encoded in {@code capture}. */
+    void appendEntry(ShowmapCapture capture) throws IOException {
+      long offset = mOut.mCount;
+      try (InputStream in = new FileInputStream(capture.mFile)) {
+        MetricUtility.copyStream(in, mOut);
+      }
+      index(capture.mProcessName, capture.mPid, offset, capture.mUncompressedLength);
+    }
+
+    private void index(String processName, long pid, long offset, long uncompressedLength)
+        throws IOException {
+      mIndex.write(String.format("%d %s %d %d %d\n", pid, processName, offset,
+          mOut.mCount - offset, uncompressedLength));
+    }
+
+    /** Returns the number of bytes appended to the output file. */
+    long getBytesWritten() {
+      return mOut.mCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        mFile.close();
+      } finally {
+        mIndex.close();
+      }
+    }
+  }
+
+  /** Counts the bytes written to the output file, and leaves it open when closed. */
+  private static final class CountingOutputStream extends FilterOutputStream {
+    private long mCount;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      mCount++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      mCount += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+  /**
+   * Encodes the output of a single pid as it is streamed in, as a gzip member if the output is
+   * compressed.
+   *
+   * <p>The tail of the output is kept uncompressed to find the TOTAL line of showmap.
+   */
+  private final class EntryEncoder extends OutputStream {
+    private static final int TAIL_SIZE = 4 * 1024;
+
+    private final OutputStream mOut;
+    private final byte[] mTail = new byte[TAIL_SIZE];
+    private long mUncompressedLength;
+    private boolean mClosed = false;
+
+    EntryEncoder(OutputStream out, String processName, long pid) throws IOException {
+      mOut = mCompressOutput ? new GZIPOutputStream(out, MetricUtility.STREAM_BUFFER_SIZE) : out;
+      write(String.format(">>> %s (%d) <<<\n", processName, pid)
+          .getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      mOut.write(b, off, len);
+      // Shift the tail and append the new bytes, keeping at most TAIL_SIZE of them.
+      int kept = Math.min(len, TAIL_SIZE);
+      int shift = (int) Math.min(mUncompressedLength, TAIL_SIZE - kept);
+      System.arraycopy(mTail, TAIL_SIZE - shift, mTail, TAIL_SIZE - shift - kept, shift);
+      System.arraycopy(b, off + len - kept, mTail, TAIL_SIZE - kept, kept);
+      mUncompressedLength += len;
+    }
+
+    /** Ends the entry, which closes the gzip member and the stream it was written to. */
+    @Override
+    public void close() throws IOException {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+      write('\n');
+      mOut.close();
+    }
+
+    String getTail() {
+      int length = (int) Math.min(mUncompressedLength, TAIL_SIZE);
+      return new String(mTail, TAIL_SIZE - length, length, StandardCharsets.UTF_8);
+    }
+  }
+
+  /** The showmap output of a pid, encoded into a file of its own until it is appended. */
+  private static final class ShowmapCapture {
+    private final String mProcessName;
+    private final int mPid;
+    private File mFile;
+    private String mTail;
+    private long mUncompressedLength;
+
+    ShowmapCapture(String processName, int pid) {
+      mProcessName = processName;
+      mPid = pid;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s (%d)", mProcessName, mPid);
+    }
+  }
+
   public void setUp(String testOutputDir, String... processNames) {
     mProcessNames = processNames;
     mTestOutputDir = testOutputDir;
     mDropCacheOption = 0;
     mUiDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+    // Stream command outputs rather than holding them in memory.
+    mExecutor = new ShellCommandExecutor(InstrumentationRegistry.getInstrumentation());
+    mProcReader = new ProcMemoryReader(mExecutor);
+    mProcessTable = ProcessTable.getInstance(mExecutor);
   }
 
   @Override
@@ -77,6 +271,9 @@ public class RssSnapshotHelper implements ICollectorHelper<String> {
     File directory = new File(mTestOutputDir);
     String filePath =
         String.format("%s/rss_snapshot%d.txt", mTestOutputDir, UUID.randomUUID().hashCode());
+    if (mCompressOutput) {
+      filePath += COMPRESSED_FILE_SUFFIX;
+    }
     File file = new File(filePath);
 
     // Make sure directory exists and file does not
@@ -105,58 +302,60 @@ public class RssSnapshotHelper implements ICollectorHelper<String> {
     }
 
     mTestOutputFile = filePath;
+    mTestOutputIndexFile = filePath + INDEX_FILE_SUFFIX;
     return true;
   }
 
   @Override
   public Map<String, String> getMetrics() {
+    long snapshotStart = SystemClock.uptimeMillis();
     try {
       // Drop cache if requested
       if (mDropCacheOption > 0) {
         dropCache(mDropCacheOption);
       }
 
-      if (mCollectForAllProcesses) {
-         Log.i(TAG, "Collecting RSS metrics for all processes.");
-         mProcessNames = getAllProcessNames();
-      } else if (mProcessNames.length > 0) {
-         Log.i(TAG, "Collecting RSS only for given list of process");
-      } else if (mProcessNames.length == 0) {
+      if (!mCollectForAllProcesses && mProcessNames.length == 0) {
         // No processes specified, just return empty map
         return mRssMap;
+      } else if (mCollectForAllProcesses && !mReadProc) {
+        Log.i(TAG, "Collecting RSS metrics for all processes.");
+        mProcessNames = getAllProcessNames();
+      } else if (!mReadProc) {
+        Log.i(TAG, "Collecting RSS only for given list of process");
       }
 
-      FileWriter writer = new FileWriter(new File(mTestOutputFile), true);
-      for (String processName : mProcessNames) {
-        List<Integer> pids = new ArrayList<>();
-
-        long totalrss = 0;
-        // Collect required data
-        try {
-          pids = getPids(processName);
-
-          for (Integer pid: pids) {
-            String showmapOutput = execShowMap(processName, pid);
-            long rss = extractTotalRss(processName, showmapOutput);
-            // Track the total rss for the processes with the same process name.
-            totalrss += rss;
-            // Store showmap output into file. If there are more than one process
-            // with same name write the individual showmap associated with pid.
-            storeToFile(mTestOutputFile, processName, pid, showmapOutput, writer);
-          }
-        } catch (RuntimeException e) {
-          Log.e(TAG, e.getMessage(), e.getCause());
-          // Skip this process and continue with the next one
-          continue;
+      // Only the total rss of each process name is kept, the output of every pid is written to
+      // the output file as it is read.
+      Map<String, Long> totalRss = new LinkedHashMap<>();
+      long bytesWritten;
+      try (SnapshotWriter writer = new SnapshotWriter()) {
+        if (mReadProc) {
+          collectFromProc(writer, totalRss);
+        } else {
+          collectShowmaps(writer, totalRss);
+        }
+        bytesWritten = writer.getBytesWritten();
+      } finally {
+        // Report the rss read so far even if writing the output file failed.
+        for (Map.Entry<String, Long> entry : totalRss.entrySet()) {
+          mRssMap.put(
+              constructKey(RSS_METRIC_PREFIX, entry.getKey()),
+              Long.toString(entry.getValue() * 1024));
+        }
+        if (!totalRss.isEmpty()) {
+          // Store the unique process count.
+          mRssMap.put(
+              RSS_PROCESS_COUNT,
+              Integer.toString(mReadProc ? totalRss.size() : mProcessNames.length));
         }
-
-        // Store metrics
-        mRssMap.put(constructKey(RSS_METRIC_PREFIX, processName), Long.toString(totalrss * 1024));
-        // Store the unique process count.
-        mRssMap.put(RSS_PROCESS_COUNT, Integer.toString(mProcessNames.length));
       }
-      writer.close();
+
       mRssMap.put(OUTPUT_FILE_PATH_KEY, mTestOutputFile);
+      mRssMap.put(OUTPUT_INDEX_FILE_PATH_KEY, mTestOutputIndexFile);
+      mRssMap.put(SNAPSHOT_BYTES_KEY, Long.toString(bytesWritten));
+      mRssMap.put(
+          SNAPSHOT_DURATION_KEY, Long.toString(SystemClock.uptimeMillis() - snapshotStart));
     } catch (RuntimeException e) {
       Log.e(TAG, e.getMessage(), e.getCause());
     } catch (IOException e) {
@@ -166,6 +365,133 @@ public class RssSnapshotHelper implements ICollectorHelper<String> {
     return mRssMap;
   }
 
+  /**
+   * Collect the RSS of the requested processes, or of all of them, by reading /proc instead of
+   * running pidof and showmap for each process, and write a summary of each pid.
+   *
+   * @param totalRss receives the total rss of each process name, as there may be more than one
+   *     process with the same name
+   */
+  private void collectFromProc(SnapshotWriter writer, Map<String, Long> totalRss)
+      throws IOException {
+    Log.i(TAG, "Collecting RSS metrics from /proc.");
+    Set<String> processNames =
+        mCollectForAllProcesses ? null : new LinkedHashSet<>(Arrays.asList(mProcessNames));
+    Map<Integer, ProcMemoryInfo> processes;
+    if (processNames == null) {
+      try {
+        processes = mProcReader.readAll();
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to read the processes in /proc", e);
+      }
+    } else {
+      // Only read the requested processes.
+      List<Integer> pids = new ArrayList<>();
+      for (List<Integer> processPids : mProcessTable.getPids(processNames).values()) {
+        pids.addAll(processPids);
+      }
+      processes = mProcReader.read(pids);
+    }
+    for (ProcMemoryInfo info : processes.values()) {
+      String processName = info.getName();
+      // The pid may have been reused by another process since it was resolved.
+      if (processNames != null && !processNames.contains(processName)) {
+        continue;
+      }
+      writer.writeEntry(
+          processName, info.getPid(), info.toString().getBytes(StandardCharsets.UTF_8));
+      totalRss.merge(processName, info.getRssKb(), Long::sum);
+    }
+  }
+
+  /**
+   * Collect the showmap output of every pid of the requested processes, running showmap for
+   * several pids at once. The output of each pid is encoded into a file of its own, and appended
+   * to the output file in pid order once its batch is done, so that the output and its index do
+   * not depend on which showmap completed first. Processes with a failed pid are logged and
+   * left out.
+   *
+   * @param totalRss receives the total rss of each process name, as there may be more than one
+   *     process with the same name
+   */
+  private void collectShowmaps(SnapshotWriter writer, Map<String, Long> totalRss)
+      throws IOException {
+    Map<String, List<Integer>> pids = mProcessTable.getPids(Arrays.asList(mProcessNames));
+    List<ShowmapCapture> captures = new ArrayList<>();
+    Set<String> failedNames = new HashSet<>();
+    for (String processName : mProcessNames) {
+      List<Integer> processPids = pids.get(processName);
+      if (processPids == null || processPids.isEmpty()) {
+        Log.e(TAG, String.format("Unable to get pid of %s ", processName));
+        failedNames.add(processName);
+        continue;
+      }
+      for (Integer pid : processPids) {
+        captures.add(new ShowmapCapture(processName, pid));
+      }
+    }
+    captures.sort((first, second) -> Integer.compare(first.mPid, second.mPid));
+
+    // A batch at a time, so that at most a batch of captures is held on the disk.
+    for (int start = 0; start < captures.size(); start += SHOWMAP_BATCH_SIZE) {
+      List<ShowmapCapture> batch =
+          captures.subList(start, Math.min(start + SHOWMAP_BATCH_SIZE, captures.size()));
+      Map<ShowmapCapture, ShowmapCapture> captured =
+          mExecutor.executeAll(batch, this::captureShowmap);
+      try {
+        for (ShowmapCapture capture : batch) {
+          if (!captured.containsKey(capture)) {
+            failedNames.add(capture.mProcessName);
+            continue;
+          }
+          writer.appendEntry(capture);
+          try {
+            totalRss.merge(
+                capture.mProcessName,
+                extractTotalRss(capture.mProcessName, capture.mTail),
+                Long::sum);
+          } catch (RuntimeException e) {
+            Log.e(TAG, e.getMessage(), e.getCause());
+            failedNames.add(capture.mProcessName);
+          }
+        }
+      } finally {
+        for (ShowmapCapture capture : batch) {
+          if (capture.mFile != null) {
+            capture.mFile.delete();
+          }
+        }
+      }
+    }
+    // The total of a process missing one of its pids would be misleading.
+    totalRss.keySet().removeAll(failedNames);
+  }
+
+  /** Runs showmap for the pid of {@code capture}, encoding its output into a file. */
+  private ShowmapCapture captureShowmap(ShowmapCapture capture) throws IOException {
+    File file = File.createTempFile("rss_snapshot", ".part", new File(mTestOutputDir));
+    capture.mFile = file;
+    EntryEncoder encoder =
+        new EntryEncoder(
+            new BufferedOutputStream(
+                new FileOutputStream(file), MetricUtility.STREAM_BUFFER_SIZE),
+            capture.mProcessName,
+            capture.mPid);
+    try {
+      mExecutor.executeStreaming(
+          String.format(SHOWMAP_CMD, capture.mPid),
+          output -> MetricUtility.copyStream(output, encoder));
+    } catch (IOException e) {
+      throw new IOException(
+          String.format("Unable to execute showmap command for %s ", capture.mProcessName), e);
+    } finally {
+      encoder.close();
+    }
+    capture.mTail = encoder.getTail();
+    capture.mUncompressedLength = encoder.mUncompressedLength;
+    return capture;
+  }
+
   @Override
   public boolean stopCollecting() {
     return true;
@@ -200,51 +526,11 @@ public class RssSnapshotHelper implements ICollectorHelper<String> {
     }
   }
 
-  /**
-   * Get pid's of the process with {@code processName} name.
-   *
-   * @param processName name of the process to get pid
-   * @return pid's of the specified process
-   */
-  private List<Integer> getPids(String processName) throws RuntimeException {
-    try {
-      String pidofOutput = mUiDevice.executeShellCommand(String.format(PIDOF_CMD, processName));
-
-      // Sample output for the process with more than 1 pid.
-      // Sample command : "pidof init"
-      // Sample output : 1 559
-      String[] pids = pidofOutput.split("\\s+");
-      List<Integer> pidList = new ArrayList<>();
-      for (String pid: pids) {
-          pidList.add(Integer.parseInt(pid.trim()));
-      }
-      return pidList;
-    } catch (IOException e) {
-      throw new RuntimeException(String.format("Unable to get pid of %s ", processName), e);
-    }
-  }
-
-  /**
-   * Executes showmap command for the process with {@code processName} name and {@code pid} pid.
-   *
-   * @param processName name of the process to run showmap for
-   * @param pid pid of the process to run showmap for
-   * @return the output of showmap command
-   */
-  private String execShowMap(String processName, long pid) throws IOException {
-    try {
-      return mUiDevice.executeShellCommand(String.format(SHOWMAP_CMD, pid));
-    } catch (IOException e) {
-      throw new RuntimeException(
-          String.format("Unable to execute showmap command for %s ", processName), e);
-    }
-  }
-
   /**
    * Extract total RSS from showmap command output for the process with {@code processName} name.
    *
    * @param processName name of the process to extract RSS for
-   * @param showmapOutput showmap command output
+   * @param showmapOutput showmap command output, or at least its last lines
    * @return total RSS of the process
    */
   private long extractTotalRss(String processName, String showmapOutput) throws RuntimeException {
@@ -261,62 +547,36 @@ public class RssSnapshotHelper implements ICollectorHelper<String> {
   }
 
   /**
-   * Store test results for one process into file.
-   *
-   * @param fileName name of the file being written
-   * @param processName name of the process
-   * @param pid pid of the process
-   * @param showmapOutput showmap command output
-   * @param writer file writer to write the data
+   * Enables RSS collection for all processes.
    */
-  private void storeToFile(String fileName, String processName, long pid, String showmapOutput,
-      FileWriter writer) throws RuntimeException {
-    try {
-      writer.write(String.format(">>> %s (%d) <<<\n", processName, pid));
-      writer.write(showmapOutput);
-      writer.write('\n');
-    } catch (IOException e) {
-      throw new RuntimeException(String.format("Unable to write file %s ", fileName), e);
-    }
+  public void setAllProcesses() {
+      mCollectForAllProcesses = true;
   }
 
   /**
-   * Enables RSS collection for all processes.
+   * Reads the RSS of processes straight from /proc/<pid>/smaps_rollup, finding them with a
+   * single walk of /proc, instead of running pidof and showmap for each process. The output file
+   * then holds a summary of each process rather than its full showmap.
    */
-  public void setAllProcesses() {
-      mCollectForAllProcesses = true;
+  public void setReadProc(boolean readProc) {
+      mReadProc = readProc;
+  }
+
+  /**
+   * Compresses the output file with gzip, one gzip member per pid, so it can still be read whole
+   * with zcat. Must be called before {@link #startCollecting()}.
+   */
+  public void setCompressOutput(boolean compressOutput) {
+      mCompressOutput = compressOutput;
   }
 
   /**
    * Get all process names running in the system.
    */
   private String[] getAllProcessNames() {
-      Set<String> allProcessNames = new LinkedHashSet<>();
-      try {
-          String psOutput = mUiDevice.executeShellCommand(ALL_PROCESSES_CMD);
-          // Split the lines
-          String allProcesses[] = psOutput.split("\\n");
-          for (String invidualProcessDetails : allProcesses) {
-              Log.i(TAG, String.format("Process detail: %s", invidualProcessDetails));
-              // Sample process detail line
-              // system         603     1   41532   5396 SyS_epoll+          0 S servicemanager
-              String processSplit[] = invidualProcessDetails.split("\\s+");
-              // Parse process name
-              String processName = processSplit[processSplit.length - 1].trim();
-              // Include the process name which are not enclosed in [].
-              if (!processName.startsWith("[") && !processName.endsWith("]")) {
-                  // Skip the first (i.e header) line from "ps -A" output.
-                  if (processName.equalsIgnoreCase("NAME")) {
-                      continue;
-                  }
-                  Log.i(TAG, String.format("Including the process %s", processName));
-                  allProcessNames.add(processName);
-              }
-          }
-      } catch (IOException ioe) {
-          throw new RuntimeException(
-                  String.format("Unable execute all processes command %s ", ALL_PROCESSES_CMD),
-                  ioe);
+      Set<String> allProcessNames = mProcessTable.getProcessNames();
+      for (String processName : allProcessNames) {
+          Log.i(TAG, String.format("Including the process %s", processName));
       }
       return allProcessNames.toArray(new String[0]);
   }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.util.List;
+
+/**
+ * StabilityChecker decides whether a series of memory samples has stabilized, by checking that
+ * the confidence interval of the mean of the most recent samples is narrow relative to the mean.
+ *
+ * <p>With the default 95% confidence and a maximum relative error of 1%, the last samples are
+ * considered stable once the true mean is 95% likely to be within 1% of their mean. Noisy
+ * processes therefore take more samples, while quiet ones stop early.
+ */
+public class StabilityChecker {
+    public static final int DEFAULT_WINDOW_SIZE = 5;
+    public static final double DEFAULT_CONFIDENCE = 0.95;
+
+    // Number of most recent samples considered.
+    private final int mWindowSize;
+    private final double mConfidence;
+    // Largest half width of the confidence interval, as a fraction of the mean.
+    private final double mMaxRelativeError;
+    // Quantile of the t distribution for the window size and confidence.
+    private final double mTQuantile;
+
+    /**
+     * @param windowSize number of most recent samples to check, at least 2
+     * @param confidence two-sided confidence level of the interval, e.g. 0.95
+     * @param maxRelativeError largest half width of the interval relative to the mean, e.g. 0.01
+     */
+    public StabilityChecker(int windowSize, double confidence, double maxRelativeError) {
+        if (windowSize < 2) {
+            throw new IllegalArgumentException("Window size must be at least 2: " + windowSize);
+        }
+        if (confidence <= 0 || confidence >= 1) {
+            throw new IllegalArgumentException("Confidence must be within (0, 1): " + confidence);
+        }
+        mWindowSize = windowSize;
+        mConfidence = confidence;
+        mMaxRelativeError = maxRelativeError;
+        mTQuantile = tQuantile((1 + confidence) / 2, windowSize - 1);
+    }
+
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+    public double getConfidence() {
+        return mConfidence;
+    }
+
+    /** Returns whether the last samples are stable, or false if there are not enough of them. */
+    public boolean isStable(List<Long> samples) {
+        if (samples.size() < mWindowSize) {
+            return false;
+        }
+        // Welford's algorithm keeps the variance accurate for large, close values.
+        double mean = 0;
+        double m2 = 0;
+        int count = 0;
+        for (int i = samples.size() - mWindowSize; i < samples.size(); i++) {
+            double sample = samples.get(i);
+            count++;
+            double delta = sample - mean;
+            mean += delta / count;
+            m2 += delta * (sample - mean);
+        }
+        if (m2 == 0) {
+            // Identical samples, including a process that is not running.
+            return true;
+        }
+        if (mean <= 0) {
+            return false;
+        }
+        double halfWidth = mTQuantile * Math.sqrt(m2 / (count - 1) / count);
+        return halfWidth / mean <= mMaxRelativeError;
+    }
+
+    /**
+     * Returns the quantile of Student's t distribution for {@code degreesOfFreedom}, using the
+     * Cornish-Fisher expansion around the normal quantile.
+     */
+    static double tQuantile(double p, int degreesOfFreedom) {
+        double z = normalQuantile(p);
+        double n = degreesOfFreedom;
+        double z3 = z * z * z;
+        double z5 = z3 * z * z;
+        double z7 = z5 * z * z;
+        return z
+                + (z3 + z) / (4 * n)
+                + (5 * z5 + 16 * z3 + 3 * z) / (96 * n * n)
+                + (3 * z7 + 19 * z5 + 17 * z3 - 15 * z) / (384 * n * n * n);
+    }
+
+    /**
+     * Returns the quantile of the standard normal distribution, using Acklam's rational
+     * approximation with a relative error below 1.2e-9.
+     */
+    static double normalQuantile(double p) {
+        final double[] a = {
+            -3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+            1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00
+        };
+        final double[] b = {
+            -5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+            6.680131188771972e+01, -1.328068155288572e+01
+        };
+        final double[] c = {
+            -7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+            -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00
+        };
+        final double[] d = {
+            7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+            3.754408661907416e+00
+        };
+        final double low = 0.02425;
+        if (p < low) {
+            double q = Math.sqrt(-2 * Math.log(p));
+            return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+                    / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        if (p > 1 - low) {
+            return -normalQuantile(1 - p);
+        }
+        double q = p - 0.5;
+        double r = q * q;
+        return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q
+                / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+    }
+}
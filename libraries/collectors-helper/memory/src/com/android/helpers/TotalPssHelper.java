@@ -22,18 +22,26 @@ import android.app.ActivityManager;
 import android.app.ActivityManager.RunningAppProcessInfo;
 import android.content.Context;
 import android.os.Debug.MemoryInfo;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Helper to collect totalpss memory usage per process tracked by the ActivityManager
  * memoryinfo.
+ *
+ * <p>All processes are sampled on the same polling tick, and each of them stops being sampled as
+ * soon as its memory usage is stable, so the collection takes about as long as the slowest
+ * process rather than the sum of all of them.
  */
 public class TotalPssHelper implements ICollectorHelper<Long> {
 
@@ -44,6 +52,8 @@ public class TotalPssHelper implements ICollectorHelper<Long> {
     private static final int DEFAULT_MAX_ITERATIONS = 20;
     private static final int DEFAULT_SLEEP_TIME = 1000;
     private static final String PSS_METRIC_PREFIX = "am_totalpss_bytes";
+    private static final String SAMPLES_METRIC_PREFIX = "am_totalpss_samples";
+    private static final String STABILIZE_TIME_METRIC_PREFIX = "am_totalpss_stabilize_time_ms";
 
     private String[] mProcessNames;
     // Minimum number of iterations needed before deciding on the memory usage.
@@ -54,6 +64,8 @@ public class TotalPssHelper implements ICollectorHelper<Long> {
     private int mSleepTime;
     // Threshold in kb to use whether the data is stabilized.
     private int mThreshold;
+    // Statistical check of the stabilization, or null to use the threshold.
+    private StabilityChecker mStabilityChecker;
     // Map to maintain the pss memory size.
     private Map<String, Long> mPssFinalMap = new HashMap<>();
 
@@ -65,6 +77,7 @@ public class TotalPssHelper implements ICollectorHelper<Long> {
         mMaxIterations = DEFAULT_MAX_ITERATIONS;
         mSleepTime = DEFAULT_SLEEP_TIME;
         mThreshold = DEFAULT_THRESHOLD;
+        mStabilityChecker = null;
     }
 
     @Override
@@ -79,11 +92,7 @@ public class TotalPssHelper implements ICollectorHelper<Long> {
             return mPssFinalMap;
         }
         if (mProcessNames != null) {
-            for (String processName : mProcessNames) {
-                if (!processName.isEmpty()) {
-                    measureMemory(processName);
-                }
-            }
+            measureMemory(mProcessNames);
         }
         return mPssFinalMap;
     }
@@ -94,33 +103,63 @@ public class TotalPssHelper implements ICollectorHelper<Long> {
     }
 
     /**
-     * Measure memory info of the given process name tracked by the activity manager
-     * MemoryInfo(i.e getTotalPss).
+     * Measure memory info of the given process names tracked by the activity manager
+     * MemoryInfo(i.e getTotalPss), sampling all of them on every iteration until each one is
+     * stabilized.
      *
-     * @param processName to calculate the memory info.
+     * @param processNames to calculate the memory info.
      */
-    private void measureMemory(String processName) {
-        Log.i(TAG, "Tracking memory usage of the process - " + processName);
-        List<Long> pssData = new ArrayList<Long>();
-        long pss = 0;
+    private void measureMemory(String... processNames) {
+        Map<String, List<Long>> pending = new LinkedHashMap<>();
+        for (String processName : processNames) {
+            if (!processName.isEmpty()) {
+                Log.i(TAG, "Tracking memory usage of the process - " + processName);
+                pending.put(processName, new ArrayList<Long>());
+            }
+        }
+        long startTime = SystemClock.uptimeMillis();
         int iteration = 0;
-        while (iteration < mMaxIterations) {
+        while (iteration < mMaxIterations && !pending.isEmpty()) {
             sleep(mSleepTime);
-            pss = getPss(processName);
-            pssData.add(pss);
-            if (iteration >= mMinIterations && stabilized(pssData)) {
-                Log.i(TAG, "Memory usage stabilized at iteration count = " + iteration);
-                // Final metric reported in bytes.
-                mPssFinalMap.put(constructKey(PSS_METRIC_PREFIX, processName), pss * 1024);
-                return;
+            // Query all the processes still being sampled at once.
+            Map<String, Long> allPss = getPss(pending.keySet());
+            Iterator<Map.Entry<String, List<Long>>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, List<Long>> entry = it.next();
+                String processName = entry.getKey();
+                List<Long> pssData = entry.getValue();
+                long pss = allPss.get(processName);
+                pssData.add(pss);
+                if (iteration >= mMinIterations && stabilized(pssData)) {
+                    Log.i(TAG, String.format(
+                            "Memory usage of %s stabilized at iteration count = %d",
+                            processName, iteration));
+                    putMetrics(processName, pss, pssData.size(),
+                            SystemClock.uptimeMillis() - startTime);
+                    it.remove();
+                }
             }
             iteration++;
         }
 
-        Log.i(TAG, processName + " memory usage did not stabilize."
-                + " Returning the average of the pss data collected.");
+        long duration = SystemClock.uptimeMillis() - startTime;
+        for (Map.Entry<String, List<Long>> entry : pending.entrySet()) {
+            Log.i(TAG, entry.getKey() + " memory usage did not stabilize."
+                    + " Returning the average of the pss data collected.");
+            putMetrics(entry.getKey(), average(entry.getValue()), entry.getValue().size(),
+                    duration);
+        }
+    }
+
+    /**
+     * Reports the final memory usage of a process, with the number of samples and the time in ms
+     * taken to reach it.
+     */
+    private void putMetrics(String processName, long pss, int samples, long duration) {
         // Final metric reported in bytes.
-        mPssFinalMap.put(constructKey(PSS_METRIC_PREFIX, processName), average(pssData) * 1024);
+        mPssFinalMap.put(constructKey(PSS_METRIC_PREFIX, processName), pss * 1024);
+        mPssFinalMap.put(constructKey(SAMPLES_METRIC_PREFIX, processName), (long) samples);
+        mPssFinalMap.put(constructKey(STABILIZE_TIME_METRIC_PREFIX, processName), duration);
     }
 
     /**
@@ -137,39 +176,61 @@ public class TotalPssHelper implements ICollectorHelper<Long> {
     }
 
     /**
-     * Get the total pss memory of the given process name.
+     * Get the total pss memory of the given process names, resolving their pids and querying the
+     * activity manager for all of them in a single call.
      *
-     * @param processName of the process to measure the memory.
-     * @return the memory in KB.
+     * @param processNames of the processes to measure the memory.
+     * @return the memory in KB of each process, or 0 if it is not running.
      */
-    private long getPss(String processName) {
+    private Map<String, Long> getPss(Collection<String> processNames) {
+        Map<String, Long> pssMap = new HashMap<>();
         ActivityManager am = (ActivityManager) InstrumentationRegistry.getInstrumentation()
                 .getContext().getSystemService(Context.ACTIVITY_SERVICE);
         List<RunningAppProcessInfo> apps = am.getRunningAppProcesses();
-        for (RunningAppProcessInfo proc : apps) {
-            if (!proc.processName.equals(processName)) {
-                continue;
+        // Only the first process with each name is measured.
+        Map<String, Integer> pids = new LinkedHashMap<>();
+        if (apps != null) {
+            for (RunningAppProcessInfo proc : apps) {
+                if (processNames.contains(proc.processName)) {
+                    pids.putIfAbsent(proc.processName, proc.pid);
+                }
             }
-            MemoryInfo meminfo = am.getProcessMemoryInfo(new int[] {
-                proc.pid
-            })[0];
-            Log.i(TAG,
-                    String.format("Memory usage of process - %s is %d", processName,
-                            meminfo.getTotalPss()));
-            return meminfo.getTotalPss();
         }
-        Log.w(TAG, "Not able to find the process id for the process = " + processName);
-        return 0;
+        if (!pids.isEmpty()) {
+            int[] pidArray = new int[pids.size()];
+            int i = 0;
+            for (int pid : pids.values()) {
+                pidArray[i++] = pid;
+            }
+            MemoryInfo[] meminfos = am.getProcessMemoryInfo(pidArray);
+            i = 0;
+            for (String processName : pids.keySet()) {
+                long pss = meminfos[i++].getTotalPss();
+                Log.i(TAG, String.format("Memory usage of process - %s is %d", processName, pss));
+                pssMap.put(processName, pss);
+            }
+        }
+        for (String processName : processNames) {
+            if (!pssMap.containsKey(processName)) {
+                Log.w(TAG, "Not able to find the process id for the process = " + processName);
+                pssMap.put(processName, 0L);
+            }
+        }
+        return pssMap;
     }
 
     /**
-     * Checks whether the memory usage is stabilized by calculating the sum of the difference
-     * between the last 3 values and comparing that to the threshold.
+     * Checks whether the memory usage is stabilized, either with the statistical check if one is
+     * set or by calculating the sum of the difference between the last 3 values and comparing
+     * that to the threshold.
      *
      * @param pssData list of pssData of the given process name.
      * @return true if the memory is stabilized.
      */
     private boolean stabilized(List<Long> pssData) {
+        if (mStabilityChecker != null) {
+            return mStabilityChecker.isStable(pssData);
+        }
         long diff1 = Math.abs(pssData.get(pssData.size() - 1) - pssData.get(pssData.size() - 2));
         long diff2 = Math.abs(pssData.get(pssData.size() - 2) - pssData.get(pssData.size() - 3));
         Log.i(TAG, "diff1=" + diff1 + " diff2=" + diff2);
@@ -217,4 +278,17 @@ public class TotalPssHelper implements ICollectorHelper<Long> {
     public void setThreshold(int threshold) {
         mThreshold = threshold;
     }
+
+    /**
+     * Replaces the threshold with a statistical check of the stabilization: the memory usage is
+     * stabilized once the confidence interval of the mean of the last samples is within {@code
+     * maxRelativeError} of that mean.
+     *
+     * @param windowSize number of most recent samples to check
+     * @param confidence two-sided confidence level of the interval, e.g. 0.95
+     * @param maxRelativeError largest half width of the interval relative to the mean, e.g. 0.01
+     */
+    public void setStabilityCheck(int windowSize, double confidence, double maxRelativeError) {
+        mStabilityChecker = new StabilityChecker(windowSize, confidence, maxRelativeError);
+    }
 }
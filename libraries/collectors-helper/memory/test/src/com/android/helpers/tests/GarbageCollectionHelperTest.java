@@ -15,14 +15,22 @@
  */
 package com.android.helpers.tests;
 
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
 import android.support.test.uiautomator.UiDevice;
 
 import com.android.helpers.GarbageCollectionHelper;
+import com.android.helpers.ProcessTable;
+import com.android.helpers.ShellCommandExecutor;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -32,6 +40,12 @@ import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * Unit tests for {@link GarbageCollectionHelper}.
  */
@@ -39,21 +53,68 @@ import org.mockito.MockitoAnnotations;
 public final class GarbageCollectionHelperTest {
     // Most tests don't actually need the memory to stabilize so no point in waiting.
     private static final int TEST_POST_GC_WAIT_TIME_MS = 0;
+    private static final String LIST_STAT_CMD = "cat /proc/[0-9]*/stat";
+    private static final Pattern SECTION_PID = Pattern.compile("echo '=== pid (\\d+)'");
+    private static final String STAT_LINE =
+            "%d (name) S %d 0 0 0 -1 0 0 0 0 0 0 0 0 0 20 0 1 0 1000 0 0\n";
+    private static final int ZYGOTE_PID = 100;
+    private static final int NATIVE_PID = 4;
+    private static final String GC_LOG_CMD = "logcat -d -b main -v epoch -T ";
+    // Log lines of the signal and of the completion of the GC of each pid.
+    private static final String GC_SIGNAL_LOG_LINE =
+            "1600000000.%03d  %d  %d I name%d: SIGUSR1 forcing GC (no HPROF) and profile save\n";
+    private static final String GC_LOG_LINE =
+            "1600000000.%03d  %d  %d I name%d: Explicit concurrent copying GC freed 100(10KB)\n";
+
+    // Number of times the log was read, where every read shows one more completed GC.
+    private final AtomicInteger mGcLogReads = new AtomicInteger();
+    // Whether the signals are logged, or only the GCs.
+    private boolean mSignalLogged = true;
+    // The fake /proc, holding the cmdline and parent pid of each pid.
+    private final Map<Integer, String> mCmdlines = new TreeMap<>();
+    private final Map<Integer, Integer> mParentPids = new TreeMap<>();
 
     private @Mock UiDevice mUiDevice;
 
     private GarbageCollectionHelper mHelper;
-    private int mPidCounter = 0;
 
     @Before
     public void setUp() throws Throwable {
         MockitoAnnotations.initMocks(this);
-        // Return a fake pid for our fake processes and an empty string otherwise.
+        // Fake a /proc with pids 1 to 3, where the process with pid N is named package.nameN and
+        // was forked from the zygote, and a native process.
+        addProcess(ZYGOTE_PID, "zygote64\0", 1);
+        for (int pid = 1; pid <= 3; pid++) {
+            addProcess(pid, "package.name" + pid + "\0", ZYGOTE_PID);
+        }
+        addProcess(NATIVE_PID, "/system/bin/surfaceflinger\0", 1);
         doAnswer((inv) -> {
             String cmd = (String) inv.getArguments()[0];
-            if (cmd.startsWith("pidof package")) {
-                mPidCounter++;
-                return String.valueOf(mPidCounter);
+            if (cmd.equals(LIST_STAT_CMD)) {
+                StringBuilder output = new StringBuilder();
+                for (int pid : mCmdlines.keySet()) {
+                    output.append(String.format(STAT_LINE, pid, mParentPids.get(pid)));
+                }
+                return output.toString();
+            } else if (cmd.startsWith("echo ")) {
+                StringBuilder output = new StringBuilder();
+                Matcher matcher = SECTION_PID.matcher(cmd);
+                while (matcher.find()) {
+                    int pid = Integer.parseInt(matcher.group(1));
+                    output.append(String.format("=== pid %d\n%s\n", pid, mCmdlines.get(pid)))
+                            .append(String.format(STAT_LINE, pid, mParentPids.get(pid)));
+                }
+                return output.toString();
+            } else if (cmd.startsWith(GC_LOG_CMD)) {
+                int reads = mGcLogReads.incrementAndGet();
+                StringBuilder output = new StringBuilder("--------- beginning of main\n");
+                for (int pid = 1; pid <= Math.min(reads, 3); pid++) {
+                    if (mSignalLogged) {
+                        output.append(String.format(GC_SIGNAL_LOG_LINE, pid, pid, pid, pid));
+                    }
+                    output.append(String.format(GC_LOG_LINE, pid, pid, pid, pid));
+                }
+                return output.toString();
             } else {
                 return "";
             }
@@ -80,7 +141,7 @@ public final class GarbageCollectionHelperTest {
         mHelper.garbageCollect(TEST_POST_GC_WAIT_TIME_MS);
 
         InOrder inOrder = inOrder(mUiDevice);
-        inOrder.verify(mUiDevice).executeShellCommand("pidof package.name1");
+        inOrder.verify(mUiDevice).executeShellCommand(LIST_STAT_CMD);
         inOrder.verify(mUiDevice).executeShellCommand("kill -10 1");
     }
 
@@ -92,13 +153,14 @@ public final class GarbageCollectionHelperTest {
         mHelper.setUp("package.name1", "package.name2", "package.name3");
         mHelper.garbageCollect(TEST_POST_GC_WAIT_TIME_MS);
 
-        InOrder inOrder = inOrder(mUiDevice);
-        inOrder.verify(mUiDevice).executeShellCommand("pidof package.name1");
-        inOrder.verify(mUiDevice).executeShellCommand("kill -10 1");
-        inOrder.verify(mUiDevice).executeShellCommand("pidof package.name2");
-        inOrder.verify(mUiDevice).executeShellCommand("kill -10 2");
-        inOrder.verify(mUiDevice).executeShellCommand("pidof package.name3");
-        inOrder.verify(mUiDevice).executeShellCommand("kill -10 3");
+        // All pids are resolved with a single scan of /proc, then apps are collected
+        // concurrently.
+        verify(mUiDevice).executeShellCommand(LIST_STAT_CMD);
+        for (int i = 1; i <= 3; i++) {
+            InOrder inOrder = inOrder(mUiDevice);
+            inOrder.verify(mUiDevice).executeShellCommand(LIST_STAT_CMD);
+            inOrder.verify(mUiDevice).executeShellCommand("kill -10 " + i);
+        }
     }
 
     /**
@@ -110,9 +172,102 @@ public final class GarbageCollectionHelperTest {
         mHelper.garbageCollect(TEST_POST_GC_WAIT_TIME_MS);
 
         InOrder inOrder = inOrder(mUiDevice);
-        inOrder.verify(mUiDevice).executeShellCommand("pidof does.not.exist");
-        inOrder.verify(mUiDevice).executeShellCommand("pidof package.name1");
+        inOrder.verify(mUiDevice).executeShellCommand(LIST_STAT_CMD);
         inOrder.verify(mUiDevice).executeShellCommand("kill -10 1");
+        // Listing the processes, reading their cmdlines and a single kill.
+        verify(mUiDevice, times(3)).executeShellCommand(any());
+    }
+
+    /**
+     * Tests that every process is signalled when waiting a fixed time.
+     */
+    @Test
+    public void testSignalsNonArtProcess() throws Throwable {
+        mHelper.setUp("surfaceflinger", "package.name1");
+        mHelper.garbageCollect(TEST_POST_GC_WAIT_TIME_MS);
+
+        verify(mUiDevice).executeShellCommand("kill -10 1");
+        verify(mUiDevice).executeShellCommand("kill -10 " + NATIVE_PID);
+    }
+
+    /**
+     * Tests that processes not running ART are not signalled when waiting for the GCs to
+     * complete, as they would never log one.
+     */
+    @Test
+    public void testWaitForCompletion_skipsNonArtProcess() throws Throwable {
+        mHelper.setUp("surfaceflinger", "package.name1");
+        mHelper.setWaitForCompletion(true);
+        mHelper.garbageCollect(10000);
+
+        verify(mUiDevice).executeShellCommand("kill -10 1");
+        verify(mUiDevice, never()).executeShellCommand("kill -10 " + NATIVE_PID);
+    }
+
+    /**
+     * Tests that the helper waits until the GC of every app completed.
+     */
+    @Test
+    public void testWaitForCompletion() throws Throwable {
+        mHelper.setUp("package.name1", "package.name2", "package.name3");
+        mHelper.setWaitForCompletion(true);
+        mHelper.garbageCollect(10000);
+
+        // The third read of the log shows the GC of the third app.
+        verify(mUiDevice, times(3)).executeShellCommand(startsWith(GC_LOG_CMD));
+        for (int i = 1; i <= 3; i++) {
+            verify(mUiDevice).executeShellCommand("kill -10 " + i);
+        }
+    }
+
+    /**
+     * Tests that the helper stops waiting for the GCs to complete after the timeout.
+     */
+    @Test
+    public void testWaitForCompletion_timeout() throws Throwable {
+        mGcLogReads.set(-1000);
+        mHelper.setUp("package.name1");
+        mHelper.setWaitForCompletion(true);
+        long start = System.currentTimeMillis();
+        mHelper.garbageCollect(300);
+
+        long duration = System.currentTimeMillis() - start;
+        assertTrue(duration >= 300 && duration < 5000);
+    }
+
+    /**
+     * Tests that explicit GCs logged without the signal, e.g. requested by the app itself, are not
+     * taken for the completion of the GC.
+     */
+    @Test
+    public void testWaitForCompletion_ignoresUnsignalledGc() throws Throwable {
+        mSignalLogged = false;
+        mGcLogReads.set(1000);
+        mHelper.setUp("package.name1");
+        mHelper.setWaitForCompletion(true);
+        mHelper.garbageCollect(300);
+
+        verify(mUiDevice, atLeast(2)).executeShellCommand(startsWith(GC_LOG_CMD));
+    }
+
+    /**
+     * Tests that the helper only waits the fixed time for processes whose GC is not logged.
+     */
+    @Test
+    public void testWaitForCompletion_notLogged() throws Throwable {
+        mSignalLogged = false;
+        mHelper.setUp("package.name1");
+        mHelper.setWaitForCompletion(true);
+        long start = System.currentTimeMillis();
+        mHelper.garbageCollect(10000);
+
+        long duration = System.currentTimeMillis() - start;
+        assertTrue(duration >= 3000 && duration < 10000);
+    }
+
+    private void addProcess(int pid, String cmdline, int parentPid) {
+        mCmdlines.put(pid, cmdline);
+        mParentPids.put(pid, parentPid);
     }
 
     private final class TestableGarbageCollectionHelper extends GarbageCollectionHelper {
@@ -120,5 +275,10 @@ public final class GarbageCollectionHelperTest {
         protected UiDevice initUiDevice() {
             return mUiDevice;
         }
+
+        @Override
+        protected ProcessTable initProcessTable() {
+            return new ProcessTable(new ShellCommandExecutor(mUiDevice::executeShellCommand));
+        }
     }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.android.helpers.MeminfoParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Android Unit tests for {@link MeminfoParser}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.tests.MeminfoParserTest
+ */
+@RunWith(JUnit4.class)
+public class MeminfoParserTest {
+    // CHECKSTYLE:OFF Generated code
+    private static final String PROCESS_MEMINFO =
+            "Applications Memory Usage (in Kilobytes):\n"
+            + "Uptime: 2649336 Realtime: 3041976\n"
+            + "\n"
+            + "** MEMINFO in pid 2612 [com.android.systemui] **\n"
+            + "                   Pss  Private  Private  SwapPss     Heap     Heap     Heap\n"
+            + "                 Total    Dirty    Clean    Dirty     Size    Alloc     Free\n"
+            + "                ------   ------   ------   ------   ------   ------   ------\n"
+            + "  Native Heap    16840    16804        0     6764    34024    25037     5553\n"
+            + "  Dalvik Heap     9110     9032        0      136    36444     9111    27333\n"
+            + "    .so mmap     8196      728     1344       37\n"
+            + "      Unknown      185      184        0      344\n"
+            + "        TOTAL   151380   116728    21228    11656    70468    34148    32886\n"
+            + "\n"
+            + " App Summary\n"
+            + "                       Pss(KB)\n"
+            + "                        ------\n"
+            + "           Java Heap:    12028\n"
+            + "         Native Heap:    16804\n"
+            + "                Code:    30016\n"
+            + "               Stack:       44\n"
+            + "            Graphics:     8968\n"
+            + "       Private Other:    70116\n"
+            + "              System:    13424\n"
+            + "\n"
+            + "               TOTAL:   151380       TOTAL SWAP PSS:    11656\n";
+    // CHECKSTYLE:ON Generated code
+
+    private static final String PROC_MEMINFO =
+            "MemTotal:        3809036 kB\n"
+            + "MemFree:          282012 kB\n"
+            + "MemAvailable:    1814528 kB\n";
+
+    /** Test that the rows of the memory table are parsed with all their columns. */
+    @Test
+    public void testParse_rows() {
+        MeminfoParser.Record record = MeminfoParser.parse(PROCESS_MEMINFO);
+
+        assertArrayEquals(
+                new long[] {16840, 16804, 0, 6764, 34024, 25037, 5553},
+                record.getRow("Native Heap"));
+        assertArrayEquals(new long[] {8196, 728, 1344, 37}, record.getRow(".so mmap"));
+        assertEquals(9032, record.getColumn("Dalvik Heap", 1));
+        assertEquals(151380, record.getColumn("TOTAL", 0));
+        assertEquals(-1, record.getColumn("Unknown", 4));
+        // Header lines have no numbers.
+        assertNull(record.getRow("Pss"));
+    }
+
+    /** Test that fields are parsed, including several on the same line. */
+    @Test
+    public void testParse_fields() {
+        MeminfoParser.Record record = MeminfoParser.parse(PROCESS_MEMINFO);
+
+        assertEquals(2649336, record.getField("Uptime"));
+        assertEquals(3041976, record.getField("Realtime"));
+        assertEquals(16804, record.getField("Native Heap"));
+        assertEquals(70116, record.getField("Private Other"));
+        assertEquals(151380, record.getField("TOTAL"));
+        assertEquals(11656, record.getField("TOTAL SWAP PSS"));
+        assertEquals(-1, record.getField("Unknown"));
+    }
+
+    /** Test that /proc/meminfo is parsed as fields. */
+    @Test
+    public void testParse_procMeminfo() {
+        MeminfoParser.Record record = MeminfoParser.parse(PROC_MEMINFO);
+
+        assertEquals(3809036, record.getField("MemTotal"));
+        assertEquals(282012, record.getField("MemFree"));
+        assertEquals(1814528, record.getField("MemAvailable"));
+    }
+
+    /** Test that the first of several processes is kept. */
+    @Test
+    public void testParse_firstProcess() {
+        MeminfoParser.Record record =
+                MeminfoParser.parse(PROCESS_MEMINFO + PROCESS_MEMINFO.replace("151380", "1"));
+
+        assertEquals(151380, record.getColumn("TOTAL", 0));
+        assertEquals(151380, record.getField("TOTAL"));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.helpers.ProcMemoryReader;
+import com.android.helpers.ProcMemoryReader.ProcMemoryInfo;
+import com.android.helpers.ProcSectionReader;
+import com.android.helpers.ShellCommandExecutor;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Android Unit tests for {@link ProcMemoryReader}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.tests.ProcMemoryReaderTest
+ */
+@RunWith(JUnit4.class)
+public class ProcMemoryReaderTest {
+    private static final String LIST_PROC_CMD = "ls -1 /proc";
+
+    private static final String LIST_PROC_OUTPUT = "1\n2\n603\nmeminfo\nself\n";
+
+    // The files of each process follow a marker line, then its cmdline on its own line.
+    private static final String INIT_OUTPUT =
+            "=== pid 1\n"
+                    + "/system/bin/init\0second_stage\0\n"
+                    + "Name:\tinit\n"
+                    + "Pid:\t1\n"
+                    + "VmSize:\t   12000 kB\n"
+                    + "VmRSS:\t    3000 kB\n"
+                    + "00400000-7fffffff ---p 00000000 00:00 0     [rollup]\n"
+                    + "Rss:                2948 kB\n"
+                    + "Pss:                1024 kB\n"
+                    + "Pss_Anon:            512 kB\n"
+                    + "Private_Clean:       300 kB\n"
+                    + "Private_Dirty:       700 kB\n"
+                    + "Swap:                 12 kB\n"
+                    + "SwapPss:               4 kB\n";
+    private static final String KTHREADD_OUTPUT =
+            "=== pid 2\n" + "\n" + "Name:\tkthreadd\n" + "Pid:\t2\n" + "Threads:\t1\n";
+    private static final String SERVICEMANAGER_STATUS =
+            "=== pid 603\n"
+                    + "servicemanager\0\n"
+                    + "Name:\tservicemanager\n"
+                    + "Pid:\t603\n"
+                    + "VmSize:\t    8000 kB\n"
+                    + "VmRSS:\t    2000 kB\n"
+                    + "VmSwap:\t      30 kB\n";
+
+    /** Test that a single walk of /proc reads every user space process. */
+    @Test
+    public void testReadAll() throws Exception {
+        Map<String, String> outputs = new HashMap<>();
+        outputs.put(LIST_PROC_CMD, LIST_PROC_OUTPUT);
+        outputs.put(
+                readCommand("smaps_rollup", 1, 2, 603),
+                INIT_OUTPUT
+                        + KTHREADD_OUTPUT
+                        + SERVICEMANAGER_STATUS
+                        + "Rss:                1900 kB\n"
+                        + "Pss:                 800 kB\n");
+        List<String> commands = new ArrayList<>();
+        ProcMemoryReader reader = new ProcMemoryReader(fakeExecutor(outputs, commands));
+
+        Map<Integer, ProcMemoryInfo> processes = reader.readAll();
+
+        assertEquals(Arrays.asList(1, 603), new ArrayList<>(processes.keySet()));
+        ProcMemoryInfo init = processes.get(1);
+        assertEquals("init", init.getName());
+        assertEquals(12000, init.getVssKb());
+        assertEquals(2948, init.getRssKb());
+        assertEquals(1024, init.getPssKb());
+        assertEquals(12, init.getSwapKb());
+        assertEquals(4, init.getSwapPssKb());
+        assertEquals(300, init.getPrivateCleanKb());
+        assertEquals(700, init.getPrivateDirtyKb());
+        assertEquals("servicemanager", processes.get(603).getName());
+        assertEquals(1900, processes.get(603).getRssKb());
+        // Every process is read by one command.
+        assertEquals(2, commands.size());
+    }
+
+    /** Test that smaps is summed for the processes without smaps_rollup. */
+    @Test
+    public void testRead_smapsFallback() throws Exception {
+        Map<String, String> outputs = new HashMap<>();
+        outputs.put(readCommand("smaps_rollup", 1, 603), INIT_OUTPUT + SERVICEMANAGER_STATUS);
+        outputs.put(
+                readCommand("smaps", 603),
+                SERVICEMANAGER_STATUS
+                        + "00400000-00500000 r-xp 00000000 00:00 0     /system/bin/servicemanager\n"
+                        + "Rss:                 100 kB\n"
+                        + "Pss:                  50 kB\n"
+                        + "00600000-00700000 rw-p 00000000 00:00 0     [heap]\n"
+                        + "Rss:                 200 kB\n"
+                        + "Pss:                 150 kB\n");
+        ProcMemoryReader reader = new ProcMemoryReader(fakeExecutor(outputs, new ArrayList<>()));
+
+        Map<Integer, ProcMemoryInfo> processes = reader.read(Arrays.asList(1, 603));
+
+        assertEquals(2948, processes.get(1).getRssKb());
+        ProcMemoryInfo servicemanager = processes.get(603);
+        assertTrue(servicemanager.hasSmaps());
+        assertEquals(300, servicemanager.getRssKb());
+        assertEquals(200, servicemanager.getPssKb());
+    }
+
+    /** Test that the status fields are used when smaps cannot be read at all. */
+    @Test
+    public void testRead_statusOnly() throws Exception {
+        Map<String, String> outputs = new HashMap<>();
+        outputs.put(readCommand("smaps_rollup", 603), SERVICEMANAGER_STATUS);
+        outputs.put(readCommand("smaps", 603), SERVICEMANAGER_STATUS);
+        ProcMemoryReader reader = new ProcMemoryReader(fakeExecutor(outputs, new ArrayList<>()));
+
+        ProcMemoryInfo servicemanager = reader.read(Arrays.asList(603)).get(603);
+
+        assertFalse(servicemanager.hasSmaps());
+        assertEquals(8000, servicemanager.getVssKb());
+        assertEquals(2000, servicemanager.getRssKb());
+        assertEquals(30, servicemanager.getSwapKb());
+        assertEquals(ProcMemoryReader.MISSING, servicemanager.getPssKb());
+        assertEquals(ProcMemoryReader.MISSING, servicemanager.getSwapPssKb());
+    }
+
+    /** Test that processes exiting while they are read are left out without mixing them up. */
+    @Test
+    public void testRead_exitedProcesses() throws Exception {
+        Map<String, String> outputs = new HashMap<>();
+        outputs.put(
+                readCommand("smaps_rollup", 1, 500, 501, 603),
+                INIT_OUTPUT
+                        // Exited before its cmdline was read.
+                        + "=== pid 500\n"
+                        + "\n"
+                        // Exited after its cmdline was read.
+                        + "=== pid 501\n"
+                        + "surfaceflinger\0\n"
+                        + SERVICEMANAGER_STATUS
+                        + "Rss:                1900 kB\n"
+                        + "Pss:                 800 kB\n");
+        ProcMemoryReader reader = new ProcMemoryReader(fakeExecutor(outputs, new ArrayList<>()));
+
+        Map<Integer, ProcMemoryInfo> processes = reader.read(Arrays.asList(1, 500, 501, 603));
+
+        assertEquals(Arrays.asList(1, 603), new ArrayList<>(processes.keySet()));
+        assertEquals("init", processes.get(1).getName());
+        assertEquals("servicemanager", processes.get(603).getName());
+        assertEquals(800, processes.get(603).getPssKb());
+    }
+
+    /** Test that processes are split across commands to keep the command line short. */
+    @Test
+    public void testRead_batches() throws Exception {
+        List<String> commands = new ArrayList<>();
+        ProcMemoryReader reader =
+                new ProcMemoryReader(fakeExecutor(new HashMap<>(), commands));
+        List<Integer> pids = new ArrayList<>();
+        for (int pid = 1; pid <= ProcSectionReader.PIDS_PER_COMMAND + 1; pid++) {
+            pids.add(pid);
+        }
+
+        assertTrue(reader.read(pids).isEmpty());
+        assertEquals(2, commands.size());
+    }
+
+    private static String readCommand(String smapsFile, int... pids) {
+        StringBuilder command = new StringBuilder();
+        for (int pid : pids) {
+            command.append(
+                    String.format(
+                            "echo '=== pid %d'; cat /proc/%d/cmdline; echo; "
+                                    + "cat /proc/%d/status /proc/%d/%s; ",
+                            pid, pid, pid, pid, smapsFile));
+        }
+        return command.toString().trim();
+    }
+
+    private static ShellCommandExecutor fakeExecutor(
+            Map<String, String> outputs, List<String> commands) {
+        return new ShellCommandExecutor(
+                command -> {
+                    synchronized (commands) {
+                        commands.add(command);
+                    }
+                    return outputs.getOrDefault(command, "");
+                });
+    }
+}
@@ -22,7 +22,12 @@ import static org.junit.Assert.assertTrue;
 
 import androidx.test.runner.AndroidJUnit4;
 import com.android.helpers.RssSnapshotHelper;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -142,6 +147,35 @@ public class RssSnapshotHelperTest {
   }
 
 
+  /**
+   * Test the compressed output file can be read whole and holds an entry for each process.
+   */
+  @Test
+  public void testGetMetrics_CompressedOutput() throws Exception {
+    mRssSnapshotHelper.setUp(VALID_OUTPUT_DIR, TWO_PROCESS_LIST);
+    mRssSnapshotHelper.setCompressOutput(true);
+    assertTrue(mRssSnapshotHelper.startCollecting());
+    Map<String, String> metrics = mRssSnapshotHelper.getMetrics();
+    String outputFile = metrics.get(RssSnapshotHelper.OUTPUT_FILE_PATH_KEY);
+    assertTrue(outputFile.endsWith(".gz"));
+    assertTrue(metrics.containsKey(RssSnapshotHelper.OUTPUT_INDEX_FILE_PATH_KEY));
+    assertTrue(metrics.containsKey(RssSnapshotHelper.SNAPSHOT_DURATION_KEY));
+    assertTrue(Long.parseLong(metrics.get(RssSnapshotHelper.SNAPSHOT_BYTES_KEY)) > 0);
+
+    StringBuilder output = new StringBuilder();
+    try (Reader reader = new InputStreamReader(
+        new GZIPInputStream(new FileInputStream(outputFile)), StandardCharsets.UTF_8)) {
+      char[] buffer = new char[4096];
+      int length;
+      while ((length = reader.read(buffer)) >= 0) {
+        output.append(buffer, 0, length);
+      }
+    }
+    for (String processName : TWO_PROCESS_LIST) {
+      assertTrue(output.indexOf(String.format(">>> %s (", processName)) >= 0);
+    }
+  }
+
   private void testProcessList(String... processNames) {
     mRssSnapshotHelper.setUp(VALID_OUTPUT_DIR, processNames);
     assertTrue(mRssSnapshotHelper.startCollecting());
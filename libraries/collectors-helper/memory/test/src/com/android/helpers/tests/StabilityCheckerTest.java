@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.helpers.StabilityChecker;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Android Unit tests for {@link StabilityChecker}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.tests.StabilityCheckerTest
+ */
+@RunWith(JUnit4.class)
+public class StabilityCheckerTest {
+
+    /** Test that samples are not stable until the window is full. */
+    @Test
+    public void testIsStable_notEnoughSamples() {
+        StabilityChecker checker = new StabilityChecker(4, 0.95, 0.01);
+        assertFalse(checker.isStable(Arrays.asList(100000L, 100000L, 100000L)));
+        assertTrue(checker.isStable(Arrays.asList(100000L, 100000L, 100000L, 100000L)));
+    }
+
+    /** Test that only the most recent samples are checked. */
+    @Test
+    public void testIsStable_window() {
+        StabilityChecker checker = new StabilityChecker(3, 0.95, 0.01);
+        assertTrue(checker.isStable(Arrays.asList(50000L, 80000L, 100000L, 100100L, 100050L)));
+        assertFalse(checker.isStable(Arrays.asList(100000L, 100100L, 100050L, 80000L)));
+    }
+
+    /** Test that the relative error and the confidence control the width of the interval. */
+    @Test
+    public void testIsStable_relativeError() {
+        // Mean of 100000 kB, varying by up to 1000 kB.
+        List<Long> samples = Arrays.asList(99000L, 100000L, 101000L, 100000L);
+        assertFalse(new StabilityChecker(4, 0.95, 0.01).isStable(samples));
+        assertTrue(new StabilityChecker(4, 0.95, 0.02).isStable(samples));
+        assertFalse(new StabilityChecker(4, 0.99, 0.02).isStable(samples));
+    }
+
+    /** Test that a process that is not running is stable at 0. */
+    @Test
+    public void testIsStable_zero() {
+        StabilityChecker checker = new StabilityChecker(3, 0.95, 0.01);
+        assertTrue(checker.isStable(Arrays.asList(0L, 0L, 0L)));
+    }
+}
@@ -18,6 +18,7 @@ package com.android.helpers.tests;
 
 import static com.android.helpers.MetricUtility.constructKey;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -48,6 +49,12 @@ public class TotalPssHelperTest {
     private static final String INVALID_PROCESS_NAME = "abc";
     // Pss prefix in Key.
     private static final String PSS_METRIC_PREFIX = "am_totalpss_bytes";
+    // Samples prefix in Key.
+    private static final String SAMPLES_METRIC_PREFIX = "am_totalpss_samples";
+    // Stabilize time prefix in Key.
+    private static final String STABILIZE_TIME_METRIC_PREFIX = "am_totalpss_stabilize_time_ms";
+    // Short sleep time in between the iterations, to keep the tests fast.
+    private static final int TEST_SLEEP_TIME = 10;
 
     private TotalPssHelper mTotalPssHelper;
 
@@ -102,4 +109,66 @@ public class TotalPssHelperTest {
         assertTrue(pssMetrics.containsKey(constructKey(PSS_METRIC_PREFIX, INVALID_PROCESS_NAME)));
         assertTrue(pssMetrics.get(constructKey(PSS_METRIC_PREFIX, INVALID_PROCESS_NAME)) == 0);
     }
+
+    /** Test the number of samples and the stabilize time are reported for each process. */
+    @Test
+    public void testGetMetrics_SamplesAndStabilizeTime() {
+        mTotalPssHelper.setUp(TEST_PROCESS_NAME, INVALID_PROCESS_NAME);
+        mTotalPssHelper.setMinIterations(3);
+        mTotalPssHelper.setMaxIterations(10);
+        mTotalPssHelper.setSleepTime(TEST_SLEEP_TIME);
+        Map<String, Long> pssMetrics = mTotalPssHelper.getMetrics();
+        for (String processName : new String[] {TEST_PROCESS_NAME, INVALID_PROCESS_NAME}) {
+            long samples = pssMetrics.get(constructKey(SAMPLES_METRIC_PREFIX, processName));
+            assertTrue(samples >= 4 && samples <= 10);
+            assertTrue(pssMetrics.get(
+                    constructKey(STABILIZE_TIME_METRIC_PREFIX, processName)) >= 0);
+        }
+    }
+
+    /** Test a process stops being sampled as soon as it is stabilized. */
+    @Test
+    public void testGetMetrics_StopsWhenStabilized() {
+        mTotalPssHelper.setUp(INVALID_PROCESS_NAME);
+        mTotalPssHelper.setMinIterations(3);
+        mTotalPssHelper.setMaxIterations(20);
+        mTotalPssHelper.setSleepTime(TEST_SLEEP_TIME);
+        Map<String, Long> pssMetrics = mTotalPssHelper.getMetrics();
+        // The pss of a process that is not running is always 0, so it is stable as soon as the
+        // minimum iterations are reached.
+        assertEquals(4L, (long) pssMetrics.get(
+                constructKey(SAMPLES_METRIC_PREFIX, INVALID_PROCESS_NAME)));
+        assertTrue(pssMetrics.get(
+                constructKey(STABILIZE_TIME_METRIC_PREFIX, INVALID_PROCESS_NAME)) < 20 * 1000);
+    }
+
+    /** Test the statistical check stops the sampling once it has a full window of samples. */
+    @Test
+    public void testGetMetrics_StopsWhenStableWithStabilityCheck() {
+        mTotalPssHelper.setUp(INVALID_PROCESS_NAME);
+        mTotalPssHelper.setMinIterations(3);
+        mTotalPssHelper.setMaxIterations(20);
+        mTotalPssHelper.setSleepTime(TEST_SLEEP_TIME);
+        mTotalPssHelper.setStabilityCheck(5, 0.95, 0.01);
+        Map<String, Long> pssMetrics = mTotalPssHelper.getMetrics();
+        assertEquals(5L, (long) pssMetrics.get(
+                constructKey(SAMPLES_METRIC_PREFIX, INVALID_PROCESS_NAME)));
+    }
+
+    /** Test the metrics are reported when the memory usage did not stabilize. */
+    @Test
+    public void testGetMetrics_NotStabilized() {
+        mTotalPssHelper.setUp(INVALID_PROCESS_NAME);
+        // No iteration is past the minimum, so the sampling stops at the maximum.
+        mTotalPssHelper.setMinIterations(3);
+        mTotalPssHelper.setMaxIterations(3);
+        mTotalPssHelper.setSleepTime(TEST_SLEEP_TIME);
+        Map<String, Long> pssMetrics = mTotalPssHelper.getMetrics();
+        assertTrue(pssMetrics.get(constructKey(PSS_METRIC_PREFIX, INVALID_PROCESS_NAME)) == 0);
+        assertEquals(3L, (long) pssMetrics.get(
+                constructKey(SAMPLES_METRIC_PREFIX, INVALID_PROCESS_NAME)));
+        assertTrue(pssMetrics.get(
+                constructKey(STABILIZE_TIME_METRIC_PREFIX, INVALID_PROCESS_NAME))
+                        >= 3 * TEST_SLEEP_TIME);
+    }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.os.SystemClock;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * BackoffPoller checks a condition repeatedly, doubling the interval between checks, until the
+ * condition is met or a timeout is reached.
+ *
+ * <p>It is used to wait for statsd to process a logged event, which usually takes a few
+ * milliseconds, instead of sleeping for a fixed delay that covers the slowest case.
+ */
+public class BackoffPoller {
+    public static final long DEFAULT_INITIAL_INTERVAL_MS = 10;
+    public static final long DEFAULT_MAX_INTERVAL_MS = 500;
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    private final long mInitialIntervalMs;
+    private final long mMaxIntervalMs;
+    private final long mTimeoutMs;
+    // Time taken by the last poll until the condition was met, or -1 if it timed out.
+    private long mLastDelayMs = -1;
+
+    public BackoffPoller() {
+        this(DEFAULT_INITIAL_INTERVAL_MS, DEFAULT_MAX_INTERVAL_MS, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param initialIntervalMs interval before the second check, doubled after each check
+     * @param maxIntervalMs largest interval between checks
+     * @param timeoutMs time after which to give up
+     */
+    public BackoffPoller(long initialIntervalMs, long maxIntervalMs, long timeoutMs) {
+        if (initialIntervalMs <= 0 || maxIntervalMs < initialIntervalMs) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Invalid intervals: initial %d ms, max %d ms.",
+                            initialIntervalMs, maxIntervalMs));
+        }
+        mInitialIntervalMs = initialIntervalMs;
+        mMaxIntervalMs = maxIntervalMs;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Checks {@code condition} immediately, then with backoff until it is met or the timeout is
+     * reached.
+     *
+     * @return true if the condition was met, false if the timeout was reached.
+     */
+    public boolean poll(BooleanSupplier condition) {
+        long start = uptimeMillis();
+        long interval = mInitialIntervalMs;
+        while (true) {
+            if (condition.getAsBoolean()) {
+                mLastDelayMs = uptimeMillis() - start;
+                return true;
+            }
+            long remaining = start + mTimeoutMs - uptimeMillis();
+            if (remaining <= 0) {
+                mLastDelayMs = -1;
+                return false;
+            }
+            sleep(Math.min(interval, remaining));
+            interval = Math.min(interval * 2, mMaxIntervalMs);
+        }
+    }
+
+    /** Returns the time the last poll took until its condition was met, or -1 if it timed out. */
+    public long getLastDelayMs() {
+        return mLastDelayMs;
+    }
+
+    @VisibleForTesting
+    protected long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @VisibleForTesting
+    protected void sleep(long durationMs) {
+        SystemClock.sleep(durationMs);
+    }
+}
@@ -22,9 +22,6 @@ import com.android.os.AtomsProto.Atom;
 import com.android.os.StatsLog.GaugeBucketInfo;
 import com.android.os.StatsLog.GaugeMetricData;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
-
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -51,6 +48,7 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
     private static final String SYSTEM_TIME = "system_time";
     private static final String TOTAL_CPU_TIME = "total_cpu_time";
     private static final String CPU_UTILIZATION = "cpu_utilization_average_per_core_percent";
+    private static final String STATSD_DELAY = "cpu_usage_statsd_delay_ms";
 
     private StatsdHelper mStatsdHelper = new StatsdHelper();
     private boolean isPerFreqDisabled;
@@ -58,12 +56,21 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
     private boolean isTotalPkgDisabled;
     private boolean isTotalFreqDisabled;
     private boolean isCpuUtilizationEnabled;
+    private boolean isStatsdDelayEnabled;
     private long mStartTime;
     private long mEndTime;
     private Integer mCpuCores = null;
+    private long mSamplingIntervalMs = 0;
+    private ProcStatSampler mSampler;
 
     @Override
     public boolean startCollecting() {
+        if (mSamplingIntervalMs > 0) {
+            Log.i(LOG_TAG, "Sampling the cpu time every " + mSamplingIntervalMs + " ms.");
+            mSampler = new ProcStatSampler();
+            mSampler.start(mSamplingIntervalMs);
+            return true;
+        }
         Log.i(LOG_TAG, "Adding CpuUsage config to statsd.");
         List<Integer> atomIdList = new ArrayList<>();
         // Add the atoms to be tracked.
@@ -79,6 +86,10 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
 
     @Override
     public Map<String, Long> getMetrics() {
+        if (mSampler != null) {
+            // Utilization over the samples taken since the previous call.
+            return mSampler.collectMetrics();
+        }
         Map<String, Long> cpuUsageFinalMap = new HashMap<>();
 
         List<GaugeMetricData> gaugeMetricList = mStatsdHelper.getGaugeMetrics();
@@ -87,7 +98,13 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
             mEndTime = System.currentTimeMillis();
         }
 
-        ListMultimap<String, Long> cpuUsageMap = ArrayListMultimap.create();
+        if (isStatsdDelayEnabled) {
+            // Time statsd took to collect the gauge metrics at the end of the test.
+            cpuUsageFinalMap.put(STATSD_DELAY, mStatsdHelper.getGaugeMetricsDelayMs());
+        }
+
+        // First value, last value and count of values for each key.
+        Map<String, long[]> cpuUsageMap = new HashMap<>();
 
         for (GaugeMetricData gaugeMetric : gaugeMetricList) {
             Log.v(LOG_TAG, "Bucket Size: " + gaugeMetric.getBucketInfoCount());
@@ -108,9 +125,8 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
                         // Use the package name if exist for the UID otherwise use the UID.
                         // Note: UID for the apps will be different across the builds.
 
-                        // It is possible to have multiple bucket info. Track all the gauge info
-                        // and take the difference of the first and last to compute the
-                        // final usage.
+                        // It is possible to have multiple bucket info. Track the first and last
+                        // gauge info and take their difference to compute the final usage.
 
                         // Add uid suffix to CPU_USAGE_PKG_UID type of key to tell apart processes
                         // with the same package name but different uid in multi-user situations,
@@ -123,8 +139,8 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
                         String SystemTimeKey = MetricUtility.constructKey(CPU_USAGE_PKG_UID,
                                 (packageName == null) ? String.valueOf(uId) : packageName,
                                 SYSTEM_TIME, String.valueOf(uId));
-                        cpuUsageMap.put(UserTimeKey, userTimeMillis);
-                        cpuUsageMap.put(SystemTimeKey, sysTimeMillis);
+                        trackValue(cpuUsageMap, UserTimeKey, userTimeMillis);
+                        trackValue(cpuUsageMap, SystemTimeKey, sysTimeMillis);
                     }
 
                     // Track cpu usage per cluster_id and freq_index
@@ -137,7 +153,7 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
                         String finalFreqIndexKey = MetricUtility.constructKey(
                                 CPU_USAGE_FREQ, CLUSTER_ID, String.valueOf(clusterId), FREQ_INDEX,
                                 String.valueOf(freqIndex));
-                        cpuUsageMap.put(finalFreqIndexKey, timeInFreq);
+                        trackValue(cpuUsageMap, finalFreqIndexKey, timeInFreq);
                     }
 
                 }
@@ -147,12 +163,12 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
         // Compute the final result map
         Long totalCpuUsage = 0L;
         Long totalCpuFreq = 0L;
-        for (String key : cpuUsageMap.keySet()) {
-            List<Long> cpuUsageList = cpuUsageMap.get(key);
-            if (cpuUsageList.size() > 1) {
+        for (Map.Entry<String, long[]> entry : cpuUsageMap.entrySet()) {
+            String key = entry.getKey();
+            long[] cpuUsageValues = entry.getValue();
+            if (cpuUsageValues[2] > 1) {
                 // Compute the total usage by taking the difference of last and first value.
-                Long cpuUsage = cpuUsageList.get(cpuUsageList.size() - 1)
-                        - cpuUsageList.get(0);
+                Long cpuUsage = cpuUsageValues[1] - cpuUsageValues[0];
                 // Add the final result only if the cpu usage is greater than 0.
                 if (cpuUsage > 0) {
                     if (key.startsWith(CPU_USAGE_PKG_UID)
@@ -209,6 +225,11 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
      */
     @Override
     public boolean stopCollecting() {
+        if (mSampler != null) {
+            mSampler.stop();
+            mSampler = null;
+            return true;
+        }
         return mStatsdHelper.removeStatsConfig();
     }
 
@@ -247,6 +268,35 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
         isCpuUtilizationEnabled = true;
     }
 
+    /**
+     * Enable the collection of the time statsd took to collect the cpu usage.
+     */
+    public void setEnableStatsdDelay() {
+        isStatsdDelayEnabled = true;
+    }
+
+    /**
+     * Sample the cpu time of each core and process from /proc every {@code intervalMs} instead
+     * of using statsd. Each call to {@link #getMetrics()} then returns the mean and peak cpu
+     * utilization over the samples taken since the previous call.
+     */
+    public void setSamplingInterval(long intervalMs) {
+        mSamplingIntervalMs = intervalMs;
+    }
+
+    /**
+     * Keep the first and last value tracked for the key, along with the number of values.
+     */
+    private static void trackValue(Map<String, long[]> valuesMap, String key, long value) {
+        long[] values = valuesMap.get(key);
+        if (values == null) {
+            valuesMap.put(key, new long[] {value, value, 1});
+        } else {
+            values[1] = value;
+            values[2]++;
+        }
+    }
+
     /**
      * return the number of cores that the device has.
      */
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+import androidx.annotation.VisibleForTesting;
+import androidx.test.InstrumentationRegistry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PackageNameCache resolves UIDs to package names, keeping the results so that each UID is only
+ * looked up once with the package manager.
+ *
+ * <p>Entries are dropped when a package is added, replaced or removed, as its UID may then map to
+ * another package.
+ */
+public class PackageNameCache {
+    private static final String LOG_TAG = PackageNameCache.class.getSimpleName();
+
+    private static PackageNameCache sInstance;
+
+    // Package names by UID, with null for the UIDs without any package.
+    private final Map<Integer, String> mPackageNames = new HashMap<>();
+    private boolean mReceiverRegistered = false;
+
+    @VisibleForTesting
+    PackageNameCache() {}
+
+    /** Returns the cache shared by all the statsd-based helpers. */
+    public static synchronized PackageNameCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new PackageNameCache();
+        }
+        return sInstance;
+    }
+
+    /** Returns the package name for the UID if it is available. Otherwise return null. */
+    public synchronized String getPackageName(int uid) {
+        if (!mReceiverRegistered) {
+            registerPackageReceiver();
+            mReceiverRegistered = true;
+        }
+        if (mPackageNames.containsKey(uid)) {
+            return mPackageNames.get(uid);
+        }
+        String pkgName = resolvePackageName(uid);
+        // Remove the UID appended at the end of the name of shared UIDs.
+        if (pkgName != null) {
+            int uidSuffix = pkgName.indexOf(":" + uid);
+            if (uidSuffix >= 0) {
+                pkgName = pkgName.substring(0, uidSuffix);
+            }
+        }
+        mPackageNames.put(uid, pkgName);
+        return pkgName;
+    }
+
+    /** Drops the package name of {@code uid}, or all of them if it is -1. */
+    public synchronized void invalidate(int uid) {
+        if (uid == -1) {
+            mPackageNames.clear();
+        } else {
+            mPackageNames.remove(uid);
+        }
+    }
+
+    /** Looks up the name for {@code uid} with the package manager. */
+    @VisibleForTesting
+    protected String resolvePackageName(int uid) {
+        return InstrumentationRegistry.getTargetContext().getPackageManager().getNameForUid(uid);
+    }
+
+    /** Registers a receiver dropping the entries of the packages that change. */
+    @VisibleForTesting
+    protected void registerPackageReceiver() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        try {
+            InstrumentationRegistry.getTargetContext()
+                    .registerReceiver(
+                            new BroadcastReceiver() {
+                                @Override
+                                public void onReceive(Context context, Intent intent) {
+                                    invalidate(intent.getIntExtra(Intent.EXTRA_UID, -1));
+                                }
+                            },
+                            filter);
+        } catch (RuntimeException e) {
+            // Keep caching; the packages are not expected to change during most tests.
+            Log.e(LOG_TAG, "Unable to register for package changes.", e);
+        }
+    }
+}
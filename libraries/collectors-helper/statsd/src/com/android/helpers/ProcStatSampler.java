@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+import androidx.annotation.VisibleForTesting;
+import androidx.test.InstrumentationRegistry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * ProcStatSampler samples the cpu time of each core from /proc/stat and of each process from
+ * /proc/[pid]/stat on a fixed interval, reading all of them with a single shell command per
+ * sample.
+ *
+ * <p>The cpu time used between two samples is kept in ring buffers of primitives, which are
+ * drained by {@link #collectMetrics()} into the mean and peak utilization of the whole device,
+ * of each core and of each process over the samples taken since the previous call. The
+ * utilization of a process is relative to the cpu time of all the cores. If more samples are
+ * taken than the ring buffers hold before they are drained, the oldest ones are dropped.
+ *
+ * Example Usage:
+ * ProcStatSampler sampler = new ProcStatSampler(new ShellCommandExecutor(instrumentation));
+ * sampler.start(100);
+ * ...
+ * Map<String, Long> metrics = sampler.collectMetrics();
+ * sampler.stop();
+ */
+public class ProcStatSampler {
+    private static final String LOG_TAG = ProcStatSampler.class.getSimpleName();
+
+    // Command to read the cpu times of the cores, then of every process one per line.
+    @VisibleForTesting static final String SAMPLE_CMD = "cat /proc/stat /proc/[0-9]*/stat";
+
+    @VisibleForTesting static final String SAMPLED_UTILIZATION = "cpu_sampled_utilization";
+    @VisibleForTesting static final String TOTAL = "total";
+    @VisibleForTesting static final String CORE = "core";
+    @VisibleForTesting static final String PROCESS = "proc";
+    @VisibleForTesting static final String MEAN = "mean_percent";
+    @VisibleForTesting static final String PEAK = "peak_percent";
+    @VisibleForTesting static final String SAMPLE_COUNT = "cpu_sampled_count";
+    @VisibleForTesting static final String DROPPED_COUNT = "cpu_sampled_dropped_count";
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    // Only the start of each line is parsed, e.g. not the long "intr" line of /proc/stat.
+    private static final int BUFFER_SIZE = 8192;
+    // Fields of the cpu lines: user nice system idle iowait irq softirq steal.
+    private static final int CPU_FIELDS = 8;
+    private static final int CPU_IDLE = 3;
+    private static final int CPU_IOWAIT = 4;
+    // Fields of /proc/[pid]/stat after the command name, counting from the state.
+    private static final int PID_UTIME = 11;
+    private static final int PID_STIME = 12;
+
+    private final ShellCommandExecutor mExecutor;
+    private final ProcessTable mProcessTable;
+    private final int mCapacity;
+    // The line being parsed, and the output of the command being read.
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final byte[] mReadBuffer = new byte[BUFFER_SIZE];
+
+    // Ring buffers of the cpu time used between two samples, indexed by sample.
+    private final long[] mTotalTicks;
+    private final long[] mBusyTicks;
+    private long[][] mCoreTotalTicks = new long[0][];
+    private long[][] mCoreBusyTicks = new long[0][];
+    private final Map<String, long[]> mProcessTicks = new HashMap<>();
+    private int mNext = 0;
+    private int mUnread = 0;
+    private int mDropped = 0;
+
+    // Cumulative cpu time of the current and previous samples, with -1 for the offline cores.
+    private long mTotal;
+    private long mBusy;
+    private long mPrevTotal;
+    private long mPrevBusy;
+    private long[] mCoreTotal = new long[0];
+    private long[] mCoreBusy = new long[0];
+    private long[] mPrevCoreTotal = new long[0];
+    private long[] mPrevCoreBusy = new long[0];
+    private SparseLongArray mPidTicks = new SparseLongArray();
+    private SparseLongArray mPrevPidTicks = new SparseLongArray();
+    private final SparseArray<String> mPidNames = new SparseArray<>();
+    // Command names of the processes read in the current sample which are not named yet.
+    private final SparseArray<String> mPidComms = new SparseArray<>();
+    private boolean mHasCpuTimes;
+    private boolean mHasPrevious = false;
+
+    private Timer mTimer;
+
+    public ProcStatSampler() {
+        this(new ShellCommandExecutor(InstrumentationRegistry.getInstrumentation()));
+    }
+
+    /** @param executor the executor running the commands reading /proc */
+    public ProcStatSampler(ShellCommandExecutor executor) {
+        this(executor, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param executor the executor running the commands reading /proc
+     * @param capacity the number of samples kept until they are collected
+     */
+    public ProcStatSampler(ShellCommandExecutor executor, int capacity) {
+        this(executor, ProcessTable.getInstance(executor), capacity);
+    }
+
+    @VisibleForTesting
+    ProcStatSampler(ShellCommandExecutor executor, ProcessTable processTable, int capacity) {
+        mExecutor = executor;
+        mProcessTable = processTable;
+        mCapacity = capacity;
+        mTotalTicks = new long[capacity];
+        mBusyTicks = new long[capacity];
+    }
+
+    /** Starts sampling every {@code intervalMs}, on a background thread. */
+    public synchronized void start(long intervalMs) {
+        stop();
+        mTimer = new Timer();
+        mTimer.scheduleAtFixedRate(
+                new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            sample();
+                        } catch (RuntimeException e) {
+                            Log.e(LOG_TAG, "Failed to sample the cpu time.", e);
+                        }
+                    }
+                },
+                0,
+                intervalMs);
+    }
+
+    /** Stops sampling. The samples already taken can still be collected. */
+    public synchronized void stop() {
+        if (mTimer != null) {
+            mTimer.cancel();
+            mTimer = null;
+        }
+    }
+
+    /** Reads the cumulative cpu time of the cores and processes, recording their increase. */
+    @VisibleForTesting
+    synchronized void sample() {
+        Arrays.fill(mCoreTotal, -1);
+        Arrays.fill(mCoreBusy, -1);
+        mHasCpuTimes = false;
+        mPidTicks.clear();
+        mPidComms.clear();
+        try {
+            mExecutor.executeStreaming(SAMPLE_CMD, this::readLines);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to read the cpu times.", e);
+            return;
+        }
+        if (!mHasCpuTimes) {
+            Log.e(LOG_TAG, "Unable to read the cpu times of the cores.");
+            return;
+        }
+        if (mHasPrevious) {
+            record();
+        }
+        mHasPrevious = true;
+
+        // The current sample becomes the previous one.
+        mPrevTotal = mTotal;
+        mPrevBusy = mBusy;
+        long[] times = mPrevCoreTotal;
+        mPrevCoreTotal = mCoreTotal;
+        mCoreTotal = times;
+        times = mPrevCoreBusy;
+        mPrevCoreBusy = mCoreBusy;
+        mCoreBusy = times;
+        SparseLongArray pidTicks = mPrevPidTicks;
+        mPrevPidTicks = mPidTicks;
+        mPidTicks = pidTicks;
+    }
+
+    /**
+     * Returns the mean and peak utilization over the samples taken since the previous call, in
+     * percent. Only the processes which used the cpu are reported.
+     */
+    public synchronized Map<String, Long> collectMetrics() {
+        Map<String, Long> metrics = new HashMap<>();
+        metrics.put(SAMPLE_COUNT, (long) mUnread);
+        metrics.put(DROPPED_COUNT, (long) mDropped);
+        if (mUnread > 0) {
+            putUtilization(metrics, mBusyTicks, mTotalTicks, TOTAL);
+            for (int core = 0; core < mCoreTotalTicks.length; core++) {
+                putUtilization(
+                        metrics,
+                        mCoreBusyTicks[core],
+                        mCoreTotalTicks[core],
+                        CORE,
+                        String.valueOf(core));
+            }
+            Iterator<Map.Entry<String, long[]>> entries = mProcessTicks.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, long[]> entry = entries.next();
+                // Forget the processes which did not run, they may be gone.
+                if (!putUtilization(
+                        metrics, entry.getValue(), mTotalTicks, PROCESS, entry.getKey())) {
+                    entries.remove();
+                }
+            }
+        }
+        mUnread = 0;
+        mDropped = 0;
+        return metrics;
+    }
+
+    /**
+     * Adds the mean and peak of {@code used} relative to {@code total} over the unread samples.
+     *
+     * @return false if nothing was used in those samples
+     */
+    private boolean putUtilization(
+            Map<String, Long> metrics, long[] used, long[] total, String... keys) {
+        long usedSum = 0;
+        long totalSum = 0;
+        double peak = 0;
+        for (int i = 0; i < mUnread; i++) {
+            int slot = (mNext - mUnread + i + mCapacity) % mCapacity;
+            usedSum += used[slot];
+            totalSum += total[slot];
+            if (total[slot] > 0) {
+                // The files are not read at once, so a sample may be slightly over the total.
+                peak = Math.max(peak, Math.min(1.0, (double) used[slot] / total[slot]));
+            }
+        }
+        if (usedSum == 0 || totalSum == 0) {
+            return usedSum != 0;
+        }
+        String key =
+                MetricUtility.constructKey(SAMPLED_UTILIZATION, MetricUtility.constructKey(keys));
+        metrics.put(
+                MetricUtility.constructKey(key, MEAN),
+                Math.round(100.0 * usedSum / totalSum));
+        metrics.put(MetricUtility.constructKey(key, PEAK), Math.round(100 * peak));
+        return true;
+    }
+
+    /** Records the cpu time used since the previous sample into the ring buffers. */
+    private void record() {
+        int slot = mNext;
+        mTotalTicks[slot] = mTotal - mPrevTotal;
+        mBusyTicks[slot] = mBusy - mPrevBusy;
+        for (int core = 0; core < mCoreTotalTicks.length; core++) {
+            boolean online = mCoreTotal[core] >= 0 && mPrevCoreTotal[core] >= 0;
+            mCoreTotalTicks[core][slot] = online ? mCoreTotal[core] - mPrevCoreTotal[core] : 0;
+            mCoreBusyTicks[core][slot] = online ? mCoreBusy[core] - mPrevCoreBusy[core] : 0;
+        }
+
+        for (long[] ticks : mProcessTicks.values()) {
+            ticks[slot] = 0;
+        }
+        List<Integer> unnamed = new ArrayList<>();
+        for (int i = 0; i < mPidTicks.size(); i++) {
+            int pid = mPidTicks.keyAt(i);
+            if (mPidTicks.valueAt(i) > mPrevPidTicks.get(pid, 0) && mPidNames.get(pid) == null) {
+                unnamed.add(pid);
+            }
+        }
+        readProcessNames(unnamed);
+        for (int i = 0; i < mPidTicks.size(); i++) {
+            int pid = mPidTicks.keyAt(i);
+            long ticks = mPidTicks.valueAt(i);
+            // The processes started since the previous sample used all their cpu time since.
+            long used = ticks - Math.min(ticks, mPrevPidTicks.get(pid, 0));
+            if (used == 0) {
+                continue;
+            }
+            String name = mPidNames.get(pid);
+            long[] processTicks = mProcessTicks.get(name);
+            if (processTicks == null) {
+                processTicks = new long[mCapacity];
+                mProcessTicks.put(name, processTicks);
+            }
+            // Processes with the same name are reported together.
+            processTicks[slot] += used;
+        }
+        for (int i = mPidNames.size() - 1; i >= 0; i--) {
+            if (mPidTicks.indexOfKey(mPidNames.keyAt(i)) < 0) {
+                mPidNames.removeAt(i);
+            }
+        }
+
+        mNext = (slot + 1) % mCapacity;
+        if (mUnread < mCapacity) {
+            mUnread++;
+        } else {
+            mDropped++;
+        }
+    }
+
+    /**
+     * Reads the output of {@link #SAMPLE_CMD} one line at a time into the line buffer, and
+     * parses each line.
+     */
+    private void readLines(InputStream input) throws IOException {
+        int length = 0;
+        int read;
+        while ((read = input.read(mReadBuffer)) > 0) {
+            for (int i = 0; i < read; i++) {
+                byte b = mReadBuffer[i];
+                if (b == '\n') {
+                    parseLine(length);
+                    length = 0;
+                } else if (length < mBuffer.length) {
+                    mBuffer[length++] = b;
+                }
+            }
+        }
+        if (length > 0) {
+            parseLine(length);
+        }
+    }
+
+    /** Parses the line in the line buffer, either a cpu line of /proc/stat or a process stat. */
+    private void parseLine(int length) {
+        if (length > 3 && mBuffer[0] == 'c' && mBuffer[1] == 'p' && mBuffer[2] == 'u') {
+            parseCpuTimes(length);
+        } else if (length > 0 && mBuffer[0] >= '0' && mBuffer[0] <= '9') {
+            parseProcessTimes(length);
+        }
+    }
+
+    /** Parses a cpu line of /proc/stat. */
+    private void parseCpuTimes(int length) {
+        int pos = 3;
+        // The aggregated line is followed by one line per online core.
+        int core = -1;
+        if (mBuffer[pos] != ' ') {
+            core = 0;
+            while (pos < length && mBuffer[pos] >= '0' && mBuffer[pos] <= '9') {
+                core = core * 10 + (mBuffer[pos++] - '0');
+            }
+        }
+        long total = 0;
+        long idle = 0;
+        for (int field = 0; field < CPU_FIELDS; field++) {
+            while (pos < length && mBuffer[pos] == ' ') {
+                pos++;
+            }
+            long value = 0;
+            while (pos < length && mBuffer[pos] >= '0' && mBuffer[pos] <= '9') {
+                value = value * 10 + (mBuffer[pos++] - '0');
+            }
+            total += value;
+            if (field == CPU_IDLE || field == CPU_IOWAIT) {
+                idle += value;
+            }
+        }
+        if (core < 0) {
+            mTotal = total;
+            mBusy = total - idle;
+            mHasCpuTimes = true;
+        } else {
+            ensureCores(core + 1);
+            mCoreTotal[core] = total;
+            mCoreBusy[core] = total - idle;
+        }
+    }
+
+    /** Grows the per-core arrays to hold {@code cores} cores. */
+    private void ensureCores(int cores) {
+        if (mCoreTotal.length >= cores) {
+            return;
+        }
+        int previous = mCoreTotal.length;
+        mCoreTotal = Arrays.copyOf(mCoreTotal, cores);
+        mCoreBusy = Arrays.copyOf(mCoreBusy, cores);
+        mPrevCoreTotal = Arrays.copyOf(mPrevCoreTotal, cores);
+        mPrevCoreBusy = Arrays.copyOf(mPrevCoreBusy, cores);
+        mCoreTotalTicks = Arrays.copyOf(mCoreTotalTicks, cores);
+        mCoreBusyTicks = Arrays.copyOf(mCoreBusyTicks, cores);
+        for (int core = previous; core < cores; core++) {
+            mCoreTotal[core] = -1;
+            mCoreBusy[core] = -1;
+            mPrevCoreTotal[core] = -1;
+            mPrevCoreBusy[core] = -1;
+            mCoreTotalTicks[core] = new long[mCapacity];
+            mCoreBusyTicks[core] = new long[mCapacity];
+        }
+    }
+
+    /** Parses the user and system time of a process from its /proc/[pid]/stat line. */
+    private void parseProcessTimes(int length) {
+        int pos = 0;
+        int pid = 0;
+        while (pos < length && mBuffer[pos] >= '0' && mBuffer[pos] <= '9') {
+            pid = pid * 10 + (mBuffer[pos++] - '0');
+        }
+        int commStart = pos + 2;
+        pos = length - 1;
+        // The command name is in parentheses, and may hold spaces and parentheses itself.
+        while (pos >= 0 && mBuffer[pos] != ')') {
+            pos--;
+        }
+        if (pid <= 0 || pos < commStart) {
+            return;
+        }
+        if (mPidNames.get(pid) == null) {
+            mPidComms.put(
+                    pid, new String(mBuffer, commStart, pos - commStart, StandardCharsets.UTF_8));
+        }
+        pos++;
+        long ticks = 0;
+        for (int field = 0; field <= PID_STIME && pos < length; field++) {
+            while (pos < length && mBuffer[pos] == ' ') {
+                pos++;
+            }
+            long value = 0;
+            while (pos < length && mBuffer[pos] != ' ') {
+                if (mBuffer[pos] >= '0' && mBuffer[pos] <= '9') {
+                    value = value * 10 + (mBuffer[pos] - '0');
+                }
+                pos++;
+            }
+            if (field == PID_UTIME || field == PID_STIME) {
+                ticks += value;
+            }
+        }
+        mPidTicks.put(pid, ticks);
+    }
+
+    /**
+     * Names {@code pids} as ps and pidof do, or after their command name for kernel threads and
+     * the processes gone since they were sampled.
+     */
+    private void readProcessNames(List<Integer> pids) {
+        if (pids.isEmpty()) {
+            return;
+        }
+        Map<Integer, ProcessTable.ProcessInfo> processes = mProcessTable.getProcessesByPid(pids);
+        for (int pid : pids) {
+            ProcessTable.ProcessInfo info = processes.get(pid);
+            String name = info != null ? info.getName() : null;
+            if (name == null) {
+                String comm = mPidComms.get(pid);
+                name = comm != null && !comm.isEmpty() ? comm : String.valueOf(pid);
+            }
+            mPidNames.put(pid, name);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Parser;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * StatsdReportDecoder reads a serialized ConfigMetricsReportList one metric at a time, instead of
+ * parsing the whole report list into generated messages.
+ *
+ * <p>Visitors are registered for the atoms of event metrics, and for the data of gauge metrics.
+ * Only the atoms with a visitor are parsed, with the parser of the visitor; the others are
+ * skipped without being copied. Everything else in the report is skipped as well.
+ *
+ * Example Usage:
+ * StatsdReportDecoder decoder = new StatsdReportDecoder();
+ * decoder.addEventVisitor(Atom.APP_CRASH_OCCURRED_FIELD_NUMBER, Atom.parser(),
+ *         (metricId, timestampNanos, atom) -> handle(atom.getAppCrashOccurred()));
+ * decoder.decode(statsManager.getReports(configId));
+ */
+public class StatsdReportDecoder {
+    // Field numbers in statsd_log.proto.
+    private static final int REPORT_LIST_REPORTS = 2;
+    private static final int REPORT_METRICS = 1;
+    private static final int METRIC_ID = 1;
+    private static final int METRIC_EVENT_METRICS = 4;
+    private static final int METRIC_GAUGE_METRICS = 8;
+    private static final int WRAPPER_DATA = 1;
+    private static final int EVENT_ELAPSED_TIMESTAMP_NANOS = 1;
+    private static final int EVENT_ATOM = 2;
+
+    /** Visits the atoms of event metrics. */
+    public interface AtomVisitor<T> {
+        void visitAtom(long metricId, long elapsedTimestampNanos, T atom);
+    }
+
+    /** Visits the data of gauge metrics, one dimension at a time. */
+    public interface GaugeVisitor<T> {
+        void visitGauge(long metricId, T data);
+    }
+
+    /** Binds a visitor to the parser of the messages it visits. */
+    private static final class TypedVisitor<T> {
+        private final Parser<T> mParser;
+        private final AtomVisitor<T> mAtomVisitor;
+        private final GaugeVisitor<T> mGaugeVisitor;
+
+        private TypedVisitor(
+                Parser<T> parser, AtomVisitor<T> atomVisitor, GaugeVisitor<T> gaugeVisitor) {
+            mParser = parser;
+            mAtomVisitor = atomVisitor;
+            mGaugeVisitor = gaugeVisitor;
+        }
+
+        private void visitAtom(long metricId, long elapsedTimestampNanos, ByteString atom)
+                throws IOException {
+            mAtomVisitor.visitAtom(metricId, elapsedTimestampNanos, mParser.parseFrom(atom));
+        }
+
+        private void visitGauge(long metricId, ByteString data) throws IOException {
+            mGaugeVisitor.visitGauge(metricId, mParser.parseFrom(data));
+        }
+    }
+
+    private final Map<Integer, List<TypedVisitor<?>>> mAtomVisitors = new HashMap<>();
+    private final List<TypedVisitor<?>> mGaugeVisitors = new ArrayList<>();
+
+    /**
+     * Visits the atoms with {@code atomId} in event metrics.
+     *
+     * @param parser parser of the Atom messages
+     */
+    public <T> void addEventVisitor(int atomId, Parser<T> parser, AtomVisitor<T> visitor) {
+        mAtomVisitors
+                .computeIfAbsent(atomId, id -> new ArrayList<>())
+                .add(new TypedVisitor<>(parser, visitor, null));
+    }
+
+    /**
+     * Visits the data of all gauge metrics.
+     *
+     * @param parser parser of the GaugeMetricData messages
+     */
+    public <T> void addGaugeVisitor(Parser<T> parser, GaugeVisitor<T> visitor) {
+        mGaugeVisitors.add(new TypedVisitor<>(parser, null, visitor));
+    }
+
+    /** Decodes the serialized ConfigMetricsReportList {@code reportList}. */
+    public void decode(byte[] reportList) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(reportList);
+        // Let the visited messages refer to the report instead of copying their bytes.
+        input.enableAliasing(true);
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == lengthDelimited(REPORT_LIST_REPORTS)) {
+                int limit = input.pushLimit(input.readRawVarint32());
+                decodeReport(input);
+                input.popLimit(limit);
+            } else {
+                input.skipField(tag);
+            }
+        }
+    }
+
+    /** Decodes a ConfigMetricsReport, up to the current limit of {@code input}. */
+    private void decodeReport(CodedInputStream input) throws IOException {
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == lengthDelimited(REPORT_METRICS)) {
+                int limit = input.pushLimit(input.readRawVarint32());
+                decodeMetric(input);
+                input.popLimit(limit);
+            } else {
+                input.skipField(tag);
+            }
+        }
+    }
+
+    /**
+     * Decodes a StatsLogReport. Its metric id comes first, as messages are serialized in the order
+     * of their field numbers.
+     */
+    private void decodeMetric(CodedInputStream input) throws IOException {
+        long metricId = -1;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == varint(METRIC_ID)) {
+                metricId = input.readInt64();
+            } else if (tag == lengthDelimited(METRIC_EVENT_METRICS) && !mAtomVisitors.isEmpty()) {
+                int limit = input.pushLimit(input.readRawVarint32());
+                decodeWrapper(input, metricId, true);
+                input.popLimit(limit);
+            } else if (tag == lengthDelimited(METRIC_GAUGE_METRICS) && !mGaugeVisitors.isEmpty()) {
+                int limit = input.pushLimit(input.readRawVarint32());
+                decodeWrapper(input, metricId, false);
+                input.popLimit(limit);
+            } else {
+                input.skipField(tag);
+            }
+        }
+    }
+
+    /** Decodes an EventMetricDataWrapper or a GaugeMetricDataWrapper. */
+    private void decodeWrapper(CodedInputStream input, long metricId, boolean events)
+            throws IOException {
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag != lengthDelimited(WRAPPER_DATA)) {
+                input.skipField(tag);
+            } else if (events) {
+                int limit = input.pushLimit(input.readRawVarint32());
+                decodeEvent(input, metricId);
+                input.popLimit(limit);
+            } else {
+                ByteString data = input.readBytes();
+                for (TypedVisitor<?> visitor : mGaugeVisitors) {
+                    visitor.visitGauge(metricId, data);
+                }
+            }
+        }
+    }
+
+    /** Decodes an EventMetricData, visiting its atom if it has a visitor. */
+    private void decodeEvent(CodedInputStream input, long metricId) throws IOException {
+        long elapsedTimestampNanos = -1;
+        ByteString atom = null;
+        List<TypedVisitor<?>> visitors = null;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == varint(EVENT_ELAPSED_TIMESTAMP_NANOS)) {
+                elapsedTimestampNanos = input.readInt64();
+            } else if (tag == lengthDelimited(EVENT_ATOM)) {
+                atom = input.readBytes();
+                // An Atom holds a single field, numbered after the atom id.
+                int atomTag = atom.newCodedInput().readTag();
+                visitors = mAtomVisitors.get(WireFormat.getTagFieldNumber(atomTag));
+            } else {
+                input.skipField(tag);
+            }
+        }
+        if (visitors != null) {
+            for (TypedVisitor<?> visitor : visitors) {
+                visitor.visitAtom(metricId, elapsedTimestampNanos, atom);
+            }
+        }
+    }
+
+    private static int varint(int fieldNumber) {
+        return fieldNumber << 3 | WireFormat.WIRETYPE_VARINT;
+    }
+
+    private static int lengthDelimited(int fieldNumber) {
+        return fieldNumber << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    }
+}
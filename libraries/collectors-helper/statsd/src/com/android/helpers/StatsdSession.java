@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.app.StatsManager;
+import android.app.StatsManager.StatsUnavailableException;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.StatsLog;
+import androidx.annotation.VisibleForTesting;
+import androidx.test.InstrumentationRegistry;
+
+import com.android.internal.os.StatsdConfigProto.AtomMatcher;
+import com.android.internal.os.StatsdConfigProto.EventMetric;
+import com.android.internal.os.StatsdConfigProto.FieldFilter;
+import com.android.internal.os.StatsdConfigProto.GaugeMetric;
+import com.android.internal.os.StatsdConfigProto.SimpleAtomMatcher;
+import com.android.internal.os.StatsdConfigProto.StatsdConfig;
+import com.android.internal.os.StatsdConfigProto.TimeUnit;
+import com.android.os.AtomsProto.AppBreadcrumbReported;
+import com.android.os.AtomsProto.Atom;
+import com.android.os.StatsLog.EventMetricData;
+import com.android.os.StatsLog.GaugeMetricData;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * StatsdSession shares a single statsd config between all the statsd-based helpers.
+ *
+ * <p>Each {@link StatsdHelper} subscribes to the atoms it needs. The config holds the union of the
+ * subscribed atoms, and is only updated when a subscription adds new ones. The reports are pulled
+ * and parsed once, and each atom is handed to the subscriptions that asked for it:
+ *
+ * <ul>
+ *   <li>Event metrics are handed to the subscriptions started before the event was logged.
+ *   <li>Gauge metrics are handed to all the subscriptions for the atom. Each one triggers a gauge
+ *       snapshot when it starts and when it collects, so it gets the first and the last value.
+ * </ul>
+ *
+ * A pull is reused by the helpers that requested their collection before it started, e.g. when
+ * several helpers collect the end of a test concurrently, instead of pulling again. A helper
+ * requesting its collection after the last pull, e.g. a per run helper after the per test ones,
+ * pulls again so that it gets the events logged since.
+ *
+ * <p>The config is removed once all the subscriptions are closed.
+ */
+public class StatsdSession {
+    private static final String LOG_TAG = StatsdSession.class.getSimpleName();
+    private static final long MAX_ATOMS = 2000;
+    private static final int TRIGGER_ATOM_ID = Atom.APP_BREADCRUMB_REPORTED_FIELD_NUMBER;
+    // Metric ids are derived from the atom ids, so that they are stable across config updates.
+    @VisibleForTesting static final long EVENT_METRIC_ID_BASE = 1L << 32;
+    @VisibleForTesting static final long GAUGE_METRIC_ID_BASE = 2L << 32;
+
+    private static StatsdSession sInstance;
+
+    /** The atoms a helper is subscribed to, and the metrics handed to it but not yet collected. */
+    public static final class Subscription {
+        private final Set<Integer> mEventAtoms;
+        private final Set<Integer> mGaugeAtoms;
+        // Events logged before the subscription started are not handed to it.
+        private final long mStartNanos;
+        private final List<EventMetricData> mEventMetrics = new ArrayList<>();
+        private final List<GaugeMetricData> mGaugeMetrics = new ArrayList<>();
+
+        private Subscription(
+                Collection<Integer> eventAtoms, Collection<Integer> gaugeAtoms, long startNanos) {
+            mEventAtoms = new TreeSet<>(eventAtoms);
+            mGaugeAtoms = new TreeSet<>(gaugeAtoms);
+            mStartNanos = startNanos;
+        }
+    }
+
+    private final List<Subscription> mSubscriptions = new ArrayList<>();
+    // Atoms in the config registered with statsd.
+    private Set<Integer> mEventAtoms = new TreeSet<>();
+    private Set<Integer> mGaugeAtoms = new TreeSet<>();
+    private long mConfigId = -1;
+    // Time the last pull of the reports started, in elapsed realtime nanos.
+    private long mLastPullNanos = -1;
+
+    // Waits for statsd to collect the gauge metrics triggered by an AppBreadcrumbReported event.
+    private final BackoffPoller mPoller;
+    // Label of the last AppBreadcrumbReported event logged to trigger the gauge metrics.
+    private int mTriggerLabel = 0;
+    private boolean mPullFailed = false;
+
+    private StatsManager mStatsManager;
+
+    @VisibleForTesting
+    StatsdSession(BackoffPoller poller) {
+        mPoller = poller;
+    }
+
+    /** Returns the session shared by all the statsd-based helpers. */
+    public static synchronized StatsdSession getInstance() {
+        if (sInstance == null) {
+            sInstance = new StatsdSession(new BackoffPoller());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Subscribes to event metrics for {@code eventAtoms} and gauge metrics for {@code gaugeAtoms},
+     * updating the config if needed. Gauge metrics are triggered once before returning.
+     *
+     * @return the subscription, or null if the config could not be updated.
+     */
+    public synchronized Subscription subscribe(
+            Collection<Integer> eventAtoms, Collection<Integer> gaugeAtoms) {
+        Subscription subscription =
+                new Subscription(eventAtoms, gaugeAtoms, SystemClock.elapsedRealtimeNanos());
+        Set<Integer> newEventAtoms = new TreeSet<>(mEventAtoms);
+        Set<Integer> newGaugeAtoms = new TreeSet<>(mGaugeAtoms);
+        boolean updated = newEventAtoms.addAll(eventAtoms) | newGaugeAtoms.addAll(gaugeAtoms);
+
+        adoptShellIdentity();
+        try {
+            if (updated) {
+                long configId = mConfigId;
+                if (configId == -1) {
+                    configId = System.currentTimeMillis();
+                } else {
+                    // Hand out the metrics collected so far, as statsd resets the updated config.
+                    pullAndDispatch(-1);
+                }
+                addStatsConfig(configId, buildConfig(configId, newEventAtoms, newGaugeAtoms));
+                Log.i(LOG_TAG, "Successfully added config with config-id:" + configId);
+                mConfigId = configId;
+                mEventAtoms = newEventAtoms;
+                mGaugeAtoms = newGaugeAtoms;
+            }
+            mSubscriptions.add(subscription);
+            // Collect the gauge metrics before the test started.
+            if (!subscription.mGaugeAtoms.isEmpty() && !triggerGaugeMetrics()) {
+                mSubscriptions.remove(subscription);
+                return null;
+            }
+        } catch (StatsUnavailableException | IOException e) {
+            Log.e(LOG_TAG, "Not able to setup the config.", e);
+            return null;
+        } finally {
+            dropShellIdentity();
+        }
+        return subscription;
+    }
+
+    /**
+     * Returns the event metrics of {@code subscription} since it started or last collected. The
+     * reports are only pulled if no pull started since the collection was requested.
+     */
+    public List<EventMetricData> getEventMetrics(Subscription subscription) {
+        // Taken before waiting for a pull in progress, which started too early to be reused.
+        return getEventMetrics(subscription, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Returns the event metrics of {@code subscription} since it started or last collected,
+     * reusing the last pull if it started at or after {@code requestedNanos}.
+     *
+     * @param requestedNanos the elapsed realtime at which the collection was requested
+     */
+    @VisibleForTesting
+    synchronized List<EventMetricData> getEventMetrics(
+            Subscription subscription, long requestedNanos) {
+        List<EventMetricData> eventData = new ArrayList<>();
+        if (!mSubscriptions.contains(subscription)) {
+            return eventData;
+        }
+        if (mLastPullNanos < requestedNanos) {
+            adoptShellIdentity();
+            try {
+                pullAndDispatch(-1);
+            } catch (IOException | StatsUnavailableException se) {
+                Log.e(LOG_TAG, "Retreiving event metrics failed.", se);
+                return eventData;
+            } finally {
+                dropShellIdentity();
+            }
+        }
+        eventData.addAll(subscription.mEventMetrics);
+        subscription.mEventMetrics.clear();
+        return eventData;
+    }
+
+    /**
+     * Triggers the gauge metrics and returns those of {@code subscription} since it started or
+     * last collected, in the order they were collected.
+     */
+    public synchronized List<GaugeMetricData> getGaugeMetrics(Subscription subscription) {
+        List<GaugeMetricData> gaugeData = new ArrayList<>();
+        if (!mSubscriptions.contains(subscription)) {
+            return gaugeData;
+        }
+        adoptShellIdentity();
+        // Dump the the counters after the test completed.
+        boolean triggered = triggerGaugeMetrics();
+        dropShellIdentity();
+        if (!triggered) {
+            return gaugeData;
+        }
+        gaugeData.addAll(subscription.mGaugeMetrics);
+        subscription.mGaugeMetrics.clear();
+        return gaugeData;
+    }
+
+    /**
+     * Returns the time statsd took to process the last trigger of the gauge metrics, or -1 if it
+     * timed out.
+     */
+    public synchronized long getGaugeMetricsDelayMs() {
+        return mPoller.getLastDelayMs();
+    }
+
+    /**
+     * Closes {@code subscription}, and removes the config once no subscription is left.
+     *
+     * @return false if the config could not be removed.
+     */
+    public synchronized boolean unsubscribe(Subscription subscription) {
+        if (!mSubscriptions.remove(subscription) || !mSubscriptions.isEmpty()) {
+            return true;
+        }
+        Log.i(LOG_TAG, "Removing statsd config-id: " + mConfigId);
+        adoptShellIdentity();
+        try {
+            removeStatsConfig(mConfigId);
+            Log.i(LOG_TAG, "Successfully removed config-id: " + mConfigId);
+            return true;
+        } catch (StatsUnavailableException e) {
+            Log.e(LOG_TAG, String.format("Not able to remove the config-id: %d due to %s ",
+                    mConfigId, e.getMessage()));
+            return false;
+        } finally {
+            dropShellIdentity();
+            mConfigId = -1;
+            mEventAtoms = new TreeSet<>();
+            mGaugeAtoms = new TreeSet<>();
+        }
+    }
+
+    /**
+     * Logs an AppBreadcrumbReported event to trigger the gauge metrics, then pulls the reports
+     * with backoff until statsd has processed the event, instead of sleeping for a fixed delay.
+     *
+     * @return false if the reports could not be pulled.
+     */
+    private boolean triggerGaugeMetrics() {
+        // Each trigger uses its own label to tell it apart from the previous ones.
+        int label = ++mTriggerLabel;
+        mPullFailed = false;
+        logEvent(label);
+        if (!mPoller.poll(() -> pullUntilTriggered(label))) {
+            Log.w(LOG_TAG, "Timed out waiting for the gauge metrics. Metrics might be incomplete.");
+        } else {
+            Log.i(LOG_TAG, "Gauge metrics available after ms: " + mPoller.getLastDelayMs());
+        }
+        return !mPullFailed;
+    }
+
+    /**
+     * Pulls the reports and hands out their metrics.
+     *
+     * @return true if the trigger event with {@code label} was found or the pull failed, false
+     *     if it should be retried.
+     */
+    private boolean pullUntilTriggered(int label) {
+        try {
+            return pullAndDispatch(label);
+        } catch (IOException | StatsUnavailableException se) {
+            Log.e(LOG_TAG, "Retreiving gauge metrics failed.", se);
+            mPullFailed = true;
+            return true;
+        }
+    }
+
+    /**
+     * Pulls the reports of the config, which statsd clears once pulled, and hands each metric to
+     * the subscriptions for its atom. The reports are decoded one metric at a time, and only the
+     * subscribed atoms are parsed.
+     *
+     * @param triggerLabel label of the trigger event to look for, or -1
+     * @return true if the trigger event with {@code triggerLabel} was found
+     */
+    private boolean pullAndDispatch(int triggerLabel)
+            throws IOException, StatsUnavailableException {
+        StatsdReportDecoder decoder = new StatsdReportDecoder();
+        for (Integer atomId : mEventAtoms) {
+            decoder.addEventVisitor(atomId, Atom.parser(), this::dispatchEvent);
+        }
+        boolean[] triggered = {false};
+        if (triggerLabel != -1) {
+            decoder.addEventVisitor(TRIGGER_ATOM_ID, Atom.parser(), (metricId, timestamp, atom) -> {
+                AppBreadcrumbReported breadcrumb = atom.getAppBreadcrumbReported();
+                // Skip the "start" and "stop" events logged by others with the same label.
+                if (metricId == EVENT_METRIC_ID_BASE + TRIGGER_ATOM_ID
+                        && breadcrumb.getLabel() == triggerLabel
+                        && breadcrumb.getState() == AppBreadcrumbReported.State.UNSPECIFIED) {
+                    triggered[0] = true;
+                }
+            });
+        }
+        if (!mGaugeAtoms.isEmpty()) {
+            decoder.addGaugeVisitor(GaugeMetricData.parser(), this::dispatchGauge);
+        }
+        long pullNanos = SystemClock.elapsedRealtimeNanos();
+        decoder.decode(getStatsReports(mConfigId));
+        mLastPullNanos = pullNanos;
+        return triggered[0];
+    }
+
+    /** Hands an event to the subscriptions for its atom started before it was logged. */
+    private void dispatchEvent(long metricId, long timestampNanos, Atom atom) {
+        if (metricId < EVENT_METRIC_ID_BASE || metricId >= GAUGE_METRIC_ID_BASE) {
+            return;
+        }
+        int atomId = (int) (metricId - EVENT_METRIC_ID_BASE);
+        EventMetricData event = null;
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mEventAtoms.contains(atomId)
+                    && timestampNanos >= subscription.mStartNanos) {
+                if (event == null) {
+                    event = EventMetricData.newBuilder()
+                            .setElapsedTimestampNanos(timestampNanos)
+                            .setAtom(atom)
+                            .build();
+                }
+                subscription.mEventMetrics.add(event);
+            }
+        }
+    }
+
+    /** Hands the gauge data of a metric to the subscriptions for its atom. */
+    private void dispatchGauge(long metricId, GaugeMetricData data) {
+        if (metricId < GAUGE_METRIC_ID_BASE) {
+            return;
+        }
+        int atomId = (int) (metricId - GAUGE_METRIC_ID_BASE);
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mGaugeAtoms.contains(atomId)) {
+                subscription.mGaugeMetrics.add(data);
+            }
+        }
+    }
+
+    /** Builds the config for the given atoms. */
+    @VisibleForTesting
+    static StatsdConfig buildConfig(long configId, Set<Integer> eventAtoms,
+            Set<Integer> gaugeAtoms) {
+        StatsdConfig.Builder config = getSimpleSources(configId);
+        Set<Integer> matchedAtoms = new TreeSet<>(eventAtoms);
+        matchedAtoms.addAll(gaugeAtoms);
+        Set<Integer> eventMetricAtoms = new TreeSet<>(eventAtoms);
+        if (!gaugeAtoms.isEmpty()) {
+            // Needed for collecting gauge metric based on trigger events, and recording the
+            // trigger events to know when statsd has processed them.
+            matchedAtoms.add(TRIGGER_ATOM_ID);
+            eventMetricAtoms.add(TRIGGER_ATOM_ID);
+        }
+
+        for (Integer atomId : matchedAtoms) {
+            config.addAtomMatcher(AtomMatcher.newBuilder()
+                    .setId(atomId)
+                    .setSimpleAtomMatcher(SimpleAtomMatcher.newBuilder().setAtomId(atomId)));
+        }
+        for (Integer atomId : eventMetricAtoms) {
+            config.addEventMetric(EventMetric.newBuilder()
+                    .setId(EVENT_METRIC_ID_BASE + atomId)
+                    .setWhat(atomId));
+        }
+        for (Integer atomId : gaugeAtoms) {
+            config.addGaugeMetric(GaugeMetric.newBuilder()
+                    .setId(GAUGE_METRIC_ID_BASE + atomId)
+                    .setWhat(atomId)
+                    .setGaugeFieldsFilter(FieldFilter.newBuilder().setIncludeAll(true).build())
+                    .setMaxNumGaugeAtomsPerBucket(MAX_ATOMS)
+                    .setSamplingType(GaugeMetric.SamplingType.FIRST_N_SAMPLES)
+                    .setTriggerEvent(TRIGGER_ATOM_ID)
+                    .setBucket(TimeUnit.CTS));
+        }
+        return config.build();
+    }
+
+    /**
+     * List of authorized source that can write the information into statsd.
+     *
+     * @param configId unique id of the configuration tracked by StatsManager.
+     * @return
+     */
+    private static StatsdConfig.Builder getSimpleSources(long configId) {
+        return StatsdConfig.newBuilder().setId(configId)
+                .addAllowedLogSource("AID_ROOT")
+                .addAllowedLogSource("AID_SYSTEM")
+                .addAllowedLogSource("AID_RADIO")
+                .addAllowedLogSource("AID_BLUETOOTH")
+                .addAllowedLogSource("AID_GRAPHICS")
+                .addAllowedLogSource("AID_STATSD")
+                .addAllowedLogSource("AID_INCIENTD");
+    }
+
+    /**
+     * StatsManager used to configure, collect and remove the statsd config.
+     *
+     * @return StatsManager
+     */
+    private StatsManager getStatsManager() {
+        if (mStatsManager == null) {
+            mStatsManager = (StatsManager) InstrumentationRegistry.getTargetContext().
+                    getSystemService(Context.STATS_MANAGER);
+        }
+        return mStatsManager;
+    }
+
+    /**
+     * Forwarding logic for {@link StatsManager} as it is final and cannot be mocked.
+     */
+    @VisibleForTesting
+    protected void addStatsConfig(long configId, StatsdConfig config)
+            throws StatsUnavailableException {
+        getStatsManager().addConfig(configId, config.toByteArray());
+    }
+
+    /**
+     * Forwarding logic for {@link StatsManager} as it is final and cannot be mocked.
+     */
+    @VisibleForTesting
+    protected byte[] getStatsReports(long configId) throws StatsUnavailableException {
+        return getStatsManager().getReports(configId);
+    }
+
+    /**
+     * Forwarding logic for {@link StatsManager} as it is final and cannot be mocked.
+     */
+    @VisibleForTesting
+    protected void removeStatsConfig(long configId) throws StatsUnavailableException {
+        getStatsManager().removeConfig(configId);
+    }
+
+    /**
+     * Log an AppBreadcrumbReported event to statsd. Wraps a static method for testing.
+     */
+    @VisibleForTesting
+    protected void logEvent(int label) {
+        StatsLog.logEvent(label);
+    }
+
+    /**
+     * Adopts shell permission identity needed to access StatsManager service. Allows tests to
+     * stub out permission APIs.
+     */
+    @VisibleForTesting
+    protected void adoptShellIdentity() {
+        StatsdHelper.adoptShellIdentity();
+    }
+
+    /**
+     * Drop shell permission identity. Allows tests to stub out permission APIs.
+     */
+    @VisibleForTesting
+    protected void dropShellIdentity() {
+        StatsdHelper.dropShellIdentity();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Android Unit tests for {@link BackoffPoller}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.BackoffPollerTest
+ */
+@RunWith(JUnit4.class)
+public class BackoffPollerTest {
+
+    /** Poller with a fake clock that records its sleeps. */
+    private static class FakeClockPoller extends BackoffPoller {
+        private long mNowMs = 0;
+        private final List<Long> mSleeps = new ArrayList<>();
+
+        FakeClockPoller(long initialIntervalMs, long maxIntervalMs, long timeoutMs) {
+            super(initialIntervalMs, maxIntervalMs, timeoutMs);
+        }
+
+        @Override
+        protected long uptimeMillis() {
+            return mNowMs;
+        }
+
+        @Override
+        protected void sleep(long durationMs) {
+            mSleeps.add(durationMs);
+            mNowMs += durationMs;
+        }
+    }
+
+    /** Test that the condition is checked right away and the delay is reported. */
+    @Test
+    public void testPoll_metImmediately() {
+        FakeClockPoller poller = new FakeClockPoller(10, 100, 1000);
+        assertTrue(poller.poll(() -> true));
+        assertTrue(poller.mSleeps.isEmpty());
+        assertEquals(0, poller.getLastDelayMs());
+    }
+
+    /** Test that the interval doubles up to its maximum. */
+    @Test
+    public void testPoll_backoff() {
+        FakeClockPoller poller = new FakeClockPoller(10, 50, 1000);
+        int[] checks = {0};
+        assertTrue(poller.poll(() -> ++checks[0] == 6));
+        assertEquals(Arrays.asList(10L, 20L, 40L, 50L, 50L), poller.mSleeps);
+        assertEquals(170, poller.getLastDelayMs());
+    }
+
+    /** Test that polling stops at the timeout. */
+    @Test
+    public void testPoll_timeout() {
+        FakeClockPoller poller = new FakeClockPoller(10, 100, 100);
+        assertFalse(poller.poll(() -> false));
+        // The last sleep is cut short to end at the timeout.
+        assertEquals(Arrays.asList(10L, 20L, 40L, 30L), poller.mSleeps);
+        assertEquals(-1, poller.getLastDelayMs());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+
+/**
+ * Android Unit tests for {@link PackageNameCache}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.PackageNameCacheTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class PackageNameCacheTest {
+    private PackageNameCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = Mockito.spy(new PackageNameCache());
+        doNothing().when(mCache).registerPackageReceiver();
+        doReturn("com.android.shared:1000").when(mCache).resolvePackageName(1000);
+        doReturn(null).when(mCache).resolvePackageName(1001);
+    }
+
+    /** Test that each UID is only resolved once, including the ones without a package. */
+    @Test
+    public void testGetPackageName_cached() {
+        assertEquals("com.android.shared", mCache.getPackageName(1000));
+        assertEquals("com.android.shared", mCache.getPackageName(1000));
+        assertNull(mCache.getPackageName(1001));
+        assertNull(mCache.getPackageName(1001));
+        verify(mCache, times(1)).resolvePackageName(1000);
+        verify(mCache, times(1)).resolvePackageName(1001);
+        verify(mCache, times(1)).registerPackageReceiver();
+    }
+
+    /** Test that the invalidated UIDs are resolved again. */
+    @Test
+    public void testInvalidate() {
+        mCache.getPackageName(1000);
+        mCache.getPackageName(1001);
+        mCache.invalidate(1000);
+        mCache.getPackageName(1000);
+        mCache.getPackageName(1001);
+        verify(mCache, times(2)).resolvePackageName(1000);
+        verify(mCache, times(1)).resolvePackageName(1001);
+
+        // Without a UID, everything is dropped.
+        mCache.invalidate(-1);
+        mCache.getPackageName(1001);
+        verify(mCache, times(2)).resolvePackageName(1001);
+    }
+}
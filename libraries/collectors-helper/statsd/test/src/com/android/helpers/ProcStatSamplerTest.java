@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Android Unit tests for {@link ProcStatSampler}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.ProcStatSamplerTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProcStatSamplerTest {
+    private static final String PROC_STAT = "/proc/stat";
+    private static final String LIST_STAT_CMD = "cat /proc/[0-9]*/stat";
+    private static final Pattern SECTION_PID = Pattern.compile("echo '=== pid (\\d+)'");
+
+    // Contents of the fake /proc files by path.
+    private Map<String, String> mFiles;
+
+    @Before
+    public void setUp() {
+        mFiles = new TreeMap<>();
+    }
+
+    /** Test the utilization of the device, of each core and of each process. */
+    @Test
+    public void testCollectMetrics_utilization() {
+        ProcStatSampler sampler = newSampler(16);
+        setCpuTimes("50 0 50 400", "50 0 50 400");
+        setProcess(10, "my (app)", "/system/bin/com.android.app\0--flag\0", 10, 10);
+        setProcess(30, "idle", "idle_service\0", 5, 5);
+        sampler.sample();
+        setCpuTimes("150 0 100 750", "100 0 50 850");
+        setProcess(10, "my (app)", "/system/bin/com.android.app\0--flag\0", 60, 60);
+        setProcess(20, "kworker/0:1", "", 40, 10);
+        sampler.sample();
+
+        Map<String, Long> metrics = sampler.collectMetrics();
+        assertEquals(1, (long) metrics.get(ProcStatSampler.SAMPLE_COUNT));
+        assertEquals(20, (long) metrics.get(getKey(ProcStatSampler.TOTAL, ProcStatSampler.MEAN)));
+        assertEquals(30, (long) metrics.get(getKey("core_0", ProcStatSampler.MEAN)));
+        assertEquals(10, (long) metrics.get(getKey("core_1", ProcStatSampler.MEAN)));
+        assertEquals(
+                10, (long) metrics.get(getKey("proc_com.android.app", ProcStatSampler.MEAN)));
+        // Named after the base name of its first argument, as by ps and pidof.
+        assertFalse(metrics.containsKey(
+                getKey("proc_/system/bin/com.android.app", ProcStatSampler.MEAN)));
+        // Started after the first sample, and named after its command for a kernel thread.
+        assertEquals(5, (long) metrics.get(getKey("proc_kworker/0:1", ProcStatSampler.PEAK)));
+        // Did not run.
+        assertFalse(metrics.containsKey(getKey("proc_idle_service", ProcStatSampler.MEAN)));
+    }
+
+    /** Test that the mean and peak cover the samples taken since the previous collection. */
+    @Test
+    public void testCollectMetrics_meanAndPeak() {
+        ProcStatSampler sampler = newSampler(16);
+        setCpuTimes("0 0 0 500", "0 0 0 500");
+        setProcess(10, "app", "app\0", 0, 0);
+        sampler.sample();
+        setCpuTimes("50 0 0 950", "50 0 0 950");
+        setProcess(10, "app", "app\0", 100, 0);
+        sampler.sample();
+        setCpuTimes("200 0 0 1300", "200 0 0 1300");
+        setProcess(10, "app", "app\0", 400, 0);
+        sampler.sample();
+
+        Map<String, Long> metrics = sampler.collectMetrics();
+        assertEquals(2, (long) metrics.get(ProcStatSampler.SAMPLE_COUNT));
+        assertEquals(20, (long) metrics.get(getKey("proc_app", ProcStatSampler.MEAN)));
+        assertEquals(30, (long) metrics.get(getKey("proc_app", ProcStatSampler.PEAK)));
+
+        // Everything was collected already.
+        metrics = sampler.collectMetrics();
+        assertEquals(0, (long) metrics.get(ProcStatSampler.SAMPLE_COUNT));
+        assertFalse(metrics.containsKey(getKey("proc_app", ProcStatSampler.MEAN)));
+    }
+
+    /** Test that the oldest samples are dropped when the ring buffers are full. */
+    @Test
+    public void testCollectMetrics_dropped() {
+        ProcStatSampler sampler = newSampler(2);
+        for (int i = 0; i < 4; i++) {
+            setCpuTimes(i * 100 + " 0 0 500", i * 100 + " 0 0 500");
+            sampler.sample();
+        }
+
+        Map<String, Long> metrics = sampler.collectMetrics();
+        assertEquals(2, (long) metrics.get(ProcStatSampler.SAMPLE_COUNT));
+        assertEquals(1, (long) metrics.get(ProcStatSampler.DROPPED_COUNT));
+    }
+
+    /** Sets /proc/stat for two cores with the given "user nice system idle" times. */
+    private void setCpuTimes(String core0, String core1) {
+        String[] times0 = core0.split(" ");
+        String[] times1 = core1.split(" ");
+        StringBuilder total = new StringBuilder("cpu ");
+        for (int i = 0; i < times0.length; i++) {
+            total.append(' ').append(Long.parseLong(times0[i]) + Long.parseLong(times1[i]));
+        }
+        mFiles.put(
+                PROC_STAT,
+                String.format(
+                        "%s 0 0 0 0 0 0\ncpu0 %s 0 0 0 0 0 0\ncpu1 %s 0 0 0 0 0 0\n"
+                                + "intr 12345 0 0\nctxt 6789\n",
+                        total, core0, core1));
+    }
+
+    /** Sets the files of the process {@code pid}. */
+    private void setProcess(int pid, String comm, String cmdline, long utime, long stime) {
+        String dir = "/proc/" + pid;
+        mFiles.put(
+                dir + "/stat",
+                String.format(
+                        "%d (%s) S 1 %d %d 0 -1 4194560 100 0 0 0 %d %d 0 0 20 0 1 0 10\n",
+                        pid, comm, pid, pid, utime, stime));
+        mFiles.put(dir + "/cmdline", cmdline);
+    }
+
+    private static String getKey(String name, String suffix) {
+        return MetricUtility.constructKey(ProcStatSampler.SAMPLED_UTILIZATION, name, suffix);
+    }
+
+    /** Returns a sampler reading the fake /proc files. */
+    private ProcStatSampler newSampler(int capacity) {
+        ShellCommandExecutor executor = new ShellCommandExecutor(this::runCommand);
+        return new ProcStatSampler(executor, new ProcessTable(executor), capacity);
+    }
+
+    private String runCommand(String command) {
+        StringBuilder output = new StringBuilder();
+        if (ProcStatSampler.SAMPLE_CMD.equals(command) || LIST_STAT_CMD.equals(command)) {
+            if (ProcStatSampler.SAMPLE_CMD.equals(command)) {
+                output.append(mFiles.get(PROC_STAT));
+            }
+            for (Map.Entry<String, String> file : mFiles.entrySet()) {
+                if (file.getKey().endsWith("/stat") && !file.getKey().equals(PROC_STAT)) {
+                    output.append(file.getValue());
+                }
+            }
+            return output.toString();
+        }
+        Matcher matcher = SECTION_PID.matcher(command);
+        while (matcher.find()) {
+            String dir = "/proc/" + matcher.group(1);
+            String cmdline = mFiles.get(dir + "/cmdline");
+            output.append("=== pid ").append(matcher.group(1)).append('\n')
+                    .append(cmdline == null ? "" : cmdline).append('\n')
+                    .append(mFiles.getOrDefault(dir + "/stat", ""));
+        }
+        return output.toString();
+    }
+}
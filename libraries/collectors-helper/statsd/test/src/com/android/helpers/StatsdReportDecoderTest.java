@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.os.AtomsProto.ANROccurred;
+import com.android.os.AtomsProto.AppCrashOccurred;
+import com.android.os.AtomsProto.Atom;
+import com.android.os.AtomsProto.CpuTimePerUid;
+import com.android.os.StatsLog.ConfigMetricsReport;
+import com.android.os.StatsLog.ConfigMetricsReportList;
+import com.android.os.StatsLog.EventMetricData;
+import com.android.os.StatsLog.GaugeBucketInfo;
+import com.android.os.StatsLog.GaugeMetricData;
+import com.android.os.StatsLog.StatsLogReport;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Android Unit tests for {@link StatsdReportDecoder}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.StatsdReportDecoderTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class StatsdReportDecoderTest {
+    private static final long EVENT_METRIC_ID = 1;
+    private static final long GAUGE_METRIC_ID = 2;
+
+    private static final Atom CRASH =
+            Atom.newBuilder()
+                    .setAppCrashOccurred(AppCrashOccurred.newBuilder().setPackageName("pkg"))
+                    .build();
+    private static final Atom ANR =
+            Atom.newBuilder()
+                    .setAnrOccurred(ANROccurred.newBuilder().setProcessName("pkg"))
+                    .build();
+    private static final GaugeMetricData GAUGE =
+            GaugeMetricData.newBuilder()
+                    .addBucketInfo(
+                            GaugeBucketInfo.newBuilder()
+                                    .addAtom(
+                                            Atom.newBuilder()
+                                                    .setCpuTimePerUid(
+                                                            CpuTimePerUid.newBuilder()
+                                                                    .setUid(1000)
+                                                                    .setUserTimeMicros(5))))
+                    .build();
+
+    /** Test that only the atoms with a visitor are visited, in order, with their timestamps. */
+    @Test
+    public void testDecode_events() throws Exception {
+        List<Long> timestamps = new ArrayList<>();
+        List<Atom> atoms = new ArrayList<>();
+        StatsdReportDecoder decoder = new StatsdReportDecoder();
+        decoder.addEventVisitor(
+                Atom.APP_CRASH_OCCURRED_FIELD_NUMBER,
+                Atom.parser(),
+                (metricId, timestampNanos, atom) -> {
+                    assertEquals(EVENT_METRIC_ID, metricId);
+                    timestamps.add(timestampNanos);
+                    atoms.add(atom);
+                });
+
+        decoder.decode(getReportList().toByteArray());
+
+        assertEquals(3, atoms.size());
+        assertEquals(CRASH, atoms.get(0));
+        assertEquals(Long.valueOf(10), timestamps.get(0));
+        assertEquals(Long.valueOf(30), timestamps.get(1));
+        // From the second report.
+        assertEquals(Long.valueOf(10), timestamps.get(2));
+    }
+
+    /** Test that the gauge metrics are visited one dimension at a time. */
+    @Test
+    public void testDecode_gauges() throws Exception {
+        List<GaugeMetricData> gauges = new ArrayList<>();
+        StatsdReportDecoder decoder = new StatsdReportDecoder();
+        decoder.addGaugeVisitor(
+                GaugeMetricData.parser(),
+                (metricId, data) -> {
+                    assertEquals(GAUGE_METRIC_ID, metricId);
+                    gauges.add(data);
+                });
+
+        decoder.decode(getReportList().toByteArray());
+
+        assertEquals(2, gauges.size());
+        assertEquals(GAUGE, gauges.get(0));
+    }
+
+    /** Returns a report list with two reports, each holding an event and a gauge metric. */
+    private static ConfigMetricsReportList getReportList() {
+        StatsLogReport events =
+                StatsLogReport.newBuilder()
+                        .setMetricId(EVENT_METRIC_ID)
+                        .setEventMetrics(
+                                StatsLogReport.EventMetricDataWrapper.newBuilder()
+                                        .addData(getEvent(10, CRASH))
+                                        .addData(getEvent(20, ANR))
+                                        .addData(getEvent(30, CRASH)))
+                        .build();
+        StatsLogReport gauges =
+                StatsLogReport.newBuilder()
+                        .setMetricId(GAUGE_METRIC_ID)
+                        .setGaugeMetrics(
+                                StatsLogReport.GaugeMetricDataWrapper.newBuilder().addData(GAUGE))
+                        .build();
+        StatsLogReport laterEvents =
+                StatsLogReport.newBuilder()
+                        .setMetricId(EVENT_METRIC_ID)
+                        .setEventMetrics(
+                                StatsLogReport.EventMetricDataWrapper.newBuilder()
+                                        .addData(getEvent(10, CRASH)))
+                        .build();
+        return ConfigMetricsReportList.newBuilder()
+                .addReports(ConfigMetricsReport.newBuilder().addMetrics(events).addMetrics(gauges))
+                .addReports(
+                        ConfigMetricsReport.newBuilder()
+                                .addMetrics(laterEvents)
+                                .addMetrics(gauges))
+                .build();
+    }
+
+    private static EventMetricData getEvent(long timestampNanos, Atom atom) {
+        return EventMetricData.newBuilder()
+                .setElapsedTimestampNanos(timestampNanos)
+                .setAtom(atom)
+                .build();
+    }
+}
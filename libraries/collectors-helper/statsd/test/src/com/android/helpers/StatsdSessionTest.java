@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.os.SystemClock;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.StatsdConfigProto.StatsdConfig;
+import com.android.os.AtomsProto.ANROccurred;
+import com.android.os.AtomsProto.AppCrashOccurred;
+import com.android.os.AtomsProto.AppStartOccurred;
+import com.android.os.AtomsProto.Atom;
+import com.android.os.StatsLog.ConfigMetricsReport;
+import com.android.os.StatsLog.ConfigMetricsReportList;
+import com.android.os.StatsLog.EventMetricData;
+import com.android.os.StatsLog.StatsLogReport;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Android Unit tests for {@link StatsdSession}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.StatsdSessionTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class StatsdSessionTest {
+    private static final int CRASH_ATOM_ID = Atom.APP_CRASH_OCCURRED_FIELD_NUMBER;
+    private static final int ANR_ATOM_ID = Atom.ANR_OCCURRED_FIELD_NUMBER;
+    private static final int APP_START_ATOM_ID = Atom.APP_START_OCCURRED_FIELD_NUMBER;
+
+    private StatsdSession mSession;
+
+    @Before
+    public void setUp() throws Exception {
+        mSession = Mockito.spy(new StatsdSession(new BackoffPoller()));
+        // Stub statsd and the permission APIs.
+        doNothing().when(mSession).addStatsConfig(anyLong(), any());
+        doNothing().when(mSession).removeStatsConfig(anyLong());
+        doReturn(new byte[0]).when(mSession).getStatsReports(anyLong());
+        doNothing().when(mSession).logEvent(anyInt());
+        doNothing().when(mSession).adoptShellIdentity();
+        doNothing().when(mSession).dropShellIdentity();
+    }
+
+    /** Test that the atoms of all the subscriptions are merged into one config. */
+    @Test
+    public void testSubscribe_mergedConfig() throws Exception {
+        assertNotNull(mSession.subscribe(Arrays.asList(CRASH_ATOM_ID), Collections.emptyList()));
+        assertNotNull(mSession.subscribe(Arrays.asList(ANR_ATOM_ID), Collections.emptyList()));
+        // Already in the config.
+        assertNotNull(mSession.subscribe(Arrays.asList(CRASH_ATOM_ID), Collections.emptyList()));
+
+        ArgumentCaptor<Long> configId = ArgumentCaptor.forClass(Long.class);
+        ArgumentCaptor<StatsdConfig> config = ArgumentCaptor.forClass(StatsdConfig.class);
+        verify(mSession, times(2)).addStatsConfig(configId.capture(), config.capture());
+        assertEquals(configId.getAllValues().get(0), configId.getAllValues().get(1));
+        StatsdConfig merged = config.getAllValues().get(1);
+        assertEquals(2, merged.getEventMetricCount());
+        assertEquals(2, merged.getAtomMatcherCount());
+    }
+
+    /**
+     * Test that one pull is shared by the subscriptions requesting their collection before it,
+     * each getting its own atoms.
+     */
+    @Test
+    public void testGetEventMetrics_fanOut() throws Exception {
+        StatsdSession.Subscription crashes =
+                mSession.subscribe(Arrays.asList(CRASH_ATOM_ID), Collections.emptyList());
+        StatsdSession.Subscription anrs =
+                mSession.subscribe(Arrays.asList(ANR_ATOM_ID), Collections.emptyList());
+        long now = SystemClock.elapsedRealtimeNanos();
+        doReturn(getReport(
+                        getEventMetrics(CRASH_ATOM_ID, now, now),
+                        getEventMetrics(ANR_ATOM_ID, now))
+                .toByteArray())
+                .when(mSession)
+                .getStatsReports(anyLong());
+
+        long requested = SystemClock.elapsedRealtimeNanos();
+        assertEquals(2, mSession.getEventMetrics(crashes, requested).size());
+        assertEquals(1, mSession.getEventMetrics(anrs, requested).size());
+        verify(mSession, times(1)).getStatsReports(anyLong());
+
+        // The next collection pulls again.
+        assertEquals(2, mSession.getEventMetrics(crashes).size());
+        verify(mSession, times(2)).getStatsReports(anyLong());
+    }
+
+    /**
+     * Test that a collection at the end of the run, like that of AppStartupHelper, pulls again
+     * after the collections at the end of each test, like that of CrashHelper, and gets the events
+     * logged since.
+     */
+    @Test
+    public void testGetEventMetrics_perRunAfterPerTest() throws Exception {
+        StatsdSession.Subscription appStarts =
+                mSession.subscribe(Arrays.asList(APP_START_ATOM_ID), Collections.emptyList());
+        StatsdSession.Subscription crashes =
+                mSession.subscribe(
+                        Arrays.asList(CRASH_ATOM_ID, ANR_ATOM_ID), Collections.emptyList());
+        long now = SystemClock.elapsedRealtimeNanos();
+        doReturn(getReport(
+                        getEventMetrics(APP_START_ATOM_ID, now),
+                        getEventMetrics(CRASH_ATOM_ID, now))
+                .toByteArray())
+                .doReturn(getReport(getEventMetrics(APP_START_ATOM_ID, now + 1)).toByteArray())
+                .when(mSession)
+                .getStatsReports(anyLong());
+
+        // End of the test.
+        assertEquals(1, mSession.getEventMetrics(crashes).size());
+        // End of the run, after another app start.
+        assertEquals(2, mSession.getEventMetrics(appStarts).size());
+        verify(mSession, times(2)).getStatsReports(anyLong());
+    }
+
+    /** Test that events logged before a subscription started are not handed to it. */
+    @Test
+    public void testGetEventMetrics_beforeStart() throws Exception {
+        long before = SystemClock.elapsedRealtimeNanos();
+        StatsdSession.Subscription crashes =
+                mSession.subscribe(Arrays.asList(CRASH_ATOM_ID), Collections.emptyList());
+        long after = SystemClock.elapsedRealtimeNanos();
+        doReturn(getReport(getEventMetrics(CRASH_ATOM_ID, before - 1, after)).toByteArray())
+                .when(mSession)
+                .getStatsReports(anyLong());
+
+        List<EventMetricData> events = mSession.getEventMetrics(crashes);
+        assertEquals(1, events.size());
+        assertEquals(after, events.get(0).getElapsedTimestampNanos());
+    }
+
+    /** Test that the config is only removed with the last subscription. */
+    @Test
+    public void testUnsubscribe() throws Exception {
+        StatsdSession.Subscription crashes =
+                mSession.subscribe(Arrays.asList(CRASH_ATOM_ID), Collections.emptyList());
+        StatsdSession.Subscription anrs =
+                mSession.subscribe(Arrays.asList(ANR_ATOM_ID), Collections.emptyList());
+
+        assertTrue(mSession.unsubscribe(crashes));
+        verify(mSession, never()).removeStatsConfig(anyLong());
+        assertTrue(mSession.unsubscribe(anrs));
+        verify(mSession, times(1)).removeStatsConfig(anyLong());
+    }
+
+    /** Returns a report holding the given metrics. */
+    private static ConfigMetricsReportList getReport(StatsLogReport... metrics) {
+        return ConfigMetricsReportList.newBuilder()
+                .addReports(ConfigMetricsReport.newBuilder().addAllMetrics(Arrays.asList(metrics)))
+                .build();
+    }
+
+    /** Returns the event metrics of {@code atomId} logged at {@code timestamps}. */
+    private static StatsLogReport getEventMetrics(int atomId, long... timestamps) {
+        StatsLogReport.EventMetricDataWrapper.Builder events =
+                StatsLogReport.EventMetricDataWrapper.newBuilder();
+        for (long timestamp : timestamps) {
+            Atom.Builder atom = Atom.newBuilder();
+            if (atomId == CRASH_ATOM_ID) {
+                atom.setAppCrashOccurred(AppCrashOccurred.newBuilder().setPackageName("pkg"));
+            } else if (atomId == APP_START_ATOM_ID) {
+                atom.setAppStartOccurred(AppStartOccurred.newBuilder().setPkgName("pkg"));
+            } else {
+                atom.setAnrOccurred(ANROccurred.newBuilder().setProcessName("pkg"));
+            }
+            events.addData(
+                    EventMetricData.newBuilder()
+                            .setElapsedTimestampNanos(timestamp)
+                            .setAtom(atom));
+        }
+        return StatsLogReport.newBuilder()
+                .setMetricId(StatsdSession.EVENT_METRIC_ID_BASE + atomId)
+                .setEventMetrics(events)
+                .build();
+    }
+}
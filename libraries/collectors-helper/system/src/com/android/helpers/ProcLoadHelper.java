@@ -45,6 +45,7 @@ public class ProcLoadHelper implements ICollectorHelper<Double> {
     private long mProcLoadIntervalInMs = 500;
     private double mRecentLoad = 0;
     private UiDevice mDevice;
+    private ShellCommandExecutor mExecutor;
 
     /** Wait untill the proc/load reaches below the threshold or timeout expires */
     @Override
@@ -95,7 +96,7 @@ public class ProcLoadHelper implements ICollectorHelper<Double> {
      */
     private double getProcLoadInLastMinute() {
         try {
-            String output = getDevice().executeShellCommand(LOAD_CMD);
+            String output = getExecutor().execute(LOAD_CMD);
             Log.i(LOG_TAG, String.format("Output of proc_loadavg is : %s", output));
             // Output of the load command
             // 1.39 1.10 1.21 2/2679 6380
@@ -116,6 +117,14 @@ public class ProcLoadHelper implements ICollectorHelper<Double> {
         return -1;
     }
 
+    /** Returns the executor running shell commands on the {@link UiDevice} under test. */
+    private ShellCommandExecutor getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = new ShellCommandExecutor(getDevice()::executeShellCommand);
+        }
+        return mExecutor;
+    }
+
     /** Returns the {@link UiDevice} under test. */
     private UiDevice getDevice() {
         if (mDevice == null) {
@@ -4,9 +4,13 @@ import android.app.Instrumentation;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 /**
@@ -20,6 +24,20 @@ public class MetricUtility {
     private static final String METRIC_SEPARATOR = ",";
 
     public static final int BUFFER_SIZE = 1024;
+    // Size of the buffers used to stream command output, which can be many megabytes.
+    public static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // Copy buffer reused by every stream copy made on the same thread.
+    private static final ThreadLocal<byte[]> sStreamBuffer =
+            ThreadLocal.withInitial(() -> new byte[STREAM_BUFFER_SIZE]);
+
+    /** Consumes the output of a shell command as it is produced. */
+    public interface OutputConsumer {
+        /**
+         * Reads the command {@code output}. The stream is closed by the caller once this returns.
+         */
+        void consume(InputStream output) throws IOException;
+    }
 
     /**
      * Append the given array of string to construct the final key used to track the metrics.
@@ -57,26 +75,93 @@ public class MetricUtility {
     /**
      * Turn executeShellCommand into a blocking operation.
      *
+     * <p>The whole output is kept in memory; prefer {@link #executeCommandStreaming} for commands
+     * with large outputs.
+     *
      * @param command shell command to be executed.
      * @param instr used to run the shell command.
      * @return byte array of execution result
      */
     public static byte[] executeCommandBlocking(String command, Instrumentation instr) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean success =
+                executeCommandStreaming(
+                        command,
+                        instr,
+                        output -> {
+                            Log.i(TAG, "Start reading the data");
+                            copyStream(output, out);
+                            Log.i(TAG, "Stop reading the data");
+                        });
+        return success ? out.toByteArray() : null;
+    }
+
+    /**
+     * Execute a shell command and hand its output to {@code consumer} as it is produced, so that
+     * it can be parsed incrementally instead of being held in memory.
+     *
+     * @param command shell command to be executed.
+     * @param instr used to run the shell command.
+     * @param consumer reads the output of the command.
+     * @return true if the command output was fully consumed, false on error.
+     */
+    public static boolean executeCommandStreaming(
+            String command, Instrumentation instr, OutputConsumer consumer) {
         try (InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(instr.getUiAutomation()
-                .executeShellCommand(command));
-                ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            byte[] buf = new byte[BUFFER_SIZE];
-            int length;
-            Log.i(TAG, "Start reading the data");
-            while ((length = is.read(buf)) >= 0) {
-                out.write(buf, 0, length);
-            }
-            Log.i(TAG, "Stop reading the data");
-            return out.toByteArray();
+                .executeShellCommand(command))) {
+            consumer.consume(is);
+            return true;
         } catch (IOException e) {
             Log.e(TAG, "Error executing: " + command, e);
-            return null;
+            return false;
+        }
+    }
+
+    /**
+     * Execute a shell command and pass each line of its output to {@code consumer} as it is read.
+     *
+     * @param command shell command to be executed.
+     * @param instr used to run the shell command.
+     * @param consumer receives every line of the output, without line terminators.
+     * @return true if the command output was fully consumed, false on error.
+     */
+    public static boolean executeCommandLines(
+            String command, Instrumentation instr, ShellCommandExecutor.LineConsumer consumer) {
+        return executeCommandStreaming(command, instr, output -> readLines(output, consumer));
+    }
+
+    /**
+     * Pass each line of {@code input} to {@code consumer}, without line terminators.
+     *
+     * @param input stream to read as UTF-8 text.
+     * @param consumer receives every line.
+     */
+    public static void readLines(InputStream input, ShellCommandExecutor.LineConsumer consumer)
+            throws IOException {
+        BufferedReader reader =
+                new BufferedReader(
+                        new InputStreamReader(input, StandardCharsets.UTF_8), STREAM_BUFFER_SIZE);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            consumer.onLine(line);
+        }
+    }
+
+    /**
+     * Copy {@code in} to {@code out} with a {@link #STREAM_BUFFER_SIZE} buffer that is reused by
+     * every copy made on the same thread.
+     *
+     * @return the number of bytes copied.
+     */
+    public static long copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = sStreamBuffer.get();
+        long total = 0;
+        int length;
+        while ((length = in.read(buf)) >= 0) {
+            out.write(buf, 0, length);
+            total += length;
         }
+        return total;
     }
 
 }
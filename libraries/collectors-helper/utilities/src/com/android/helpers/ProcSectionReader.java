@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+/**
+ * ProcSectionReader reads the /proc files of many processes with a single shell command per
+ * batch of pids, instead of one command per process.
+ *
+ * <p>The files of each process follow a marker line with its pid, so that a process exiting while
+ * the command runs is left out rather than mixed up with the next one. The batches run
+ * concurrently, and the output of each is parsed line by line as it is streamed.
+ */
+public final class ProcSectionReader {
+    // Marks the start of the files of a process, followed by its pid.
+    private static final String SECTION_MARKER = "=== pid ";
+    private static final String MARKER_CMD = "echo '" + SECTION_MARKER + "%d'; ";
+
+    // Number of processes read by a single command, which keeps the command line short.
+    public static final int PIDS_PER_COMMAND = 64;
+
+    /** Parses the lines of the files of a single process. */
+    public interface Section<R> {
+        /** Called for each line following the marker of the process. */
+        void onLine(String line);
+
+        /**
+         * Called once all the lines were read.
+         *
+         * @return the result for the process, or null to leave it out, e.g. if it exited before
+         *     its files could be read.
+         */
+        R finish();
+    }
+
+    /** Creates the {@link Section} parsing the files of a process. */
+    public interface SectionFactory<R> {
+        Section<R> create(int pid);
+    }
+
+    private ProcSectionReader() {}
+
+    /**
+     * Reads the files of {@code pids}, running one command per {@link #PIDS_PER_COMMAND}
+     * processes concurrently on {@code executor}.
+     *
+     * @param command returns the commands reading the files of a pid, each ending with "; ".
+     *     Files without a trailing newline, such as cmdline, must be followed by an "echo; ".
+     * @param factory creates the parser of the files of each pid.
+     * @return the result of each process, keyed and ordered by pid. Processes whose section
+     *     returned null or whose batch failed are left out.
+     */
+    public static <R> Map<Integer, R> read(
+            ShellCommandExecutor executor,
+            Collection<Integer> pids,
+            IntFunction<String> command,
+            SectionFactory<R> factory) {
+        List<String> commands = new ArrayList<>();
+        StringBuilder batch = new StringBuilder();
+        int count = 0;
+        for (int pid : pids) {
+            batch.append(String.format(MARKER_CMD, pid)).append(command.apply(pid));
+            if (++count % PIDS_PER_COMMAND == 0) {
+                commands.add(batch.toString().trim());
+                batch = new StringBuilder();
+            }
+        }
+        if (count % PIDS_PER_COMMAND != 0) {
+            commands.add(batch.toString().trim());
+        }
+
+        Map<String, Map<Integer, R>> outputs =
+                executor.executeAll(
+                        commands,
+                        batchCommand -> {
+                            BatchParser<R> parser = new BatchParser<>(factory);
+                            executor.execute(batchCommand, parser::onLine);
+                            return parser.finish();
+                        });
+        Map<Integer, R> results = new TreeMap<>();
+        for (Map<Integer, R> output : outputs.values()) {
+            results.putAll(output);
+        }
+        return results;
+    }
+
+    /** Splits the output of a batch into the sections of its processes. */
+    private static final class BatchParser<R> {
+        private final SectionFactory<R> mFactory;
+        private final Map<Integer, R> mResults = new LinkedHashMap<>();
+        private Section<R> mCurrent;
+        private int mCurrentPid;
+
+        BatchParser(SectionFactory<R> factory) {
+            mFactory = factory;
+        }
+
+        void onLine(String line) {
+            if (line.startsWith(SECTION_MARKER)) {
+                finishCurrent();
+                mCurrentPid = parsePid(line.substring(SECTION_MARKER.length()));
+                mCurrent = mCurrentPid > 0 ? mFactory.create(mCurrentPid) : null;
+            } else if (mCurrent != null) {
+                mCurrent.onLine(line);
+            }
+        }
+
+        Map<Integer, R> finish() {
+            finishCurrent();
+            return mResults;
+        }
+
+        private void finishCurrent() {
+            if (mCurrent != null) {
+                R result = mCurrent.finish();
+                if (result != null) {
+                    mResults.put(mCurrentPid, result);
+                }
+            }
+            mCurrent = null;
+        }
+    }
+
+    /** Parses the pid following a marker, or returns -1 if it is not one. */
+    private static int parsePid(String entry) {
+        String trimmed = entry.trim();
+        if (trimmed.isEmpty() || trimmed.length() > 9) {
+            return -1;
+        }
+        int pid = 0;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            pid = pid * 10 + (c - '0');
+        }
+        return pid;
+    }
+}
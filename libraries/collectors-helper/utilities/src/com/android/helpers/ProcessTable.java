@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * ProcessTable resolves process names to pids for all the collector helpers, replacing a "pidof"
+ * or "ps" command per process and sample with a shared cache of /proc.
+ *
+ * <p>Each refresh reads the stat of every process with a single command, and compares the start
+ * time of each pid with the cached one, so that a pid reused by a new process is never reported
+ * under the name of the process that exited. Only the cmdline of the pids that appeared or were
+ * reused since the previous refresh is read. Lookups within {@link #setMaxAgeMs} of the last
+ * refresh, e.g. from several helpers sampling at the same time, are answered from the cache.
+ *
+ * <p>The tables returned by {@link #getInstance} share their cache, but each reads /proc with the
+ * executor it was created with, so a helper never runs its commands on another helper's executor.
+ *
+ * Example Usage:
+ * ProcessTable table = ProcessTable.getInstance(executor);
+ * List<Integer> pids = table.getPids("com.android.systemui");
+ */
+public class ProcessTable {
+    private static final String TAG = ProcessTable.class.getSimpleName();
+
+    // Command to read the stat of every process, one per line.
+    private static final String LIST_STAT_CMD = "cat /proc/[0-9]*/stat";
+    // Reads the files of a process. cmdline is NUL separated without a trailing newline, so one
+    // is added to keep the stat on its own line.
+    private static final String PROCESS_CMD = "cat /proc/%1$d/cmdline; echo; cat /proc/%1$d/stat; ";
+    // Indexes of the parent pid and start time among the /proc/<pid>/stat fields that follow the
+    // command name.
+    private static final int STAT_PARENT_PID_INDEX = 1;
+    private static final int STAT_START_TIME_INDEX = 19;
+
+    // Default time in ms during which lookups are answered without refreshing the table.
+    public static final long DEFAULT_MAX_AGE_MS = 500;
+
+    private static final Cache sSharedCache = new Cache();
+
+    /** A process found in /proc. */
+    public static final class ProcessInfo {
+        private final int mPid;
+        private final String mName;
+        private final int mParentPid;
+        private final long mStartTime;
+
+        ProcessInfo(int pid, String name, int parentPid, long startTime) {
+            mPid = pid;
+            mName = name;
+            mParentPid = parentPid;
+            mStartTime = startTime;
+        }
+
+        public int getPid() {
+            return mPid;
+        }
+
+        /** Returns the name as reported by ps and pidof, or null for kernel threads. */
+        public String getName() {
+            return mName;
+        }
+
+        /** Returns the pid of the parent process, or 0 for init and kthreadd. */
+        public int getParentPid() {
+            return mParentPid;
+        }
+
+        /** Returns the time the process started after boot, in clock ticks. */
+        public long getStartTime() {
+            return mStartTime;
+        }
+    }
+
+    /** The processes read from /proc, guarded by itself. */
+    private static final class Cache {
+        private final Map<Integer, ProcessInfo> mProcesses = new TreeMap<>();
+        private long mMaxAgeMs = DEFAULT_MAX_AGE_MS;
+        private long mLastRefresh = -1;
+    }
+
+    private final ShellCommandExecutor mExecutor;
+    private final Cache mCache;
+
+    /**
+     * Returns a table reading /proc with {@code executor}, sharing its cache with the tables of
+     * all the other helpers.
+     */
+    public static ProcessTable getInstance(ShellCommandExecutor executor) {
+        return new ProcessTable(executor, sSharedCache);
+    }
+
+    /** Creates a table with a cache of its own, reading /proc with {@code executor}. */
+    public ProcessTable(ShellCommandExecutor executor) {
+        this(executor, new Cache());
+    }
+
+    private ProcessTable(ShellCommandExecutor executor, Cache cache) {
+        mExecutor = executor;
+        mCache = cache;
+    }
+
+    /**
+     * Sets the time in ms during which lookups are answered without refreshing the table. This
+     * applies to all the tables sharing its cache.
+     */
+    public void setMaxAgeMs(long maxAgeMs) {
+        synchronized (mCache) {
+            mCache.mMaxAgeMs = maxAgeMs;
+        }
+    }
+
+    /** Makes the next lookup refresh the table, e.g. after processes were killed or started. */
+    public void invalidate() {
+        synchronized (mCache) {
+            mCache.mLastRefresh = -1;
+        }
+    }
+
+    /** Returns the pids of the processes named {@code processName}, in ascending order. */
+    public List<Integer> getPids(String processName) {
+        return getPids(Collections.singleton(processName)).get(processName);
+    }
+
+    /**
+     * Returns the pids of the processes with each of the {@code processNames}, in ascending order
+     * and empty for the names that are not running.
+     */
+    public Map<String, List<Integer>> getPids(Collection<String> processNames) {
+        Map<String, List<Integer>> pids = new LinkedHashMap<>();
+        for (Map.Entry<String, List<ProcessInfo>> entry : getProcesses(processNames).entrySet()) {
+            List<Integer> namePids = new ArrayList<>();
+            for (ProcessInfo info : entry.getValue()) {
+                namePids.add(info.getPid());
+            }
+            pids.put(entry.getKey(), namePids);
+        }
+        return pids;
+    }
+
+    /**
+     * Returns the processes with each of the {@code processNames}, in ascending pid order and
+     * empty for the names that are not running.
+     */
+    public Map<String, List<ProcessInfo>> getProcesses(Collection<String> processNames) {
+        Set<String> names = new HashSet<>(processNames);
+        Map<String, List<ProcessInfo>> processes = new LinkedHashMap<>();
+        for (String name : processNames) {
+            processes.put(name, new ArrayList<>());
+        }
+        synchronized (mCache) {
+            refresh();
+            for (ProcessInfo info : mCache.mProcesses.values()) {
+                if (info.getName() != null && names.contains(info.getName())) {
+                    processes.get(info.getName()).add(info);
+                }
+            }
+        }
+        return processes;
+    }
+
+    /**
+     * Returns the processes with each of the {@code pids}, leaving out the pids that are not
+     * running. The table is refreshed if any of the pids is not cached, even within the max age,
+     * as the process started since the last refresh.
+     */
+    public Map<Integer, ProcessInfo> getProcessesByPid(Collection<Integer> pids) {
+        Map<Integer, ProcessInfo> processes = new TreeMap<>();
+        synchronized (mCache) {
+            if (!mCache.mProcesses.keySet().containsAll(pids)) {
+                mCache.mLastRefresh = -1;
+            }
+            refresh();
+            for (int pid : pids) {
+                ProcessInfo info = mCache.mProcesses.get(pid);
+                if (info != null) {
+                    processes.put(pid, info);
+                }
+            }
+        }
+        return processes;
+    }
+
+    /** Returns the process with {@code pid} as of the last refresh, or null if there is none. */
+    public ProcessInfo getProcess(int pid) {
+        synchronized (mCache) {
+            return mCache.mProcesses.get(pid);
+        }
+    }
+
+    /** Returns the names of all the user space processes, in ascending order of their pids. */
+    public Set<String> getProcessNames() {
+        Set<String> names = new LinkedHashSet<>();
+        synchronized (mCache) {
+            refresh();
+            for (ProcessInfo info : mCache.mProcesses.values()) {
+                if (info.getName() != null) {
+                    names.add(info.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Updates the table from /proc unless it is recent enough, validating the start time of every
+     * cached pid and reading the pids that appeared or were reused since the last refresh. Must
+     * be called with the cache locked.
+     */
+    private void refresh() {
+        Map<Integer, ProcessInfo> processes = mCache.mProcesses;
+        long now = SystemClock.uptimeMillis();
+        if (mCache.mLastRefresh >= 0 && now - mCache.mLastRefresh < mCache.mMaxAgeMs) {
+            return;
+        }
+        Map<Integer, Long> startTimes = new HashMap<>();
+        try {
+            mExecutor.execute(
+                    LIST_STAT_CMD,
+                    line -> {
+                        int pid = parsePid(line.substring(0, Math.max(0, line.indexOf(" ("))));
+                        long startTime = parseStatField(line, STAT_START_TIME_INDEX);
+                        if (pid > 0 && startTime >= 0) {
+                            startTimes.put(pid, startTime);
+                        }
+                    });
+        } catch (IOException | RuntimeException e) {
+            // The shell may be unavailable, e.g. if the UiAutomation is not connected.
+            Log.e(TAG, "Unable to read the processes in /proc.", e);
+            return;
+        }
+        processes.keySet().retainAll(startTimes.keySet());
+
+        List<Integer> toRead = new ArrayList<>();
+        for (Map.Entry<Integer, Long> entry : startTimes.entrySet()) {
+            ProcessInfo cached = processes.get(entry.getKey());
+            if (cached == null || cached.getStartTime() != entry.getValue()) {
+                toRead.add(entry.getKey());
+            }
+        }
+        Collections.sort(toRead);
+        Map<Integer, ProcessInfo> read = readProcesses(toRead);
+        for (int pid : toRead) {
+            ProcessInfo info = read.get(pid);
+            // Processes that exited since their stat was read are dropped.
+            ProcessInfo cached = info == null ? processes.remove(pid) : processes.put(pid, info);
+            if (cached != null && info != null) {
+                Log.i(TAG, String.format("Pid %d was reused by %s, previously %s.",
+                        pid, info.getName(), cached.getName()));
+            }
+        }
+        mCache.mLastRefresh = now;
+    }
+
+    /** Reads the cmdline and stat of {@code pids}, one command per batch run concurrently. */
+    private Map<Integer, ProcessInfo> readProcesses(List<Integer> pids) {
+        return ProcSectionReader.read(
+                mExecutor,
+                pids,
+                pid -> String.format(PROCESS_CMD, pid),
+                pid ->
+                        new ProcSectionReader.Section<ProcessInfo>() {
+                            private final List<String> mLines = new ArrayList<>();
+
+                            @Override
+                            public void onLine(String line) {
+                                mLines.add(line);
+                            }
+
+                            @Override
+                            public ProcessInfo finish() {
+                                return parseProcess(pid, mLines);
+                            }
+                        });
+    }
+
+    /**
+     * Parses the lines following the marker of a process, i.e. its cmdline and its stat, e.g.
+     * "/system/bin/init\0second_stage\0" and "1 (init) S 0 0 0 ...". The stat is missing if the
+     * process exited before it was read, in which case null is returned.
+     */
+    private static ProcessInfo parseProcess(int pid, List<String> lines) {
+        if (lines.size() < 2) {
+            return null;
+        }
+        String stat = lines.get(lines.size() - 1);
+        if (!stat.startsWith(pid + " (")) {
+            return null;
+        }
+        long parentPid = parseStatField(stat, STAT_PARENT_PID_INDEX);
+        long startTime = parseStatField(stat, STAT_START_TIME_INDEX);
+        if (parentPid < 0 || startTime < 0) {
+            return null;
+        }
+        // The arguments may hold newlines, so cmdline is everything up to the stat.
+        String cmdline = String.join("\n", lines.subList(0, lines.size() - 1));
+        // The name is the base name of the first argument, as reported by ps and pidof.
+        int argEnd = cmdline.indexOf('\0');
+        if (argEnd < 0) {
+            argEnd = cmdline.length();
+        }
+        int nameStart = cmdline.lastIndexOf('/', argEnd - 1) + 1;
+        String name = nameStart < argEnd ? cmdline.substring(nameStart, argEnd) : null;
+        return new ProcessInfo(pid, name, (int) parentPid, startTime);
+    }
+
+    /**
+     * Parses the numeric field at {@code index} after the command name out of a /proc/<pid>/stat
+     * line, e.g. "1 (init) S 0 0 0 ...", or returns -1 if the line is not a stat.
+     */
+    private static long parseStatField(String stat, int index) {
+        // The command name may hold spaces and parentheses, but the state follows the last one.
+        int commEnd = stat.lastIndexOf(')');
+        if (commEnd < 0) {
+            return -1;
+        }
+        String[] fields = stat.substring(commEnd + 1).trim().split(" ");
+        if (fields.length <= index) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fields[index]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Parses a /proc entry as a pid, or returns -1 if it is not one. */
+    private static int parsePid(String entry) {
+        String trimmed = entry.trim();
+        if (trimmed.isEmpty() || trimmed.length() > 9) {
+            return -1;
+        }
+        int pid = 0;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            pid = pid * 10 + (c - '0');
+        }
+        return pid;
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.app.Instrumentation;
+import android.app.UiAutomation;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ShellCommandExecutor runs the shell commands of collector helpers on a bounded pool of worker
+ * threads shared by every executor, so that per-process commands are issued concurrently and a
+ * batch of processes takes roughly as long as its slowest command.
+ *
+ * <p>Commands started from {@link #executeAll} tasks are abandoned if they run for longer than
+ * the timeout, and every command is counted and timed. A blocking shell read can not be
+ * interrupted, so the pool thread of an abandoned command is replaced until the command returns.
+ * Tasks are also abandoned if they stay queued for longer than the pool takes to get to them
+ * when every command ahead of them times out.
+ *
+ * Example Usage:
+ * ShellCommandExecutor executor = new ShellCommandExecutor(uiDevice::executeShellCommand);
+ * Map<String, String> pids = executor.executeAll(
+ *         processNames, name -> executor.execute("pidof " + name));
+ */
+public class ShellCommandExecutor {
+    private static final String TAG = ShellCommandExecutor.class.getSimpleName();
+
+    // Maximum number of commands run at the same time across all executors.
+    public static final int POOL_SIZE = 8;
+    // Maximum number of extra threads replacing the ones stuck in abandoned commands.
+    public static final int MAX_REPLACED_THREADS = 4 * POOL_SIZE;
+    // Default time a single command may run for before it is abandoned.
+    public static final long DEFAULT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(60);
+
+    private static final Object sPoolLock = new Object();
+    private static ThreadPoolExecutor sPool;
+    // Number of pool threads stuck in abandoned commands.
+    private static int sAbandonedThreads = 0;
+
+    // The task run by the current pool thread, if any.
+    private static final ThreadLocal<TaskState> sTaskState = new ThreadLocal<>();
+
+    // Command start time of a task waiting for a pool thread.
+    private static final long QUEUED = -1;
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int ABANDONED = 2;
+
+    /** Progress of a task of {@link #executeAll}, shared by its pool thread and the caller. */
+    private static class TaskState {
+        // Start time of the running command, 0 between commands, or QUEUED.
+        private final AtomicLong mCommandStart = new AtomicLong(QUEUED);
+        // Time by which the task must have left the queue.
+        private final long mQueueDeadline;
+        // RUNNING until the task completes, or its caller abandons it.
+        private final AtomicInteger mOwnership = new AtomicInteger(RUNNING);
+
+        private TaskState(long queueDeadline) {
+            mQueueDeadline = queueDeadline;
+        }
+    }
+
+    /** Runs a shell command and returns its whole output. */
+    public interface CommandRunner {
+        String run(String command) throws IOException;
+    }
+
+    /** Runs a shell command and returns a stream of its output, to be closed by the caller. */
+    public interface StreamingCommandRunner {
+        InputStream open(String command) throws IOException;
+    }
+
+    /** Receives the output of a command one line at a time, as it is read. */
+    public interface LineConsumer {
+        void onLine(String line);
+    }
+
+    /** The work done for one item of {@link #executeAll}, usually issuing one or more commands. */
+    public interface Task<T, R> {
+        R run(T item) throws IOException;
+    }
+
+    private final CommandRunner mRunner;
+    private final StreamingCommandRunner mStreamingRunner;
+    private long mTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+    private final AtomicLong mCommandCount = new AtomicLong();
+    private final AtomicLong mFailureCount = new AtomicLong();
+    private final AtomicLong mTimeoutCount = new AtomicLong();
+    private final AtomicLong mTotalLatencyMs = new AtomicLong();
+    private final AtomicLong mMaxLatencyMs = new AtomicLong();
+
+    /**
+     * Creates an executor that runs commands with {@code runner}, e.g. {@code
+     * UiDevice::executeShellCommand}. Line consumers are only called once a command completes.
+     */
+    public ShellCommandExecutor(CommandRunner runner) {
+        mRunner = runner;
+        mStreamingRunner = null;
+    }
+
+    /**
+     * Creates an executor that runs commands through {@code uiAutomation}, streaming their output
+     * to consumers as it is produced.
+     */
+    public ShellCommandExecutor(UiAutomation uiAutomation) {
+        mRunner = null;
+        mStreamingRunner =
+                command ->
+                        new ParcelFileDescriptor.AutoCloseInputStream(
+                                uiAutomation.executeShellCommand(command));
+    }
+
+    /**
+     * Creates an executor that runs commands through the {@code UiAutomation} of {@code
+     * instrumentation}, streaming their output to line consumers as it is produced.
+     */
+    public ShellCommandExecutor(Instrumentation instrumentation) {
+        mRunner = null;
+        mStreamingRunner =
+                command ->
+                        new ParcelFileDescriptor.AutoCloseInputStream(
+                                instrumentation.getUiAutomation().executeShellCommand(command));
+    }
+
+    /** Sets the time in ms a single command may run for before it is abandoned. */
+    public void setTimeoutMs(long timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    /** Runs {@code command} on the calling thread and returns its whole output. */
+    public String execute(String command) throws IOException {
+        if (mStreamingRunner == null) {
+            return time(command, () -> mRunner.run(command));
+        }
+        return time(
+                command,
+                () -> {
+                    try (InputStream in = mStreamingRunner.open(command);
+                            ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+                        MetricUtility.copyStream(in, out);
+                        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+                    }
+                });
+    }
+
+    /** Runs {@code command} on the calling thread and passes each line to {@code consumer}. */
+    public void execute(String command, LineConsumer consumer) throws IOException {
+        time(
+                command,
+                () -> {
+                    if (mStreamingRunner == null) {
+                        for (String line : mRunner.run(command).split("\n")) {
+                            consumer.onLine(line);
+                        }
+                        return null;
+                    }
+                    try (InputStream in = mStreamingRunner.open(command)) {
+                        MetricUtility.readLines(in, consumer);
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Runs {@code command} on the calling thread and hands its output to {@code consumer}, as it
+     * is produced if the executor was created from an {@code Instrumentation}.
+     */
+    public void executeStreaming(String command, MetricUtility.OutputConsumer consumer)
+            throws IOException {
+        time(
+                command,
+                () -> {
+                    try (InputStream in =
+                            mStreamingRunner == null
+                                    ? new ByteArrayInputStream(
+                                            mRunner.run(command).getBytes(StandardCharsets.UTF_8))
+                                    : mStreamingRunner.open(command)) {
+                        consumer.consume(in);
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Runs {@code task} for every item concurrently on the shared pool and waits for all of them.
+     * Failed and timed out items are logged and left out of the result.
+     *
+     * @return the result of each successful task, in the iteration order of {@code items}.
+     */
+    public <T, R> Map<T, R> executeAll(Collection<T> items, Task<T, R> task) {
+        return executeAll(items, task, new LinkedHashMap<>());
+    }
+
+    /**
+     * Runs {@code task} for every item concurrently on the shared pool and waits for all of them.
+     *
+     * @param failures receives the exception of every item that failed or timed out, which is
+     *     left out of the result.
+     * @return the result of each successful task, in the iteration order of {@code items}.
+     */
+    public <T, R> Map<T, R> executeAll(
+            Collection<T> items, Task<T, R> task, Map<T, Exception> failures) {
+        if (sTaskState.get() != null) {
+            // Already on a pool thread, where waiting for other pool threads could deadlock.
+            return executeInline(items, task, failures);
+        }
+        List<T> submitted = new ArrayList<>(items.size());
+        List<TaskState> states = new ArrayList<>(items.size());
+        List<Future<R>> futures = new ArrayList<>(items.size());
+        long submitTime = SystemClock.uptimeMillis();
+        for (T item : items) {
+            // At worst, every command ahead of this one in the queue times out.
+            TaskState state =
+                    new TaskState(submitTime + mTimeoutMs * (1 + submitted.size() / POOL_SIZE));
+            submitted.add(item);
+            states.add(state);
+            futures.add(
+                    getPool()
+                            .submit(
+                                    () -> {
+                                        state.mCommandStart.set(0);
+                                        sTaskState.set(state);
+                                        try {
+                                            return task.run(item);
+                                        } finally {
+                                            sTaskState.remove();
+                                            if (!state.mOwnership.compareAndSet(RUNNING, DONE)) {
+                                                releaseThread();
+                                            }
+                                        }
+                                    }));
+        }
+        Map<T, R> results = new LinkedHashMap<>();
+        for (int i = 0; i < futures.size(); i++) {
+            T item = submitted.get(i);
+            TaskState state = states.get(i);
+            try {
+                results.put(item, await(futures.get(i), state));
+            } catch (TimeoutException e) {
+                futures.get(i).cancel(true);
+                // A task cancelled while queued never runs, otherwise its thread may be stuck.
+                if (state.mCommandStart.get() != QUEUED
+                        && state.mOwnership.compareAndSet(RUNNING, ABANDONED)) {
+                    abandonThread();
+                }
+                mTimeoutCount.incrementAndGet();
+                Log.e(TAG, String.format("Timed out running commands for %s.", item), e);
+                failures.put(item, e);
+            } catch (ExecutionException e) {
+                Exception cause =
+                        e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                Log.e(TAG, String.format("Failed to run commands for %s.", item), cause);
+                failures.put(item, cause);
+            } catch (InterruptedException | CancellationException e) {
+                Log.e(TAG, String.format("Interrupted running commands for %s.", item), e);
+                failures.put(item, e);
+                futures.get(i).cancel(true);
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return results;
+    }
+
+    /** Runs {@code task} for every item in turn on the calling thread. */
+    private <T, R> Map<T, R> executeInline(
+            Collection<T> items, Task<T, R> task, Map<T, Exception> failures) {
+        Map<T, R> results = new LinkedHashMap<>();
+        for (T item : items) {
+            try {
+                results.put(item, task.run(item));
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, String.format("Failed to run commands for %s.", item), e);
+                failures.put(item, e);
+            }
+        }
+        return results;
+    }
+
+    /** Returns the number of commands run since the last {@link #resetCounters()}. */
+    public long getCommandCount() {
+        return mCommandCount.get();
+    }
+
+    /** Returns the number of commands that threw since the last {@link #resetCounters()}. */
+    public long getFailureCount() {
+        return mFailureCount.get();
+    }
+
+    /** Returns the number of tasks abandoned after a timeout since the last reset. */
+    public long getTimeoutCount() {
+        return mTimeoutCount.get();
+    }
+
+    /** Returns the summed duration in ms of all commands since the last reset. */
+    public long getTotalLatencyMs() {
+        return mTotalLatencyMs.get();
+    }
+
+    /** Returns the duration in ms of the slowest command since the last reset. */
+    public long getMaxLatencyMs() {
+        return mMaxLatencyMs.get();
+    }
+
+    /** Resets all the command counters to zero. */
+    public void resetCounters() {
+        mCommandCount.set(0);
+        mFailureCount.set(0);
+        mTimeoutCount.set(0);
+        mTotalLatencyMs.set(0);
+        mMaxLatencyMs.set(0);
+    }
+
+    /**
+     * Waits for {@code future}, allowing each command it runs up to the timeout from the moment
+     * the command starts, and the task up to its queue deadline to get a pool thread.
+     */
+    private <R> R await(Future<R> future, TaskState state)
+            throws ExecutionException, InterruptedException, TimeoutException {
+        while (true) {
+            long commandStart = state.mCommandStart.get();
+            long now = SystemClock.uptimeMillis();
+            long wait;
+            if (commandStart == QUEUED) {
+                wait = state.mQueueDeadline - now;
+            } else if (commandStart == 0) {
+                wait = mTimeoutMs;
+            } else {
+                wait = commandStart + mTimeoutMs - now;
+            }
+            try {
+                return future.get(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                long latestStart = state.mCommandStart.get();
+                now = SystemClock.uptimeMillis();
+                if (latestStart == QUEUED && now >= state.mQueueDeadline) {
+                    throw e;
+                }
+                // Keep waiting while the task has moved on to another command.
+                if (latestStart > 0
+                        && latestStart == commandStart
+                        && now - latestStart >= mTimeoutMs) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** The body of a single command, timed by {@link #time}. */
+    private interface Command<R> {
+        R run() throws IOException;
+    }
+
+    /** Runs {@code body} for {@code command} and updates the counters. */
+    private <R> R time(String command, Command<R> body) throws IOException {
+        TaskState state = sTaskState.get();
+        AtomicLong taskStart = state == null ? null : state.mCommandStart;
+        long start = SystemClock.uptimeMillis();
+        if (taskStart != null) {
+            taskStart.set(start);
+        }
+        try {
+            return body.run();
+        } catch (IOException | RuntimeException e) {
+            mFailureCount.incrementAndGet();
+            throw e;
+        } finally {
+            long latency = SystemClock.uptimeMillis() - start;
+            mCommandCount.incrementAndGet();
+            mTotalLatencyMs.addAndGet(latency);
+            mMaxLatencyMs.accumulateAndGet(latency, Math::max);
+            if (taskStart != null) {
+                taskStart.set(0);
+            }
+            Log.v(TAG, String.format("Ran \"%s\" in %d ms.", command, latency));
+        }
+    }
+
+    /** Adds a thread to the pool in place of one stuck in an abandoned command. */
+    private static void abandonThread() {
+        synchronized (sPoolLock) {
+            sAbandonedThreads++;
+            if (sAbandonedThreads > MAX_REPLACED_THREADS) {
+                Log.e(TAG, String.format("%d commands are stuck.", sAbandonedThreads));
+                return;
+            }
+            // The maximum size can not be lower than the core size.
+            sPool.setMaximumPoolSize(POOL_SIZE + sAbandonedThreads);
+            sPool.setCorePoolSize(POOL_SIZE + sAbandonedThreads);
+        }
+    }
+
+    /** Removes the thread added by {@link #abandonThread} once the abandoned command returned. */
+    private static void releaseThread() {
+        synchronized (sPoolLock) {
+            sAbandonedThreads--;
+            int size = POOL_SIZE + Math.min(sAbandonedThreads, MAX_REPLACED_THREADS);
+            sPool.setCorePoolSize(size);
+            sPool.setMaximumPoolSize(size);
+        }
+    }
+
+    /** Returns the number of threads of the shared pool, for testing. */
+    static int getPoolSize() {
+        synchronized (sPoolLock) {
+            return sPool == null ? POOL_SIZE : sPool.getCorePoolSize();
+        }
+    }
+
+    /** Returns the pool shared by all executors, creating it on first use. */
+    private static ThreadPoolExecutor getPool() {
+        synchronized (sPoolLock) {
+            if (sPool == null) {
+                AtomicInteger threadCount = new AtomicInteger();
+                sPool =
+                        new ThreadPoolExecutor(
+                                POOL_SIZE,
+                                POOL_SIZE,
+                                0L,
+                                TimeUnit.MILLISECONDS,
+                                new LinkedBlockingQueue<>(),
+                                runnable -> {
+                                    Thread thread =
+                                            new Thread(
+                                                    runnable,
+                                                    TAG + "-" + threadCount.incrementAndGet());
+                                    // Never keep the instrumentation alive for a stuck command.
+                                    thread.setDaemon(true);
+                                    return thread;
+                                });
+            }
+            return sPool;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Android Unit tests for {@link MetricUtility}. */
+@RunWith(AndroidJUnit4.class)
+public class MetricUtilityTest {
+
+    /** Test that outputs larger than the stream buffer are copied whole. */
+    @Test
+    public void testCopyStream_largeOutput() throws Exception {
+        byte[] data = new byte[MetricUtility.STREAM_BUFFER_SIZE * 3 + 17];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long copied = MetricUtility.copyStream(new ByteArrayInputStream(data), out);
+
+        assertThat(copied).isEqualTo(data.length);
+        assertThat(out.toByteArray()).isEqualTo(data);
+    }
+
+    /** Test that lines are passed without terminators, including a last unterminated line. */
+    @Test
+    public void testReadLines() throws Exception {
+        byte[] data = "line1\nline2\r\n\nline4".getBytes(StandardCharsets.UTF_8);
+        List<String> lines = new ArrayList<>();
+
+        MetricUtility.readLines(new ByteArrayInputStream(data), lines::add);
+
+        assertThat(lines).containsExactly("line1", "line2", "", "line4").inOrder();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Android Unit tests for {@link ProcessTable}. */
+@RunWith(AndroidJUnit4.class)
+public class ProcessTableTest {
+    private static final String LIST_STAT_CMD = "cat /proc/[0-9]*/stat";
+    private static final Pattern SECTION_PID = Pattern.compile("echo '=== pid (\\d+)'");
+
+    // The fake /proc, holding the cmdline and stat of each pid.
+    private final Map<Integer, String> mCmdlines = new TreeMap<>();
+    private final Map<Integer, String> mStats = new TreeMap<>();
+    // Pids listed in /proc that exit before their cmdline is read.
+    private final Set<Integer> mExiting = new HashSet<>();
+    private final List<String> mCommands = new ArrayList<>();
+    private ProcessTable mTable;
+
+    @Before
+    public void setUp() {
+        mTable =
+                new ProcessTable(
+                        new ShellCommandExecutor(
+                                command -> {
+                                    synchronized (mCommands) {
+                                        mCommands.add(command);
+                                    }
+                                    return runCommand(command);
+                                }));
+        // Always refresh unless a test says otherwise.
+        mTable.setMaxAgeMs(0);
+        addProcess(1, "/system/bin/init\0second_stage\0", 10);
+        addProcess(2, "", 11);
+        addProcess(100, "com.android.systemui\0", 500);
+        addProcess(101, "/system/bin/surfaceflinger\0", 400);
+        addProcess(102, "com.android.systemui\0", 600);
+    }
+
+    /** Test that names resolve to their pids the way pidof reports them. */
+    @Test
+    public void testGetPids() {
+        Map<String, List<Integer>> pids =
+                mTable.getPids(Arrays.asList("com.android.systemui", "surfaceflinger", "missing"));
+
+        assertThat(pids).containsExactly(
+                "com.android.systemui", Arrays.asList(100, 102),
+                "surfaceflinger", Arrays.asList(101),
+                "missing", Arrays.asList()).inOrder();
+        // Kernel threads have no name.
+        assertThat(mTable.getProcessNames())
+                .containsExactly("init", "com.android.systemui", "surfaceflinger")
+                .inOrder();
+    }
+
+    /** Test that a pid reused by another process is not reported under the old name. */
+    @Test
+    public void testGetPids_pidReused() {
+        assertThat(mTable.getPids("surfaceflinger")).containsExactly(101);
+
+        addProcess(101, "com.android.chrome\0", 900);
+
+        assertThat(mTable.getPids("surfaceflinger")).isEmpty();
+        assertThat(mTable.getPids("com.android.chrome")).containsExactly(101);
+    }
+
+    /** Test that a pid reused by a process of the requested name is found. */
+    @Test
+    public void testGetPids_pidReusedByRequestedName() {
+        assertThat(mTable.getPids("com.android.systemui")).containsExactly(100, 102);
+
+        addProcess(101, "com.android.systemui\0", 900);
+
+        assertThat(mTable.getPids("com.android.systemui")).containsExactly(100, 101, 102);
+        assertThat(mTable.getPids("surfaceflinger")).isEmpty();
+    }
+
+    /** Test that the process names are validated against reused pids as well. */
+    @Test
+    public void testGetProcessNames_pidReused() {
+        assertThat(mTable.getProcessNames()).contains("surfaceflinger");
+
+        addProcess(101, "com.android.chrome\0", 900);
+
+        assertThat(mTable.getProcessNames())
+                .containsExactly("init", "com.android.systemui", "com.android.chrome")
+                .inOrder();
+    }
+
+    /** Test that a process exiting while it is read does not affect the other processes. */
+    @Test
+    public void testRefresh_processExited() {
+        addProcess(200, "com.android.chrome\0", 900);
+        // Arguments that look like the start of a stat.
+        addProcess(300, "/system/bin/app_process\0--nice-name\n300 (x)\0", 1000);
+        mExiting.add(200);
+
+        assertThat(mTable.getPids(Arrays.asList("com.android.chrome", "app_process")))
+                .containsExactly(
+                        "com.android.chrome", Arrays.asList(),
+                        "app_process", Arrays.asList(300)).inOrder();
+    }
+
+    /** Test that a refresh only reads the cmdline of the new and reused pids. */
+    @Test
+    public void testRefresh_incremental() {
+        mTable.getPids("init");
+        addProcess(200, "com.android.chrome\0", 900);
+        addProcess(101, "com.android.chrome\0", 901);
+        mCmdlines.remove(102);
+        mStats.remove(102);
+        mCommands.clear();
+
+        assertThat(mTable.getPids("com.android.systemui")).containsExactly(100);
+        assertThat(mCommands).containsExactly(LIST_STAT_CMD, readCommand(101, 200)).inOrder();
+    }
+
+    /** Test that lookups within the max age are answered without running commands. */
+    @Test
+    public void testRefresh_maxAge() {
+        mTable.setMaxAgeMs(Long.MAX_VALUE);
+        mTable.getPids("init");
+        mCommands.clear();
+
+        addProcess(200, "com.android.chrome\0", 900);
+        assertThat(mTable.getPids("com.android.chrome")).isEmpty();
+        assertThat(mCommands).isEmpty();
+
+        mTable.invalidate();
+        assertThat(mTable.getPids("com.android.chrome")).containsExactly(200);
+    }
+
+    /** Test that a lookup by pid refreshes the table for the pids it does not hold yet. */
+    @Test
+    public void testGetProcessesByPid_newPid() {
+        mTable.setMaxAgeMs(Long.MAX_VALUE);
+        mTable.getPids("init");
+
+        addProcess(200, "/system/bin/app_process\0", 900);
+        Map<Integer, ProcessTable.ProcessInfo> processes =
+                mTable.getProcessesByPid(Arrays.asList(101, 200, 300));
+
+        assertThat(processes.keySet()).containsExactly(101, 200).inOrder();
+        assertThat(processes.get(200).getName()).isEqualTo("app_process");
+    }
+
+    private void addProcess(int pid, String cmdline, long startTime) {
+        mCmdlines.put(pid, cmdline);
+        // Fields after the name, with the start time as the 20th of them.
+        mStats.put(pid, String.format(
+                "%d (name) S 0 0 0 0 -1 0 0 0 0 0 0 0 0 0 20 0 1 0 %d 0 0\n", pid, startTime));
+    }
+
+    private static String readCommand(int... pids) {
+        StringBuilder command = new StringBuilder();
+        for (int pid : pids) {
+            command.append(String.format(
+                    "echo '=== pid %1$d'; cat /proc/%1$d/cmdline; echo; cat /proc/%1$d/stat; ",
+                    pid));
+        }
+        return command.toString().trim();
+    }
+
+    private String runCommand(String command) {
+        StringBuilder output = new StringBuilder();
+        if (LIST_STAT_CMD.equals(command)) {
+            for (String stat : mStats.values()) {
+                output.append(stat);
+            }
+            return output.toString();
+        }
+        Matcher matcher = SECTION_PID.matcher(command);
+        while (matcher.find()) {
+            int pid = Integer.parseInt(matcher.group(1));
+            output.append("=== pid ").append(pid).append('\n');
+            if (mCmdlines.containsKey(pid) && !mExiting.contains(pid)) {
+                output.append(mCmdlines.get(pid)).append('\n').append(mStats.get(pid));
+            } else {
+                // The echo after the missing cmdline.
+                output.append('\n');
+            }
+        }
+        return output.toString();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Android Unit tests for {@link ShellCommandExecutor}. */
+@RunWith(AndroidJUnit4.class)
+public class ShellCommandExecutorTest {
+    private static final List<String> PROCESSES = Arrays.asList("proc1", "proc2", "proc3", "proc4");
+
+    /** Test that tasks run concurrently and results keep the order of the items. */
+    @Test
+    public void testExecuteAll_concurrent() throws Exception {
+        // Every command blocks until all of them have started, so they must run concurrently.
+        CountDownLatch started = new CountDownLatch(PROCESSES.size());
+        ShellCommandExecutor executor =
+                new ShellCommandExecutor(
+                        command -> {
+                            started.countDown();
+                            try {
+                                if (!started.await(5, TimeUnit.SECONDS)) {
+                                    throw new IOException("Commands did not run concurrently.");
+                                }
+                            } catch (InterruptedException e) {
+                                throw new IOException(e);
+                            }
+                            return command.replace("pidof proc", "");
+                        });
+
+        Map<String, String> pids =
+                executor.executeAll(PROCESSES, name -> executor.execute("pidof " + name));
+
+        assertThat(pids)
+                .containsExactly("proc1", "1", "proc2", "2", "proc3", "3", "proc4", "4")
+                .inOrder();
+        assertThat(executor.getCommandCount()).isEqualTo(PROCESSES.size());
+        assertThat(executor.getFailureCount()).isEqualTo(0);
+    }
+
+    /** Test that a failed task is reported without affecting the others. */
+    @Test
+    public void testExecuteAll_failure() throws Exception {
+        ShellCommandExecutor executor =
+                new ShellCommandExecutor(
+                        command -> {
+                            if (command.endsWith("proc2")) {
+                                throw new IOException("proc2 failed");
+                            }
+                            return "output";
+                        });
+
+        Map<String, Exception> failures = new LinkedHashMap<>();
+        Map<String, String> outputs =
+                executor.executeAll(
+                        PROCESSES, name -> executor.execute("pidof " + name), failures);
+
+        assertThat(outputs.keySet()).containsExactly("proc1", "proc3", "proc4").inOrder();
+        assertThat(failures.keySet()).containsExactly("proc2");
+        assertThat(failures.get("proc2")).hasMessageThat().isEqualTo("proc2 failed");
+        assertThat(executor.getCommandCount()).isEqualTo(PROCESSES.size());
+        assertThat(executor.getFailureCount()).isEqualTo(1);
+    }
+
+    /** Test that a command running past the timeout is abandoned. */
+    @Test
+    public void testExecuteAll_timeout() throws Exception {
+        ShellCommandExecutor executor =
+                new ShellCommandExecutor(
+                        command -> {
+                            if (command.endsWith("proc1")) {
+                                try {
+                                    Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+                                } catch (InterruptedException e) {
+                                    throw new IOException(e);
+                                }
+                            }
+                            return "output";
+                        });
+        executor.setTimeoutMs(100);
+
+        Map<String, Exception> failures = new LinkedHashMap<>();
+        Map<String, String> outputs =
+                executor.executeAll(
+                        PROCESSES, name -> executor.execute("pidof " + name), failures);
+
+        assertThat(outputs.keySet()).containsExactly("proc2", "proc3", "proc4").inOrder();
+        assertThat(failures.get("proc1")).isInstanceOf(TimeoutException.class);
+        assertThat(executor.getTimeoutCount()).isEqualTo(1);
+    }
+
+    /**
+     * Test that commands stuck past the timeout, ignoring interrupts like a blocking shell read,
+     * do not hold the queued tasks or later calls forever.
+     */
+    @Test
+    public void testExecuteAll_stuckCommands() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ShellCommandExecutor stuckExecutor =
+                new ShellCommandExecutor(
+                        command -> {
+                            while (release.getCount() > 0) {
+                                try {
+                                    release.await();
+                                } catch (InterruptedException e) {
+                                    // Ignored, as by a blocking read.
+                                }
+                            }
+                            return "output";
+                        });
+        stuckExecutor.setTimeoutMs(100);
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 2 * ShellCommandExecutor.POOL_SIZE; i++) {
+            items.add("proc" + i);
+        }
+
+        try {
+            Map<String, Exception> failures = new LinkedHashMap<>();
+            Map<String, String> outputs =
+                    stuckExecutor.executeAll(
+                            items, name -> stuckExecutor.execute("pidof " + name), failures);
+            assertThat(outputs).isEmpty();
+            assertThat(failures.keySet()).containsExactlyElementsIn(items);
+            assertThat(ShellCommandExecutor.getPoolSize())
+                    .isEqualTo(ShellCommandExecutor.POOL_SIZE + items.size());
+
+            // The stuck threads were replaced, so that later commands still run.
+            ShellCommandExecutor executor = new ShellCommandExecutor(command -> "output");
+            assertThat(executor.executeAll(PROCESSES, name -> executor.execute("pidof " + name)))
+                    .hasSize(PROCESSES.size());
+        } finally {
+            release.countDown();
+        }
+        // The replacement threads are removed once the stuck commands return.
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (ShellCommandExecutor.getPoolSize() > ShellCommandExecutor.POOL_SIZE
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(ShellCommandExecutor.getPoolSize()).isEqualTo(ShellCommandExecutor.POOL_SIZE);
+    }
+
+    /** Test that the output is passed to the consumer line by line. */
+    @Test
+    public void testExecute_lineConsumer() throws Exception {
+        ShellCommandExecutor executor = new ShellCommandExecutor(command -> "line1\nline2\n");
+
+        List<String> lines = new ArrayList<>();
+        executor.execute("cat file", lines::add);
+
+        assertThat(lines).containsExactly("line1", "line2").inOrder();
+    }
+
+    /** Test that the whole output is passed to a stream consumer. */
+    @Test
+    public void testExecuteStreaming() throws Exception {
+        ShellCommandExecutor executor = new ShellCommandExecutor(command -> "line1\nline2\n");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        executor.executeStreaming("cat file", output -> MetricUtility.copyStream(output, out));
+
+        assertThat(out.toString("UTF-8")).isEqualTo("line1\nline2\n");
+        assertThat(executor.getCommandCount()).isEqualTo(1);
+    }
+
+    /** Test that the latency counters track every command and can be reset. */
+    @Test
+    public void testCounters() throws Exception {
+        ShellCommandExecutor executor =
+                new ShellCommandExecutor(
+                        command -> {
+                            try {
+                                Thread.sleep(20);
+                            } catch (InterruptedException e) {
+                                throw new IOException(e);
+                            }
+                            return "";
+                        });
+
+        executor.execute("command1");
+        executor.execute("command2");
+
+        assertThat(executor.getCommandCount()).isEqualTo(2);
+        assertThat(executor.getMaxLatencyMs()).isAtLeast(20);
+        assertThat(executor.getTotalLatencyMs()).isAtLeast(executor.getMaxLatencyMs());
+        executor.resetCounters();
+        assertThat(executor.getCommandCount()).isEqualTo(0);
+        assertThat(executor.getTotalLatencyMs()).isEqualTo(0);
+    }
+}
@@ -26,6 +26,7 @@ import org.junit.runner.Description;
 import org.junit.runner.notification.Failure;
 import org.junit.runner.Result;
 
+import java.io.PrintStream;
 import java.util.Map;
 
 /**
@@ -36,6 +37,13 @@ import java.util.Map;
  * If there are any failure in the metric collection, tests will still proceed to run and
  * not posting the metrics at the end of the test.
  *
+ * With the async_collection option, the metrics are collected on a background thread at the end
+ * of each test (or of the run), overlapping with the collections of the other listeners. The
+ * metrics of a test are sent once all the listeners that started it asynchronously are done with
+ * it, and the metrics of the run are joined when the instrumentation finishes. Collections taking
+ * longer than async_collection_deadline_ms are abandoned, and the tests starting while an
+ * abandoned collection is still blocked in the helper are not collected.
+ *
  * Do NOT throw exception anywhere in this class. We don't want to halt the test when metrics
  * collection fails.
  */
@@ -46,9 +54,22 @@ public class BaseCollectionListener<T> extends BaseMetricListener {
     public static final String COLLECT_PER_RUN = "per_run";
     // Skip failure metrics collection if this flag is set to true.
     public static final String SKIP_TEST_FAILURE_METRICS = "skip_test_failure_metrics";
+    // Collect the metrics on a background thread if this flag is set to true.
+    public static final String ASYNC_COLLECTION = "async_collection";
+    // Time in ms an async collection may take before it is abandoned.
+    public static final String ASYNC_COLLECTION_DEADLINE = "async_collection_deadline_ms";
+    // Suffix of the metric reporting how long an async collection ran before it was joined.
+    public static final String COLLECTION_OVERLAPPED_SUFFIX = "_collection_overlapped_ms";
+    private static final long DEFAULT_ASYNC_COLLECTION_DEADLINE_MS = 60 * 1000;
     protected boolean mIsCollectPerRun;
     protected boolean mSkipTestFailureMetrics;
     private boolean mIsTestFailed = false;
+    private boolean mIsCollectAsync;
+    private long mAsyncDeadlineMs = DEFAULT_ASYNC_COLLECTION_DEADLINE_MS;
+    private CollectionPipeline mPipeline;
+    private CollectionPipeline.PendingCollection mPendingRunCollection;
+    // Set when the helper was still busy with an abandoned collection at the start of the test.
+    private boolean mIsTestSkipped = false;
 
     public BaseCollectionListener() {
         super();
@@ -66,6 +87,17 @@ public class BaseCollectionListener<T> extends BaseMetricListener {
         mIsCollectPerRun = "true".equals(args.getString(COLLECT_PER_RUN));
         // By default this flag is set to false to collect the metrics on test failure.
         mSkipTestFailureMetrics = "true".equals(args.getString(SKIP_TEST_FAILURE_METRICS));
+        mIsCollectAsync = "true".equals(args.getString(ASYNC_COLLECTION));
+        if (args.getString(ASYNC_COLLECTION_DEADLINE) != null) {
+            try {
+                mAsyncDeadlineMs = Long.parseLong(args.getString(ASYNC_COLLECTION_DEADLINE));
+            } catch (NumberFormatException e) {
+                Log.e(getTag(), "Failed to parse the async collection deadline.", e);
+            }
+        }
+        if (mIsCollectAsync) {
+            mPipeline = getPipeline();
+        }
 
         // Setup additional args before starting the collection.
         setupAdditionalArgs();
@@ -80,6 +112,13 @@ public class BaseCollectionListener<T> extends BaseMetricListener {
     public final void onTestStart(DataRecord testData, Description description) {
         mIsTestFailed = false;
         if (!mIsCollectPerRun) {
+            // The collection of the previous test must be done with the helper.
+            mIsTestSkipped =
+                    mIsCollectAsync && !mPipeline.startTest(this, description, mAsyncDeadlineMs);
+            if (mIsTestSkipped) {
+                Log.e(getTag(), "The previous collection is still running, skipping this test.");
+                return;
+            }
             mHelper.startCollecting();
         }
     }
@@ -91,32 +130,101 @@ public class BaseCollectionListener<T> extends BaseMetricListener {
 
     @Override
     public final void onTestEnd(DataRecord testData, Description description) {
-        if (!mIsCollectPerRun) {
+        if (!mIsCollectPerRun && !mIsTestSkipped) {
             // Skip adding the metrics collected during the test failure
             // if the skip metrics on test failure flag is enabled and the
             // current test is failed.
-            if (mSkipTestFailureMetrics && mIsTestFailed) {
+            boolean addMetrics = !(mSkipTestFailureMetrics && mIsTestFailed);
+            if (!addMetrics) {
                 Log.i(getTag(), "Skipping the metric collection.");
+            }
+            if (mIsCollectAsync) {
+                mPipeline.submitTest(
+                        this,
+                        description,
+                        testData,
+                        mAsyncDeadlineMs,
+                        () -> collect(testData, addMetrics));
             } else {
-                // Collect the metrics.
-                Map<String, T> metrics = mHelper.getMetrics();
-                for (Map.Entry<String, T> entry : metrics.entrySet()) {
-                    testData.addStringMetric(entry.getKey(), entry.getValue().toString());
-                }
+                collect(testData, addMetrics);
             }
-            mHelper.stopCollecting();
         }
     }
 
     @Override
     public void onTestRunEnd(DataRecord runData, Result result) {
+        if (mIsCollectAsync && !mIsCollectPerRun) {
+            mPipeline.awaitTest(this);
+        }
         if (mIsCollectPerRun) {
+            if (mIsCollectAsync) {
+                mPendingRunCollection =
+                        mPipeline.submit(
+                                this, runData, mAsyncDeadlineMs, () -> collect(runData, true));
+            } else {
+                collect(runData, true);
+            }
+        }
+    }
+
+    @Override
+    public void instrumentationRunFinished(
+            PrintStream streamResult, Bundle resultBundle, Result junitResults) {
+        joinRunCollection();
+        super.instrumentationRunFinished(streamResult, resultBundle, junitResults);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean defersTestMetrics() {
+        return mIsCollectAsync && !mIsCollectPerRun;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    void awaitTestMetrics() {
+        if (defersTestMetrics()) {
+            mPipeline.awaitTest(this);
+        }
+    }
+
+    /**
+     * Waits for the async collection of the run metrics, if any. Must be called before using the
+     * helper after {@link #onTestRunEnd}.
+     */
+    protected void joinRunCollection() {
+        if (mPendingRunCollection != null) {
+            mPendingRunCollection.join();
+            mPendingRunCollection = null;
+        }
+    }
+
+    /** Collect the metrics from the helper into {@code data}, and stop the collection. */
+    private void collect(DataRecord data, boolean addMetrics) {
+        if (addMetrics) {
             Map<String, T> metrics = mHelper.getMetrics();
             for (Map.Entry<String, T> entry : metrics.entrySet()) {
-                runData.addStringMetric(entry.getKey(), entry.getValue().toString());
+                addMetric(data, entry.getKey(), entry.getValue());
             }
-            mHelper.stopCollecting();
         }
+        mHelper.stopCollecting();
+    }
+
+    /** Add a metric to {@code data}, keeping the integer and double values typed. */
+    private static void addMetric(DataRecord data, String key, Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short) {
+            data.addLongMetric(key, ((Number) value).longValue());
+        } else if (value instanceof Double) {
+            data.addDoubleMetric(key, (Double) value);
+        } else {
+            data.addStringMetric(key, value.toString());
+        }
+    }
+
+    /** Returns the pipeline running the async collections. Exposed for testing. */
+    @VisibleForTesting
+    CollectionPipeline getPipeline() {
+        return CollectionPipeline.getInstance();
     }
 
     /**
@@ -27,6 +27,9 @@ import android.util.Log;
 import androidx.test.InstrumentationRegistry;
 import androidx.test.internal.runner.listener.InstrumentationRunListener;
 
+import com.android.helpers.MetricUtility;
+import com.android.helpers.ShellCommandExecutor;
+
 import org.junit.runner.Description;
 import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
@@ -79,6 +82,8 @@ public class BaseMetricListener extends InstrumentationRunListener {
     private DataRecord mTestData;
 
     private Bundle mArgsBundle = null;
+    // Listener hosting this one, which reports its test metrics instead.
+    private CompositeMetricListener mComposite = null;
     private final List<String> mIncludeFilters;
     private final List<String> mExcludeFilters;
     private boolean mLogOnly = false;
@@ -163,15 +168,52 @@ public class BaseMetricListener extends InstrumentationRunListener {
                 // Prevent exception from reporting events.
                 Log.e(getTag(), "Exception during onTestEnd.", e);
             }
-            if (mTestData.hasMetrics()) {
-                // Only send the status progress if there are metrics
-                SendToInstrumentation.sendBundle(getInstrumentation(),
-                        mTestData.createBundleFromMetrics());
+            if (!defersTestMetrics()) {
+                sendTestMetrics(mTestData);
             }
         }
         super.testFinished(description);
     }
 
+    /**
+     * Send the metrics of a test to the instrumentation.
+     *
+     * @param testData the {@link DataRecord} of the test.
+     */
+    void sendTestMetrics(DataRecord testData) {
+        if (mComposite != null) {
+            mComposite.addChildMetrics(testData);
+        } else if (testData.hasMetrics()) {
+            // Only send the status progress if there are metrics
+            SendToInstrumentation.sendBundle(getInstrumentation(),
+                    testData.createBundleFromMetrics());
+        }
+    }
+
+    /**
+     * Returns true if the metrics of a test are sent later on with
+     * {@link #sendTestMetrics(DataRecord)}, rather than when {@link #onTestEnd} returns.
+     */
+    boolean defersTestMetrics() {
+        return false;
+    }
+
+    /**
+     * Waits until the metrics of the last test, if deferred, were sent with
+     * {@link #sendTestMetrics(DataRecord)}.
+     */
+    void awaitTestMetrics() {
+        // NO-OP by default
+    }
+
+    /**
+     * Set the {@link CompositeMetricListener} hosting this listener, to which the metrics of
+     * each test are handed instead of being sent.
+     */
+    void setComposite(CompositeMetricListener composite) {
+        mComposite = composite;
+    }
+
     @Override
     public void instrumentationRunFinished(
             PrintStream streamResult, Bundle resultBundle, Result junitResults) {
@@ -245,27 +287,53 @@ public class BaseMetricListener extends InstrumentationRunListener {
     /**
      * Turn executeShellCommand into a blocking operation.
      *
+     * The whole output is kept in memory; prefer {@link #executeCommandStreaming} for commands
+     * with large outputs.
+     *
      * @param command shell command to be executed.
      * @return byte array of execution result
      */
     public byte[] executeCommandBlocking(String command) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean success =
+                executeCommandStreaming(command, output -> MetricUtility.copyStream(output, out));
+        return success ? out.toByteArray() : null;
+    }
+
+    /**
+     * Execute a shell command and hand its output to {@code consumer} as it is produced, so that
+     * it can be parsed or written out incrementally instead of being held in memory.
+     *
+     * @param command shell command to be executed.
+     * @param consumer reads the output of the command.
+     * @return true if the command output was fully consumed, false on error.
+     */
+    public boolean executeCommandStreaming(String command, MetricUtility.OutputConsumer consumer) {
         try (
                 InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(
-                        getInstrumentation().getUiAutomation().executeShellCommand(command));
-                ByteArrayOutputStream out = new ByteArrayOutputStream()
+                        getInstrumentation().getUiAutomation().executeShellCommand(command))
         ) {
-            byte[] buf = new byte[BUFFER_SIZE];
-            int length;
-            while ((length = is.read(buf)) >= 0) {
-                out.write(buf, 0, length);
-            }
-            return out.toByteArray();
+            consumer.consume(is);
+            return true;
         } catch (IOException e) {
             Log.e(getTag(), "Error executing: " + command, e);
-            return null;
+            return false;
         }
     }
 
+    /**
+     * Execute a shell command and pass each line of its output to {@code consumer} as it is read.
+     *
+     * @param command shell command to be executed.
+     * @param consumer receives every line of the output, without line terminators.
+     * @return true if the command output was fully consumed, false on error.
+     */
+    public boolean executeCommandLines(
+            String command, ShellCommandExecutor.LineConsumer consumer) {
+        return executeCommandStreaming(
+                command, output -> MetricUtility.readLines(output, consumer));
+    }
+
     /**
      * Create a directory inside external storage, and empty it.
      *
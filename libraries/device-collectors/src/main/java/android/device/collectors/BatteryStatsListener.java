@@ -15,25 +15,21 @@
  */
 package android.device.collectors;
 
-import android.app.UiAutomation;
 import android.device.collectors.annotations.OptionClass;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
 import androidx.annotation.VisibleForTesting;
 import android.util.Log;
 
 import org.junit.runner.Description;
 import org.junit.runner.Result;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import com.android.helpers.MetricUtility;
+
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A {@link BaseMetricListener} that captures BatteryStats for the entire test class in proto format
@@ -178,23 +174,17 @@ public class BatteryStatsListener extends BaseMetricListener {
      */
     @VisibleForTesting
     public File dumpBatteryStats(String fileName) {
-        UiAutomation automation = getInstrumentation().getUiAutomation();
         File logFile = new File(mDestDir, fileName);
-        try (
-                InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(
-                        automation.executeShellCommand(CMD_DUMPSYS));
-                OutputStream out = new BufferedOutputStream(new FileOutputStream(logFile))
-        ){
-            byte[] buf = new byte[BUFFER_SIZE];
-            int bytes;
-            while((bytes = is.read(buf)) != -1) {
-                out.write(buf, 0, bytes);
+        try (OutputStream out = new FileOutputStream(logFile)) {
+            // Stream the proto straight to the file, as it can be many megabytes.
+            if (executeCommandStreaming(
+                    CMD_DUMPSYS, output -> MetricUtility.copyStream(output, out))) {
+                return logFile;
             }
-            return logFile;
         } catch (Exception e) {
             Log.e(getTag(), "Unable to dump batterystats", e);
-            return null;
         }
+        return null;
     }
 
     /**
@@ -205,23 +195,17 @@ public class BatteryStatsListener extends BaseMetricListener {
      */
     @VisibleForTesting
     public boolean resetBatteryStats() {
-        UiAutomation automation = getInstrumentation().getUiAutomation();
-        try (
-                InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(
-                        automation.executeShellCommand(CMD_DUMPSYS_RESET));
-                BufferedReader reader = new BufferedReader(new InputStreamReader(is))
-        ){
-            String line;
-            while(null != (line = reader.readLine())) {
-                if(line.contains(MSG_DUMPSYS_RESET_SUCCESS)) {
-                    return true;
-                }
-            }
+        AtomicBoolean reset = new AtomicBoolean();
+        executeCommandLines(
+                CMD_DUMPSYS_RESET,
+                line -> {
+                    if (line.contains(MSG_DUMPSYS_RESET_SUCCESS)) {
+                        reset.set(true);
+                    }
+                });
+        if (!reset.get()) {
             Log.e(getTag(), "Unable to reset batterystats");
-            return false;
-        } catch (IOException ex) {
-            Log.e(getTag(), "Unable to reset batterystats", ex);
-            return false;
         }
+        return reset.get();
     }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.VisibleForTesting;
+
+import org.junit.runner.Description;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * CollectionPipeline runs the metric collections handed over by the listeners in async mode on
+ * background threads, so that the collections of all the listeners attached to a run overlap
+ * instead of adding up at every test boundary.
+ *
+ * <p>The collections of a test are joined once every listener that started the test handed its
+ * own over, before the metrics of the test are sent. Collections still running past their
+ * deadline are abandoned, and their metrics are not reported. Cancelling an abandoned collection
+ * only interrupts its thread, which a blocked helper call may ignore, so a listener does not
+ * start its helper again until its last collection returned.
+ */
+class CollectionPipeline {
+    private static final String TAG = CollectionPipeline.class.getSimpleName();
+
+    private static CollectionPipeline sInstance;
+
+    /** A collection handed over to the pipeline. */
+    static class PendingCollection {
+        private final BaseCollectionListener<?> mListener;
+        private final DataRecord mData;
+        private final long mSubmitTimeMs;
+        private final long mDeadlineMs;
+        // Set by the thread running the collection, or by the join abandoning it before that.
+        private final AtomicBoolean mStarted = new AtomicBoolean(false);
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        private volatile long mStartTimeMs;
+        private volatile long mEndTimeMs;
+        private Future<?> mFuture;
+
+        private PendingCollection(
+                BaseCollectionListener<?> listener, DataRecord data, long deadlineMs) {
+            mListener = listener;
+            mData = data;
+            mSubmitTimeMs = SystemClock.uptimeMillis();
+            mDeadlineMs = deadlineMs;
+        }
+
+        private void run(Runnable collection) {
+            if (!mStarted.compareAndSet(false, true)) {
+                // Abandoned before it started.
+                return;
+            }
+            mStartTimeMs = SystemClock.uptimeMillis();
+            try {
+                collection.run();
+            } catch (RuntimeException e) {
+                Log.e(mListener.getTag(), "Exception during the async collection.", e);
+            } finally {
+                mEndTimeMs = SystemClock.uptimeMillis();
+                mFinished.countDown();
+            }
+        }
+
+        /**
+         * Waits for the collection to complete, until its deadline counted from when it was
+         * handed over. Once complete, the time it ran before the join started is added to its
+         * metrics.
+         *
+         * @return true if the collection completed in time
+         */
+        boolean join() {
+            long joinTimeMs = SystemClock.uptimeMillis();
+            long remainingMs = mDeadlineMs - (joinTimeMs - mSubmitTimeMs);
+            try {
+                mFuture.get(Math.max(0, remainingMs), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                Log.e(
+                        mListener.getTag(),
+                        String.format(
+                                "Async collection did not complete in %d ms, abandoning it.",
+                                mDeadlineMs));
+                abandon();
+                return false;
+            } catch (ExecutionException e) {
+                Log.e(mListener.getTag(), "Async collection failed.", e);
+                return false;
+            } catch (InterruptedException e) {
+                Log.e(mListener.getTag(), "Interrupted while joining the async collection.", e);
+                abandon();
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            long overlappedMs = Math.max(0, Math.min(mEndTimeMs, joinTimeMs) - mStartTimeMs);
+            mData.addStringMetric(
+                    mListener.getClass().getSimpleName()
+                            + BaseCollectionListener.COLLECTION_OVERLAPPED_SUFFIX,
+                    String.valueOf(overlappedMs));
+            return true;
+        }
+
+        private void abandon() {
+            if (mStarted.compareAndSet(false, true)) {
+                // It will never run, so it is done with the helper.
+                mFinished.countDown();
+            }
+            mFuture.cancel(true);
+        }
+
+        /**
+         * Waits for the collection to return from the helper, even if it was abandoned.
+         *
+         * @return true if it returned within {@code timeoutMs}
+         */
+        private boolean awaitFinished(long timeoutMs) {
+            try {
+                return mFinished.await(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /** The listeners that started a test, and the collections they handed over for it. */
+    private static class PendingTest {
+        private final Set<BaseCollectionListener<?>> mStarted = new HashSet<>();
+        private final Map<BaseCollectionListener<?>, PendingCollection> mCollections =
+                new LinkedHashMap<>();
+
+        private boolean isComplete() {
+            return mCollections.keySet().containsAll(mStarted);
+        }
+
+        /** Joins the collections, sending the metrics of the completed ones. */
+        private void join() {
+            for (PendingCollection pending : mCollections.values()) {
+                if (pending.join()) {
+                    pending.mListener.sendTestMetrics(pending.mData);
+                }
+            }
+        }
+    }
+
+    private final ExecutorService mExecutor =
+            Executors.newCachedThreadPool(
+                    runnable -> {
+                        Thread thread = new Thread(runnable, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+    private final Map<Description, PendingTest> mPendingTests = new LinkedHashMap<>();
+    // Last collection of each listener, until it returned from the helper.
+    private final Map<BaseCollectionListener<?>, PendingCollection> mInFlight =
+            new ConcurrentHashMap<>();
+
+    @VisibleForTesting
+    CollectionPipeline() {}
+
+    /** Returns the pipeline shared by all the listeners. */
+    static synchronized CollectionPipeline getInstance() {
+        if (sInstance == null) {
+            sInstance = new CollectionPipeline();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Runs {@code collection} in the background, filling {@code data}.
+     *
+     * @param deadlineMs time the collection may take, counted from now
+     */
+    synchronized PendingCollection submit(
+            BaseCollectionListener<?> listener,
+            DataRecord data,
+            long deadlineMs,
+            Runnable collection) {
+        PendingCollection pending = new PendingCollection(listener, data, deadlineMs);
+        mInFlight.put(listener, pending);
+        pending.mFuture =
+                mExecutor.submit(
+                        () -> {
+                            pending.run(collection);
+                            mInFlight.remove(listener, pending);
+                        });
+        return pending;
+    }
+
+    /**
+     * Prepares {@code listener} to start its helper for the test {@code description}: the
+     * previous tests it handed a collection over for are joined, and its last collection must
+     * have returned from the helper, waiting up to {@code timeoutMs} for it.
+     *
+     * @return false if the helper is still collecting, and must not be started for this test
+     */
+    synchronized boolean startTest(
+            BaseCollectionListener<?> listener, Description description, long timeoutMs) {
+        awaitTest(listener);
+        PendingCollection last = mInFlight.get(listener);
+        if (last != null) {
+            if (!last.awaitFinished(timeoutMs)) {
+                return false;
+            }
+            mInFlight.remove(listener, last);
+        }
+        PendingTest test = mPendingTests.computeIfAbsent(description, d -> new PendingTest());
+        test.mStarted.add(listener);
+        return true;
+    }
+
+    /**
+     * Runs the collection of the test {@code description} that just ended for {@code listener}
+     * in the background. Once all the listeners that started the test handed over theirs, the
+     * collections are joined and the metrics of every listener are sent.
+     */
+    synchronized void submitTest(
+            BaseCollectionListener<?> listener,
+            Description description,
+            DataRecord testData,
+            long deadlineMs,
+            Runnable collection) {
+        PendingTest test = mPendingTests.computeIfAbsent(description, d -> new PendingTest());
+        test.mStarted.add(listener);
+        test.mCollections.put(listener, submit(listener, testData, deadlineMs, collection));
+        if (test.isComplete()) {
+            mPendingTests.remove(description);
+            test.join();
+        }
+    }
+
+    /**
+     * Joins the pending tests {@code listener} handed a collection over for. The listener is
+     * moving on, so the tests it started without handing one over no longer wait for it.
+     */
+    synchronized void awaitTest(BaseCollectionListener<?> listener) {
+        for (Iterator<PendingTest> tests = mPendingTests.values().iterator(); tests.hasNext(); ) {
+            PendingTest test = tests.next();
+            test.mStarted.remove(listener);
+            if (test.mCollections.containsKey(listener) || test.isComplete()) {
+                tests.remove();
+                test.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors;
+
+import android.device.collectors.annotations.OptionClass;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.VisibleForTesting;
+
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link CompositeMetricListener} that hosts other metric listeners and runs their callbacks
+ * concurrently at every test boundary, so that a boundary takes as long as the slowest listener
+ * instead of the sum of all of them.
+ *
+ * Options:
+ * <p>-e composite-listeners "a.Listener,b.Listener;c.Listener" : Listeners to host, in stages
+ * separated by ';'. The listeners of a stage run concurrently. Stages are nested: they start in
+ * reverse order and end in order, so that a PerfettoListener in the last stage starts before and
+ * stops after all the other listeners.
+ *
+ * <p>The metrics of each test of the hosted listeners are merged with those of this listener,
+ * along with how long each of them took at the start and at the end of the test, keyed by the
+ * class of the listener and its stage and index within the stage, e.g.
+ * "JankListener_0_1_test_start_latency_ms". Their run metrics are reported by the hosted
+ * listeners themselves.
+ *
+ * Do NOT throw exception anywhere in this class. We don't want to halt the test when metrics
+ * collection fails.
+ */
+@OptionClass(alias = "composite-collector")
+public class CompositeMetricListener extends BaseMetricListener {
+    @VisibleForTesting static final String LISTENERS_KEY = "composite-listeners";
+    private static final String STAGE_SEPARATOR = ";";
+    private static final String LISTENER_SEPARATOR = ",";
+    @VisibleForTesting static final String START_LATENCY_SUFFIX = "_test_start_latency_ms";
+    @VisibleForTesting static final String END_LATENCY_SUFFIX = "_test_end_latency_ms";
+    private static final String LATENCY_KEY_FORMAT = "%s_%d_%d";
+
+    /** A callback of a hosted listener. */
+    private interface ListenerCall {
+        void run(BaseMetricListener listener) throws Exception;
+    }
+
+    private final List<List<BaseMetricListener>> mStages = new ArrayList<>();
+    private final ExecutorService mExecutor =
+            Executors.newCachedThreadPool(
+                    runnable -> {
+                        Thread thread = new Thread(runnable, getTag());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+    private final Map<BaseMetricListener, Long> mStartLatencies = new ConcurrentHashMap<>();
+    // Prefix of the latency metrics of each hosted listener, unique to its position.
+    private final Map<BaseMetricListener, String> mLatencyKeys = new HashMap<>();
+    private DataRecord mTestData;
+
+    public CompositeMetricListener() {
+        super();
+    }
+
+    /**
+     * Constructor to simulate receiving the instrumentation arguments, and to provide the stages
+     * of listeners to host. Should not be used except for testing.
+     */
+    @VisibleForTesting
+    CompositeMetricListener(Bundle args, List<List<BaseMetricListener>> stages) {
+        super(args);
+        mStages.addAll(stages);
+    }
+
+    @Override
+    public void onTestRunStart(DataRecord runData, Description description) {
+        if (mStages.isEmpty()) {
+            createListeners(getArgsBundle().getString(LISTENERS_KEY));
+        }
+        for (int i = 0; i < mStages.size(); i++) {
+            List<BaseMetricListener> stage = mStages.get(i);
+            for (int j = 0; j < stage.size(); j++) {
+                BaseMetricListener listener = stage.get(j);
+                listener.setInstrumentation(getInstrumentation());
+                listener.setComposite(this);
+                mLatencyKeys.put(
+                        listener,
+                        String.format(
+                                LATENCY_KEY_FORMAT, listener.getClass().getSimpleName(), i, j));
+            }
+        }
+        for (int i = mStages.size() - 1; i >= 0; i--) {
+            runStage(mStages.get(i), listener -> listener.testRunStarted(description), null);
+        }
+    }
+
+    @Override
+    public void onTestStart(DataRecord testData, Description description) {
+        synchronized (this) {
+            mTestData = testData;
+        }
+        mStartLatencies.clear();
+        for (int i = mStages.size() - 1; i >= 0; i--) {
+            runStage(
+                    mStages.get(i),
+                    listener -> listener.testStarted(description),
+                    mStartLatencies);
+        }
+    }
+
+    @Override
+    public void onTestFail(DataRecord testData, Description description, Failure failure) {
+        // Only records the failure, no need to run it concurrently.
+        for (List<BaseMetricListener> stage : mStages) {
+            for (BaseMetricListener listener : stage) {
+                try {
+                    listener.testFailure(failure);
+                } catch (Exception e) {
+                    Log.e(getTag(), "Exception during testFailure of " + listener.getTag(), e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onTestEnd(DataRecord testData, Description description) {
+        Map<BaseMetricListener, Long> endLatencies = new ConcurrentHashMap<>();
+        for (List<BaseMetricListener> stage : mStages) {
+            runStage(stage, listener -> listener.testFinished(description), endLatencies);
+        }
+        // The listeners collecting asynchronously may not have sent their metrics yet.
+        for (List<BaseMetricListener> stage : mStages) {
+            for (BaseMetricListener listener : stage) {
+                listener.awaitTestMetrics();
+            }
+        }
+        synchronized (this) {
+            for (Map.Entry<BaseMetricListener, Long> entry : mStartLatencies.entrySet()) {
+                testData.addStringMetric(
+                        mLatencyKeys.get(entry.getKey()) + START_LATENCY_SUFFIX,
+                        String.valueOf(entry.getValue()));
+            }
+            for (Map.Entry<BaseMetricListener, Long> entry : endLatencies.entrySet()) {
+                testData.addStringMetric(
+                        mLatencyKeys.get(entry.getKey()) + END_LATENCY_SUFFIX,
+                        String.valueOf(entry.getValue()));
+            }
+            mTestData = null;
+        }
+    }
+
+    @Override
+    public void onTestRunEnd(DataRecord runData, Result result) {
+        for (List<BaseMetricListener> stage : mStages) {
+            runStage(stage, listener -> listener.testRunFinished(result), null);
+        }
+    }
+
+    @Override
+    public void instrumentationRunFinished(
+            PrintStream streamResult, Bundle resultBundle, Result junitResults) {
+        for (List<BaseMetricListener> stage : mStages) {
+            for (BaseMetricListener listener : stage) {
+                listener.instrumentationRunFinished(streamResult, resultBundle, junitResults);
+            }
+        }
+        super.instrumentationRunFinished(streamResult, resultBundle, junitResults);
+    }
+
+    /**
+     * Adds the metrics of a test of a hosted listener to those of this listener. The metrics of
+     * the hosted listeners are awaited at the end of the test, those arriving later are dropped.
+     */
+    synchronized void addChildMetrics(DataRecord childData) {
+        if (mTestData == null) {
+            Log.w(getTag(), "Dropping the metrics of a hosted listener sent after the test ended.");
+            return;
+        }
+        mTestData.addMetrics(childData);
+    }
+
+    /**
+     * Runs {@code call} for each listener of {@code stage} concurrently, and waits for all of
+     * them to complete.
+     *
+     * @param latencies where to put how long each listener took, or null
+     */
+    private void runStage(
+            List<BaseMetricListener> stage,
+            ListenerCall call,
+            Map<BaseMetricListener, Long> latencies) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (BaseMetricListener listener : stage) {
+            futures.add(
+                    mExecutor.submit(
+                            () -> {
+                                long startTime = SystemClock.uptimeMillis();
+                                try {
+                                    call.run(listener);
+                                } catch (Exception e) {
+                                    Log.e(getTag(), "Exception in " + listener.getTag(), e);
+                                }
+                                if (latencies != null) {
+                                    latencies.put(listener, SystemClock.uptimeMillis() - startTime);
+                                }
+                            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Log.e(getTag(), "Exception while running a hosted listener.", e);
+            } catch (InterruptedException e) {
+                Log.e(getTag(), "Interrupted while running the hosted listeners.", e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** Instantiates the listeners of {@code listenersValue}, in stages. */
+    private void createListeners(String listenersValue) {
+        if (listenersValue == null) {
+            Log.e(getTag(), "No listeners to host.");
+            return;
+        }
+        for (String stageValue : listenersValue.split(STAGE_SEPARATOR)) {
+            List<BaseMetricListener> stage = new ArrayList<>();
+            for (String className : stageValue.split(LISTENER_SEPARATOR)) {
+                if (className.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    Object listener =
+                            Class.forName(className.trim()).getConstructor().newInstance();
+                    if (listener instanceof BaseMetricListener) {
+                        stage.add((BaseMetricListener) listener);
+                    } else {
+                        Log.e(getTag(), className + " is not a BaseMetricListener.");
+                    }
+                } catch (ReflectiveOperationException e) {
+                    Log.e(getTag(), "Unable to create listener " + className, e);
+                }
+            }
+            if (!stage.isEmpty()) {
+                mStages.add(stage);
+            }
+        }
+    }
+}
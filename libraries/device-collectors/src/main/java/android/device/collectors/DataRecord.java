@@ -15,6 +15,7 @@
  */
 package android.device.collectors;
 
+import android.device.collectors.util.TypedMetrics;
 import android.os.Bundle;
 import androidx.annotation.VisibleForTesting;
 
@@ -24,12 +25,16 @@ import java.util.Map;
 
 /**
  * Object to hold all the data collected by metric collectors.
+ *
+ * Numeric metrics added with their type are kept as primitives, and reported both as strings
+ * and, all together, in the compact binary form of {@link TypedMetrics}.
  */
 public class DataRecord {
     // TODO: expend type supports to more complex type: Object,etc.
     private LinkedHashMap<String, String> mCurrentStringMetrics = new LinkedHashMap<>();
     private LinkedHashMap<String, File> mCurrentFileMetrics = new LinkedHashMap<>();
     private LinkedHashMap<String, byte[]> mCurrentBinaryMetrics = new LinkedHashMap<>();
+    private TypedMetrics mTypedMetrics = new TypedMetrics();
 
     /**
      * Add a metric to be tracked by a key.
@@ -62,12 +67,55 @@ public class DataRecord {
         mCurrentBinaryMetrics.put(key, value);
     }
 
+    /**
+     * Add a long metric to be tracked by a key.
+     *
+     * @param key the key under which to find the metric
+     * @param value the value associated with the key
+     */
+    public void addLongMetric(String key, long value) {
+        mTypedMetrics.putLong(key, value);
+    }
+
+    /**
+     * Add a double metric to be tracked by a key.
+     *
+     * @param key the key under which to find the metric
+     * @param value the value associated with the key
+     */
+    public void addDoubleMetric(String key, double value) {
+        mTypedMetrics.putDouble(key, value);
+    }
+
+    /**
+     * Add a histogram metric to be tracked by a key.
+     *
+     * @param key the key under which to find the metric
+     * @param buckets the value of each bucket of the histogram
+     * @param counts the count of each bucket of the histogram
+     */
+    public void addHistogramMetric(String key, long[] buckets, long[] counts) {
+        mTypedMetrics.putHistogram(key, buckets, counts);
+    }
+
+    /**
+     * Add all the metrics of another record, replacing the ones under the same keys.
+     *
+     * @param other the {@link DataRecord} to add the metrics of
+     */
+    void addMetrics(DataRecord other) {
+        mCurrentStringMetrics.putAll(other.mCurrentStringMetrics);
+        mCurrentFileMetrics.putAll(other.mCurrentFileMetrics);
+        mCurrentBinaryMetrics.putAll(other.mCurrentBinaryMetrics);
+        mTypedMetrics.putAll(other.mTypedMetrics);
+    }
+
     /**
      * Returns True if the {@link DataRecord} already contains some metrics, False otherwise.
      */
     public boolean hasMetrics() {
         return (mCurrentStringMetrics.size() + mCurrentFileMetrics.size()
-                + mCurrentBinaryMetrics.size()) > 0;
+                + mCurrentBinaryMetrics.size() + mTypedMetrics.size()) > 0;
     }
 
     /**
@@ -76,6 +124,8 @@ public class DataRecord {
      */
     private Map<String, String> getStringMetrics() {
         Map<String, String> res = new LinkedHashMap<>();
+        // Typed metrics are reported as strings as well, for compatibility.
+        res.putAll(mTypedMetrics.toStringMap());
         for (Map.Entry<String, File> entry : mCurrentFileMetrics.entrySet()) {
             res.put(entry.getKey(), entry.getValue().getAbsolutePath());
         }
@@ -96,6 +146,9 @@ public class DataRecord {
         for (String key : mCurrentBinaryMetrics.keySet()) {
             b.putByteArray(key, mCurrentBinaryMetrics.get(key));
         }
+        if (!mTypedMetrics.isEmpty()) {
+            b.putByteArray(TypedMetrics.BUNDLE_KEY, mTypedMetrics.encode());
+        }
         return b;
     }
 
@@ -25,16 +25,31 @@ import com.android.helpers.FreeMemHelper;
 /**
  * A {@link FreeMemListener} that captures and records free memory available
  * in the device.
+ *
+ * Options:
+ * -e read-proc [true|false] : read the memory of the cached processes from /proc instead of
+ * running dumpsys meminfo for each of them.
  */
 @OptionClass(alias = "freemem-listener")
 public class FreeMemListener extends BaseCollectionListener<Long> {
+    @VisibleForTesting static final String READ_PROC_KEY = "read-proc";
+
+    private FreeMemHelper mFreeMemHelper = new FreeMemHelper();
 
     public FreeMemListener() {
-        createHelperInstance(new FreeMemHelper());
+        createHelperInstance(mFreeMemHelper);
     }
 
     @VisibleForTesting
     public FreeMemListener(Bundle args, FreeMemHelper helper) {
         super(args, helper);
+        mFreeMemHelper = helper;
+    }
+
+    /** Adds the options for the free memory collector. */
+    @Override
+    public void setupAdditionalArgs() {
+        Bundle args = getArgsBundle();
+        mFreeMemHelper.setReadProc(Boolean.parseBoolean(args.getString(READ_PROC_KEY)));
     }
 }
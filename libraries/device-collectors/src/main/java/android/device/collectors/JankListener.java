@@ -21,9 +21,15 @@ import android.os.Bundle;
 import android.util.Log;
 import androidx.annotation.VisibleForTesting;
 
+import com.android.helpers.FrameTimeHistogram;
 import com.android.helpers.JankCollectionHelper;
 
+import org.junit.runner.Result;
+
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A {@link BaseCollectionListener} that captures and records jank metrics for a specific package or
@@ -35,6 +41,19 @@ public class JankListener extends BaseCollectionListener<Double> {
 
     @VisibleForTesting static final String PACKAGE_SEPARATOR = ",";
     @VisibleForTesting static final String PACKAGE_NAMES_KEY = "jank-package-names";
+    // Comma-separated percentiles (e.g. "50,99,99.9") to report at the end of the run from the
+    // frame time histograms merged across all tests, along with the histograms themselves.
+    @VisibleForTesting static final String AGGREGATE_PERCENTILES_KEY = "jank-aggregate-percentiles";
+    // Dump all tracked packages with a single gfxinfo command instead of one each.
+    @VisibleForTesting static final String BATCHED_COLLECTION_KEY = "jank-batched-collection";
+    // Also reset them with a single command, which resets every package, tracked or not.
+    @VisibleForTesting static final String BATCHED_RESET_KEY = "jank-batched-reset";
+    // Whether a failed batched command is retried per-package. Defaults to true.
+    @VisibleForTesting static final String BATCH_FALLBACK_KEY = "jank-batch-fallback";
+    // Report how long the gfxinfo reset and get commands took alongside the metrics.
+    @VisibleForTesting static final String REPORT_LATENCY_KEY = "jank-report-latency";
+
+    private double[] mAggregatePercentiles = new double[0];
 
     public JankListener() {
         createHelperInstance(new JankCollectionHelper());
@@ -62,5 +81,53 @@ public class JankListener extends BaseCollectionListener<Double> {
         } else {
             Log.v(LOG_TAG, "Tracking all packages for jank.");
         }
+        JankCollectionHelper helper = (JankCollectionHelper) mHelper;
+        helper.setBatchedCollection("true".equals(args.getString(BATCHED_COLLECTION_KEY)));
+        helper.setBatchedReset("true".equals(args.getString(BATCHED_RESET_KEY)));
+        helper.setBatchFallback(!"false".equals(args.getString(BATCH_FALLBACK_KEY)));
+        helper.setReportLatency("true".equals(args.getString(REPORT_LATENCY_KEY)));
+        String percentiles = args.getString(AGGREGATE_PERCENTILES_KEY);
+        if (percentiles != null) {
+            Log.v(LOG_TAG, String.format("Reporting aggregate percentiles: %s", percentiles));
+            List<Double> parsed = new ArrayList<>();
+            for (String percentile : percentiles.split(PACKAGE_SEPARATOR)) {
+                if (percentile.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    parsed.add(Double.parseDouble(percentile.trim()));
+                } catch (NumberFormatException e) {
+                    Log.e(LOG_TAG, String.format("Failed to parse percentile %s.", percentile), e);
+                }
+            }
+            mAggregatePercentiles = parsed.stream().mapToDouble(Double::doubleValue).toArray();
+        }
+        helper.clearAggregateHistograms();
+    }
+
+    /** Reports the aggregate frame time percentiles and histograms of all tests, if requested. */
+    @Override
+    public void onTestRunEnd(DataRecord runData, Result result) {
+        super.onTestRunEnd(runData, result);
+        joinRunCollection();
+        if (mAggregatePercentiles.length == 0) {
+            return;
+        }
+        JankCollectionHelper helper = (JankCollectionHelper) mHelper;
+        Map<String, Double> metrics = helper.getAggregateMetrics(mAggregatePercentiles);
+        for (Map.Entry<String, Double> entry : metrics.entrySet()) {
+            runData.addDoubleMetric(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, FrameTimeHistogram> entry :
+                helper.getAggregateHistogramMetrics().entrySet()) {
+            FrameTimeHistogram histogram = entry.getValue();
+            long[] buckets = new long[histogram.size()];
+            long[] counts = new long[histogram.size()];
+            for (int i = 0; i < histogram.size(); i++) {
+                buckets[i] = histogram.getBucketMs(i);
+                counts[i] = histogram.getCount(i);
+            }
+            runData.addHistogramMetric(entry.getKey(), buckets, counts);
+        }
     }
 }
@@ -33,12 +33,14 @@ import org.junit.runner.Description;
  * Options:
  * -e processshowmap-process-name [processName] : the process from the test case that we want to
  * measure memory for
+ * -e showmap-read-proc [true|false] : read the memory from /proc instead of running showmap
  */
 @OptionClass(alias = "process-showmap-collector")
 public class ProcessShowmapListener extends BaseCollectionListener<Long> {
     private static final String TAG = ProcessShowmapListener.class.getSimpleName();
     @VisibleForTesting static final String PROCESS_SEPARATOR = ",";
     @VisibleForTesting static final String PROCESS_NAMES_KEY = "showmap-process-names";
+    @VisibleForTesting static final String READ_PROC_KEY = "showmap-read-proc";
     private ProcessShowmapHelper mShowmapHelper = new ProcessShowmapHelper();
 
     public ProcessShowmapListener() {
@@ -66,5 +68,6 @@ public class ProcessShowmapListener extends BaseCollectionListener<Long> {
         }
         String[] procs = procsString.split(PROCESS_SEPARATOR);
         mShowmapHelper.setUp(procs);
+        mShowmapHelper.setReadProc(Boolean.parseBoolean(args.getString(READ_PROC_KEY)));
     }
 }
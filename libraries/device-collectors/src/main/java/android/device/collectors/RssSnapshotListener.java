@@ -32,6 +32,8 @@ import java.util.Map;
  * -e process-names [processNames] : a comma-separated list of processes
  * -e drop-cache [pagecache | slab | all] : drop cache flag
  * -e test-output-dir [path] : path to the output directory
+ * -e read-proc [true|false] : read the rss from /proc instead of running showmap for each process
+ * -e compress-output [true|false] : gzip the output file, with an index of the entry of each pid
  */
 @OptionClass(alias = "rsssnapshot-collector")
 public class RssSnapshotListener extends BaseCollectionListener<String> {
@@ -42,6 +44,8 @@ public class RssSnapshotListener extends BaseCollectionListener<String> {
   @VisibleForTesting static final String PROCESS_NAMES_KEY = "process-names";
   @VisibleForTesting static final String DROP_CACHE_KEY = "drop-cache";
   @VisibleForTesting static final String OUTPUT_DIR_KEY = "test-output-dir";
+  @VisibleForTesting static final String READ_PROC_KEY = "read-proc";
+  @VisibleForTesting static final String COMPRESS_OUTPUT_KEY = "compress-output";
 
   private RssSnapshotHelper mRssSnapshotHelper = new RssSnapshotHelper();
   private final Map<String, Integer> dropCacheValues = new HashMap<String, Integer>() {
@@ -85,6 +89,9 @@ public class RssSnapshotListener extends BaseCollectionListener<String> {
     }
 
     mRssSnapshotHelper.setUp(testOutputDir, procs);
+    mRssSnapshotHelper.setReadProc(Boolean.parseBoolean(args.getString(READ_PROC_KEY)));
+    mRssSnapshotHelper.setCompressOutput(
+        Boolean.parseBoolean(args.getString(COMPRESS_OUTPUT_KEY)));
 
     String dropCacheValue = args.getString(DROP_CACHE_KEY);
     if (dropCacheValue != null) {
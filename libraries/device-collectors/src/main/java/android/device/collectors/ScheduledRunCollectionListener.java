@@ -15,7 +15,9 @@
  */
 package android.device.collectors;
 
+import android.device.collectors.util.QuantileSketch;
 import android.device.collectors.util.SendToInstrumentation;
+import android.device.collectors.util.TimeSeriesCsv;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.util.Log;
@@ -38,8 +40,13 @@ import org.junit.runner.Result;
 
 /**
  * Extend this class for a periodic metric collection which relies on ICollectorHelper to collect
- * metrics and dump the time-series in csv format. In case of system crashes, the time series up to
- * the point where the crash happened will still be stored.
+ * metrics and dump the time-series in csv format. The time series is buffered and flushed at most
+ * every {@link #FLUSH_INTERVAL_ARG_KEY} ms, so in case of system crashes, the time series up to
+ * the last flush before the crash will still be stored.
+ *
+ * Along with the time series, the run metrics report for each key its min, max, mean, standard
+ * deviation, p50, p90 and p99 (estimated, see {@link QuantileSketch}), and its least squares slope
+ * per second, all computed as the values are collected.
  *
  * In case of running tests with Tradefed file pulller, use the option
  * {@link file-puller-log-collector:directory-keys} from {{@link FilePullerLogCollector} to
@@ -54,14 +61,18 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
     @VisibleForTesting public static final String OUTPUT_ROOT = "test_results";
     @VisibleForTesting public static final String OUTPUT_FILE_PATH = "%s_time_series_path";
 
-    @VisibleForTesting
-    public static final String TIME_SERIES_HEADER =
-            String.format("%-20s,%-100s,%-20s", "time", "metric_key", "value");
-
-    private static final String TIME_SERIES_BODY = "%-20d,%-100s,%-20s";
+    @VisibleForTesting public static final String TIME_SERIES_HEADER = TimeSeriesCsv.HEADER;
+    // How often the time series is flushed to the file, 0 to flush after every collection.
+    public static final String FLUSH_INTERVAL_ARG_KEY = "time_series_flush_interval_ms";
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 10000L;
     @VisibleForTesting public static final String MEAN_SUFFIX = "-mean";
     @VisibleForTesting public static final String MAX_SUFFIX = "-max";
     @VisibleForTesting public static final String MIN_SUFFIX = "-min";
+    @VisibleForTesting public static final String P50_SUFFIX = "-p50";
+    @VisibleForTesting public static final String P90_SUFFIX = "-p90";
+    @VisibleForTesting public static final String P99_SUFFIX = "-p99";
+    @VisibleForTesting public static final String STDDEV_SUFFIX = "-stddev";
+    @VisibleForTesting public static final String SLOPE_SUFFIX = "-slope";
 
     protected ICollectorHelper<T> mHelper;
     private TimeSeriesCsvWriter mTimeSeriesCsvWriter;
@@ -80,36 +91,52 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
      * Write a time-series in csv format to the given destination under external storage as an
      * unpivoted table like:
      *
-     * time  ,metric_key ,value
-     * 0     ,metric1    ,5
-     * 0     ,metric2    ,10
-     * 0     ,metric3    ,15
-     * 1000  ,metric1    ,6
-     * 1000  ,metric2    ,11
-     * 1000  ,metric3    ,16
+     * time,metric_key,value
+     * 0,metric1,5
+     * 0,metric2,10
+     * 0,metric3,15
+     * 1000,metric1,6
+     * 1000,metric2,11
+     * 1000,metric3,16
+     *
+     * The file is kept open for the whole run. See {@link TimeSeriesCsv} to convert it to the
+     * legacy format, with padded columns.
      */
     private class TimeSeriesCsvWriter {
         private File mDestFile;
-        private boolean mIsHeaderWritten = false;
+        private final long mFlushIntervalMs;
+        private BufferedWriter mWriter;
+        private long mLastFlushTime;
 
-        private TimeSeriesCsvWriter(Path destination) {
+        private TimeSeriesCsvWriter(Path destination, long flushIntervalMs) {
             // Create parent directory if it doesn't exist.
             File destDir = createAndEmptyDirectory(destination.getParent().toString());
             mDestFile = new File(destDir, destination.getFileName().toString());
+            mFlushIntervalMs = flushIntervalMs;
+            try {
+                mWriter = new BufferedWriter(new FileWriter(mDestFile));
+                mWriter.append(TIME_SERIES_HEADER).append('\n');
+                mWriter.flush();
+                mLastFlushTime = SystemClock.uptimeMillis();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Fail to open the time series file.", e);
+                close();
+            }
         }
 
-        private void write(Map<String, T> dataPoint, long timeStamp) {
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(mDestFile, true))) {
-                if (!mIsHeaderWritten) {
-                    writer.append(TIME_SERIES_HEADER);
-                    writer.append("\n");
-                    mIsHeaderWritten = true;
+        // Synchronized as a collection may still be running when the run ends.
+        private synchronized void write(Map<String, T> dataPoint, long timeStamp) {
+            if (mWriter == null) {
+                return;
+            }
+            try {
+                for (Map.Entry<String, T> entry : dataPoint.entrySet()) {
+                    TimeSeriesCsv.appendRow(mWriter, timeStamp, entry.getKey(), entry.getValue());
                 }
-
-                for (String key : dataPoint.keySet()) {
-                    writer.append(
-                            String.format(TIME_SERIES_BODY, timeStamp, key, dataPoint.get(key)));
-                    writer.append("\n");
+                long now = SystemClock.uptimeMillis();
+                if (now - mLastFlushTime >= mFlushIntervalMs) {
+                    mWriter.flush();
+                    mLastFlushTime = now;
                 }
             } catch (IOException e) {
                 Log.e(
@@ -117,53 +144,96 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
                         String.format("Fail to output time series due to : %s.", e.getMessage()));
             }
         }
+
+        private synchronized void close() {
+            if (mWriter == null) {
+                return;
+            }
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Fail to close the time series file.", e);
+            }
+            mWriter = null;
+        }
+    }
+
+    /** Statistics of the values of a metric, updated as they are collected. */
+    private class KeyStatistics {
+        private T mMin;
+        private T mMax;
+        private long mCount = 0;
+        private double mSum = 0;
+        // Welford's running mean and sum of squared differences to the mean.
+        private double mMean = 0;
+        private double mM2 = 0;
+        // Running means and co-moment of the times and values, for the least squares slope.
+        private double mMeanTime = 0;
+        private double mM2Time = 0;
+        private double mCoMoment = 0;
+        private final QuantileSketch mSketch = new QuantileSketch();
+
+        private void update(T value, long timeStamp) {
+            double v = value.doubleValue();
+            if (mCount == 0 || compareAsDouble(value, mMin) < 0) {
+                mMin = value;
+            }
+            if (mCount == 0 || compareAsDouble(value, mMax) > 0) {
+                mMax = value;
+            }
+            mCount++;
+            mSum += v;
+            double delta = v - mMean;
+            mMean += delta / mCount;
+            mM2 += delta * (v - mMean);
+            double deltaTime = timeStamp - mMeanTime;
+            mMeanTime += deltaTime / mCount;
+            mM2Time += deltaTime * (timeStamp - mMeanTime);
+            mCoMoment += deltaTime * (v - mMean);
+            mSketch.add(v);
+        }
+
+        private void addStatistics(String key, Map<String, String> res) {
+            res.put(key + MIN_SUFFIX, mMin.toString());
+            res.put(key + MAX_SUFFIX, mMax.toString());
+            res.put(key + MEAN_SUFFIX, Double.toString(mSum / mCount));
+            res.put(key + P50_SUFFIX, Double.toString(mSketch.getQuantile(0.5)));
+            res.put(key + P90_SUFFIX, Double.toString(mSketch.getQuantile(0.9)));
+            res.put(key + P99_SUFFIX, Double.toString(mSketch.getQuantile(0.99)));
+            double variance = mCount > 1 ? mM2 / (mCount - 1) : 0;
+            res.put(key + STDDEV_SUFFIX, Double.toString(Math.sqrt(variance)));
+            // Per second, as the times are in ms.
+            if (mM2Time > 0) {
+                res.put(key + SLOPE_SUFFIX, Double.toString(mCoMoment / mM2Time * 1000));
+            }
+        }
     }
 
     private class TimeSeriesStatistics {
-        Map<String, T> minMap = new HashMap<>();
-        Map<String, T> maxMap = new HashMap<>();
-        Map<String, Double> sumMap = new HashMap<>();
-        Map<String, Long> countMap = new HashMap<>();
-
-        private void update(Map<String, T> dataPoint) {
-            for (String key : dataPoint.keySet()) {
-                T value = dataPoint.get(key);
-                // Add / replace min.
-                minMap.computeIfPresent(key, (k, v) -> compareAsDouble(value, v) == -1 ? value : v);
-                minMap.computeIfAbsent(key, k -> value);
-                // Add / replace max.
-                maxMap.computeIfPresent(key, (k, v) -> compareAsDouble(value, v) == 1 ? value : v);
-                maxMap.computeIfAbsent(key, k -> value);
-                // Add / update sum.
-                sumMap.put(key, value.doubleValue() + sumMap.getOrDefault(key, 0.));
-                // Add / update count.
-                countMap.put(key, 1 + countMap.getOrDefault(key, 0L));
+        private final Map<String, KeyStatistics> mKeyStatistics = new HashMap<>();
+
+        private void update(Map<String, T> dataPoint, long timeStamp) {
+            for (Map.Entry<String, T> entry : dataPoint.entrySet()) {
+                mKeyStatistics
+                        .computeIfAbsent(entry.getKey(), k -> new KeyStatistics())
+                        .update(entry.getValue(), timeStamp);
             }
         }
 
         private Map<String, String> getStatistics() {
             Map<String, String> res = new HashMap<>();
-            for (String key : minMap.keySet()) {
-                res.put(key + MIN_SUFFIX, minMap.get(key).toString());
-            }
-            for (String key : maxMap.keySet()) {
-                res.put(key + MAX_SUFFIX, maxMap.get(key).toString());
-            }
-            for (String key : sumMap.keySet()) {
-                if (countMap.containsKey(key)) {
-                    double mean = sumMap.get(key) / countMap.get(key);
-                    res.put(key + MEAN_SUFFIX, Double.toString(mean));
-                }
+            for (Map.Entry<String, KeyStatistics> entry : mKeyStatistics.entrySet()) {
+                entry.getValue().addStatistics(entry.getKey(), res);
             }
             return res;
         }
+    }
 
-        /** Compare to Number objects. Return -1 if the n1 < n2; 0 if n1 == n2; 1 if n1 > n2. */
-        private int compareAsDouble(Number n1, Number n2) {
-            Double d1 = Double.valueOf(n1.doubleValue());
-            Double d2 = Double.valueOf(n2.doubleValue());
-            return d1.compareTo(d2);
-        }
+    /** Compare to Number objects. Return -1 if the n1 < n2; 0 if n1 == n2; 1 if n1 > n2. */
+    private static int compareAsDouble(Number n1, Number n2) {
+        Double d1 = Double.valueOf(n1.doubleValue());
+        Double d2 = Double.valueOf(n2.doubleValue());
+        return d1.compareTo(d2);
     }
 
     /** {@inheritDoc} */
@@ -179,7 +249,7 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
                                 TIME_SERIES_PREFIX,
                                 getClass().getSimpleName(),
                                 UUID.randomUUID().hashCode()));
-        mTimeSeriesCsvWriter = new TimeSeriesCsvWriter(path);
+        mTimeSeriesCsvWriter = new TimeSeriesCsvWriter(path, getFlushIntervalFromArgs());
         mTimeSeriesStatistics = new TimeSeriesStatistics();
         mStartTime = SystemClock.uptimeMillis();
         mHelper.startCollecting();
@@ -195,7 +265,13 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
     @Override
     void onEnd(DataRecord runData, Result result) {
         mHelper.stopCollecting();
-        for (Map.Entry<String, String> entry : mTimeSeriesStatistics.getStatistics().entrySet()) {
+        Map<String, String> statistics;
+        // Under the lock of the writer, as a collection may still be running.
+        synchronized (mTimeSeriesCsvWriter) {
+            mTimeSeriesCsvWriter.close();
+            statistics = mTimeSeriesStatistics.getStatistics();
+        }
+        for (Map.Entry<String, String> entry : statistics.entrySet()) {
             runData.addStringMetric(entry.getKey(), entry.getValue());
         }
     }
@@ -205,8 +281,24 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
     public void collect(DataRecord runData, Description description) throws InterruptedException {
         long timeStamp = SystemClock.uptimeMillis() - mStartTime;
         Map<String, T> dataPoint = mHelper.getMetrics();
-        mTimeSeriesCsvWriter.write(dataPoint, timeStamp);
-        mTimeSeriesStatistics.update(dataPoint);
+        synchronized (mTimeSeriesCsvWriter) {
+            mTimeSeriesCsvWriter.write(dataPoint, timeStamp);
+            mTimeSeriesStatistics.update(dataPoint, timeStamp);
+        }
+    }
+
+    /** Extract the flush interval of the time series from the instrumentation arguments. */
+    private long getFlushIntervalFromArgs() {
+        String flushIntervalValue = getArgsBundle().getString(FLUSH_INTERVAL_ARG_KEY);
+        if (flushIntervalValue == null) {
+            return DEFAULT_FLUSH_INTERVAL_MS;
+        }
+        try {
+            return Math.max(0L, Long.parseLong(flushIntervalValue));
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "Failed to parse the time series flush interval.", e);
+            return DEFAULT_FLUSH_INTERVAL_MS;
+        }
     }
 
     /**
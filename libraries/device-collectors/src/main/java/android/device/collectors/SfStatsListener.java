@@ -18,14 +18,27 @@ package android.device.collectors;
 
 import android.device.collectors.annotations.OptionClass;
 import android.os.Bundle;
+import android.util.Log;
 import androidx.annotation.VisibleForTesting;
 
 import com.android.helpers.SfStatsCollectionHelper;
 
+import org.junit.runner.Result;
+
+/**
+ * A {@link BaseCollectionListener} that captures and records SurfaceFlinger time stats.
+ *
+ * <p>By default time stats are enabled and cleared at the start of every test and disabled at the
+ * end. With continuous collection enabled, time stats are enabled once for the run and every test
+ * reports the difference between consecutive dumps instead.
+ */
 @OptionClass(alias = "sfstats-listener")
 public class SfStatsListener extends BaseCollectionListener<Double> {
     private static final String LOG_TAG = SfStatsListener.class.getSimpleName();
 
+    @VisibleForTesting
+    static final String CONTINUOUS_COLLECTION_KEY = "sfstats-continuous-collection";
+
     public SfStatsListener() {
         createHelperInstance(new SfStatsCollectionHelper());
     }
@@ -34,4 +47,23 @@ public class SfStatsListener extends BaseCollectionListener<Double> {
     public SfStatsListener(Bundle args, SfStatsCollectionHelper helper) {
         super(args, helper);
     }
+
+    /** Enables continuous collection if requested. */
+    @Override
+    public void setupAdditionalArgs() {
+        Bundle args = getArgsBundle();
+        boolean continuous = "true".equals(args.getString(CONTINUOUS_COLLECTION_KEY));
+        if (continuous) {
+            Log.v(LOG_TAG, "Collecting time stats continuously across tests.");
+        }
+        ((SfStatsCollectionHelper) mHelper).setContinuousCollection(continuous);
+    }
+
+    /** Disables time stats left enabled by continuous collection. */
+    @Override
+    public void onTestRunEnd(DataRecord runData, Result result) {
+        super.onTestRunEnd(runData, result);
+        joinRunCollection();
+        ((SfStatsCollectionHelper) mHelper).stopContinuousCollection();
+    }
 }
@@ -22,6 +22,7 @@ import android.util.Log;
 
 import androidx.annotation.VisibleForTesting;
 
+import com.android.helpers.StabilityChecker;
 import com.android.helpers.TotalPssHelper;
 
 /**
@@ -31,6 +32,10 @@ import com.android.helpers.TotalPssHelper;
  * Options:
  * -e process-names [processName] : the process from the test case that we want to
  * measure memory for.
+ * -e max_relative_error [fraction] : use a statistical check of the stabilization instead of
+ * threshold_kb, e.g. 0.01 to stop once the mean is known within 1%.
+ * -e confidence [level] : confidence level of the statistical check, 0.95 by default.
+ * -e stability_window [count] : number of most recent samples used by the statistical check.
  */
 @OptionClass(alias = "totalpss-collector")
 public class TotalPssMetricListener extends BaseCollectionListener<Long> {
@@ -42,6 +47,9 @@ public class TotalPssMetricListener extends BaseCollectionListener<Long> {
     @VisibleForTesting static final String MAX_ITERATIONS_KEY = "max_iterations";
     @VisibleForTesting static final String SLEEP_TIME_KEY = "sleep_time_ms";
     @VisibleForTesting static final String THRESHOLD_KEY = "threshold_kb";
+    @VisibleForTesting static final String MAX_RELATIVE_ERROR_KEY = "max_relative_error";
+    @VisibleForTesting static final String CONFIDENCE_KEY = "confidence";
+    @VisibleForTesting static final String STABILITY_WINDOW_KEY = "stability_window";
     private TotalPssHelper mTotalPssHelper = new TotalPssHelper();
 
     public TotalPssMetricListener() {
@@ -89,5 +97,20 @@ public class TotalPssMetricListener extends BaseCollectionListener<Long> {
         if (args.getString(THRESHOLD_KEY) != null) {
             mTotalPssHelper.setThreshold(Integer.parseInt(args.getString(THRESHOLD_KEY)));
         }
+
+        if (args.getString(MAX_RELATIVE_ERROR_KEY) != null) {
+            int window = StabilityChecker.DEFAULT_WINDOW_SIZE;
+            double confidence = StabilityChecker.DEFAULT_CONFIDENCE;
+            if (args.getString(STABILITY_WINDOW_KEY) != null) {
+                window = Integer.parseInt(args.getString(STABILITY_WINDOW_KEY));
+            }
+            if (args.getString(CONFIDENCE_KEY) != null) {
+                confidence = Double.parseDouble(args.getString(CONFIDENCE_KEY));
+            }
+            mTotalPssHelper.setStabilityCheck(
+                    window,
+                    confidence,
+                    Double.parseDouble(args.getString(MAX_RELATIVE_ERROR_KEY)));
+        }
     }
 }
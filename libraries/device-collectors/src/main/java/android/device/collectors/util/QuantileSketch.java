@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors.util;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the quantiles of a stream of values without storing them, by counting the values in
+ * logarithmic buckets: a value v goes to bucket ceil(log(|v|) / log(gamma)), so that any value is
+ * estimated within a relative error of {@link #RELATIVE_ACCURACY}. Positive and negative values
+ * are counted separately, and zeros on their own.
+ *
+ * <p>The memory used grows with the logarithm of the range of the values, not with their count:
+ * values from 1 to 1e9 take about a thousand buckets. Sketches are mergeable, the merge of two
+ * sketches being the sketch of both streams.
+ */
+public class QuantileSketch {
+    /** Relative error of the estimated quantiles. */
+    public static final double RELATIVE_ACCURACY = 0.01;
+
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    // Magnitudes below are counted as zeros, keeping bucket indexes in the int range.
+    private static final double MIN_MAGNITUDE = 1e-9;
+
+    private final Buckets mPositive = new Buckets();
+    private final Buckets mNegative = new Buckets();
+    private long mZeroCount = 0;
+    private long mCount = 0;
+    private double mMin = Double.NaN;
+    private double mMax = Double.NaN;
+
+    /** Counts of consecutive buckets, starting at the bucket of index {@code mOffset}. */
+    private static class Buckets {
+        private long[] mCounts = new long[0];
+        private int mOffset = 0;
+
+        private void add(int index, long count) {
+            if (mCounts.length == 0) {
+                mCounts = new long[8];
+                mOffset = index;
+            } else if (index < mOffset) {
+                // Grows at the front, leaving room for the next lower indexes as well.
+                int grow = Math.max(mOffset - index, mCounts.length);
+                long[] counts = new long[mCounts.length + grow];
+                System.arraycopy(mCounts, 0, counts, grow, mCounts.length);
+                mCounts = counts;
+                mOffset -= grow;
+            } else if (index - mOffset >= mCounts.length) {
+                mCounts =
+                        Arrays.copyOf(
+                                mCounts, Math.max(index - mOffset + 1, mCounts.length * 2));
+            }
+            mCounts[index - mOffset] += count;
+        }
+
+        private void addAll(Buckets other) {
+            for (int i = 0; i < other.mCounts.length; i++) {
+                if (other.mCounts[i] != 0) {
+                    add(other.mOffset + i, other.mCounts[i]);
+                }
+            }
+        }
+    }
+
+    /** Adds a value. NaN is ignored. */
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (Math.abs(value) < MIN_MAGNITUDE) {
+            mZeroCount++;
+        } else if (value > 0) {
+            mPositive.add(index(value), 1);
+        } else {
+            mNegative.add(index(-value), 1);
+        }
+        mMin = mCount == 0 ? value : Math.min(mMin, value);
+        mMax = mCount == 0 ? value : Math.max(mMax, value);
+        mCount++;
+    }
+
+    /** Adds all the values of {@code other}. */
+    public void merge(QuantileSketch other) {
+        if (other.mCount == 0) {
+            return;
+        }
+        mPositive.addAll(other.mPositive);
+        mNegative.addAll(other.mNegative);
+        mZeroCount += other.mZeroCount;
+        mMin = mCount == 0 ? other.mMin : Math.min(mMin, other.mMin);
+        mMax = mCount == 0 ? other.mMax : Math.max(mMax, other.mMax);
+        mCount += other.mCount;
+    }
+
+    /** Returns the number of values added. */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns an estimate of the {@code quantile} of the values, within the relative accuracy, or
+     * NaN if no value was added.
+     *
+     * @param quantile between 0 and 1, e.g. 0.99 for the 99th percentile
+     */
+    public double getQuantile(double quantile) {
+        if (mCount == 0) {
+            return Double.NaN;
+        }
+        if (quantile <= 0) {
+            return mMin;
+        }
+        if (quantile >= 1) {
+            return mMax;
+        }
+        // Nearest rank, the smallest value with at least the quantile of the values below it.
+        long rank = (long) Math.ceil(quantile * mCount) - 1;
+        double estimate;
+        // Negative values come first, from the largest magnitude.
+        long seen = 0;
+        int bucket = mNegative.mCounts.length - 1;
+        for (; bucket >= 0; bucket--) {
+            seen += mNegative.mCounts[bucket];
+            if (seen > rank) {
+                break;
+            }
+        }
+        if (bucket >= 0) {
+            estimate = -value(mNegative.mOffset + bucket);
+        } else if (seen + mZeroCount > rank) {
+            estimate = 0;
+        } else {
+            seen += mZeroCount;
+            bucket = 0;
+            for (; bucket < mPositive.mCounts.length - 1; bucket++) {
+                seen += mPositive.mCounts[bucket];
+                if (seen > rank) {
+                    break;
+                }
+            }
+            estimate = value(mPositive.mOffset + bucket);
+        }
+        // The exact extremes are known, and bound the estimate.
+        return Math.max(mMin, Math.min(mMax, estimate));
+    }
+
+    private static int index(double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / LOG_GAMMA);
+    }
+
+    /** Returns the value with the lowest relative error to all the values of the bucket. */
+    private static double value(int index) {
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Format of the time series written by the scheduled collectors: an unpadded csv with one row
+ * per metric and sample, like:
+ *
+ * time,metric_key,value
+ * 0,metric1,5
+ * 0,metric2,10
+ * 1000,metric1,6
+ *
+ * <p>Time series used to be written with every column padded to a fixed width, which can be
+ * restored with {@link #convertToLegacy}. This class only depends on the Java library so that it
+ * can be built for the host as well.
+ *
+ * Example Usage, on the host:
+ * collector-time-series-host time_series.csv legacy_time_series.csv
+ */
+public class TimeSeriesCsv {
+    public static final String HEADER = "time,metric_key,value";
+    public static final String LEGACY_HEADER =
+            String.format("%-20s,%-100s,%-20s", "time", "metric_key", "value");
+    private static final String LEGACY_ROW = "%-20d,%-100s,%-20s";
+
+    /** Appends the row of {@code key} at {@code time} to {@code out}. */
+    public static void appendRow(Writer out, long time, String key, Object value)
+            throws IOException {
+        out.append(Long.toString(time))
+                .append(',')
+                .append(key)
+                .append(',')
+                .append(String.valueOf(value))
+                .append('\n');
+    }
+
+    /**
+     * Converts a time series to the legacy format, with padded columns.
+     *
+     * @throws IOException if a row is malformed, or on failure to read or write
+     */
+    public static void convertToLegacy(BufferedReader in, Writer out) throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            return;
+        }
+        if (!HEADER.equals(line)) {
+            throw new IOException("Not a time series: " + line);
+        }
+        out.append(LEGACY_HEADER).append('\n');
+        int lineNumber = 1;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            // The time and value are numbers, anything in between is the key.
+            int keyStart = line.indexOf(',');
+            int valueStart = line.lastIndexOf(',');
+            if (keyStart < 0 || keyStart == valueStart) {
+                throw new IOException("Malformed time series row " + lineNumber + ": " + line);
+            }
+            long time;
+            try {
+                time = Long.parseLong(line.substring(0, keyStart));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed time series row " + lineNumber + ": " + line);
+            }
+            out.append(
+                            String.format(
+                                    LEGACY_ROW,
+                                    time,
+                                    line.substring(keyStart + 1, valueStart),
+                                    line.substring(valueStart + 1)))
+                    .append('\n');
+        }
+    }
+
+    /** Converts the time series file args[0] into the legacy format in args[1]. */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: TimeSeriesCsv <time_series.csv> <legacy_time_series.csv>");
+            System.exit(1);
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(args[0]));
+                BufferedWriter out = new BufferedWriter(new FileWriter(args[1]))) {
+            convertToLegacy(in, out);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numeric metrics kept in arrays of primitives: long and double values, and histograms of
+ * counts per bucket. Adding a metric under a key already present replaces it, whatever the type of
+ * the metric it replaces.
+ *
+ * <p>The metrics are encoded into a single compact byte[], reported in the instrumentation
+ * results under {@link #BUNDLE_KEY}, and decoded on the host with {@link #decode(byte[])}. This
+ * class only depends on the Java library so that it can be built for the host as well.
+ *
+ * <p>Encoding, with varints as in protocol buffers and zigzag varints for signed values:
+ * <pre>
+ * version:byte
+ * longs:varint (key, value:zigzag)*
+ * doubles:varint (key, value:8 bytes big endian)*
+ * histograms:varint (key, buckets:varint (bucket:zigzag delta, count:zigzag)*)*
+ * key: length:varint, utf-8 bytes
+ * </pre>
+ * Histogram buckets are encoded as the difference with the previous bucket.
+ */
+public class TypedMetrics {
+    /** Key of the encoded metrics in the instrumentation results. */
+    public static final String BUNDLE_KEY = "typed_metrics";
+
+    private static final int VERSION = 1;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final Map<String, Integer> mLongIndex = new HashMap<>();
+    private final List<String> mLongKeys = new ArrayList<>();
+    private long[] mLongValues = new long[INITIAL_CAPACITY];
+
+    private final Map<String, Integer> mDoubleIndex = new HashMap<>();
+    private final List<String> mDoubleKeys = new ArrayList<>();
+    private double[] mDoubleValues = new double[INITIAL_CAPACITY];
+
+    // Buckets and counts of each histogram.
+    private final Map<String, long[][]> mHistograms = new LinkedHashMap<>();
+
+    /** Adds a long metric. */
+    public void putLong(String key, long value) {
+        Integer index = mLongIndex.get(key);
+        if (index == null) {
+            removeDouble(key);
+            mHistograms.remove(key);
+            index = mLongKeys.size();
+            mLongIndex.put(key, index);
+            mLongKeys.add(key);
+            if (index == mLongValues.length) {
+                mLongValues = Arrays.copyOf(mLongValues, index * 2);
+            }
+        }
+        mLongValues[index] = value;
+    }
+
+    /** Adds a double metric. */
+    public void putDouble(String key, double value) {
+        Integer index = mDoubleIndex.get(key);
+        if (index == null) {
+            removeLong(key);
+            mHistograms.remove(key);
+            index = mDoubleKeys.size();
+            mDoubleIndex.put(key, index);
+            mDoubleKeys.add(key);
+            if (index == mDoubleValues.length) {
+                mDoubleValues = Arrays.copyOf(mDoubleValues, index * 2);
+            }
+        }
+        mDoubleValues[index] = value;
+    }
+
+    /**
+     * Adds a histogram metric. The arrays are copied.
+     *
+     * @param buckets the value of each bucket, e.g. its lower bound
+     * @param counts the count of each bucket
+     */
+    public void putHistogram(String key, long[] buckets, long[] counts) {
+        if (buckets.length != counts.length) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Histogram %s has %d buckets but %d counts.",
+                            key, buckets.length, counts.length));
+        }
+        removeLong(key);
+        removeDouble(key);
+        mHistograms.put(key, new long[][] {buckets.clone(), counts.clone()});
+    }
+
+    private void removeLong(String key) {
+        Integer index = mLongIndex.remove(key);
+        if (index == null) {
+            return;
+        }
+        mLongKeys.remove((int) index);
+        System.arraycopy(mLongValues, index + 1, mLongValues, index, mLongKeys.size() - index);
+        for (int i = index; i < mLongKeys.size(); i++) {
+            mLongIndex.put(mLongKeys.get(i), i);
+        }
+    }
+
+    private void removeDouble(String key) {
+        Integer index = mDoubleIndex.remove(key);
+        if (index == null) {
+            return;
+        }
+        mDoubleKeys.remove((int) index);
+        System.arraycopy(
+                mDoubleValues, index + 1, mDoubleValues, index, mDoubleKeys.size() - index);
+        for (int i = index; i < mDoubleKeys.size(); i++) {
+            mDoubleIndex.put(mDoubleKeys.get(i), i);
+        }
+    }
+
+    /** Adds all the metrics of {@code other}, replacing the ones under the same keys. */
+    public void putAll(TypedMetrics other) {
+        for (int i = 0; i < other.mLongKeys.size(); i++) {
+            putLong(other.mLongKeys.get(i), other.mLongValues[i]);
+        }
+        for (int i = 0; i < other.mDoubleKeys.size(); i++) {
+            putDouble(other.mDoubleKeys.get(i), other.mDoubleValues[i]);
+        }
+        for (Map.Entry<String, long[][]> entry : other.mHistograms.entrySet()) {
+            removeLong(entry.getKey());
+            removeDouble(entry.getKey());
+            mHistograms.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /** Returns the number of metrics. */
+    public int size() {
+        return mLongKeys.size() + mDoubleKeys.size() + mHistograms.size();
+    }
+
+    /** Returns true if there are no metrics. */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Returns the keys of the long metrics, in the order they were added. */
+    public List<String> getLongKeys() {
+        return Collections.unmodifiableList(mLongKeys);
+    }
+
+    /** Returns the keys of the double metrics, in the order they were added. */
+    public List<String> getDoubleKeys() {
+        return Collections.unmodifiableList(mDoubleKeys);
+    }
+
+    /** Returns the keys of the histogram metrics, in the order they were added. */
+    public List<String> getHistogramKeys() {
+        return Collections.unmodifiableList(new ArrayList<>(mHistograms.keySet()));
+    }
+
+    /** Returns the long metric under {@code key}, or {@code defaultValue} if there is none. */
+    public long getLong(String key, long defaultValue) {
+        Integer index = mLongIndex.get(key);
+        return index == null ? defaultValue : mLongValues[index];
+    }
+
+    /** Returns the double metric under {@code key}, or {@code defaultValue} if there is none. */
+    public double getDouble(String key, double defaultValue) {
+        Integer index = mDoubleIndex.get(key);
+        return index == null ? defaultValue : mDoubleValues[index];
+    }
+
+    /** Returns the buckets of the histogram under {@code key}, or null if there is none. */
+    public long[] getHistogramBuckets(String key) {
+        long[][] histogram = mHistograms.get(key);
+        return histogram == null ? null : histogram[0].clone();
+    }
+
+    /** Returns the counts of the histogram under {@code key}, or null if there is none. */
+    public long[] getHistogramCounts(String key) {
+        long[][] histogram = mHistograms.get(key);
+        return histogram == null ? null : histogram[1].clone();
+    }
+
+    /**
+     * Returns the metrics formatted as strings, as reported before they were typed. Histograms
+     * are formatted as comma separated bucket=count pairs.
+     */
+    public Map<String, String> toStringMap() {
+        Map<String, String> res = new LinkedHashMap<>();
+        for (int i = 0; i < mLongKeys.size(); i++) {
+            res.put(mLongKeys.get(i), Long.toString(mLongValues[i]));
+        }
+        for (int i = 0; i < mDoubleKeys.size(); i++) {
+            res.put(mDoubleKeys.get(i), Double.toString(mDoubleValues[i]));
+        }
+        for (Map.Entry<String, long[][]> entry : mHistograms.entrySet()) {
+            long[] buckets = entry.getValue()[0];
+            long[] counts = entry.getValue()[1];
+            StringBuilder histogram = new StringBuilder();
+            for (int i = 0; i < buckets.length; i++) {
+                if (i > 0) {
+                    histogram.append(',');
+                }
+                histogram.append(buckets[i]).append('=').append(counts[i]);
+            }
+            res.put(entry.getKey(), histogram.toString());
+        }
+        return res;
+    }
+
+    /** Encodes the metrics into a byte[], to be decoded with {@link #decode(byte[])}. */
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(VERSION);
+        writeVarint(out, mLongKeys.size());
+        for (int i = 0; i < mLongKeys.size(); i++) {
+            writeKey(out, mLongKeys.get(i));
+            writeVarint(out, zigzag(mLongValues[i]));
+        }
+        writeVarint(out, mDoubleKeys.size());
+        for (int i = 0; i < mDoubleKeys.size(); i++) {
+            writeKey(out, mDoubleKeys.get(i));
+            long bits = Double.doubleToRawLongBits(mDoubleValues[i]);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift));
+            }
+        }
+        writeVarint(out, mHistograms.size());
+        for (Map.Entry<String, long[][]> entry : mHistograms.entrySet()) {
+            writeKey(out, entry.getKey());
+            long[] buckets = entry.getValue()[0];
+            long[] counts = entry.getValue()[1];
+            writeVarint(out, buckets.length);
+            long previous = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                writeVarint(out, zigzag(buckets[i] - previous));
+                writeVarint(out, zigzag(counts[i]));
+                previous = buckets[i];
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes metrics encoded with {@link #encode()}.
+     *
+     * @throws IOException if {@code encoded} is truncated or of an unknown version
+     */
+    public static TypedMetrics decode(byte[] encoded) throws IOException {
+        Reader reader = new Reader(encoded);
+        int version = reader.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown typed metrics version " + version);
+        }
+        TypedMetrics metrics = new TypedMetrics();
+        int longCount = reader.readSize();
+        for (int i = 0; i < longCount; i++) {
+            metrics.putLong(reader.readKey(), unzigzag(reader.readVarint()));
+        }
+        int doubleCount = reader.readSize();
+        for (int i = 0; i < doubleCount; i++) {
+            String key = reader.readKey();
+            long bits = 0;
+            for (int b = 0; b < 8; b++) {
+                bits = (bits << 8) | reader.readByte();
+            }
+            metrics.putDouble(key, Double.longBitsToDouble(bits));
+        }
+        int histogramCount = reader.readSize();
+        for (int i = 0; i < histogramCount; i++) {
+            String key = reader.readKey();
+            int bucketCount = reader.readSize();
+            long[] buckets = new long[bucketCount];
+            long[] counts = new long[bucketCount];
+            long previous = 0;
+            for (int b = 0; b < bucketCount; b++) {
+                buckets[b] = previous + unzigzag(reader.readVarint());
+                counts[b] = unzigzag(reader.readVarint());
+                previous = buckets[b];
+            }
+            metrics.mHistograms.put(key, new long[][] {buckets, counts});
+        }
+        return metrics;
+    }
+
+    private static void writeKey(ByteArrayOutputStream out, String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Reads the encoded metrics, failing on truncated input. */
+    private static class Reader {
+        private final byte[] mBytes;
+        private int mPos = 0;
+
+        private Reader(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        private int readByte() throws IOException {
+            if (mPos >= mBytes.length) {
+                throw new IOException("Truncated typed metrics.");
+            }
+            return mBytes[mPos++] & 0xFF;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in typed metrics.");
+        }
+
+        /** Reads a count or length, which can not exceed the remaining bytes. */
+        private int readSize() throws IOException {
+            long size = readVarint();
+            if (size < 0 || size > mBytes.length - mPos) {
+                throw new IOException("Invalid size " + size + " in typed metrics.");
+            }
+            return (int) size;
+        }
+
+        private String readKey() throws IOException {
+            int length = readSize();
+            String key = new String(mBytes, mPos, length, StandardCharsets.UTF_8);
+            mPos += length;
+            return key;
+        }
+    }
+}
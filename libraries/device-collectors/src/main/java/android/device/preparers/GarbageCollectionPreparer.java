@@ -41,6 +41,8 @@ import org.junit.runner.Description;
  * stabilize. Default is specified in {@link GarbageCollectionHelper}. This should be tuned based
  * off noise in metric results (i.e. increase sleep if results are noisy, decrease if it's taking
  * too long).
+ * -e garbagecollection-wait-for-completion [true|false] : wait until the GC of every process
+ * completed instead of a fixed time, in which case the wait time is the timeout of the GCs.
  */
 @OptionClass(alias = "garbage-collection-preparer")
 public final class GarbageCollectionPreparer extends BaseMetricListener {
@@ -51,6 +53,8 @@ public final class GarbageCollectionPreparer extends BaseMetricListener {
     static final String PROCESS_NAMES_KEY = "garbagecollection-process-names";
     @VisibleForTesting
     static final String GC_WAIT_TIME_KEY = "garbagecollection-wait-time";
+    @VisibleForTesting
+    static final String GC_WAIT_FOR_COMPLETION_KEY = "garbagecollection-wait-for-completion";
 
     private final GarbageCollectionHelper mGcHelper;
     // Whether the preparer successfully set up and initialized.
@@ -82,6 +86,8 @@ public final class GarbageCollectionPreparer extends BaseMetricListener {
         }
         String[] procs = procsString.split(PROCESS_SEPARATOR);
         mGcHelper.setUp(procs);
+        mGcHelper.setWaitForCompletion(
+                Boolean.parseBoolean(args.getString(GC_WAIT_FOR_COMPLETION_KEY)));
         String gcWaitString = args.getString(GC_WAIT_TIME_KEY);
         if (gcWaitString != null) {
             try {
@@ -17,6 +17,7 @@ package android.device.collectors;
 
 import android.device.collectors.annotations.OptionClass;
 import android.os.Bundle;
+import android.util.Log;
 
 import com.android.helpers.CpuUsageHelper;
 
@@ -34,6 +35,8 @@ public class CpuUsageListener extends BaseCollectionListener<Long> {
     private static final String DISABLE_TOTAL_PKG = "disable_total_pkg";
     private static final String DISABLE_TOTAL_FREQ = "disable_total_freq";
     private static final String ENABLE_CPU_UTILIZATION = "enable_cpu_utilization";
+    private static final String ENABLE_STATSD_DELAY = "enable_statsd_delay";
+    private static final String SAMPLING_INTERVAL = "sampling_interval_ms";
 
     public CpuUsageListener() {
         createHelperInstance(new CpuUsageHelper());
@@ -65,6 +68,20 @@ public class CpuUsageListener extends BaseCollectionListener<Long> {
         if ("true".equals(args.getString(ENABLE_CPU_UTILIZATION))) {
             cpuUsageHelper.setEnableCpuUtilization();
         }
+
+        if ("true".equals(args.getString(ENABLE_STATSD_DELAY))) {
+            cpuUsageHelper.setEnableStatsdDelay();
+        }
+
+        // Sample the cpu time from /proc during the test instead of using statsd.
+        String samplingInterval = args.getString(SAMPLING_INTERVAL);
+        if (samplingInterval != null) {
+            try {
+                cpuUsageHelper.setSamplingInterval(Long.parseLong(samplingInterval));
+            } catch (NumberFormatException e) {
+                Log.e(getTag(), "Failed to parse the sampling interval.", e);
+            }
+        }
     }
 }
 
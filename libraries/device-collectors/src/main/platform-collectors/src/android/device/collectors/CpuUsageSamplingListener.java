@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.device.collectors;
+
+import android.device.collectors.annotations.OptionClass;
+import android.util.Log;
+
+import com.android.helpers.CpuUsageHelper;
+
+/**
+ * A {@link ScheduledRunCollectionListener} that samples the cpu time of each core and process from
+ * /proc during the test run, and periodically records their mean and peak utilization as a time
+ * series.
+ *
+ * Options:
+ * <p>-e sampling_interval_ms 100 : Interval at which the cpu time is sampled.
+ *
+ * <p>-e interval 1000 : Interval at which the utilization over the samples is recorded.
+ *
+ * Do NOT throw exception anywhere in this class. We don't want to halt the test when metrics
+ * collection fails.
+ */
+@OptionClass(alias = "cpuusage-sampling-collector")
+public class CpuUsageSamplingListener extends ScheduledRunCollectionListener<Long> {
+
+    private static final String SAMPLING_INTERVAL = "sampling_interval_ms";
+    private static final long DEFAULT_SAMPLING_INTERVAL_MS = 100;
+
+    public CpuUsageSamplingListener() {
+        createHelperInstance(new CpuUsageHelper());
+    }
+
+    /**
+     * Adds the option for the sampling interval.
+     */
+    @Override
+    public void setupAdditionalArgs() {
+        long samplingInterval = DEFAULT_SAMPLING_INTERVAL_MS;
+        String samplingIntervalValue = getArgsBundle().getString(SAMPLING_INTERVAL);
+        if (samplingIntervalValue != null) {
+            try {
+                samplingInterval = Long.parseLong(samplingIntervalValue);
+            } catch (NumberFormatException e) {
+                Log.e(getTag(), "Failed to parse the sampling interval.", e);
+            }
+        }
+        if (samplingInterval <= 0) {
+            samplingInterval = DEFAULT_SAMPLING_INTERVAL_MS;
+        }
+        ((CpuUsageHelper) mHelper).setSamplingInterval(samplingInterval);
+    }
+}
@@ -21,14 +21,22 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.SystemClock;
 import android.util.Log;
 import android.util.StatsLog;
 import androidx.annotation.VisibleForTesting;
 import androidx.test.InstrumentationRegistry;
 
+import com.android.helpers.BackoffPoller;
+import com.android.internal.os.StatsdConfigProto.AtomMatcher;
+import com.android.internal.os.StatsdConfigProto.EventMetric;
+import com.android.internal.os.StatsdConfigProto.SimpleAtomMatcher;
 import com.android.internal.os.StatsdConfigProto.StatsdConfig;
+import com.android.os.AtomsProto.AppBreadcrumbReported;
+import com.android.os.AtomsProto.Atom;
+import com.android.os.StatsLog.ConfigMetricsReport;
 import com.android.os.StatsLog.ConfigMetricsReportList;
+import com.android.os.StatsLog.EventMetricData;
+import com.android.os.StatsLog.StatsLogReport;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.junit.runner.Description;
@@ -41,11 +49,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -78,8 +86,23 @@ public class StatsdListener extends BaseMetricListener {
     // Labels used to signify test events to statsd with the AppBreadcrumbReported atom.
     static final int RUN_EVENT_LABEL = 7;
     static final int TEST_EVENT_LABEL = 11;
-    // A short delay after pushing the AppBreadcrumbReported event so that metrics can be dumped.
-    static final long METRIC_PULL_DELAY = TimeUnit.SECONDS.toMillis(1);
+    // Metric key for the time statsd took to process the "stop" AppBreadcrumbReported event.
+    static final String PULL_DELAY_KEY = "statsd-pull-delay-ms";
+
+    private static final int BREADCRUMB_ATOM_ID = Atom.APP_BREADCRUMB_REPORTED_FIELD_NUMBER;
+    // Config recording the AppBreadcrumbReported events, to know when statsd has processed them.
+    static final StatsdConfig PROBE_CONFIG =
+            StatsdConfig.newBuilder()
+                    .addAtomMatcher(
+                            AtomMatcher.newBuilder()
+                                    .setId(1)
+                                    .setSimpleAtomMatcher(
+                                            SimpleAtomMatcher.newBuilder()
+                                                    .setAtomId(BREADCRUMB_ATOM_ID)))
+                    .addEventMetric(EventMetric.newBuilder().setId(2).setWhat(1))
+                    .addAllowedLogSource("AID_ROOT")
+                    .addAllowedLogSource("AID_SYSTEM")
+                    .build();
 
     // Configs used for the test run and each test, respectively.
     private Map<String, StatsdConfig> mRunLevelConfigs = new HashMap<String, StatsdConfig>();
@@ -92,6 +115,11 @@ public class StatsdListener extends BaseMetricListener {
     // "Counter" for test iterations, keyed by the display name of each test's description.
     private Map<String, Integer> mTestIterations = new HashMap<String, Integer>();
 
+    // Id of the config registered from PROBE_CONFIG, or -1 if there is none.
+    private long mProbeConfigId = -1;
+    // Waits for statsd to process the "stop" events before pulling the reports.
+    private BackoffPoller mPoller = new BackoffPoller();
+
     // Cached stats manager instance.
     private StatsManager mStatsManager;
 
@@ -104,6 +132,12 @@ public class StatsdListener extends BaseMetricListener {
         mTestLevelConfigs.putAll(getConfigsFromOption(OPTION_CONFIGS_TEST_LEVEL));
 
         mRunLevelConfigIds = registerConfigsWithStatsManager(mRunLevelConfigs);
+        if (!mRunLevelConfigs.isEmpty() || !mTestLevelConfigs.isEmpty()) {
+            Long probeConfigId =
+                    registerConfigsWithStatsManager(Collections.singletonMap("probe", PROBE_CONFIG))
+                            .get("probe");
+            mProbeConfigId = probeConfigId == null ? -1 : probeConfigId;
+        }
 
         if (!logStart(RUN_EVENT_LABEL)) {
             Log.w(LOG_TAG, "Failed to log a test run start event. Metrics might be incomplete.");
@@ -119,8 +153,9 @@ public class StatsdListener extends BaseMetricListener {
     public void onTestRunEnd(DataRecord runData, Result result) {
         if (!logStop(RUN_EVENT_LABEL)) {
             Log.w(LOG_TAG, "Failed to log a test run end event. Metrics might be incomplete.");
+        } else if (!mRunLevelConfigIds.isEmpty()) {
+            waitForStop(runData, RUN_EVENT_LABEL);
         }
-        SystemClock.sleep(METRIC_PULL_DELAY);
 
         Map<String, File> configReports =
                 pullReportsAndRemoveConfigs(
@@ -128,6 +163,17 @@ public class StatsdListener extends BaseMetricListener {
         for (String configName : configReports.keySet()) {
             runData.addFileMetric(REPORT_KEY_PREFIX + configName, configReports.get(configName));
         }
+
+        if (mProbeConfigId != -1) {
+            adoptShellPermissionIdentity();
+            try {
+                removeStatsConfig(mProbeConfigId);
+            } catch (StatsUnavailableException e) {
+                Log.e(LOG_TAG, String.format("Unable to remove probe config due to %s.", e));
+            }
+            dropShellPermissionIdentity();
+            mProbeConfigId = -1;
+        }
     }
 
     /** Register the test-level configs with {@link StatsManager} before each test starts. */
@@ -151,8 +197,9 @@ public class StatsdListener extends BaseMetricListener {
     public void onTestEnd(DataRecord testData, Description description) {
         if (!logStop(TEST_EVENT_LABEL)) {
             Log.w(LOG_TAG, "Failed to log a test end event. Metrics might be incomplete.");
+        } else if (!mTestLevelConfigIds.isEmpty()) {
+            waitForStop(testData, TEST_EVENT_LABEL);
         }
-        SystemClock.sleep(METRIC_PULL_DELAY);
 
         Map<String, File> configReports =
                 pullReportsAndRemoveConfigs(
@@ -164,6 +211,53 @@ public class StatsdListener extends BaseMetricListener {
         }
     }
 
+    /**
+     * Wait until statsd has processed the "stop" event with {@code label}, by pulling the reports
+     * of the probe config with backoff, and report the time it took in {@code data}.
+     *
+     * <p>Statsd processes each event for all configs at once, so the other configs include the
+     * metrics triggered by the event as well by then.
+     */
+    private void waitForStop(DataRecord data, int label) {
+        if (mProbeConfigId == -1) {
+            return;
+        }
+        adoptShellPermissionIdentity();
+        boolean stopped = mPoller.poll(() -> hasStopEvent(label));
+        dropShellPermissionIdentity();
+        if (!stopped) {
+            Log.w(LOG_TAG, "Timed out waiting for statsd. Metrics might be incomplete.");
+        }
+        data.addStringMetric(PULL_DELAY_KEY, String.valueOf(mPoller.getLastDelayMs()));
+    }
+
+    /**
+     * Pull the reports of the probe config and check for the "stop" event with {@code label}.
+     *
+     * @return true if the event was found or the reports could not be pulled.
+     */
+    private boolean hasStopEvent(int label) {
+        ConfigMetricsReportList reportList;
+        try {
+            reportList = ConfigMetricsReportList.parseFrom(getStatsReports(mProbeConfigId));
+        } catch (StatsUnavailableException | InvalidProtocolBufferException e) {
+            Log.e(LOG_TAG, String.format("Failed to retrieve probe report due to %s.", e));
+            return true;
+        }
+        for (ConfigMetricsReport report : reportList.getReportsList()) {
+            for (StatsLogReport metric : report.getMetricsList()) {
+                for (EventMetricData event : metric.getEventMetrics().getDataList()) {
+                    AppBreadcrumbReported breadcrumb = event.getAtom().getAppBreadcrumbReported();
+                    if (breadcrumb.getLabel() == label
+                            && breadcrumb.getState() == AppBreadcrumbReported.State.STOP) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Register a set of statsd configs and return their config IDs in a {@link Map}.
      *
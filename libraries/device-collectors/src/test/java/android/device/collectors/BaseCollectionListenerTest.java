@@ -15,6 +15,7 @@
  */
 package android.device.collectors;
 
+import android.device.collectors.util.TypedMetrics;
 import android.os.Bundle;
 import androidx.test.runner.AndroidJUnit4;
 
@@ -29,9 +30,23 @@ import org.junit.runner.notification.Failure;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -238,4 +253,215 @@ public class BaseCollectionListenerTest {
         verify(helper, times(2)).getMetrics();
         verify(helper, times(3)).stopCollecting();
     }
+
+    /**
+     * Verify the metrics of a test are only sent once every listener collecting asynchronously
+     * collected them.
+     */
+    @Test
+    public void testAsyncPerTestFlow() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(BaseCollectionListener.ASYNC_COLLECTION, "true");
+        ICollectorHelper otherHelper = mock(ICollectorHelper.class);
+        doReturn(Collections.singletonMap("other", "2")).when(otherHelper).getMetrics();
+        CollectionPipeline pipeline = new CollectionPipeline();
+        BaseCollectionListener listener = initAsyncListener(b, helper, pipeline);
+        BaseCollectionListener otherListener = initAsyncListener(b, otherHelper, pipeline);
+        doReturn(Collections.singletonMap("metric", "1")).when(helper).getMetrics();
+
+        listener.onTestRunStart(listener.createDataRecord(), FAKE_DESCRIPTION);
+        otherListener.onTestRunStart(otherListener.createDataRecord(), FAKE_DESCRIPTION);
+        listener.onTestStart(listener.createDataRecord(), FAKE_DESCRIPTION);
+        otherListener.onTestStart(otherListener.createDataRecord(), FAKE_DESCRIPTION);
+        DataRecord testData = listener.createDataRecord();
+        listener.onTestEnd(testData, FAKE_DESCRIPTION);
+        verify(listener, never()).sendTestMetrics(any());
+        DataRecord otherTestData = otherListener.createDataRecord();
+        otherListener.onTestEnd(otherTestData, FAKE_DESCRIPTION);
+
+        // Both collections are joined once the last listener handed its over.
+        verify(listener, times(1)).sendTestMetrics(testData);
+        verify(otherListener, times(1)).sendTestMetrics(otherTestData);
+        verify(helper, times(1)).getMetrics();
+        verify(helper, times(1)).stopCollecting();
+        assertTrue(testData.hasMetrics());
+        assertTrue(listener.defersTestMetrics());
+        listener.onTestRunEnd(listener.createDataRecord(), new Result());
+        otherListener.onTestRunEnd(otherListener.createDataRecord(), new Result());
+    }
+
+    /**
+     * Verify the metrics of an async collection missing its deadline are not sent.
+     */
+    @Test
+    public void testAsyncDeadline() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(BaseCollectionListener.ASYNC_COLLECTION, "true");
+        b.putString(BaseCollectionListener.ASYNC_COLLECTION_DEADLINE, "10");
+        BaseCollectionListener listener =
+                initAsyncListener(b, helper, new CollectionPipeline());
+        doAnswer(
+                        invocation -> {
+                            Thread.sleep(1000);
+                            return new HashMap<String, String>();
+                        })
+                .when(helper)
+                .getMetrics();
+
+        listener.onTestRunStart(listener.createDataRecord(), FAKE_DESCRIPTION);
+        listener.onTestStart(listener.createDataRecord(), FAKE_DESCRIPTION);
+        DataRecord testData = listener.createDataRecord();
+        listener.onTestEnd(testData, FAKE_DESCRIPTION);
+        verify(listener, never()).sendTestMetrics(any());
+        assertFalse(testData.hasMetrics());
+        listener.onTestRunEnd(listener.createDataRecord(), new Result());
+    }
+
+    /**
+     * Verify the helper is not started again while an abandoned collection is still blocked in
+     * it.
+     */
+    @Test
+    public void testAsyncBlockedHelper() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(BaseCollectionListener.ASYNC_COLLECTION, "true");
+        b.putString(BaseCollectionListener.ASYNC_COLLECTION_DEADLINE, "10");
+        CollectionPipeline pipeline = new CollectionPipeline();
+        BaseCollectionListener listener = initAsyncListener(b, helper, pipeline);
+        BaseCollectionListener otherListener =
+                initAsyncListener(b, mock(ICollectorHelper.class), pipeline);
+        CountDownLatch collecting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(
+                        invocation -> {
+                            collecting.countDown();
+                            // A helper call ignoring the cancellation of the collection.
+                            while (true) {
+                                try {
+                                    release.await();
+                                    return new HashMap<String, String>();
+                                } catch (InterruptedException e) {
+                                    // Keep blocking.
+                                }
+                            }
+                        })
+                .when(helper)
+                .getMetrics();
+        Description firstTest = Description.createTestDescription("class", "first");
+        Description secondTest = Description.createTestDescription("class", "second");
+        Description thirdTest = Description.createTestDescription("class", "third");
+
+        listener.onTestRunStart(listener.createDataRecord(), FAKE_DESCRIPTION);
+        otherListener.onTestRunStart(otherListener.createDataRecord(), FAKE_DESCRIPTION);
+        listener.onTestStart(listener.createDataRecord(), firstTest);
+        otherListener.onTestStart(otherListener.createDataRecord(), firstTest);
+        listener.onTestEnd(listener.createDataRecord(), firstTest);
+        // The test is joined once the other listener ends it, with the collection running.
+        assertTrue(collecting.await(1, TimeUnit.SECONDS));
+        otherListener.onTestEnd(otherListener.createDataRecord(), firstTest);
+        verify(listener, never()).sendTestMetrics(any());
+
+        // The first collection is abandoned but still running, the second test is skipped.
+        listener.onTestStart(listener.createDataRecord(), secondTest);
+        listener.onTestEnd(listener.createDataRecord(), secondTest);
+        verify(helper, times(1)).startCollecting();
+        verify(helper, times(1)).getMetrics();
+
+        release.countDown();
+        verify(helper, timeout(1000)).stopCollecting();
+        listener.onTestStart(listener.createDataRecord(), thirdTest);
+        verify(helper, times(2)).startCollecting();
+        listener.onTestEnd(listener.createDataRecord(), thirdTest);
+        listener.onTestRunEnd(listener.createDataRecord(), new Result());
+    }
+
+    /**
+     * Verify the metrics of a test are not held for a listener that did not start it.
+     */
+    @Test
+    public void testAsyncJoinPerTest() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(BaseCollectionListener.ASYNC_COLLECTION, "true");
+        CollectionPipeline pipeline = new CollectionPipeline();
+        BaseCollectionListener listener = initAsyncListener(b, helper, pipeline);
+        BaseCollectionListener otherListener =
+                initAsyncListener(b, mock(ICollectorHelper.class), pipeline);
+        doReturn(Collections.singletonMap("metric", "1")).when(helper).getMetrics();
+
+        listener.onTestRunStart(listener.createDataRecord(), FAKE_DESCRIPTION);
+        otherListener.onTestRunStart(otherListener.createDataRecord(), FAKE_DESCRIPTION);
+        listener.onTestStart(listener.createDataRecord(), FAKE_DESCRIPTION);
+        DataRecord testData = listener.createDataRecord();
+        listener.onTestEnd(testData, FAKE_DESCRIPTION);
+
+        verify(listener, times(1)).sendTestMetrics(testData);
+        assertTrue(testData.hasMetrics());
+        listener.onTestRunEnd(listener.createDataRecord(), new Result());
+        otherListener.onTestRunEnd(otherListener.createDataRecord(), new Result());
+    }
+
+    /**
+     * Verify the run metrics collected asynchronously are joined when the instrumentation ends,
+     * along with how long the collection overlapped with the rest of the run.
+     */
+    @Test
+    public void testAsyncPerRunFlow() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(BaseCollectionListener.COLLECT_PER_RUN, "true");
+        b.putString(BaseCollectionListener.ASYNC_COLLECTION, "true");
+        BaseCollectionListener listener =
+                initAsyncListener(b, helper, new CollectionPipeline());
+        doReturn(Collections.singletonMap("metric", "1")).when(helper).getMetrics();
+
+        DataRecord runData = listener.createDataRecord();
+        listener.onTestRunStart(runData, FAKE_DESCRIPTION);
+        listener.onTestRunEnd(runData, new Result());
+        listener.joinRunCollection();
+
+        verify(helper, times(1)).stopCollecting();
+        assertFalse(listener.defersTestMetrics());
+        Bundle metrics = runData.createBundleFromMetrics();
+        assertEquals("1", metrics.getString("metric"));
+        assertTrue(
+                metrics.containsKey(
+                        listener.getClass().getSimpleName()
+                                + BaseCollectionListener.COLLECTION_OVERLAPPED_SUFFIX));
+    }
+
+    /**
+     * Verify the numeric metrics are reported typed, and as strings as before.
+     */
+    @Test
+    public void testTypedMetrics() throws Exception {
+        mListener = initListener(new Bundle());
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("count", 5L);
+        metrics.put("ratio", 0.5);
+        metrics.put("name", "value");
+        doReturn(metrics).when(helper).getMetrics();
+
+        DataRecord testData = mListener.createDataRecord();
+        mListener.onTestRunStart(mListener.createDataRecord(), FAKE_DESCRIPTION);
+        mListener.onTestStart(testData, FAKE_DESCRIPTION);
+        mListener.onTestEnd(testData, FAKE_DESCRIPTION);
+
+        Bundle bundle = testData.createBundleFromMetrics();
+        assertEquals("5", bundle.getString("count"));
+        assertEquals("0.5", bundle.getString("ratio"));
+        assertEquals("value", bundle.getString("name"));
+        TypedMetrics typed = TypedMetrics.decode(bundle.getByteArray(TypedMetrics.BUNDLE_KEY));
+        assertEquals(2, typed.size());
+        assertEquals(5, typed.getLong("count", 0));
+        assertEquals(0.5, typed.getDouble("ratio", 0), 0);
+    }
+
+    private BaseCollectionListener initAsyncListener(
+            Bundle b, ICollectorHelper helper, CollectionPipeline pipeline) {
+        BaseCollectionListener listener = spy(new BaseCollectionListener<String>(b, helper));
+        doReturn(pipeline).when(listener).getPipeline();
+        doNothing().when(listener).sendTestMetrics(any());
+        doReturn(true).when(helper).startCollecting();
+        doReturn(true).when(helper).stopCollecting();
+        return listener;
+    }
 }
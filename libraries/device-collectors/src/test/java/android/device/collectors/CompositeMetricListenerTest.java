@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors;
+
+import android.app.Instrumentation;
+import android.device.collectors.util.SendToInstrumentation;
+import android.os.Bundle;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.helpers.ICollectorHelper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Android Unit tests for {@link CompositeMetricListener}.
+ *
+ * To run:
+ * atest CollectorDeviceLibTest:android.device.collectors.CompositeMetricListenerTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompositeMetricListenerTest {
+
+    private Instrumentation mMockInstrumentation;
+    // Callbacks of the hosted listeners, in the order they ran.
+    private List<String> mEvents;
+
+    @Before
+    public void setUp() {
+        mMockInstrumentation = Mockito.mock(Instrumentation.class);
+        mEvents = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    /**
+     * Verify the listeners of a stage run concurrently, stages are nested, and the test metrics
+     * of all the listeners are sent together.
+     */
+    @Test
+    public void testStagesAndMergedMetrics() throws Exception {
+        // Only released if both listeners of the stage end the test at the same time.
+        CountDownLatch bothEnding = new CountDownLatch(2);
+        RecordingListener first = new RecordingListener("first", bothEnding);
+        RecordingListener second = new RecordingListener("second", bothEnding);
+        LastListener last = new LastListener();
+        CompositeMetricListener listener =
+                new CompositeMetricListener(
+                        new Bundle(),
+                        Arrays.asList(Arrays.asList(first, second), Arrays.asList(last)));
+        listener.setInstrumentation(mMockInstrumentation);
+
+        Description testDescription = Description.createTestDescription("class", "method");
+        listener.testRunStarted(Description.createSuiteDescription("run"));
+        listener.testStarted(testDescription);
+        listener.testFinished(testDescription);
+        listener.testRunFinished(new Result());
+
+        assertTrue(first.mConcurrent);
+        assertTrue(second.mConcurrent);
+        // The last stage starts first and ends last.
+        assertEquals("last_start", mEvents.get(0));
+        assertEquals("last_end", mEvents.get(mEvents.size() - 1));
+
+        ArgumentCaptor<Bundle> capture = ArgumentCaptor.forClass(Bundle.class);
+        Mockito.verify(mMockInstrumentation)
+                .sendStatus(
+                        Mockito.eq(SendToInstrumentation.INST_STATUS_IN_PROGRESS),
+                        capture.capture());
+        Bundle metrics = capture.getValue();
+        assertEquals("1", metrics.getString("first"));
+        assertEquals("1", metrics.getString("second"));
+        assertEquals("1", metrics.getString("last"));
+        // Listeners of the same class are told apart by their position.
+        assertTrue(
+                metrics.containsKey(
+                        "RecordingListener_0_0" + CompositeMetricListener.START_LATENCY_SUFFIX));
+        assertTrue(
+                metrics.containsKey(
+                        "RecordingListener_0_1" + CompositeMetricListener.START_LATENCY_SUFFIX));
+        assertTrue(
+                metrics.containsKey(
+                        "LastListener_1_0" + CompositeMetricListener.END_LATENCY_SUFFIX));
+    }
+
+    /**
+     * Verify the metrics of a hosted listener collecting asynchronously are merged, even if the
+     * test is not joined yet for a listener outside of the composite.
+     */
+    @Test
+    public void testAsyncHostedMetrics() throws Exception {
+        Bundle args = new Bundle();
+        args.putString(BaseCollectionListener.ASYNC_COLLECTION, "true");
+        CollectionPipeline pipeline = new CollectionPipeline();
+        BaseCollectionListener<String> hosted =
+                createAsyncListener(args, Collections.singletonMap("hosted", "1"), pipeline);
+        BaseCollectionListener<String> other =
+                createAsyncListener(args, Collections.singletonMap("other", "1"), pipeline);
+        other.setInstrumentation(mMockInstrumentation);
+        CompositeMetricListener listener =
+                new CompositeMetricListener(
+                        new Bundle(), Arrays.asList(Arrays.<BaseMetricListener>asList(hosted)));
+        listener.setInstrumentation(mMockInstrumentation);
+
+        Description runDescription = Description.createSuiteDescription("run");
+        Description testDescription = Description.createTestDescription("class", "method");
+        listener.testRunStarted(runDescription);
+        other.testRunStarted(runDescription);
+        listener.testStarted(testDescription);
+        other.testStarted(testDescription);
+        listener.testFinished(testDescription);
+        other.testFinished(testDescription);
+
+        ArgumentCaptor<Bundle> capture = ArgumentCaptor.forClass(Bundle.class);
+        Mockito.verify(mMockInstrumentation, Mockito.times(2))
+                .sendStatus(
+                        Mockito.eq(SendToInstrumentation.INST_STATUS_IN_PROGRESS),
+                        capture.capture());
+        assertEquals("1", capture.getAllValues().get(0).getString("hosted"));
+        assertEquals("1", capture.getAllValues().get(1).getString("other"));
+    }
+
+    private BaseCollectionListener<String> createAsyncListener(
+            Bundle args, Map<String, String> metrics, CollectionPipeline pipeline) {
+        ICollectorHelper helper = Mockito.mock(ICollectorHelper.class);
+        Mockito.doReturn(metrics).when(helper).getMetrics();
+        return new BaseCollectionListener<String>(args, helper) {
+            @Override
+            CollectionPipeline getPipeline() {
+                return pipeline;
+            }
+        };
+    }
+
+    /** Records its callbacks, and reports one metric under its name. */
+    private class RecordingListener extends BaseMetricListener {
+        private final String mName;
+        private final CountDownLatch mEnding;
+        private boolean mConcurrent;
+
+        RecordingListener(String name, CountDownLatch ending) {
+            super(new Bundle());
+            mName = name;
+            mEnding = ending;
+        }
+
+        @Override
+        public void onTestStart(DataRecord testData, Description description) {
+            mEvents.add(mName + "_start");
+        }
+
+        @Override
+        public void onTestEnd(DataRecord testData, Description description) {
+            if (mEnding != null) {
+                mEnding.countDown();
+                try {
+                    mConcurrent = mEnding.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            mEvents.add(mName + "_end");
+            testData.addStringMetric(mName, "1");
+        }
+    }
+
+    private class LastListener extends RecordingListener {
+        LastListener() {
+            super("last", null);
+        }
+    }
+}
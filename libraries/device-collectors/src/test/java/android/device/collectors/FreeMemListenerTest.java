@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors;
+
+import static android.device.collectors.FreeMemListener.READ_PROC_KEY;
+
+import static org.mockito.Mockito.verify;
+
+import android.app.Instrumentation;
+import android.os.Bundle;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.helpers.FreeMemHelper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Android Unit tests for {@link FreeMemListener}.
+ *
+ * To run:
+ * atest CollectorDeviceLibTest:android.device.collectors.FreeMemListenerTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class FreeMemListenerTest {
+
+    @Mock
+    private Instrumentation mInstrumentation;
+    @Mock
+    private FreeMemHelper mFreeMemHelper;
+
+    private FreeMemListener mListener;
+    private Description mRunDesc;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mRunDesc = Description.createSuiteDescription("run");
+    }
+
+    private FreeMemListener initListener(Bundle b) {
+        FreeMemListener listener = new FreeMemListener(b, mFreeMemHelper);
+        listener.setInstrumentation(mInstrumentation);
+        return listener;
+    }
+
+    @Test
+    public void testReadProcDisabledByDefault() throws Exception {
+        mListener = initListener(new Bundle());
+
+        mListener.testRunStarted(mRunDesc);
+
+        verify(mFreeMemHelper).setReadProc(false);
+    }
+
+    @Test
+    public void testReadProc() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(READ_PROC_KEY, "true");
+        mListener = initListener(b);
+
+        mListener.testRunStarted(mRunDesc);
+
+        verify(mFreeMemHelper).setReadProc(true);
+    }
+}
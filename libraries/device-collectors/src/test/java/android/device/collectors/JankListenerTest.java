@@ -15,6 +15,7 @@
  */
 package android.device.collectors;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -69,6 +70,55 @@ public final class JankListenerTest {
         collector.testRunFinished(new Result());
     }
 
+    /** Test that aggregate percentiles are reported at the end of the run when requested. */
+    @Test
+    public void testCollect_aggregatePercentiles() throws Exception {
+        Bundle percentileBundle = new Bundle();
+        percentileBundle.putString(JankListener.AGGREGATE_PERCENTILES_KEY, "50, 99.9");
+        JankListener collector = new JankListener(percentileBundle, mHelper);
+        collector.setInstrumentation(mInstrumentation);
+
+        collector.testRunStarted(RUN_DESCRIPTION);
+        verify(mHelper, times(1)).clearAggregateHistograms();
+        collector.testStarted(TEST_DESCRIPTION);
+        collector.testFinished(TEST_DESCRIPTION);
+        verify(mHelper, never()).getAggregateMetrics(any());
+        collector.testRunFinished(new Result());
+        verify(mHelper, times(1)).getAggregateMetrics(50, 99.9);
+    }
+
+    /** Test that malformed aggregate percentiles are skipped. */
+    @Test
+    public void testCollect_malformedAggregatePercentiles() throws Exception {
+        Bundle percentileBundle = new Bundle();
+        percentileBundle.putString(JankListener.AGGREGATE_PERCENTILES_KEY, "50,p90,99");
+        JankListener collector = new JankListener(percentileBundle, mHelper);
+        collector.setInstrumentation(mInstrumentation);
+
+        collector.testRunStarted(RUN_DESCRIPTION);
+        collector.testStarted(TEST_DESCRIPTION);
+        collector.testFinished(TEST_DESCRIPTION);
+        collector.testRunFinished(new Result());
+        verify(mHelper, times(1)).getAggregateMetrics(50, 99);
+    }
+
+    /** Test that the batched collection arguments are passed to the helper. */
+    @Test
+    public void testCollect_batchedCollection() throws Exception {
+        Bundle batchedBundle = new Bundle();
+        batchedBundle.putString(JankListener.BATCHED_COLLECTION_KEY, "true");
+        batchedBundle.putString(JankListener.BATCHED_RESET_KEY, "true");
+        batchedBundle.putString(JankListener.REPORT_LATENCY_KEY, "true");
+        JankListener collector = new JankListener(batchedBundle, mHelper);
+        collector.setInstrumentation(mInstrumentation);
+
+        collector.testRunStarted(RUN_DESCRIPTION);
+        verify(mHelper, times(1)).setBatchedCollection(true);
+        verify(mHelper, times(1)).setBatchedReset(true);
+        verify(mHelper, times(1)).setBatchFallback(true);
+        verify(mHelper, times(1)).setReportLatency(true);
+    }
+
     /** Test that no packages are specified when not set in arguments. */
     @Test
     public void testCollect_allProcesses() throws Exception {
@@ -16,10 +16,12 @@
 
 package android.device.collectors;
 
+import static android.device.collectors.RssSnapshotListener.COMPRESS_OUTPUT_KEY;
 import static android.device.collectors.RssSnapshotListener.DROP_CACHE_KEY;
 import static android.device.collectors.RssSnapshotListener.OUTPUT_DIR_KEY;
 import static android.device.collectors.RssSnapshotListener.PROCESS_NAMES_KEY;
 import static android.device.collectors.RssSnapshotListener.PROCESS_SEPARATOR;
+import static android.device.collectors.RssSnapshotListener.READ_PROC_KEY;
 import static org.mockito.Mockito.verify;
 
 import android.app.Instrumentation;
@@ -80,6 +82,8 @@ public class RssSnapshotListenerTest {
     b.putString(PROCESS_NAMES_KEY, "process1");
     b.putString(OUTPUT_DIR_KEY, VALID_OUTPUT_DIR);
     b.putString(DROP_CACHE_KEY, "all");
+    b.putString(READ_PROC_KEY, "true");
+    b.putString(COMPRESS_OUTPUT_KEY, "true");
     mListener = initListener(b);
 
     mListener.testRunStarted(mRunDesc);
@@ -87,5 +91,7 @@ public class RssSnapshotListenerTest {
     verify(mRssSnapshotHelper).setUp(VALID_OUTPUT_DIR, "process1");
     // DROP_CACHE_KEY values: "pagecache" = 1, "slab" = 2, "all" = 3
     verify(mRssSnapshotHelper).setDropCacheOption(3);
+    verify(mRssSnapshotHelper).setReadProc(true);
+    verify(mRssSnapshotHelper).setCompressOutput(true);
   }
 }
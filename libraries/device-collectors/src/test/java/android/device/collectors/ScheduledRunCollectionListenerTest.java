@@ -66,7 +66,7 @@ public class ScheduledRunCollectionListenerTest {
     // Collects at 0ms, 100ms, 200ms, and so on.
     private static final long NUMBER_OF_COLLECTIONS = TEST_DURATION / TEST_INTERVAL + 1;
     private static final String DATA_REGEX =
-            "(?<timestamp>[0-9]+)\\s+," + TEST_METRIC_KEY + "\\s+,(?<value>[0-9])\\s+";
+            "(?<timestamp>[0-9]+)," + TEST_METRIC_KEY + ",(?<value>[0-9])";
 
     @Mock private ICollectorHelper mHelper;
 
@@ -77,6 +77,8 @@ public class ScheduledRunCollectionListenerTest {
     private ScheduledRunCollectionListener initListener() {
         Bundle b = new Bundle();
         b.putString(ScheduledRunCollectionListener.INTERVAL_ARG_KEY, Long.toString(TEST_INTERVAL));
+        // Flush after every collection, as the time series is checked before the run ends.
+        b.putString(ScheduledRunCollectionListener.FLUSH_INTERVAL_ARG_KEY, "0");
         doReturn(true).when(mHelper).startCollecting();
         Map<String, Integer> first = new HashMap<>();
         first.put(TEST_METRIC_KEY, TEST_METRIC_VALUES[0]);
@@ -162,6 +164,32 @@ public class ScheduledRunCollectionListenerTest {
                         result.getString(
                                 TEST_METRIC_KEY + ScheduledRunCollectionListener.MEAN_SUFFIX)),
                 0.1);
+        // The sample standard deviation of 0, 1, 2, 3, 4.
+        assertEquals(
+                Math.sqrt(2.5),
+                Double.parseDouble(
+                        result.getString(
+                                TEST_METRIC_KEY + ScheduledRunCollectionListener.STDDEV_SUFFIX)),
+                0.01);
+        assertEquals(
+                2,
+                Double.parseDouble(
+                        result.getString(
+                                TEST_METRIC_KEY + ScheduledRunCollectionListener.P50_SUFFIX)),
+                0.1);
+        assertEquals(
+                expectedMax,
+                Double.parseDouble(
+                        result.getString(
+                                TEST_METRIC_KEY + ScheduledRunCollectionListener.P99_SUFFIX)),
+                0.1);
+        // The values grow by one every interval.
+        assertEquals(
+                1000. / TEST_INTERVAL,
+                Double.parseDouble(
+                        result.getString(
+                                TEST_METRIC_KEY + ScheduledRunCollectionListener.SLOPE_SUFFIX)),
+                2);
     }
 
     private void testRun(boolean isComplete) throws Exception {
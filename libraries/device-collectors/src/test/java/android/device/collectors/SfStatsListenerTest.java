@@ -15,6 +15,9 @@
  */
 package android.device.collectors;
 
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
 import android.app.Instrumentation;
 import android.os.Bundle;
 import androidx.test.runner.AndroidJUnit4;
@@ -55,4 +58,20 @@ public final class SfStatsListenerTest {
         collector.testFinished(TEST_DESCRIPTION);
         collector.testRunFinished(new Result());
     }
+
+    /** Test that continuous collection is enabled by argument and stopped at the end of the run. */
+    @Test
+    public void testCollect_continuous() throws Exception {
+        Bundle args = new Bundle();
+        args.putString(SfStatsListener.CONTINUOUS_COLLECTION_KEY, "true");
+        SfStatsListener collector = new SfStatsListener(args, mHelper);
+        collector.setInstrumentation(mInstrumentation);
+        collector.testRunStarted(RUN_DESCRIPTION);
+        verify(mHelper).setContinuousCollection(true);
+        collector.testStarted(TEST_DESCRIPTION);
+        collector.testFinished(TEST_DESCRIPTION);
+        verify(mHelper, never()).stopContinuousCollection();
+        collector.testRunFinished(new Result());
+        verify(mHelper).stopContinuousCollection();
+    }
 }
@@ -22,7 +22,13 @@ import static android.device.collectors.TotalPssMetricListener.MIN_ITERATIONS_KE
 import static android.device.collectors.TotalPssMetricListener.MAX_ITERATIONS_KEY;
 import static android.device.collectors.TotalPssMetricListener.SLEEP_TIME_KEY;
 import static android.device.collectors.TotalPssMetricListener.THRESHOLD_KEY;
+import static android.device.collectors.TotalPssMetricListener.MAX_RELATIVE_ERROR_KEY;
+import static android.device.collectors.TotalPssMetricListener.CONFIDENCE_KEY;
+import static android.device.collectors.TotalPssMetricListener.STABILITY_WINDOW_KEY;
 
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import android.app.Instrumentation;
@@ -96,5 +102,21 @@ public class TotalPssMetricListenerTest {
         verify(mTotalPssMetricHelper).setMaxIterations(102);
         verify(mTotalPssMetricHelper).setSleepTime(2000);
         verify(mTotalPssMetricHelper).setThreshold(2048);
+        verify(mTotalPssMetricHelper, never())
+                .setStabilityCheck(anyInt(), anyDouble(), anyDouble());
+    }
+
+    @Test
+    public void testStabilityCheckOptions() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(PROCESS_NAMES_KEY, "process1");
+        b.putString(MAX_RELATIVE_ERROR_KEY, "0.02");
+        b.putString(CONFIDENCE_KEY, "0.99");
+        b.putString(STABILITY_WINDOW_KEY, "4");
+        mListener = initListener(b);
+
+        mListener.testRunStarted(mRunDesc);
+
+        verify(mTotalPssMetricHelper).setStabilityCheck(4, 0.99, 0.02);
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors.util;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Android Unit tests for {@link QuantileSketch}.
+ *
+ * To run:
+ * atest CollectorDeviceLibTest:android.device.collectors.util.QuantileSketchTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class QuantileSketchTest {
+
+    /** Verify the quantiles are estimated within the relative accuracy. */
+    @Test
+    public void testQuantiles() throws Exception {
+        QuantileSketch sketch = new QuantileSketch();
+        assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+        // Values 1 to 10000, in an order unrelated to their value.
+        for (int i = 0; i < 10000; i++) {
+            sketch.add((i * 7919) % 10000 + 1);
+        }
+        assertEquals(10000, sketch.getCount());
+        assertEquals(1, sketch.getQuantile(0), 0);
+        assertEquals(10000, sketch.getQuantile(1), 0);
+        assertEquals(5000, sketch.getQuantile(0.5), 5000 * QuantileSketch.RELATIVE_ACCURACY);
+        assertEquals(9000, sketch.getQuantile(0.9), 9000 * QuantileSketch.RELATIVE_ACCURACY);
+        assertEquals(9900, sketch.getQuantile(0.99), 9900 * QuantileSketch.RELATIVE_ACCURACY);
+    }
+
+    /** Verify a strictly decreasing series, growing the buckets at the front every time. */
+    @Test
+    public void testDecreasing() throws Exception {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 100000; i >= 1; i--) {
+            sketch.add(i);
+        }
+        assertEquals(100000, sketch.getCount());
+        assertEquals(1, sketch.getQuantile(0), 0);
+        assertEquals(100000, sketch.getQuantile(1), 0);
+        assertEquals(50000, sketch.getQuantile(0.5), 50000 * QuantileSketch.RELATIVE_ACCURACY);
+        assertEquals(10, sketch.getQuantile(0.0001), 10 * QuantileSketch.RELATIVE_ACCURACY);
+
+        // Increasing negative values also go to lower buckets, of their magnitude.
+        QuantileSketch signed = new QuantileSketch();
+        for (int i = -500; i <= 500; i++) {
+            signed.add(i);
+        }
+        assertEquals(-500, signed.getQuantile(0), 0);
+        assertEquals(0, signed.getQuantile(0.5), 0);
+        assertEquals(250, signed.getQuantile(0.75), 250 * QuantileSketch.RELATIVE_ACCURACY);
+    }
+
+    /** Verify negative values and zeros are ordered before the positive values. */
+    @Test
+    public void testNegativeAndZero() throws Exception {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(-100);
+        sketch.add(-1);
+        sketch.add(0);
+        sketch.add(1);
+        sketch.add(100);
+        assertEquals(-100, sketch.getQuantile(0.1), 0);
+        assertEquals(-1, sketch.getQuantile(0.25), QuantileSketch.RELATIVE_ACCURACY);
+        assertEquals(0, sketch.getQuantile(0.5), 0);
+        assertEquals(1, sketch.getQuantile(0.75), QuantileSketch.RELATIVE_ACCURACY);
+        assertEquals(100, sketch.getQuantile(0.99), 0);
+    }
+
+    /** Verify merging sketches gives the sketch of all their values. */
+    @Test
+    public void testMerge() throws Exception {
+        QuantileSketch low = new QuantileSketch();
+        QuantileSketch high = new QuantileSketch();
+        QuantileSketch all = new QuantileSketch();
+        for (int i = 1; i <= 1000; i++) {
+            (i <= 500 ? low : high).add(i);
+            all.add(i);
+        }
+        high.merge(low);
+        assertEquals(all.getCount(), high.getCount());
+        for (double quantile : new double[] {0, 0.1, 0.5, 0.9, 0.99, 1}) {
+            assertEquals(all.getQuantile(quantile), high.getQuantile(quantile), 0);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors.util;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Android Unit tests for {@link TimeSeriesCsv}.
+ *
+ * To run:
+ * atest CollectorDeviceLibTest:android.device.collectors.util.TimeSeriesCsvTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class TimeSeriesCsvTest {
+
+    /** Verify the rows written are converted to the legacy padded rows. */
+    @Test
+    public void testConvertToLegacy() throws Exception {
+        StringWriter timeSeries = new StringWriter();
+        timeSeries.append(TimeSeriesCsv.HEADER).append('\n');
+        TimeSeriesCsv.appendRow(timeSeries, 0, "metric1", 5);
+        TimeSeriesCsv.appendRow(timeSeries, 1000, "metric,2", 0.5);
+        assertEquals("time,metric_key,value\n0,metric1,5\n1000,metric,2,0.5\n",
+                timeSeries.toString());
+
+        StringWriter legacy = new StringWriter();
+        TimeSeriesCsv.convertToLegacy(
+                new BufferedReader(new StringReader(timeSeries.toString())), legacy);
+        String expected =
+                TimeSeriesCsv.LEGACY_HEADER + "\n"
+                        + String.format("%-20d,%-100s,%-20s\n", 0, "metric1", "5")
+                        + String.format("%-20d,%-100s,%-20s\n", 1000, "metric,2", "0.5");
+        assertEquals(expected, legacy.toString());
+    }
+
+    /** Verify malformed rows fail the conversion. */
+    @Test
+    public void testConvertToLegacy_malformed() throws Exception {
+        String timeSeries = TimeSeriesCsv.HEADER + "\n0,metric1\n";
+        try {
+            TimeSeriesCsv.convertToLegacy(
+                    new BufferedReader(new StringReader(timeSeries)), new StringWriter());
+            fail("Expected an IOException.");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
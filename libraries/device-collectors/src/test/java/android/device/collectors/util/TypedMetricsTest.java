@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors.util;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Android Unit tests for {@link TypedMetrics}.
+ *
+ * To run:
+ * atest CollectorDeviceLibTest:android.device.collectors.util.TypedMetricsTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class TypedMetricsTest {
+
+    /** Verify the metrics decoded are the ones encoded. */
+    @Test
+    public void testEncodeDecode() throws Exception {
+        TypedMetrics metrics = new TypedMetrics();
+        metrics.putLong("count", 42);
+        metrics.putLong("negative", -3);
+        metrics.putLong("max", Long.MAX_VALUE);
+        metrics.putDouble("ratio", 0.25);
+        metrics.putDouble("nan", Double.NaN);
+        metrics.putHistogram("frame_time_ms", new long[] {5, 6, 150}, new long[] {10, 0, 2});
+
+        TypedMetrics decoded = TypedMetrics.decode(metrics.encode());
+        assertEquals(Arrays.asList("count", "negative", "max"), decoded.getLongKeys());
+        assertEquals(42, decoded.getLong("count", 0));
+        assertEquals(-3, decoded.getLong("negative", 0));
+        assertEquals(Long.MAX_VALUE, decoded.getLong("max", 0));
+        assertEquals(0.25, decoded.getDouble("ratio", 0), 0);
+        assertEquals(Double.NaN, decoded.getDouble("nan", 0), 0);
+        assertArrayEquals(
+                new long[] {5, 6, 150}, decoded.getHistogramBuckets("frame_time_ms"));
+        assertArrayEquals(new long[] {10, 0, 2}, decoded.getHistogramCounts("frame_time_ms"));
+        assertEquals(6, decoded.size());
+    }
+
+    /** Verify adding a metric under an existing key replaces it, and the string form. */
+    @Test
+    public void testReplaceAndStringMap() {
+        TypedMetrics metrics = new TypedMetrics();
+        for (int i = 0; i < 20; i++) {
+            metrics.putLong("metric_" + i, i);
+        }
+        metrics.putLong("metric_3", 30);
+        metrics.putDouble("ratio", 0.5);
+        metrics.putHistogram("histogram", new long[] {1, 2}, new long[] {3, 4});
+
+        assertEquals(22, metrics.size());
+        Map<String, String> strings = metrics.toStringMap();
+        assertEquals("30", strings.get("metric_3"));
+        assertEquals("19", strings.get("metric_19"));
+        assertEquals("0.5", strings.get("ratio"));
+        assertEquals("1=3,2=4", strings.get("histogram"));
+    }
+
+    /** Verify adding a metric under a key of another type replaces it as well. */
+    @Test
+    public void testReplaceOtherType() throws Exception {
+        TypedMetrics metrics = new TypedMetrics();
+        metrics.putLong("first", 1);
+        metrics.putLong("value", 2);
+        metrics.putLong("last", 3);
+        metrics.putDouble("value", 2.5);
+        metrics.putHistogram("ratio", new long[] {1}, new long[] {1});
+        metrics.putDouble("ratio", 0.5);
+
+        TypedMetrics other = new TypedMetrics();
+        other.putHistogram("first", new long[] {1}, new long[] {2});
+        metrics.putAll(other);
+
+        TypedMetrics decoded = TypedMetrics.decode(metrics.encode());
+        assertEquals(4, decoded.size());
+        assertEquals(Arrays.asList("last"), decoded.getLongKeys());
+        assertEquals(3, decoded.getLong("last", -1));
+        assertEquals(Arrays.asList("value", "ratio"), decoded.getDoubleKeys());
+        assertEquals(2.5, decoded.getDouble("value", -1), 0);
+        assertEquals(Arrays.asList("first"), decoded.getHistogramKeys());
+        assertEquals("2.5", metrics.toStringMap().get("value"));
+    }
+
+    /** Verify truncated metrics are not decoded. */
+    @Test
+    public void testDecodeTruncated() {
+        TypedMetrics metrics = new TypedMetrics();
+        metrics.putLong("count", 42);
+        metrics.putDouble("ratio", 0.25);
+        byte[] encoded = metrics.encode();
+        try {
+            TypedMetrics.decode(Arrays.copyOf(encoded, encoded.length - 1));
+            fail("Truncated metrics were decoded.");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+}
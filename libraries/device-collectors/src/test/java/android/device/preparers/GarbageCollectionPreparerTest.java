@@ -16,6 +16,7 @@
 
 package android.device.preparers;
 
+import static android.device.preparers.GarbageCollectionPreparer.GC_WAIT_FOR_COMPLETION_KEY;
 import static android.device.preparers.GarbageCollectionPreparer.GC_WAIT_TIME_KEY;
 import static android.device.preparers.GarbageCollectionPreparer.PROCESS_NAMES_KEY;
 import static android.device.preparers.GarbageCollectionPreparer.PROCESS_SEPARATOR;
@@ -105,6 +106,18 @@ public class GarbageCollectionPreparerTest {
         verify(mGcHelper).setUp(TEST_PROCESS_NAME_1, TEST_PROCESS_NAME_2);
     }
 
+    @Test
+    public void testHelperWaitsForCompletion() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(PROCESS_NAMES_KEY, TEST_PROCESS_NAME_1);
+        b.putString(GC_WAIT_FOR_COMPLETION_KEY, "true");
+        mPreparer = initPreparer(b);
+
+        mPreparer.testRunStarted(mRunDesc);
+
+        verify(mGcHelper).setWaitForCompletion(true);
+    }
+
     @Test
     public void testHelperGcsDefaultWaitTimeWhenUnprovided() throws Exception {
         Bundle b = new Bundle();
@@ -33,8 +33,13 @@ import android.content.res.AssetManager;
 import android.os.Bundle;
 
 import com.android.internal.os.StatsdConfigProto.StatsdConfig;
+import com.android.os.AtomsProto.AppBreadcrumbReported;
+import com.android.os.AtomsProto.Atom;
+import com.android.os.StatsLog.ConfigMetricsReport;
 import com.android.os.StatsLog.ConfigMetricsReportList;
 import com.android.os.StatsLog.ConfigMetricsReportList.ConfigKey;
+import com.android.os.StatsLog.EventMetricData;
+import com.android.os.StatsLog.StatsLogReport;
 import com.google.common.collect.ImmutableMap;
 
 import org.junit.Assert;
@@ -60,6 +65,7 @@ public class StatsdListenerTest {
 
     private static final long CONFIG_ID_1 = 1;
     private static final long CONFIG_ID_2 = 2;
+    private static final long PROBE_CONFIG_ID = 3;
 
     private static class DummyTest {}
 
@@ -81,6 +87,9 @@ public class StatsdListenerTest {
                     .setConfigKey(ConfigKey.newBuilder().setUid(0).setId(CONFIG_ID_2))
                     .build();
 
+    private static final ConfigMetricsReportList PROBE_REPORT =
+            getProbeReport(StatsdListener.RUN_EVENT_LABEL, StatsdListener.TEST_EVENT_LABEL);
+
     private static final ImmutableMap<String, StatsdConfig> CONFIG_MAP =
             ImmutableMap.of(CONFIG_NAME_1, CONFIG_1, CONFIG_NAME_2, CONFIG_2);
 
@@ -105,6 +114,11 @@ public class StatsdListenerTest {
         // Stub randome UUID generation.
         doReturn(CONFIG_ID_1).when(mListener).getUniqueIdForConfig(eq(CONFIG_1));
         doReturn(CONFIG_ID_2).when(mListener).getUniqueIdForConfig(eq(CONFIG_2));
+        // Stub the probe config to report the "stop" events right away.
+        doReturn(PROBE_CONFIG_ID)
+                .when(mListener)
+                .getUniqueIdForConfig(eq(StatsdListener.PROBE_CONFIG));
+        doReturn(PROBE_REPORT.toByteArray()).when(mListener).getStatsReports(eq(PROBE_CONFIG_ID));
     }
 
     /** Test that the collector has correct interactions with statsd for per-run collection. */
@@ -130,6 +144,33 @@ public class StatsdListenerTest {
         verify(mListener, times(1)).removeStatsConfig(eq(CONFIG_ID_2));
     }
 
+    /** Test that the collector waits for statsd to process the "stop" event before pulling. */
+    @Test
+    public void testRunLevelCollection_waitForStop() throws Exception {
+        doReturn(CONFIG_MAP)
+                .when(mListener)
+                .getConfigsFromOption(eq(StatsdListener.OPTION_CONFIGS_RUN_LEVEL));
+        // The "stop" event is only processed by the second pull.
+        doReturn(getProbeReport().toByteArray(), PROBE_REPORT.toByteArray())
+                .when(mListener)
+                .getStatsReports(eq(PROBE_CONFIG_ID));
+
+        DataRecord runData = mock(DataRecord.class);
+        Description description = Description.createSuiteDescription("TestRun");
+
+        mListener.onTestRunStart(runData, description);
+        StatsdConfig probeConfig =
+                StatsdListener.PROBE_CONFIG.toBuilder().setId(PROBE_CONFIG_ID).build();
+        verify(mListener, times(1))
+                .addStatsConfig(eq(PROBE_CONFIG_ID), eq(probeConfig.toByteArray()));
+
+        mListener.onTestRunEnd(runData, new Result());
+        verify(mListener, times(2)).getStatsReports(eq(PROBE_CONFIG_ID));
+        verify(mListener, times(1)).getStatsReports(eq(CONFIG_ID_1));
+        verify(runData, times(1)).addStringMetric(eq(StatsdListener.PULL_DELAY_KEY), any());
+        verify(mListener, times(1)).removeStatsConfig(eq(PROBE_CONFIG_ID));
+    }
+
     /** Test that the collector dumps reports and report them as metrics. */
     @Test
     public void testRunLevelCollection_metrics() throws Exception {
@@ -539,6 +580,27 @@ public class StatsdListenerTest {
         mListener.onTestEnd(mock(DataRecord.class), arbitraryDescription);
     }
 
+    /** Returns a probe config report holding "stop" events with {@code labels}. */
+    private static ConfigMetricsReportList getProbeReport(int... labels) {
+        StatsLogReport.EventMetricDataWrapper.Builder events =
+                StatsLogReport.EventMetricDataWrapper.newBuilder();
+        for (int label : labels) {
+            AppBreadcrumbReported breadcrumb =
+                    AppBreadcrumbReported.newBuilder()
+                            .setLabel(label)
+                            .setState(AppBreadcrumbReported.State.STOP)
+                            .build();
+            events.addData(
+                    EventMetricData.newBuilder()
+                            .setAtom(Atom.newBuilder().setAppBreadcrumbReported(breadcrumb)));
+        }
+        return ConfigMetricsReportList.newBuilder()
+                .addReports(
+                        ConfigMetricsReport.newBuilder()
+                                .addMetrics(StatsLogReport.newBuilder().setEventMetrics(events)))
+                .build();
+    }
+
     /** Returns a Mockito argument matcher that matches the exact file name. */
     private File getExactFileNameMatcher(String parentName, String filename) {
         return argThat(f -> f.getParent().contains(parentName) && f.getName().equals(filename));
@@ -26,6 +26,9 @@ import org.junit.runners.model.InitializationError;
  * This rule will gc the provided apps before running each test method.
  */
 public class GarbageCollectRule extends TestWatcher {
+    // Wait until the GC of every app completed instead of a fixed time.
+    @VisibleForTesting static final String KEY_WAIT_FOR_COMPLETION = "gc-wait-for-completion";
+
     private final GarbageCollectionHelper mGcHelper;
 
     public GarbageCollectRule() throws InitializationError {
@@ -44,6 +47,8 @@ public class GarbageCollectRule extends TestWatcher {
 
     @Override
     protected void starting(Description description) {
+        mGcHelper.setWaitForCompletion(
+                Boolean.parseBoolean(getArguments().getString(KEY_WAIT_FOR_COMPLETION, "false")));
         mGcHelper.garbageCollect();
     }
 }
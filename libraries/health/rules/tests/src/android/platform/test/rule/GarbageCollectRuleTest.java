@@ -15,10 +15,14 @@
  */
 package android.platform.test.rule;
 
+import static android.platform.test.rule.GarbageCollectRule.KEY_WAIT_FOR_COMPLETION;
+
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
+import android.os.Bundle;
+
 import com.android.helpers.GarbageCollectionHelper;
 
 import org.junit.Test;
@@ -59,6 +63,27 @@ public class GarbageCollectRuleTest {
             public void evaluate() throws Throwable {
                 // Assert that garbage collection was called before the test.
                 verify(mGcHelper).setUp("package.name1");
+                verify(mGcHelper).setWaitForCompletion(false);
+                verify(mGcHelper).garbageCollect();
+            }
+        };
+
+        rule.apply(testStatement,
+                Description.createTestDescription("clzz", "mthd")).evaluate();
+    }
+
+    /**
+     * Tests that this rule will wait for the GC to complete if requested.
+     */
+    @Test
+    public void testWaitsForCompletion() throws Throwable {
+        Bundle args = new Bundle();
+        args.putString(KEY_WAIT_FOR_COMPLETION, "true");
+        GarbageCollectRule rule = new TestableGarbageCollectRule("package.name1", args);
+        Statement testStatement = new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                verify(mGcHelper).setWaitForCompletion(true);
                 verify(mGcHelper).garbageCollect();
             }
         };
@@ -69,8 +94,20 @@ public class GarbageCollectRuleTest {
 
 
     private class TestableGarbageCollectRule extends GarbageCollectRule {
+        private final Bundle mArgs;
+
         public TestableGarbageCollectRule(String app) {
+            this(app, new Bundle());
+        }
+
+        public TestableGarbageCollectRule(String app, Bundle args) {
             super(app);
+            mArgs = args;
+        }
+
+        @Override
+        protected Bundle getArguments() {
+            return mArgs;
         }
 
         @Override